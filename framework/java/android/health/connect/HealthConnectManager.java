@@ -90,6 +90,7 @@ import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.time.Duration;
@@ -1111,6 +1112,37 @@ public class HealthConnectManager {
         }
     }
 
+    /**
+     * Streams the records matching {@code request}, in chunks of at most its page size, starting
+     * from its page token.
+     *
+     * <p>Unlike {@link #readRecords}, the whole result is read with a single request. The records
+     * visible to the caller are the same as with {@link #readRecords}.
+     *
+     * @param request Read request based on {@link ReadRecordsRequestUsingFilters}
+     * @return the stream to read the chunks from, which must be closed once done with.
+     * @throws IOException if the stream can't be created.
+     * @hide
+     */
+    @NonNull
+    public <T extends Record> ReadRecordsStream<T> readRecordsStream(
+            @NonNull ReadRecordsRequestUsingFilters<T> request) throws IOException {
+        Objects.requireNonNull(request);
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        ReadRecordsStream<T> stream =
+                new ReadRecordsStream<>(pipe[0], mInternalExternalRecordConverter);
+        try (ParcelFileDescriptor writeSide = pipe[1]) {
+            mService.readRecordsStream(
+                    mContext.getAttributionSource(),
+                    request.toReadRecordsRequestParcel(),
+                    writeSide);
+        } catch (RemoteException e) {
+            stream.close();
+            throw e.rethrowFromSystemServer();
+        }
+        return stream;
+    }
+
     /**
      * Updates {@code records} into the HealthConnect database. In case of an error or a permission
      * failure the HealthConnect service, {@link OutcomeReceiver#onError} will be invoked with a
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.health.connect;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.annotation.WorkerThread;
+import android.health.connect.datatypes.Record;
+import android.health.connect.internal.RecordsStreamUtils;
+import android.health.connect.internal.datatypes.utils.InternalExternalRecordConverter;
+import android.os.ParcelFileDescriptor;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Stream of the records read by {@link HealthConnectManager#readRecordsStream}, received in chunks
+ * of at most the page size of the request.
+ *
+ * <p>The service only reads the next chunk from the database once the previous one has been
+ * consumed, so a slow reader doesn't make it buffer the result. Each chunk comes with the page
+ * token to resume reading after it, which can be used to continue with a new request if the stream
+ * fails or is closed early.
+ *
+ * @param <T> the type of the records in the stream
+ * @hide
+ */
+public final class ReadRecordsStream<T extends Record> implements Closeable {
+    private final DataInputStream mInputStream;
+    private final InternalExternalRecordConverter mInternalExternalRecordConverter;
+    private boolean mFinished;
+
+    ReadRecordsStream(
+            @NonNull ParcelFileDescriptor readSide,
+            @NonNull InternalExternalRecordConverter internalExternalRecordConverter) {
+        Objects.requireNonNull(readSide);
+        Objects.requireNonNull(internalExternalRecordConverter);
+        mInputStream =
+                new DataInputStream(
+                        new BufferedInputStream(
+                                new ParcelFileDescriptor.AutoCloseInputStream(readSide)));
+        mInternalExternalRecordConverter = internalExternalRecordConverter;
+    }
+
+    /**
+     * Returns the next chunk of records, blocking until it is available, or {@code null} once all
+     * the records have been read.
+     *
+     * @throws HealthConnectException if the service failed to read the records.
+     * @throws IOException if the stream was closed or is malformed.
+     */
+    @Nullable
+    @WorkerThread
+    @SuppressWarnings("unchecked")
+    public ReadRecordsResponse<T> readNextChunk() throws IOException {
+        if (mFinished) {
+            return null;
+        }
+
+        int frameType = mInputStream.readInt();
+        switch (frameType) {
+            case RecordsStreamUtils.FRAME_RECORDS:
+                long nextPageToken = mInputStream.readLong();
+                List<T> records =
+                        (List<T>)
+                                mInternalExternalRecordConverter.getExternalRecords(
+                                        RecordsStreamUtils.readRecords(mInputStream));
+                return new ReadRecordsResponse<>(records, nextPageToken);
+            case RecordsStreamUtils.FRAME_END:
+                mFinished = true;
+                return null;
+            case RecordsStreamUtils.FRAME_ERROR:
+                mFinished = true;
+                int errorCode = mInputStream.readInt();
+                throw new HealthConnectException(errorCode, mInputStream.readUTF());
+            default:
+                throw new IOException("Unknown frame type " + frameType);
+        }
+    }
+
+    /** Closes the stream, which also stops the service from reading more records. */
+    @Override
+    public void close() throws IOException {
+        mFinished = true;
+        mInputStream.close();
+    }
+}
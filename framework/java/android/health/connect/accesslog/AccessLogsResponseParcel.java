@@ -44,9 +44,14 @@ public final class AccessLogsResponseParcel implements Parcelable {
     private final List<AccessLog> mAccessLogsList;
 
     private AccessLogsResponseParcel(@NonNull Parcel in) {
-        in = ParcelUtils.getParcelForSharedMemoryIfRequired(in);
+        Parcel dataParcel = ParcelUtils.getParcelForSharedMemoryIfRequired(in);
         mAccessLogsList = new ArrayList<>();
-        in.readParcelableList(mAccessLogsList, AccessLog.class.getClassLoader(), AccessLog.class);
+        try {
+            dataParcel.readParcelableList(
+                    mAccessLogsList, AccessLog.class.getClassLoader(), AccessLog.class);
+        } finally {
+            ParcelUtils.recycleParcelForSharedMemoryIfRequired(in, dataParcel);
+        }
     }
 
     public AccessLogsResponseParcel(@NonNull List<AccessLog> accessLogs) {
@@ -113,6 +113,24 @@ public class ReadRecordsRequestParcel implements Parcelable {
         mAscending = request.isAscending();
     }
 
+    private ReadRecordsRequestParcel(ReadRecordsRequestParcel request, long pageToken) {
+        mRecordType = request.mRecordType;
+        mStartTime = request.mStartTime;
+        mEndTime = request.mEndTime;
+        mLocalTimeFilter = request.mLocalTimeFilter;
+        mPackageFilters = request.mPackageFilters;
+        mRecordIdFiltersParcel = request.mRecordIdFiltersParcel;
+        mPageSize = request.mPageSize;
+        mPageToken = pageToken;
+        mAscending = request.mAscending;
+    }
+
+    /** Returns a copy of this request to read the page of {@code pageToken}. */
+    @NonNull
+    public ReadRecordsRequestParcel withPageToken(long pageToken) {
+        return new ReadRecordsRequestParcel(this, pageToken);
+    }
+
     public int getRecordType() {
         return mRecordType;
     }
@@ -22,10 +22,10 @@ import android.health.connect.HealthConnectManager;
 import android.health.connect.internal.ParcelUtils;
 import android.health.connect.internal.datatypes.RecordInternal;
 import android.health.connect.internal.datatypes.utils.ParcelRecordConverter;
+import android.health.connect.internal.datatypes.utils.ParcelStringDictionary;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -50,6 +50,10 @@ public class RecordsParcel implements Parcelable {
                 }
             };
 
+    // Written in place of the number of records, which is never negative, so that parcels in the
+    // original format, starting with the number of records, can still be read.
+    private static final int FORMAT_STRING_DICTIONARY = -1;
+
     private final List<RecordInternal<?>> mRecordInternals;
     private long mRecordsChunkSize;
     private List<Long> mRecordsSize;
@@ -59,25 +63,35 @@ public class RecordsParcel implements Parcelable {
     }
 
     private RecordsParcel(@NonNull Parcel in) {
-        in = ParcelUtils.getParcelForSharedMemoryIfRequired(in);
-        int size = in.readInt();
-        mRecordInternals = new ArrayList<>(size);
-        mRecordsSize = new ArrayList<>(size);
-        long remainingParcelSize = in.dataAvail();
-        mRecordsChunkSize = remainingParcelSize;
-        for (int i = 0; i < size; i++) {
-            int identifier = in.readInt();
-            try {
-                mRecordInternals.add(ParcelRecordConverter.getInstance().getRecord(in, identifier));
+        Parcel dataParcel = ParcelUtils.getParcelForSharedMemoryIfRequired(in);
+        try {
+            int format = dataParcel.readInt();
+            ParcelStringDictionary dictionary = null;
+            int size = format;
+            if (format == FORMAT_STRING_DICTIONARY) {
+                dictionary = new ParcelStringDictionary();
+                size = dataParcel.readInt();
+            } else if (format < 0) {
+                throw new IllegalArgumentException("Unknown records parcel format " + format);
+            }
+            mRecordInternals = new ArrayList<>(size);
+            mRecordsSize = new ArrayList<>(size);
+            long remainingParcelSize = dataParcel.dataAvail();
+            mRecordsChunkSize = remainingParcelSize;
+            for (int i = 0; i < size; i++) {
+                int identifier = dataParcel.readInt();
+                mRecordInternals.add(
+                        dictionary == null
+                                ? ParcelRecordConverter.getInstance()
+                                        .getRecord(dataParcel, identifier)
+                                : ParcelRecordConverter.getInstance()
+                                        .getRecord(dataParcel, identifier, dictionary));
                 // Calculating record size based on before and after values of parcel size.
-                mRecordsSize.add(remainingParcelSize - in.dataAvail());
-                remainingParcelSize = in.dataAvail();
-            } catch (InstantiationException
-                     | IllegalAccessException
-                     | NoSuchMethodException
-                     | InvocationTargetException e) {
-                throw new IllegalArgumentException();
+                mRecordsSize.add(remainingParcelSize - dataParcel.dataAvail());
+                remainingParcelSize = dataParcel.dataAvail();
             }
+        } finally {
+            ParcelUtils.recycleParcelForSharedMemoryIfRequired(in, dataParcel);
         }
     }
 
@@ -112,10 +126,12 @@ public class RecordsParcel implements Parcelable {
     }
 
     private void writeToParcelInternal(@NonNull Parcel dest) {
+        ParcelStringDictionary dictionary = new ParcelStringDictionary();
+        dest.writeInt(FORMAT_STRING_DICTIONARY);
         dest.writeInt(mRecordInternals.size());
         for (RecordInternal<?> recordInternal : mRecordInternals) {
             dest.writeInt(recordInternal.getRecordType());
-            recordInternal.writeToParcel(dest);
+            recordInternal.writeToParcel(dest, dictionary);
         }
     }
 }
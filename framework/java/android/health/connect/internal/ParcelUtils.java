@@ -21,6 +21,7 @@ import android.os.IBinder;
 import android.os.Parcel;
 import android.os.SharedMemory;
 import android.system.ErrnoException;
+import android.system.OsConstants;
 
 import com.android.internal.annotations.VisibleForTesting;
 
@@ -45,9 +46,13 @@ public final class ParcelUtils {
             try (SharedMemory memory = SharedMemory.CREATOR.createFromParcel(in)) {
                 Parcel dataParcel = Parcel.obtain();
                 ByteBuffer buffer = memory.mapReadOnly();
-                byte[] payload = new byte[buffer.limit()];
-                buffer.get(payload);
-                dataParcel.unmarshall(payload, 0, payload.length);
+                try {
+                    byte[] payload = new byte[buffer.limit()];
+                    buffer.get(payload);
+                    dataParcel.unmarshall(payload, 0, payload.length);
+                } finally {
+                    SharedMemory.unmap(buffer);
+                }
                 dataParcel.setDataPosition(0);
                 return dataParcel;
             } catch (ErrnoException e) {
@@ -57,13 +62,30 @@ public final class ParcelUtils {
         return in;
     }
 
+    /**
+     * Recycles {@code dataParcel} if it was obtained by {@link
+     * #getParcelForSharedMemoryIfRequired} to hold the contents of a shared memory, and isn't
+     * {@code in} itself.
+     */
+    public static void recycleParcelForSharedMemoryIfRequired(
+            @NonNull Parcel in, @NonNull Parcel dataParcel) {
+        if (dataParcel != in) {
+            dataParcel.recycle();
+        }
+    }
+
     public static SharedMemory getSharedMemoryForParcel(Parcel dataParcel, int dataParcelSize) {
         try {
             SharedMemory sharedMemory =
                     SharedMemory.create("RecordsParcelSharedMemory", dataParcelSize);
             ByteBuffer buffer = sharedMemory.mapReadWrite();
-            byte[] data = dataParcel.marshall();
-            buffer.put(data, 0, dataParcelSize);
+            try {
+                buffer.put(dataParcel.marshall(), 0, dataParcelSize);
+            } finally {
+                SharedMemory.unmap(buffer);
+            }
+            // The receiver only needs to read the payload.
+            sharedMemory.setProtect(OsConstants.PROT_READ);
             return sharedMemory;
         } catch (ErrnoException e) {
             throw new RuntimeException(e);
@@ -81,13 +103,17 @@ public final class ParcelUtils {
             parcelRunnable.writeToParcel(dataParcel);
             final int dataParcelSize = dataParcel.dataSize();
             if (dataParcelSize > IPC_PARCEL_LIMIT) {
-                SharedMemory sharedMemory =
-                        ParcelUtils.getSharedMemoryForParcel(dataParcel, dataParcelSize);
-                dest.writeInt(USING_SHARED_MEMORY);
-                sharedMemory.writeToParcel(dest, flags);
+                // The parcel holds its own duplicate of the file descriptor, so the sender's one is
+                // closed as soon as it is written.
+                try (SharedMemory sharedMemory =
+                        ParcelUtils.getSharedMemoryForParcel(dataParcel, dataParcelSize)) {
+                    dest.writeInt(USING_SHARED_MEMORY);
+                    sharedMemory.writeToParcel(dest, flags);
+                }
             } else {
+                // Copy the already serialised payload rather than serialising it a second time.
                 dest.writeInt(USING_PARCEL);
-                parcelRunnable.writeToParcel(dest);
+                dest.appendFrom(dataParcel, 0, dataParcelSize);
             }
         } finally {
             dataParcel.recycle();
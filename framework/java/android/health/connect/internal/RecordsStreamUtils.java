@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.health.connect.internal;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.utils.ParcelRecordConverter;
+import android.health.connect.internal.datatypes.utils.ParcelStringDictionary;
+import android.os.Parcel;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes the frames of a records stream. A stream is a sequence of {@link
+ * #FRAME_RECORDS} frames, each holding a chunk of records and the page token to resume reading
+ * after them, terminated by either a {@link #FRAME_END} or a {@link #FRAME_ERROR} frame.
+ *
+ * @hide
+ */
+public final class RecordsStreamUtils {
+    public static final int FRAME_RECORDS = 0;
+    public static final int FRAME_END = 1;
+    public static final int FRAME_ERROR = 2;
+
+    // Keeps the message within the limits of modified UTF-8 encoding.
+    private static final int MAX_ERROR_MESSAGE_LENGTH = 1000;
+
+    private RecordsStreamUtils() {}
+
+    /** Writes a frame holding {@code recordInternals} and the token of the next page. */
+    public static void writeRecords(
+            @NonNull DataOutputStream out,
+            @NonNull List<RecordInternal<?>> recordInternals,
+            long nextPageToken)
+            throws IOException {
+        Parcel parcel = Parcel.obtain();
+        try {
+            ParcelStringDictionary dictionary = new ParcelStringDictionary();
+            parcel.writeInt(recordInternals.size());
+            for (RecordInternal<?> recordInternal : recordInternals) {
+                parcel.writeInt(recordInternal.getRecordType());
+                recordInternal.writeToParcel(parcel, dictionary);
+            }
+            byte[] payload = parcel.marshall();
+            out.writeInt(FRAME_RECORDS);
+            out.writeLong(nextPageToken);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.flush();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /** Writes the frame signalling that all the records were written. */
+    public static void writeEnd(@NonNull DataOutputStream out) throws IOException {
+        out.writeInt(FRAME_END);
+        out.flush();
+    }
+
+    /** Writes the frame signalling that the stream failed with {@code errorCode}. */
+    public static void writeError(
+            @NonNull DataOutputStream out, int errorCode, @Nullable String message)
+            throws IOException {
+        if (message == null) {
+            message = "";
+        } else if (message.length() > MAX_ERROR_MESSAGE_LENGTH) {
+            message = message.substring(0, MAX_ERROR_MESSAGE_LENGTH);
+        }
+        out.writeInt(FRAME_ERROR);
+        out.writeInt(errorCode);
+        out.writeUTF(message);
+        out.flush();
+    }
+
+    /** Reads the records of a {@link #FRAME_RECORDS} frame, after its page token was read. */
+    @NonNull
+    public static List<RecordInternal<?>> readRecords(@NonNull DataInputStream in)
+            throws IOException {
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(payload, 0, payload.length);
+            parcel.setDataPosition(0);
+            ParcelStringDictionary dictionary = new ParcelStringDictionary();
+            int size = parcel.readInt();
+            List<RecordInternal<?>> recordInternals = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                recordInternals.add(
+                        ParcelRecordConverter.getInstance()
+                                .getRecord(parcel, parcel.readInt(), dictionary));
+            }
+            return recordInternals;
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -27,6 +27,7 @@ import android.health.connect.datatypes.Identifier;
 import android.health.connect.datatypes.Metadata;
 import android.health.connect.datatypes.Record;
 import android.health.connect.datatypes.RecordTypeIdentifier;
+import android.health.connect.internal.datatypes.utils.ParcelStringDictionary;
 import android.os.Parcel;
 
 import java.time.Instant;
@@ -89,6 +90,29 @@ public abstract class RecordInternal<T extends Record> {
         populateRecordFrom(parcel);
     }
 
+    /**
+     * Same as {@link #populateUsing(Parcel)}, for a record written by {@link
+     * #writeToParcel(Parcel, ParcelStringDictionary)}.
+     */
+    public final void populateUsing(
+            @NonNull Parcel parcel, @NonNull ParcelStringDictionary dictionary) {
+        if (parcel.readBoolean()) {
+            long mostSigBits = parcel.readLong();
+            mUuid = new UUID(mostSigBits, parcel.readLong());
+        }
+        mPackageName = dictionary.readString(parcel);
+        mAppName = dictionary.readString(parcel);
+        mLastModifiedTime = parcel.readLong();
+        mClientRecordId = parcel.readString();
+        mClientRecordVersion = parcel.readLong();
+        mManufacturer = dictionary.readString(parcel);
+        mModel = dictionary.readString(parcel);
+        mDeviceType = parcel.readInt();
+        mRecordingMethod = parcel.readInt();
+
+        populateRecordFrom(parcel);
+    }
+
     /**
      * Populates {@code parcel} with the self information, required to reconstructor this object
      * during IPC
@@ -109,6 +133,32 @@ public abstract class RecordInternal<T extends Record> {
         populateRecordTo(parcel);
     }
 
+    /**
+     * Same as {@link #writeToParcel(Parcel)}, but writes the UUID as two longs and the metadata
+     * strings shared between records, like the package name and the device, through {@code
+     * dictionary}.
+     */
+    public final void writeToParcel(
+            @NonNull Parcel parcel, @NonNull ParcelStringDictionary dictionary) {
+        parcel.writeBoolean(mUuid != null);
+        if (mUuid != null) {
+            parcel.writeLong(mUuid.getMostSignificantBits());
+            parcel.writeLong(mUuid.getLeastSignificantBits());
+        }
+        dictionary.writeString(parcel, mPackageName);
+        dictionary.writeString(parcel, mAppName);
+        parcel.writeLong(mLastModifiedTime);
+        // Client ids are usually unique, so they would only grow the dictionary.
+        parcel.writeString(mClientRecordId);
+        parcel.writeLong(mClientRecordVersion);
+        dictionary.writeString(parcel, mManufacturer);
+        dictionary.writeString(parcel, mModel);
+        parcel.writeInt(mDeviceType);
+        parcel.writeInt(mRecordingMethod);
+
+        populateRecordTo(parcel);
+    }
+
     @Nullable
     public UUID getUuid() {
         return mUuid;
@@ -21,10 +21,6 @@ import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.health.connect.internal.datatypes.RecordInternal;
 import android.os.Parcel;
 
-import java.lang.reflect.InvocationTargetException;
-import java.util.Map;
-import java.util.Objects;
-
 /**
  * A helper class used to create {@link RecordInternal} objects using its bundle.
  *
@@ -33,11 +29,11 @@ import java.util.Objects;
 public final class ParcelRecordConverter {
     private static volatile ParcelRecordConverter sParcelRecordConverter = null;
 
-    private final Map<Integer, Class<? extends RecordInternal<?>>> mDataTypeClassMap;
+    private final RecordMapper mRecordMapper;
 
     private ParcelRecordConverter() {
-        // Add any new data type here to facilitate its conversion.
-        mDataTypeClassMap = RecordMapper.getInstance().getRecordIdToInternalRecordClassMap();
+        // Add any new data type to RecordMapper to facilitate its conversion.
+        mRecordMapper = RecordMapper.getInstance();
     }
 
     @NonNull
@@ -52,13 +48,23 @@ public final class ParcelRecordConverter {
     /** Returns a record for {@code bundle}, assuming it is of type represented by {@code type} */
     @NonNull
     public RecordInternal<?> getRecord(
-            @NonNull Parcel parcel, @RecordTypeIdentifier.RecordType int type)
-            throws InstantiationException, IllegalAccessException, NoSuchMethodException,
-                    InvocationTargetException {
-        Class<? extends RecordInternal<?>> recordClass = mDataTypeClassMap.get(type);
-        Objects.requireNonNull(recordClass);
-        RecordInternal<?> recordInternal = recordClass.getConstructor().newInstance();
+            @NonNull Parcel parcel, @RecordTypeIdentifier.RecordType int type) {
+        RecordInternal<?> recordInternal = mRecordMapper.newInternalRecord(type);
         recordInternal.populateUsing(parcel);
         return recordInternal;
     }
+
+    /**
+     * Returns a record for {@code parcel}, written with {@link
+     * RecordInternal#writeToParcel(Parcel, ParcelStringDictionary)}.
+     */
+    @NonNull
+    public RecordInternal<?> getRecord(
+            @NonNull Parcel parcel,
+            @RecordTypeIdentifier.RecordType int type,
+            @NonNull ParcelStringDictionary dictionary) {
+        RecordInternal<?> recordInternal = mRecordMapper.newInternalRecord(type);
+        recordInternal.populateUsing(parcel, dictionary);
+        return recordInternal;
+    }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.health.connect.internal.datatypes.utils;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Parcel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes strings to a parcel only the first time they are seen, and as an index into the strings
+ * written so far after that. A new dictionary is used for every parcel, and the strings must be
+ * read back in the order they were written.
+ *
+ * @hide
+ */
+public final class ParcelStringDictionary {
+    private static final int NULL_STRING = -1;
+    private static final int NEW_STRING = -2;
+
+    private final Map<String, Integer> mIndexes = new HashMap<>();
+    private final List<String> mStrings = new ArrayList<>();
+
+    /** Writes {@code value}, or its index if it was already written. */
+    public void writeString(@NonNull Parcel parcel, @Nullable String value) {
+        if (value == null) {
+            parcel.writeInt(NULL_STRING);
+            return;
+        }
+
+        Integer index = mIndexes.get(value);
+        if (index != null) {
+            parcel.writeInt(index);
+            return;
+        }
+
+        mIndexes.put(value, mStrings.size());
+        mStrings.add(value);
+        parcel.writeInt(NEW_STRING);
+        parcel.writeString(value);
+    }
+
+    /** Reads a string written with {@link #writeString}. */
+    @Nullable
+    public String readString(@NonNull Parcel parcel) {
+        int index = parcel.readInt();
+        if (index == NULL_STRING) {
+            return null;
+        }
+        if (index == NEW_STRING) {
+            String value = parcel.readString();
+            mStrings.add(value);
+            return value;
+        }
+        if (index < 0 || index >= mStrings.size()) {
+            throw new IllegalArgumentException("Invalid string index " + index);
+        }
+        return mStrings.get(index);
+    }
+}
@@ -44,12 +44,16 @@ public final class MigrationEntityParcel implements Parcelable {
     private final List<MigrationEntity> mMigrationEntityList;
 
     private MigrationEntityParcel(@NonNull Parcel in) {
-        in = ParcelUtils.getParcelForSharedMemoryIfRequired(in);
+        Parcel dataParcel = ParcelUtils.getParcelForSharedMemoryIfRequired(in);
         mMigrationEntityList = new ArrayList<>();
-        in.readParcelableList(
-                mMigrationEntityList,
-                MigrationEntity.class.getClassLoader(),
-                MigrationEntity.class);
+        try {
+            dataParcel.readParcelableList(
+                    mMigrationEntityList,
+                    MigrationEntity.class.getClassLoader(),
+                    MigrationEntity.class);
+        } finally {
+            ParcelUtils.recycleParcelForSharedMemoryIfRequired(in, dataParcel);
+        }
     }
 
     public MigrationEntityParcel(@NonNull List<MigrationEntity> migrationEntities) {
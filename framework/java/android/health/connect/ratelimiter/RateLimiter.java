@@ -18,25 +18,25 @@ package android.health.connect.ratelimiter;
 
 import android.annotation.IntDef;
 import android.health.connect.HealthConnectException;
-
-import com.android.internal.annotations.GuardedBy;
+import android.os.SystemClock;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.time.Duration;
-import java.time.Instant;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Basic rate limiter that assigns a fixed request rate quota. If no quota has previously been noted
  * (e.g. first request scenario), the full quota for each window will be immediately granted.
  *
+ * <p>Each quota bucket of a uid is a single long, the time at which the bucket would be empty if
+ * nothing accumulated since. Spending a call moves it forward by the time it takes to accumulate
+ * the cost of the call, and a call is allowed as long as that time is not in the future. This is
+ * equivalent to a token bucket, but lets the check run without locks or allocations.
+ *
  * @hide
  */
 public final class RateLimiter {
@@ -45,27 +45,46 @@ public final class RateLimiter {
     // The maximum size in bytes of a single record a client can insert in one go.
     public static final String RECORD_SIZE_LIMIT_IN_BYTES = "record_size_limit_in_bytes";
     private static final int DEFAULT_API_CALL_COST = 1;
-    private static final Map<Integer, Map<Integer, Quota>> sUserIdToQuotasMap = new HashMap<>();
+    private static final int NUM_QUOTA_BUCKETS =
+            QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_BACKGROUND + 1;
+    // Power of two, so that the stripe of a uid is a mask of it.
+    private static final int NUM_UID_QUOTA_STRIPES = 64;
+    // Empty time of the buckets which haven't been spent from, they are full whatever the time.
+    private static final long FULL_QUOTA_EMPTY_TIME = Long.MIN_VALUE;
+    private static final long WINDOW_15M_NANOS = Duration.ofMinutes(15).toNanos();
+    private static final long WINDOW_24H_NANOS = Duration.ofHours(24).toNanos();
+
+    private static final int[] READS_FOREGROUND_QUOTA_BUCKETS = {
+        QuotaBucket.QUOTA_BUCKET_READS_PER_15M_FOREGROUND,
+        QuotaBucket.QUOTA_BUCKET_READS_PER_24H_FOREGROUND
+    };
+    private static final int[] READS_BACKGROUND_QUOTA_BUCKETS = {
+        QuotaBucket.QUOTA_BUCKET_READS_PER_15M_BACKGROUND,
+        QuotaBucket.QUOTA_BUCKET_READS_PER_24H_BACKGROUND
+    };
+    private static final int[] WRITES_FOREGROUND_QUOTA_BUCKETS = {
+        QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_FOREGROUND,
+        QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_FOREGROUND
+    };
+    private static final int[] WRITES_BACKGROUND_QUOTA_BUCKETS = {
+        QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_BACKGROUND,
+        QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_BACKGROUND
+    };
 
-    private static final ConcurrentMap<Integer, Integer> sLocks = new ConcurrentHashMap<>();
-    private static final Map<Integer, Float> QUOTA_BUCKET_TO_MAX_API_CALL_QUOTA_MAP =
-            new HashMap<>();
     private static final Map<String, Integer> QUOTA_BUCKET_TO_MAX_MEMORY_QUOTA_MAP =
-            new HashMap<>();
-    private static final ReentrantReadWriteLock sLock = new ReentrantReadWriteLock();
+            new ConcurrentHashMap<>();
+
+    // Max quota by quota bucket, NaN if not configured. Replaced as a whole on updates.
+    private static volatile float[] sMaxApiCallQuotas = createMaxApiCallQuotas();
 
-    @GuardedBy("sLock")
-    private static boolean sRateLimiterEnabled;
+    private static volatile UidQuotaStripe[] sUidQuotaStripes = createUidQuotaStripes();
+
+    private static volatile boolean sRateLimiterEnabled;
 
     public static void tryAcquireApiCallQuota(
             int uid, @QuotaCategory.Type int quotaCategory, boolean isInForeground) {
-        sLock.readLock().lock();
-        try {
-            if (!sRateLimiterEnabled) {
-                return;
-            }
-        } finally {
-            sLock.readLock().unlock();
+        if (!sRateLimiterEnabled) {
+            return;
         }
         if (quotaCategory == QuotaCategory.QUOTA_CATEGORY_UNDEFINED) {
             throw new IllegalArgumentException("Quota category not defined.");
@@ -75,22 +94,15 @@ public final class RateLimiter {
         if (quotaCategory == QuotaCategory.QUOTA_CATEGORY_UNMETERED) {
             return;
         }
-        synchronized (getLockObject(uid)) {
-            spendResourcesIfAvailable(
-                    uid,
-                    getAffectedQuotaBuckets(quotaCategory, isInForeground),
-                    DEFAULT_API_CALL_COST);
-        }
+        spendResourcesIfAvailable(
+                getUidQuotas(uid),
+                getAffectedQuotaBuckets(quotaCategory, isInForeground),
+                DEFAULT_API_CALL_COST);
     }
 
     public static void checkMaxChunkMemoryUsage(long memoryCost) {
-        sLock.readLock().lock();
-        try {
-            if (!sRateLimiterEnabled) {
-                return;
-            }
-        } finally {
-            sLock.readLock().unlock();
+        if (!sRateLimiterEnabled) {
+            return;
         }
         long memoryLimit = getConfiguredMaxApiMemoryQuota(CHUNK_SIZE_LIMIT_IN_BYTES);
         if (memoryCost > memoryLimit) {
@@ -104,13 +116,8 @@ public final class RateLimiter {
     }
 
     public static void checkMaxRecordMemoryUsage(long memoryCost) {
-        sLock.readLock().lock();
-        try {
-            if (!sRateLimiterEnabled) {
-                return;
-            }
-        } finally {
-            sLock.readLock().unlock();
+        if (!sRateLimiterEnabled) {
+            return;
         }
         long memoryLimit = getConfiguredMaxApiMemoryQuota(RECORD_SIZE_LIMIT_IN_BYTES);
         if (memoryCost > memoryLimit) {
@@ -124,16 +131,19 @@ public final class RateLimiter {
     }
 
     public static void clearCache() {
-        sUserIdToQuotasMap.clear();
+        sUidQuotaStripes = createUidQuotaStripes();
     }
 
-    public static void updateApiCallQuotaMap(
+    public static synchronized void updateApiCallQuotaMap(
             Map<Integer, Integer> quotaBucketToMaxApiCallQuotaMap) {
-
+        float[] maxApiCallQuotas = Arrays.copyOf(sMaxApiCallQuotas, NUM_QUOTA_BUCKETS);
         for (Integer key : quotaBucketToMaxApiCallQuotaMap.keySet()) {
-            QUOTA_BUCKET_TO_MAX_API_CALL_QUOTA_MAP.put(
-                    key, (float) quotaBucketToMaxApiCallQuotaMap.get(key));
+            if (key <= QuotaBucket.QUOTA_BUCKET_UNDEFINED || key >= NUM_QUOTA_BUCKETS) {
+                throw new IllegalArgumentException("Invalid quota bucket.");
+            }
+            maxApiCallQuotas[key] = (float) quotaBucketToMaxApiCallQuotaMap.get(key);
         }
+        sMaxApiCallQuotas = maxApiCallQuotas;
     }
 
     public static void updateMemoryQuotaMap(Map<String, Integer> quotaBucketToMaxMemoryQuotaMap) {
@@ -143,98 +153,93 @@ public final class RateLimiter {
     }
 
     public static void updateEnableRateLimiterFlag(boolean enableRateLimiter) {
-        sLock.writeLock().lock();
-        try {
-            sRateLimiterEnabled = enableRateLimiter;
-        } finally {
-            sLock.writeLock().unlock();
-        }
+        sRateLimiterEnabled = enableRateLimiter;
     }
 
-    private static Object getLockObject(int uid) {
-        sLocks.putIfAbsent(uid, uid);
-        return sLocks.get(uid);
+    private static AtomicLongArray getUidQuotas(int uid) {
+        return sUidQuotaStripes[uid & (NUM_UID_QUOTA_STRIPES - 1)].getOrCreateQuotas(uid);
     }
 
-    private static void spendResourcesIfAvailable(int uid, List<Integer> quotaBuckets, int cost) {
-        Map<Integer, Float> quotaBucketToAvailableQuotaMap =
-                quotaBuckets.stream()
-                        .collect(
-                                Collectors.toMap(
-                                        quotaBucket -> quotaBucket,
-                                        quotaBucket ->
-                                                getAvailableQuota(
-                                                        quotaBucket, getQuota(uid, quotaBucket))));
-        for (@QuotaBucket.Type int quotaBucket : quotaBuckets) {
-            hasSufficientQuota(quotaBucketToAvailableQuotaMap.get(quotaBucket), cost, quotaBucket);
-        }
-        for (@QuotaBucket.Type int quotaBucket : quotaBuckets) {
-            spendResources(uid, quotaBucket, quotaBucketToAvailableQuotaMap.get(quotaBucket), cost);
+    private static void spendResourcesIfAvailable(
+            AtomicLongArray uidQuotas, int[] quotaBuckets, int cost) {
+        long currentTime = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < quotaBuckets.length; i++) {
+            if (!trySpendResources(uidQuotas, quotaBuckets[i], cost, currentTime)) {
+                // Give back what was spent from the other buckets, rejected calls are free.
+                for (int j = 0; j < i; j++) {
+                    uidQuotas.getAndAdd(quotaBuckets[j], -getCostNanos(quotaBuckets[j], cost));
+                }
+                throwQuotaExceeded(uidQuotas, quotaBuckets[i], cost, currentTime);
+            }
         }
     }
 
-    private static void spendResources(
-            int uid, @QuotaBucket.Type int quotaBucket, float availableQuota, int cost) {
-        sUserIdToQuotasMap
-                .get(uid)
-                .put(quotaBucket, new Quota(Instant.now(), availableQuota - cost));
-    }
-
-    private static void hasSufficientQuota(
-            float availableQuota, int cost, @QuotaBucket.Type int quotaBucket) {
-        if (availableQuota < cost) {
-            throw new RateLimiterException(
-                    "API call quota exceeded, availableQuota: "
-                            + availableQuota
-                            + " requested: "
-                            + cost,
-                    quotaBucket,
-                    getConfiguredApiCallMaxQuota(quotaBucket));
+    private static boolean trySpendResources(
+            AtomicLongArray uidQuotas,
+            @QuotaBucket.Type int quotaBucket,
+            int cost,
+            long currentTime) {
+        // A bucket without quota never accumulates any.
+        if (getConfiguredApiCallMaxQuota(quotaBucket) <= 0) {
+            return false;
+        }
+        long costNanos = getCostNanos(quotaBucket, cost);
+        long fullQuotaEmptyTime = currentTime - getWindowNanos(quotaBucket);
+        while (true) {
+            long emptyTime = uidQuotas.get(quotaBucket);
+            // Cannot accumulate more than the configured max quota.
+            long accumulatedFrom = Math.max(emptyTime, fullQuotaEmptyTime);
+            if (costNanos > currentTime - accumulatedFrom) {
+                return false;
+            }
+            if (uidQuotas.compareAndSet(quotaBucket, emptyTime, accumulatedFrom + costNanos)) {
+                return true;
+            }
         }
     }
 
-    private static float getAvailableQuota(@QuotaBucket.Type int quotaBucket, Quota quota) {
-        Instant lastUpdatedTime = quota.getLastUpdatedTime();
-        Instant currentTime = Instant.now();
-        Duration timeSinceLastQuotaSpend = Duration.between(lastUpdatedTime, currentTime);
-        Duration window = getWindowDuration(quotaBucket);
-        float accumulated =
-                timeSinceLastQuotaSpend.toMillis()
-                        * (getConfiguredApiCallMaxQuota(quotaBucket) / (float) window.toMillis());
-        // Cannot accumulate more than the configured max quota.
-        return Math.min(
-                quota.getRemainingQuota() + accumulated, getConfiguredApiCallMaxQuota(quotaBucket));
-    }
-
-    private static Quota getQuota(int uid, @QuotaBucket.Type int quotaBucket) {
-        // Handles first request scenario.
-        if (!sUserIdToQuotasMap.containsKey(uid)) {
-            sUserIdToQuotasMap.put(uid, new HashMap<>());
-        }
-        Map<Integer, Quota> packageQuotas = sUserIdToQuotasMap.get(uid);
-        Quota quota = packageQuotas.get(quotaBucket);
-        if (quota == null) {
-            quota = getInitialQuota(quotaBucket);
-        }
-        return quota;
+    private static void throwQuotaExceeded(
+            AtomicLongArray uidQuotas,
+            @QuotaBucket.Type int quotaBucket,
+            int cost,
+            long currentTime) {
+        long windowNanos = getWindowNanos(quotaBucket);
+        long emptyTime = Math.max(uidQuotas.get(quotaBucket), currentTime - windowNanos);
+        float maxQuota = getConfiguredApiCallMaxQuota(quotaBucket);
+        float availableQuota =
+                (float) (Math.max(0, currentTime - emptyTime) * (double) maxQuota / windowNanos);
+        throw new RateLimiterException(
+                "API call quota exceeded, availableQuota: "
+                        + availableQuota
+                        + " requested: "
+                        + cost,
+                quotaBucket,
+                maxQuota);
     }
 
-    private static Quota getInitialQuota(@QuotaBucket.Type int bucket) {
-        return new Quota(Instant.now(), getConfiguredApiCallMaxQuota(bucket));
+    /**
+     * Returns the time it takes for {@code quotaBucket} to accumulate {@code cost}, which must
+     * only be called for buckets with a positive quota.
+     */
+    private static long getCostNanos(@QuotaBucket.Type int quotaBucket, int cost) {
+        return Math.round(
+                getWindowNanos(quotaBucket)
+                        * (double) cost
+                        / getConfiguredApiCallMaxQuota(quotaBucket));
     }
 
-    private static Duration getWindowDuration(@QuotaBucket.Type int quotaBucket) {
+    private static long getWindowNanos(@QuotaBucket.Type int quotaBucket) {
         switch (quotaBucket) {
             case QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_BACKGROUND:
             case QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_FOREGROUND:
             case QuotaBucket.QUOTA_BUCKET_READS_PER_24H_BACKGROUND:
             case QuotaBucket.QUOTA_BUCKET_READS_PER_24H_FOREGROUND:
-                return Duration.ofHours(24);
+                return WINDOW_24H_NANOS;
             case QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_BACKGROUND:
             case QuotaBucket.QUOTA_BUCKET_READS_PER_15M_FOREGROUND:
             case QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_FOREGROUND:
             case QuotaBucket.QUOTA_BUCKET_READS_PER_15M_BACKGROUND:
-                return Duration.ofMinutes(15);
+                return WINDOW_15M_NANOS;
             case QuotaBucket.QUOTA_BUCKET_UNDEFINED:
                 throw new IllegalArgumentException("Invalid quota bucket.");
         }
@@ -242,44 +247,34 @@ public final class RateLimiter {
     }
 
     private static float getConfiguredApiCallMaxQuota(@QuotaBucket.Type int quotaBucket) {
-        if (!QUOTA_BUCKET_TO_MAX_API_CALL_QUOTA_MAP.containsKey(quotaBucket)) {
+        float maxQuota = sMaxApiCallQuotas[quotaBucket];
+        if (Float.isNaN(maxQuota)) {
             throw new IllegalArgumentException(
                     "Max quota not found for quotaBucket: " + quotaBucket);
         }
-        return QUOTA_BUCKET_TO_MAX_API_CALL_QUOTA_MAP.get(quotaBucket);
+        return maxQuota;
     }
 
     private static int getConfiguredMaxApiMemoryQuota(String quotaBucket) {
-        if (!QUOTA_BUCKET_TO_MAX_MEMORY_QUOTA_MAP.containsKey(quotaBucket)) {
+        Integer maxQuota = QUOTA_BUCKET_TO_MAX_MEMORY_QUOTA_MAP.get(quotaBucket);
+        if (maxQuota == null) {
             throw new IllegalArgumentException(
                     "Max quota not found for quotaBucket: " + quotaBucket);
         }
-        return QUOTA_BUCKET_TO_MAX_MEMORY_QUOTA_MAP.get(quotaBucket);
+        return maxQuota;
     }
 
-    private static List<Integer> getAffectedQuotaBuckets(
+    private static int[] getAffectedQuotaBuckets(
             @QuotaCategory.Type int quotaCategory, boolean isInForeground) {
         switch (quotaCategory) {
             case QuotaCategory.QUOTA_CATEGORY_READ:
-                if (isInForeground) {
-                    return List.of(
-                            QuotaBucket.QUOTA_BUCKET_READS_PER_15M_FOREGROUND,
-                            QuotaBucket.QUOTA_BUCKET_READS_PER_24H_FOREGROUND);
-                } else {
-                    return List.of(
-                            QuotaBucket.QUOTA_BUCKET_READS_PER_15M_BACKGROUND,
-                            QuotaBucket.QUOTA_BUCKET_READS_PER_24H_BACKGROUND);
-                }
+                return isInForeground
+                        ? READS_FOREGROUND_QUOTA_BUCKETS
+                        : READS_BACKGROUND_QUOTA_BUCKETS;
             case QuotaCategory.QUOTA_CATEGORY_WRITE:
-                if (isInForeground) {
-                    return List.of(
-                            QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_FOREGROUND,
-                            QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_FOREGROUND);
-                } else {
-                    return List.of(
-                            QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_BACKGROUND,
-                            QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_BACKGROUND);
-                }
+                return isInForeground
+                        ? WRITES_FOREGROUND_QUOTA_BUCKETS
+                        : WRITES_BACKGROUND_QUOTA_BUCKETS;
             case QuotaCategory.QUOTA_CATEGORY_UNDEFINED:
             case QuotaCategory.QUOTA_CATEGORY_UNMETERED:
                 throw new IllegalArgumentException("Invalid quota category.");
@@ -287,6 +282,61 @@ public final class RateLimiter {
         throw new IllegalArgumentException("Invalid quota category.");
     }
 
+    private static float[] createMaxApiCallQuotas() {
+        float[] maxApiCallQuotas = new float[NUM_QUOTA_BUCKETS];
+        Arrays.fill(maxApiCallQuotas, Float.NaN);
+        return maxApiCallQuotas;
+    }
+
+    private static UidQuotaStripe[] createUidQuotaStripes() {
+        UidQuotaStripe[] uidQuotaStripes = new UidQuotaStripe[NUM_UID_QUOTA_STRIPES];
+        for (int i = 0; i < NUM_UID_QUOTA_STRIPES; i++) {
+            uidQuotaStripes[i] = new UidQuotaStripe();
+        }
+        return uidQuotaStripes;
+    }
+
+    /**
+     * Quota buckets of the uids of a stripe. Uids are only ever appended, so lookups can read the
+     * arrays without a lock: quotas are published before the uids, at the same indices.
+     */
+    private static final class UidQuotaStripe {
+        private volatile int[] mUids = new int[0];
+        private volatile AtomicLongArray[] mQuotas = new AtomicLongArray[0];
+
+        AtomicLongArray getOrCreateQuotas(int uid) {
+            int[] uids = mUids;
+            for (int i = 0; i < uids.length; i++) {
+                if (uids[i] == uid) {
+                    return mQuotas[i];
+                }
+            }
+            return createQuotas(uid);
+        }
+
+        private synchronized AtomicLongArray createQuotas(int uid) {
+            int[] uids = mUids;
+            for (int i = 0; i < uids.length; i++) {
+                if (uids[i] == uid) {
+                    return mQuotas[i];
+                }
+            }
+
+            // Handles first request scenario.
+            AtomicLongArray quotas = new AtomicLongArray(NUM_QUOTA_BUCKETS);
+            for (int quotaBucket = 0; quotaBucket < NUM_QUOTA_BUCKETS; quotaBucket++) {
+                quotas.set(quotaBucket, FULL_QUOTA_EMPTY_TIME);
+            }
+            AtomicLongArray[] newQuotas = Arrays.copyOf(mQuotas, uids.length + 1);
+            newQuotas[uids.length] = quotas;
+            int[] newUids = Arrays.copyOf(uids, uids.length + 1);
+            newUids[uids.length] = uid;
+            mQuotas = newQuotas;
+            mUids = newUids;
+            return quotas;
+        }
+    }
+
     public static final class QuotaBucket {
         public static final int QUOTA_BUCKET_UNDEFINED = 0;
         public static final int QUOTA_BUCKET_READS_PER_15M_FOREGROUND = 1;
@@ -18,7 +18,10 @@ package com.android.server.healthconnect;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.health.connect.HealthConnectManager;
 import android.health.connect.ratelimiter.RateLimiter;
 import android.os.Process;
@@ -26,6 +29,7 @@ import android.os.UserHandle;
 import android.os.UserManager;
 import android.util.Slog;
 
+import com.android.modules.utils.BackgroundThread;
 import com.android.server.SystemService;
 import com.android.server.healthconnect.migration.MigrationBroadcastScheduler;
 import com.android.server.healthconnect.migration.MigrationCleaner;
@@ -40,6 +44,7 @@ import com.android.server.healthconnect.permission.HealthConnectPermissionHelper
 import com.android.server.healthconnect.permission.HealthPermissionIntentAppsTracker;
 import com.android.server.healthconnect.permission.PermissionPackageChangesOrchestrator;
 import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.datatypehelpers.AccessLogsHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.DeviceInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.HealthDataCategoryPriorityHelper;
@@ -55,6 +60,8 @@ import java.util.Objects;
  */
 public class HealthConnectManagerService extends SystemService {
     private static final String TAG = "HealthConnectManagerService";
+    // Bounds how long a user switch waits for buffered access logs to be written.
+    private static final long FLUSH_ACCESS_LOGS_TIMEOUT_MILLIS = 1000;
     private final Context mContext;
     private final PermissionPackageChangesOrchestrator mPermissionPackageChangesOrchestrator;
     private final HealthConnectServiceImpl mHealthConnectService;
@@ -127,6 +134,7 @@ public class HealthConnectManagerService extends SystemService {
                 .registerBroadcastReceiver(mContext);
         publishBinderService(Context.HEALTHCONNECT_SERVICE, mHealthConnectService);
         HealthConnectDeviceConfigManager.getInitialisedInstance().updateRateLimiterValues();
+        registerShutdownReceiver();
     }
 
     /**
@@ -141,6 +149,11 @@ public class HealthConnectManagerService extends SystemService {
             mHealthConnectService.cancelBackupRestoreTimeouts();
         }
 
+        // Buffered access logs must be written before the database is closed. The database is
+        // written from the internal executor as for the other internal tasks, before it is shut
+        // down, and is only touched if there are access logs buffered, which implies it is usable.
+        HealthConnectThreadScheduler.runInternalTaskAndWait(
+                AccessLogsHelper.getInstance()::flushAccessLogs, FLUSH_ACCESS_LOGS_TIMEOUT_MILLIS);
         HealthConnectThreadScheduler.shutdownThreadPools();
         AppInfoHelper.getInstance().clearCache();
         DeviceInfoHelper.getInstance().clearCache();
@@ -243,4 +256,17 @@ public class HealthConnectManagerService extends SystemService {
             return context.createContextAsUser(user, 0);
         }
     }
+
+    private void registerShutdownReceiver() {
+        mContext.registerReceiver(
+                new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        AccessLogsHelper.getInstance().flushAccessLogs();
+                    }
+                },
+                new IntentFilter(Intent.ACTION_SHUTDOWN),
+                /* broadcastPermission= */ null,
+                BackgroundThread.getHandler());
+    }
 }
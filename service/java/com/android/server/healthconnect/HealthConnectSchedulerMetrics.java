@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect;
+
+import android.annotation.NonNull;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+
+/**
+ * Tracks the number of queued tasks and the time they waited before running, per client uid.
+ *
+ * @hide
+ */
+final class HealthConnectSchedulerMetrics {
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseArray<UidMetrics> mUidMetrics = new SparseArray<>();
+
+    /** Returns {@code task} wrapped to record its wait time, and counts it as queued. */
+    @NonNull
+    Runnable track(int uid, @NonNull Runnable task) {
+        long queuedTime = SystemClock.elapsedRealtime();
+        synchronized (mLock) {
+            UidMetrics uidMetrics = mUidMetrics.get(uid);
+            if (uidMetrics == null) {
+                uidMetrics = new UidMetrics();
+                mUidMetrics.put(uid, uidMetrics);
+            }
+            uidMetrics.mQueueDepth++;
+            uidMetrics.mMaxQueueDepth = Math.max(uidMetrics.mMaxQueueDepth, uidMetrics.mQueueDepth);
+        }
+
+        return () -> {
+            onTaskStarted(uid, SystemClock.elapsedRealtime() - queuedTime);
+            task.run();
+        };
+    }
+
+    /** Returns the number of tasks of {@code uid} which are queued and not started yet. */
+    int getQueueDepth(int uid) {
+        synchronized (mLock) {
+            UidMetrics uidMetrics = mUidMetrics.get(uid);
+            return uidMetrics == null ? 0 : uidMetrics.mQueueDepth;
+        }
+    }
+
+    /** Clears the metrics, to be called when the queued tasks are dropped. */
+    void reset() {
+        synchronized (mLock) {
+            mUidMetrics.clear();
+        }
+    }
+
+    void dump(@NonNull PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("Scheduled tasks by uid:");
+            for (int i = 0; i < mUidMetrics.size(); i++) {
+                UidMetrics uidMetrics = mUidMetrics.valueAt(i);
+                writer.println(
+                        "  uid "
+                                + mUidMetrics.keyAt(i)
+                                + ": queued: "
+                                + uidMetrics.mQueueDepth
+                                + ", max queued: "
+                                + uidMetrics.mMaxQueueDepth
+                                + ", started: "
+                                + uidMetrics.mStartedTasks
+                                + ", avg wait: "
+                                + (uidMetrics.mStartedTasks == 0
+                                        ? 0
+                                        : uidMetrics.mTotalWaitMillis / uidMetrics.mStartedTasks)
+                                + "ms, max wait: "
+                                + uidMetrics.mMaxWaitMillis
+                                + "ms");
+            }
+        }
+    }
+
+    private void onTaskStarted(int uid, long waitMillis) {
+        synchronized (mLock) {
+            UidMetrics uidMetrics = mUidMetrics.get(uid);
+            if (uidMetrics == null) {
+                // Reset while the task was queued.
+                return;
+            }
+            uidMetrics.mQueueDepth--;
+            uidMetrics.mStartedTasks++;
+            uidMetrics.mTotalWaitMillis += waitMillis;
+            uidMetrics.mMaxWaitMillis = Math.max(uidMetrics.mMaxWaitMillis, waitMillis);
+        }
+    }
+
+    private static final class UidMetrics {
+        private int mQueueDepth;
+        private int mMaxQueueDepth;
+        private long mStartedTasks;
+        private long mTotalWaitMillis;
+        private long mMaxWaitMillis;
+    }
+}
@@ -90,6 +90,7 @@ import android.health.connect.changelog.ChangeLogsResponse.DeletedLog;
 import android.health.connect.datatypes.AppInfo;
 import android.health.connect.datatypes.DataOrigin;
 import android.health.connect.datatypes.Record;
+import android.health.connect.internal.RecordsStreamUtils;
 import android.health.connect.internal.datatypes.RecordInternal;
 import android.health.connect.internal.datatypes.utils.AggregationTypeIdMapper;
 import android.health.connect.internal.datatypes.utils.RecordMapper;
@@ -142,22 +143,25 @@ import com.android.server.healthconnect.storage.datatypehelpers.MigrationEntityH
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.request.AggregateTransactionRequest;
 import com.android.server.healthconnect.storage.request.DeleteTransactionRequest;
+import com.android.server.healthconnect.storage.request.ReadTableRequest;
 import com.android.server.healthconnect.storage.request.ReadTransactionRequest;
 import com.android.server.healthconnect.storage.request.UpsertTransactionRequest;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
-import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
@@ -190,6 +194,8 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
     private static final int TRACE_TAG_INSERT_SUBTASKS = TAG_INSERT_SUBTASKS.hashCode();
     private static final int TRACE_TAG_DELETE_SUBTASKS = TAG_DELETE_SUBTASKS.hashCode();
     private static final int TRACE_TAG_READ_SUBTASKS = TAG_READ_SUBTASKS.hashCode();
+    // Streams fail once their client hasn't read anything for this long.
+    private static final int STREAM_WRITE_TIMEOUT_MILLIS = 30_000;
 
     private final TransactionManager mTransactionManager;
     private final HealthConnectPermissionHelper mPermissionHelper;
@@ -376,14 +382,14 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                     }
                 },
                 uid,
-                false);
+                false,
+                /* isWrite= */ true);
     }
 
     private void postInsertTasks(
             @NonNull AttributionSource attributionSource, @NonNull RecordsParcel recordsParcel) {
         Trace.traceBegin(TRACE_TAG_INSERT_SUBTASKS, TAG_INSERT.concat("PostInsertTasks"));
 
-        ActivityDateHelper.getInstance().insertRecordDate(recordsParcel.getRecords());
         Set<Integer> recordsTypesInsertedSet =
                 recordsParcel.getRecords().stream()
                         .map(RecordInternal::getRecordType)
@@ -447,12 +453,16 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                                     isInForeground,
                                     builder);
                         }
-                        callback.onResult(
+                        AggregateTransactionRequest aggregateTransactionRequest =
                                 new AggregateTransactionRequest(
-                                                attributionSource.getPackageName(), request)
-                                        .getAggregateDataResponseParcel());
+                                        attributionSource.getPackageName(), request);
+                        callback.onResult(
+                                aggregateTransactionRequest.getAggregateDataResponseParcel());
                         finishDataDeliveryRead(recordTypesToTest, attributionSource);
                         builder.setDataTypesFromRecordTypes(recordTypesToTest)
+                                .setAggregationDurationsMillis(
+                                        aggregateTransactionRequest
+                                                .getAggregationDurationsMillis())
                                 .setHealthDataServiceApiStatusSuccess();
                     } catch (SQLiteException sqLiteException) {
                         builder.setHealthDataServiceApiStatusError(HealthConnectException.ERROR_IO);
@@ -480,7 +490,8 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                     }
                 },
                 uid,
-                holdsDataManagementPermission);
+                holdsDataManagementPermission,
+                /* isWrite= */ false);
     }
 
     /**
@@ -546,23 +557,12 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
 
                         Trace.traceBegin(TRACE_TAG_READ, TAG_READ);
                         try {
-                            long startDateAccess = request.getStartTime();
-                            if (!holdsDataManagementPermission) {
-                                Instant startInstant =
-                                        mPermissionHelper.getHealthDataStartDateAccess(
-                                                attributionSource.getPackageName(), userHandle);
-                                if (startInstant == null) {
-                                    throwExceptionIncorrectPermissionState();
-                                }
-
-                                // Always set the startDateAccess for local time filter, as for
-                                // local date time we use it in conjunction with the time filter
-                                // start-time
-                                if (request.usesLocalTimeFilter()
-                                        || startInstant.toEpochMilli() > startDateAccess) {
-                                    startDateAccess = startInstant.toEpochMilli();
-                                }
-                            }
+                            long startDateAccess =
+                                    getReadStartDateAccess(
+                                            attributionSource,
+                                            request,
+                                            userHandle,
+                                            holdsDataManagementPermission);
                             Pair<List<RecordInternal<?>>, Long> readRecordsResponse =
                                     mTransactionManager.readRecordsAndGetNextToken(
                                             new ReadTransactionRequest(
@@ -574,16 +574,10 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                             builder.setNumberOfRecords(readRecordsResponse.first.size());
                             long pageToken =
                                     request.getRecordIdFiltersParcel() == null
-                                            ? readRecordsResponse.second
+                                            ? getResponsePageToken(
+                                                    readRecordsResponse.second,
+                                                    request.isAscending())
                                             : DEFAULT_LONG;
-                            if (pageToken != DEFAULT_LONG) {
-                                // pagetoken is used here to store sorting order of the result.
-                                // An even pagetoken indicate ascending and Odd page token indicate
-                                // descending sort order. This detail from page token will be used
-                                // in next read request to have same sort order.
-                                pageToken =
-                                        request.isAscending() ? pageToken * 2 : pageToken * 2 + 1;
-                            }
 
                             if (Constants.DEBUG) {
                                 Slog.d(TAG, "pageToken: " + pageToken);
@@ -668,7 +662,60 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                     }
                 },
                 uid,
-                holdsDataManagementPermission);
+                holdsDataManagementPermission,
+                /* isWrite= */ false);
+    }
+
+    /**
+     * Streams the records matching {@code request} into {@code pipe}, one page at a time. A page
+     * is only read once the previous one has been written, which blocks while the pipe is full, so
+     * the memory used doesn't depend on the size of the result.
+     *
+     * <p>Each app can read one stream at a time, and a stream fails once its client stops reading
+     * it for {@link #STREAM_WRITE_TIMEOUT_MILLIS}.
+     */
+    @Override
+    public void readRecordsStream(
+            @NonNull AttributionSource attributionSource,
+            @NonNull ReadRecordsRequestParcel request,
+            @NonNull ParcelFileDescriptor pipe) {
+        final int uid = Binder.getCallingUid();
+        final int pid = Binder.getCallingPid();
+        final UserHandle userHandle = Binder.getCallingUserHandle();
+        final boolean holdsDataManagementPermission = hasDataManagementPermission(uid, pid);
+        final HealthConnectServiceLogger.Builder builder =
+                new HealthConnectServiceLogger.Builder(holdsDataManagementPermission, READ_DATA)
+                        .setPackageName(attributionSource.getPackageName());
+
+        boolean scheduled =
+                HealthConnectThreadScheduler.scheduleStreamTask(
+                        uid,
+                        () ->
+                                writeRecordsStream(
+                                        pipe,
+                                        attributionSource,
+                                        request,
+                                        uid,
+                                        userHandle,
+                                        holdsDataManagementPermission,
+                                        builder));
+        if (!scheduled) {
+            builder.setHealthDataServiceApiStatusError(
+                    HealthConnectException.ERROR_RATE_LIMIT_EXCEEDED);
+            Slog.w(TAG, "Too many streams for uid " + uid);
+            // The pipe is empty, so the error frame is written without blocking.
+            try (DataOutputStream out =
+                    new DataOutputStream(new ParcelFileDescriptor.AutoCloseOutputStream(pipe))) {
+                RecordsStreamUtils.writeError(
+                        out,
+                        HealthConnectException.ERROR_RATE_LIMIT_EXCEEDED,
+                        "Too many streams read at the same time");
+            } catch (IOException e) {
+                Slog.w(TAG, "Unable to stream records: ", e);
+            } finally {
+                builder.build().log();
+            }
+        }
     }
 
     /**
@@ -727,14 +774,6 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                         logRecordTypeSpecificUpsertMetrics(
                                 recordInternals, attributionSource.getPackageName());
                         builder.setDataTypesFromRecordInternals(recordInternals);
-                        // Update activity dates table
-                        HealthConnectThreadScheduler.scheduleInternalTask(
-                                () ->
-                                        ActivityDateHelper.getInstance()
-                                                .reSyncByRecordTypeIds(
-                                                        recordInternals.stream()
-                                                                .map(RecordInternal::getRecordType)
-                                                                .toList()));
                     } catch (SecurityException securityException) {
                         builder.setHealthDataServiceApiStatusError(ERROR_SECURITY);
                         tryAndThrowException(callback, securityException, ERROR_SECURITY);
@@ -770,7 +809,8 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                     }
                 },
                 uid,
-                false);
+                false,
+                /* isWrite= */ true);
     }
 
     /**
@@ -833,7 +873,8 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                     }
                 },
                 uid,
-                false);
+                false,
+                /* isWrite= */ true);
     }
 
     /**
@@ -883,19 +924,20 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                                 ChangeLogsHelper.getInstance()
                                         .getChangeLogs(changeLogsTokenRequest, token);
 
-                        Map<Integer, List<UUID>> recordTypeToInsertedUuids =
-                                ChangeLogsHelper.getRecordTypeToInsertedUuids(
+                        Map<Integer, ReadTableRequest> recordTypeToInsertedUuidsReadRequest =
+                                ChangeLogsHelper.getRecordTypeToUpsertedUuidsReadRequests(
                                         changeLogsResponse.getChangeLogsMap());
 
                         Map<String, Boolean> extraReadPermsToGrantState =
                                 mDataPermissionEnforcer.collectExtraReadPermissionToStateMapping(
-                                        recordTypeToInsertedUuids.keySet(), attributionSource);
+                                        recordTypeToInsertedUuidsReadRequest.keySet(),
+                                        attributionSource);
 
                         List<RecordInternal<?>> recordInternals =
                                 mTransactionManager.readRecords(
                                         new ReadTransactionRequest(
                                                 callerPackageName,
-                                                recordTypeToInsertedUuids,
+                                                recordTypeToInsertedUuidsReadRequest,
                                                 startDateAccess,
                                                 extraReadPermsToGrantState));
 
@@ -952,7 +994,8 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                     }
                 },
                 uid,
-                false);
+                false,
+                /* isWrite= */ false);
     }
 
     /**
@@ -1046,7 +1089,8 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                     }
                 },
                 uid,
-                holdsDataManagementPermission);
+                holdsDataManagementPermission,
+                /* isWrite= */ true);
     }
 
     /**
@@ -1126,7 +1170,8 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                     }
                 },
                 uid,
-                holdsDataManagementPermission);
+                holdsDataManagementPermission,
+                /* isWrite= */ true);
     }
 
     private void deleteUsingFiltersInternal(
@@ -1825,6 +1870,20 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                 });
     }
 
+    @Override
+    protected void dump(
+            @NonNull FileDescriptor fd, @NonNull PrintWriter writer, @Nullable String[] args) {
+        if (mContext.checkCallingOrSelfPermission(Manifest.permission.DUMP)
+                != PERMISSION_GRANTED) {
+            writer.println("Permission Denial: can't dump " + TAG);
+            return;
+        }
+
+        mTransactionManager.dump(writer);
+        HealthConnectThreadScheduler.dump(writer);
+        mDataPermissionEnforcer.dump(writer);
+    }
+
     // Cancel BR timeouts - this might be needed when a user is going into background.
     void cancelBackupRestoreTimeouts() {
         mBackupRestore.cancelAllJobs();
@@ -1887,8 +1946,7 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                 MigrationEntityHelper.getInstance(),
                 RecordHelperProvider.getInstance(),
                 HealthDataCategoryPriorityHelper.getInstance(),
-                PriorityMigrationHelper.getInstance(),
-                ActivityDateHelper.getInstance());
+                PriorityMigrationHelper.getInstance());
     }
 
     private void enforceCallingPackageBelongsToUid(String packageName, int callingUid) {
@@ -2003,6 +2061,193 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                 == PERMISSION_GRANTED;
     }
 
+    private void writeRecordsStream(
+            @NonNull ParcelFileDescriptor pipe,
+            @NonNull AttributionSource attributionSource,
+            @NonNull ReadRecordsRequestParcel request,
+            int uid,
+            @NonNull UserHandle userHandle,
+            boolean holdsDataManagementPermission,
+            @NonNull HealthConnectServiceLogger.Builder builder) {
+        try (DataOutputStream out =
+                new DataOutputStream(
+                        new BufferedOutputStream(
+                                new TimeoutPipeOutputStream(pipe, STREAM_WRITE_TIMEOUT_MILLIS)))) {
+            try {
+                streamRecords(
+                        out,
+                        attributionSource,
+                        request,
+                        uid,
+                        userHandle,
+                        holdsDataManagementPermission,
+                        builder);
+                builder.setHealthDataServiceApiStatusSuccess();
+            } catch (SQLiteException sqLiteException) {
+                builder.setHealthDataServiceApiStatusError(HealthConnectException.ERROR_IO);
+                Slog.e(TAG, "SQLiteException: ", sqLiteException);
+                RecordsStreamUtils.writeError(
+                        out, HealthConnectException.ERROR_IO, sqLiteException.getMessage());
+            } catch (SecurityException securityException) {
+                builder.setHealthDataServiceApiStatusError(ERROR_SECURITY);
+                Slog.e(TAG, "SecurityException: ", securityException);
+                RecordsStreamUtils.writeError(out, ERROR_SECURITY, securityException.getMessage());
+            } catch (IllegalArgumentException illegalArgumentException) {
+                builder.setHealthDataServiceApiStatusError(
+                        HealthConnectException.ERROR_INVALID_ARGUMENT);
+                Slog.e(TAG, "IllegalArgumentException: ", illegalArgumentException);
+                RecordsStreamUtils.writeError(
+                        out,
+                        HealthConnectException.ERROR_INVALID_ARGUMENT,
+                        illegalArgumentException.getMessage());
+            } catch (HealthConnectException healthConnectException) {
+                builder.setHealthDataServiceApiStatusError(healthConnectException.getErrorCode());
+                Slog.e(TAG, "HealthConnectException: ", healthConnectException);
+                RecordsStreamUtils.writeError(
+                        out,
+                        healthConnectException.getErrorCode(),
+                        healthConnectException.getMessage());
+            } catch (RuntimeException e) {
+                builder.setHealthDataServiceApiStatusError(ERROR_INTERNAL);
+                Slog.e(TAG, "Exception: ", e);
+                RecordsStreamUtils.writeError(out, ERROR_INTERNAL, e.getMessage());
+            }
+        } catch (IOException e) {
+            // Most likely the client closed the stream before reading all of it.
+            builder.setHealthDataServiceApiStatusError(ERROR_INTERNAL);
+            Slog.w(TAG, "Unable to stream records: ", e);
+        } finally {
+            builder.build().log();
+        }
+    }
+
+    private void streamRecords(
+            @NonNull DataOutputStream out,
+            @NonNull AttributionSource attributionSource,
+            @NonNull ReadRecordsRequestParcel request,
+            int uid,
+            @NonNull UserHandle userHandle,
+            boolean holdsDataManagementPermission,
+            @NonNull HealthConnectServiceLogger.Builder builder)
+            throws IOException {
+        enforceIsForegroundUser(userHandle);
+        verifyPackageNameFromUid(uid, attributionSource);
+        throwExceptionIfDataSyncInProgress();
+        if (request.getRecordIdFiltersParcel() != null) {
+            throw new IllegalArgumentException("Only reads using filters can be streamed");
+        }
+        long startDateAccess =
+                getReadStartDateAccess(
+                        attributionSource, request, userHandle, holdsDataManagementPermission);
+        String packageName = attributionSource.getPackageName();
+        boolean anyPageLogged = false;
+
+        int numberOfRecords = 0;
+        ReadRecordsRequestParcel pageRequest = request;
+        long nextPageToken;
+        do {
+            // The app can move to background or lose permissions while it reads the stream, so
+            // its access is checked again for every page, as for every call to readRecords.
+            boolean isInForeground = true;
+            boolean enforceSelfRead = false;
+            if (!holdsDataManagementPermission) {
+                isInForeground = mAppOpsManagerLocal.isUidInForeground(uid);
+                // Same as for readRecords, apps in background or without read permission can only
+                // read their own records.
+                enforceSelfRead =
+                        mDataPermissionEnforcer.enforceReadAccessAndGetEnforceSelfRead(
+                                        request.getRecordType(), attributionSource)
+                                || !isInForeground;
+                tryAcquireApiCallQuota(
+                        uid, QuotaCategory.QUOTA_CATEGORY_READ, isInForeground, builder);
+            }
+            final Map<String, Boolean> extraReadPermsToGrantState =
+                    Collections.unmodifiableMap(
+                            mDataPermissionEnforcer.collectExtraReadPermissionToStateMapping(
+                                    Set.of(request.getRecordType()), attributionSource));
+            boolean requiresLogging = !holdsDataManagementPermission && !enforceSelfRead;
+
+            Pair<List<RecordInternal<?>>, Long> readRecordsResponse;
+            try {
+                readRecordsResponse =
+                        mTransactionManager.readRecordsAndGetNextToken(
+                                new ReadTransactionRequest(
+                                        packageName,
+                                        pageRequest,
+                                        startDateAccess,
+                                        enforceSelfRead,
+                                        extraReadPermsToGrantState));
+            } catch (TypeNotPresentException exception) {
+                // None of the requested package names are present, so there is nothing to read.
+                if (ReadTransactionRequest.TYPE_NOT_PRESENT_PACKAGE_NAME.equals(
+                        exception.typeName())) {
+                    finishDataDeliveryRead(request.getRecordType(), attributionSource);
+                    break;
+                }
+                throw exception;
+            }
+            nextPageToken =
+                    getResponsePageToken(readRecordsResponse.second, request.isAscending());
+            try {
+                // Blocks until the client has read enough of the previous pages.
+                RecordsStreamUtils.writeRecords(out, readRecordsResponse.first, nextPageToken);
+            } finally {
+                finishDataDeliveryRead(request.getRecordType(), attributionSource);
+            }
+            numberOfRecords += readRecordsResponse.first.size();
+            if (requiresLogging) {
+                logRecordTypeSpecificReadMetrics(readRecordsResponse.first, packageName);
+                // The records have been handed to the app once written, even if a later page
+                // fails, so the read is logged right away.
+                if (!anyPageLogged) {
+                    AccessLogsHelper.getInstance()
+                            .addAccessLog(
+                                    packageName,
+                                    Collections.singletonList(request.getRecordType()),
+                                    READ);
+                    anyPageLogged = true;
+                }
+            }
+            pageRequest = pageRequest.withPageToken(nextPageToken);
+        } while (nextPageToken != DEFAULT_LONG);
+        RecordsStreamUtils.writeEnd(out);
+
+        builder.setNumberOfRecords(numberOfRecords);
+    }
+
+    private long getReadStartDateAccess(
+            @NonNull AttributionSource attributionSource,
+            @NonNull ReadRecordsRequestParcel request,
+            @NonNull UserHandle userHandle,
+            boolean holdsDataManagementPermission) {
+        long startDateAccess = request.getStartTime();
+        if (!holdsDataManagementPermission) {
+            Instant startInstant =
+                    mPermissionHelper.getHealthDataStartDateAccess(
+                            attributionSource.getPackageName(), userHandle);
+            if (startInstant == null) {
+                throwExceptionIncorrectPermissionState();
+            }
+
+            // Always set the startDateAccess for local time filter, as for local date time we use
+            // it in conjunction with the time filter start-time
+            if (request.usesLocalTimeFilter() || startInstant.toEpochMilli() > startDateAccess) {
+                startDateAccess = startInstant.toEpochMilli();
+            }
+        }
+        return startDateAccess;
+    }
+
+    private static long getResponsePageToken(long token, boolean isAscending) {
+        if (token == DEFAULT_LONG) {
+            return DEFAULT_LONG;
+        }
+        // pagetoken is used here to store sorting order of the result. An even pagetoken indicate
+        // ascending and Odd page token indicate descending sort order. This detail from page token
+        // will be used in next read request to have same sort order.
+        return isAscending ? token * 2 : token * 2 + 1;
+    }
+
     private void finishDataDeliveryRead(int recordTypeId, AttributionSource attributionSource) {
         finishDataDeliveryRead(Collections.singletonList(recordTypeId), attributionSource);
     }
@@ -2134,9 +2379,7 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
     private static void postDeleteTasks(List<Integer> recordTypeIdsToDelete) {
         Trace.traceBegin(TRACE_TAG_DELETE_SUBTASKS, TAG_INSERT.concat("PostDeleteTasks"));
         if (recordTypeIdsToDelete != null && !recordTypeIdsToDelete.isEmpty()) {
-            AppInfoHelper.getInstance()
-                    .syncAppInfoRecordTypesUsed(new HashSet<>(recordTypeIdsToDelete));
-            ActivityDateHelper.getInstance().reSyncByRecordTypeIds(recordTypeIdsToDelete);
+            AppInfoHelper.getInstance().syncAppInfoRecordTypesUsed();
         }
         Trace.traceEnd(TRACE_TAG_DELETE_SUBTASKS);
     }
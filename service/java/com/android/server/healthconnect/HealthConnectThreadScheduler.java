@@ -20,36 +20,81 @@ import android.annotation.NonNull;
 import android.app.ActivityManager;
 import android.content.Context;
 import android.util.Slog;
+import android.util.SparseIntArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 
-import java.util.List;
+import java.io.PrintWriter;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * A scheduler class to schedule task on the most relevant thread-pool.
  *
+ * <p>Reads of client apps run concurrently on pools sized to the available cores, as SQLite
+ * serves them from separate connections in WAL mode. Writes are serialized on a single thread to
+ * match its single writer, foreground writes going first.
+ *
  * @hide
  */
 public final class HealthConnectThreadScheduler {
+    // Leaves a core for the writer and the rest of the system, up to the WAL reader connections.
+    private static final int MAX_NUM_READER_THREADS = 4;
+
+    @VisibleForTesting
+    static final int NUM_EXECUTOR_THREADS_FOREGROUND =
+            Math.max(
+                    1,
+                    Math.min(
+                            Runtime.getRuntime().availableProcessors() - 1,
+                            MAX_NUM_READER_THREADS));
+
+    @VisibleForTesting
+    static final int NUM_EXECUTOR_THREADS_BACKGROUND =
+            Math.max(1, NUM_EXECUTOR_THREADS_FOREGROUND / 2);
+
     private static final int NUM_EXECUTOR_THREADS_INTERNAL_BACKGROUND = 1;
     private static final long KEEP_ALIVE_TIME_INTERNAL_BACKGROUND = 60L;
-    private static final int NUM_EXECUTOR_THREADS_BACKGROUND = 1;
     private static final long KEEP_ALIVE_TIME_BACKGROUND = 60L;
-    private static final int NUM_EXECUTOR_THREADS_FOREGROUND = 1;
     private static final long KEEP_ALIVE_TIME_SHARED = 60L;
+    private static final int NUM_EXECUTOR_THREADS_WRITE = 1;
+    private static final long KEEP_ALIVE_TIME_WRITE = 60L;
     private static final int NUM_EXECUTOR_THREADS_CONTROLLER = 1;
     private static final long KEEP_ALIVE_TIME_CONTROLLER = 60L;
+    // Matches the number of reader connections SQLite keeps in WAL mode, so that aggregations
+    // don't wait on each other for a connection.
+    private static final int NUM_EXECUTOR_THREADS_AGGREGATION = 3;
+    private static final long KEEP_ALIVE_TIME_AGGREGATION = 60L;
+    // Streams block on their clients consuming them, so they are kept off the shared executors.
+    private static final int NUM_EXECUTOR_THREADS_STREAM = 2;
+    private static final long KEEP_ALIVE_TIME_STREAM = 60L;
+    // Keeps a single app from taking all the stream threads.
+    private static final int MAX_NUM_STREAMS_PER_UID = 1;
 
     // Scheduler to run the tasks in a RR fashion based on client package names.
     private static final HealthConnectRoundRobinScheduler
             HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER =
                     new HealthConnectRoundRobinScheduler();
+    // Scheduler to run the background writes in a RR fashion, after the foreground ones.
+    private static final HealthConnectRoundRobinScheduler
+            HEALTH_CONNECT_BACKGROUND_WRITE_ROUND_ROBIN_SCHEDULER =
+                    new HealthConnectRoundRobinScheduler();
+    private static final Queue<Runnable> FOREGROUND_WRITE_TASKS = new ConcurrentLinkedQueue<>();
+    // Number of scheduled or running streams by uid.
+    private static final SparseIntArray NUM_STREAMS_BY_UID = new SparseIntArray();
+    private static final HealthConnectSchedulerMetrics SCHEDULER_METRICS =
+            new HealthConnectSchedulerMetrics();
     private static final String TAG = "HealthConnectScheduler";
 
+    private static volatile HealthConnectUidImportanceCache sUidImportanceCache;
+
     // Executor to run HC background tasks
     @VisibleForTesting
     static volatile ThreadPoolExecutor sBackgroundThreadExecutor =
@@ -77,6 +122,15 @@ public final class HealthConnectThreadScheduler {
                     KEEP_ALIVE_TIME_SHARED,
                     TimeUnit.SECONDS,
                     new LinkedBlockingQueue<>());
+    // Executor to run HC write tasks for clients
+    @VisibleForTesting
+    static volatile ThreadPoolExecutor sWriteExecutor =
+            new ThreadPoolExecutor(
+                    NUM_EXECUTOR_THREADS_WRITE,
+                    NUM_EXECUTOR_THREADS_WRITE,
+                    KEEP_ALIVE_TIME_WRITE,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>());
     // Executor to run HC controller tasks
     @VisibleForTesting
     static volatile ThreadPoolExecutor sControllerExecutor =
@@ -86,6 +140,24 @@ public final class HealthConnectThreadScheduler {
                     KEEP_ALIVE_TIME_CONTROLLER,
                     TimeUnit.SECONDS,
                     new LinkedBlockingQueue<>());
+    // Executor to run the independent parts of a multi-type aggregation in parallel
+    @VisibleForTesting
+    static volatile ThreadPoolExecutor sAggregationExecutor =
+            new ThreadPoolExecutor(
+                    NUM_EXECUTOR_THREADS_AGGREGATION,
+                    NUM_EXECUTOR_THREADS_AGGREGATION,
+                    KEEP_ALIVE_TIME_AGGREGATION,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>());
+    // Executor to run the record streams of clients
+    @VisibleForTesting
+    static volatile ThreadPoolExecutor sStreamExecutor =
+            new ThreadPoolExecutor(
+                    NUM_EXECUTOR_THREADS_STREAM,
+                    NUM_EXECUTOR_THREADS_STREAM,
+                    KEEP_ALIVE_TIME_STREAM,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>());
 
     public static void resetThreadPools() {
         sInternalBackgroundExecutor =
@@ -112,6 +184,14 @@ public final class HealthConnectThreadScheduler {
                         TimeUnit.SECONDS,
                         new LinkedBlockingQueue<>());
 
+        sWriteExecutor =
+                new ThreadPoolExecutor(
+                        NUM_EXECUTOR_THREADS_WRITE,
+                        NUM_EXECUTOR_THREADS_WRITE,
+                        KEEP_ALIVE_TIME_WRITE,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>());
+
         sControllerExecutor =
                 new ThreadPoolExecutor(
                         NUM_EXECUTOR_THREADS_CONTROLLER,
@@ -119,16 +199,43 @@ public final class HealthConnectThreadScheduler {
                         KEEP_ALIVE_TIME_CONTROLLER,
                         TimeUnit.SECONDS,
                         new LinkedBlockingQueue<>());
+
+        sAggregationExecutor =
+                new ThreadPoolExecutor(
+                        NUM_EXECUTOR_THREADS_AGGREGATION,
+                        NUM_EXECUTOR_THREADS_AGGREGATION,
+                        KEEP_ALIVE_TIME_AGGREGATION,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>());
+
+        sStreamExecutor =
+                new ThreadPoolExecutor(
+                        NUM_EXECUTOR_THREADS_STREAM,
+                        NUM_EXECUTOR_THREADS_STREAM,
+                        KEEP_ALIVE_TIME_STREAM,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>());
         HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER.resume();
+        HEALTH_CONNECT_BACKGROUND_WRITE_ROUND_ROBIN_SCHEDULER.resume();
     }
 
     static void shutdownThreadPools() {
         HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER.killTasksAndPauseScheduler();
+        HEALTH_CONNECT_BACKGROUND_WRITE_ROUND_ROBIN_SCHEDULER.killTasksAndPauseScheduler();
+        FOREGROUND_WRITE_TASKS.clear();
+        SCHEDULER_METRICS.reset();
 
         sInternalBackgroundExecutor.shutdownNow();
         sBackgroundThreadExecutor.shutdownNow();
         sForegroundExecutor.shutdownNow();
+        sWriteExecutor.shutdownNow();
         sControllerExecutor.shutdownNow();
+        sAggregationExecutor.shutdownNow();
+        sStreamExecutor.shutdownNow();
+        // Streams dropped from the queue never finish.
+        synchronized (NUM_STREAMS_BY_UID) {
+            NUM_STREAMS_BY_UID.clear();
+        }
     }
 
     /** Schedules the task on the executor dedicated for performing internal tasks */
@@ -136,18 +243,94 @@ public final class HealthConnectThreadScheduler {
         sInternalBackgroundExecutor.execute(getSafeRunnable(task));
     }
 
+    /**
+     * Runs the task on the executor dedicated for performing internal tasks, after those already
+     * scheduled, and waits up to {@code timeoutMillis} for it to finish.
+     *
+     * @return whether the task finished in time.
+     */
+    static boolean runInternalTaskAndWait(@NonNull Runnable task, long timeoutMillis) {
+        Future<?> future = sInternalBackgroundExecutor.submit(getSafeRunnable(task));
+        try {
+            future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Slog.e(TAG, "Interrupted while waiting for an internal task", e);
+        } catch (ExecutionException | TimeoutException e) {
+            Slog.e(TAG, "Internal task did not finish in time", e);
+        }
+        return false;
+    }
+
+    /**
+     * Schedules the task on the executor dedicated for aggregations. Unlike the other tasks,
+     * exceptions are not swallowed but returned to the caller through the {@link Future}.
+     */
+    public static Future<?> scheduleAggregationTask(@NonNull Runnable task) {
+        return sAggregationExecutor.submit(task);
+    }
+
+    /**
+     * Schedules the task on the executor dedicated for streaming records to clients, unless {@code
+     * uid} already has {@link #MAX_NUM_STREAMS_PER_UID} streams scheduled or running.
+     *
+     * @return whether the task was scheduled.
+     */
+    static boolean scheduleStreamTask(int uid, @NonNull Runnable task) {
+        synchronized (NUM_STREAMS_BY_UID) {
+            int numStreams = NUM_STREAMS_BY_UID.get(uid);
+            if (numStreams >= MAX_NUM_STREAMS_PER_UID) {
+                return false;
+            }
+            NUM_STREAMS_BY_UID.put(uid, numStreams + 1);
+        }
+
+        try {
+            sStreamExecutor.execute(
+                    getSafeRunnable(
+                            () -> {
+                                try {
+                                    task.run();
+                                } finally {
+                                    onStreamFinished(uid);
+                                }
+                            }));
+        } catch (RuntimeException e) {
+            onStreamFinished(uid);
+            throw e;
+        }
+        return true;
+    }
+
     /** Schedules the task on the executor dedicated for performing controller tasks */
     static void scheduleControllerTask(Runnable task) {
         sControllerExecutor.execute(getSafeRunnable(task));
     }
 
-    /** Schedules the task on the best possible executor based on the parameters */
-    static void schedule(Context context, @NonNull Runnable task, int uid, boolean isController) {
+    /**
+     * Schedules the task on the best possible executor based on the parameters.
+     *
+     * @param isWrite whether the task writes to the database, in which case it is serialized with
+     *     the other writes of client apps.
+     */
+    static void schedule(
+            Context context,
+            @NonNull Runnable task,
+            int uid,
+            boolean isController,
+            boolean isWrite) {
         if (isController) {
             sControllerExecutor.execute(getSafeRunnable(task));
             return;
         }
 
+        Runnable trackedTask = SCHEDULER_METRICS.track(uid, task);
+        if (isWrite) {
+            scheduleWrite(context, trackedTask, uid);
+            return;
+        }
+
         if (isUidInForeground(context, uid)) {
             sForegroundExecutor.execute(
                     getSafeRunnable(
@@ -159,7 +342,7 @@ public final class HealthConnectThreadScheduler {
                                     // this task is no longer in foreground we don't want it to
                                     // consume foreground resource anymore.
                                     HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER.addTask(
-                                            uid, task);
+                                            uid, trackedTask);
                                     sBackgroundThreadExecutor.execute(
                                             () ->
                                                     HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER
@@ -168,10 +351,10 @@ public final class HealthConnectThreadScheduler {
                                     return;
                                 }
 
-                                task.run();
+                                trackedTask.run();
                             }));
         } else {
-            HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER.addTask(uid, task);
+            HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER.addTask(uid, trackedTask);
             sBackgroundThreadExecutor.execute(
                     getSafeRunnable(
                             () ->
@@ -181,22 +364,67 @@ public final class HealthConnectThreadScheduler {
         }
     }
 
+    /** Dumps the per uid metrics of the scheduled tasks of client apps. */
+    static void dump(@NonNull PrintWriter writer) {
+        SCHEDULER_METRICS.dump(writer);
+    }
+
+    @VisibleForTesting
+    static int getQueueDepth(int uid) {
+        return SCHEDULER_METRICS.getQueueDepth(uid);
+    }
+
+    private static void onStreamFinished(int uid) {
+        synchronized (NUM_STREAMS_BY_UID) {
+            int numStreams = NUM_STREAMS_BY_UID.get(uid) - 1;
+            if (numStreams > 0) {
+                NUM_STREAMS_BY_UID.put(uid, numStreams);
+            } else {
+                NUM_STREAMS_BY_UID.delete(uid);
+            }
+        }
+    }
+
+    private static void scheduleWrite(Context context, @NonNull Runnable task, int uid) {
+        if (isUidInForeground(context, uid)) {
+            FOREGROUND_WRITE_TASKS.add(task);
+        } else {
+            HEALTH_CONNECT_BACKGROUND_WRITE_ROUND_ROBIN_SCHEDULER.addTask(uid, task);
+        }
+
+        // Each scheduled write runs exactly one task, picking foreground writes first.
+        sWriteExecutor.execute(
+                getSafeRunnable(
+                        () -> {
+                            Runnable nextTask = FOREGROUND_WRITE_TASKS.poll();
+                            if (nextTask == null) {
+                                nextTask =
+                                        HEALTH_CONNECT_BACKGROUND_WRITE_ROUND_ROBIN_SCHEDULER
+                                                .getNextTask();
+                            }
+                            nextTask.run();
+                        }));
+    }
+
     private static boolean isUidInForeground(Context context, int uid) {
         ActivityManager activityManager = context.getSystemService(ActivityManager.class);
         Objects.requireNonNull(activityManager);
-        List<ActivityManager.RunningAppProcessInfo> runningAppProcesses =
-                activityManager.getRunningAppProcesses();
-        if (runningAppProcesses == null) {
-            return false;
-        }
-        for (ActivityManager.RunningAppProcessInfo info : runningAppProcesses) {
-            if (info.uid == uid
-                    && info.importance
-                            == ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND) {
-                return true;
+        HealthConnectUidImportanceCache uidImportanceCache = sUidImportanceCache;
+        if (uidImportanceCache == null
+                || uidImportanceCache.getActivityManager() != activityManager) {
+            synchronized (HealthConnectThreadScheduler.class) {
+                uidImportanceCache = sUidImportanceCache;
+                if (uidImportanceCache == null
+                        || uidImportanceCache.getActivityManager() != activityManager) {
+                    if (uidImportanceCache != null) {
+                        uidImportanceCache.release();
+                    }
+                    uidImportanceCache = new HealthConnectUidImportanceCache(activityManager);
+                    sUidImportanceCache = uidImportanceCache;
+                }
             }
         }
-        return false;
+        return uidImportanceCache.isUidInForeground(uid);
     }
 
     // Makes sure that any exceptions don't end up in system_server.
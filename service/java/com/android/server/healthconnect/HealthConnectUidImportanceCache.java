@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect;
+
+import static android.app.ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
+import static android.app.ActivityManager.RunningAppProcessInfo.IMPORTANCE_GONE;
+
+import android.annotation.NonNull;
+import android.app.ActivityManager;
+import android.util.Slog;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the importance of client uids, kept up to date by an importance listener so that the
+ * running processes don't have to be queried for every scheduled task.
+ *
+ * @hide
+ */
+final class HealthConnectUidImportanceCache implements ActivityManager.OnUidImportanceListener {
+    private static final String TAG = "HealthConnectScheduler";
+    private final ActivityManager mActivityManager;
+    private final Map<Integer, Integer> mImportanceByUid = new ConcurrentHashMap<>();
+    private final boolean mIsListening;
+
+    HealthConnectUidImportanceCache(@NonNull ActivityManager activityManager) {
+        Objects.requireNonNull(activityManager);
+        mActivityManager = activityManager;
+        // The listener only reports when a uid crosses the cutpoint, which is all that is needed
+        // to tell foreground apps apart.
+        boolean isListening = true;
+        try {
+            mActivityManager.addOnUidImportanceListener(this, IMPORTANCE_FOREGROUND);
+        } catch (SecurityException e) {
+            // Without the listener cached values would go stale, so query every time instead.
+            Slog.w(TAG, "Unable to listen to uid importance changes", e);
+            isListening = false;
+        }
+        mIsListening = isListening;
+    }
+
+    @NonNull
+    ActivityManager getActivityManager() {
+        return mActivityManager;
+    }
+
+    /** Stops listening to importance changes. */
+    void release() {
+        if (mIsListening) {
+            mActivityManager.removeOnUidImportanceListener(this);
+        }
+    }
+
+    /** Returns whether {@code uid} is in foreground, querying it only the first time. */
+    boolean isUidInForeground(int uid) {
+        if (!mIsListening) {
+            return queryImportance(uid) <= IMPORTANCE_FOREGROUND;
+        }
+
+        Integer importance = mImportanceByUid.get(uid);
+        if (importance == null) {
+            // An update from the listener in the meantime is more recent, so don't overwrite it.
+            importance = queryImportance(uid);
+            Integer updatedImportance = mImportanceByUid.putIfAbsent(uid, importance);
+            if (updatedImportance != null) {
+                importance = updatedImportance;
+            }
+        }
+        return importance <= IMPORTANCE_FOREGROUND;
+    }
+
+    @Override
+    public void onUidImportance(int uid, int importance) {
+        if (importance == IMPORTANCE_GONE) {
+            mImportanceByUid.remove(uid);
+        } else {
+            mImportanceByUid.put(uid, importance);
+        }
+    }
+
+    private int queryImportance(int uid) {
+        List<ActivityManager.RunningAppProcessInfo> runningAppProcesses =
+                mActivityManager.getRunningAppProcesses();
+        int importance = IMPORTANCE_GONE;
+        if (runningAppProcesses == null) {
+            return importance;
+        }
+        for (ActivityManager.RunningAppProcessInfo info : runningAppProcesses) {
+            if (info.uid == uid) {
+                importance = Math.min(importance, info.importance);
+            }
+        }
+        return importance;
+    }
+}
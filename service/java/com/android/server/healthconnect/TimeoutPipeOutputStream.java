@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect;
+
+import android.annotation.NonNull;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * Writes to the write side of a pipe, failing once a write makes no progress for the given
+ * timeout, so that a client that stopped reading can't hold the writing thread forever.
+ *
+ * <p>Data is written in chunks of at most {@link #PIPE_BUF} bytes, and only once the pipe reports
+ * it has room for them, which never blocks. Closing the stream closes the pipe.
+ *
+ * @hide
+ */
+final class TimeoutPipeOutputStream extends OutputStream {
+    // Writes of up to this size fit in the pipe once it is writable.
+    private static final int PIPE_BUF = 4096;
+
+    private final ParcelFileDescriptor mPipe;
+    private final FileDescriptor mFd;
+    private final int mTimeoutMillis;
+    private boolean mTimedOut;
+
+    TimeoutPipeOutputStream(@NonNull ParcelFileDescriptor pipe, int timeoutMillis) {
+        mPipe = Objects.requireNonNull(pipe);
+        mFd = pipe.getFileDescriptor();
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        while (len > 0) {
+            awaitWritable();
+            int written;
+            try {
+                written = Os.write(mFd, b, off, Math.min(len, PIPE_BUF));
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EINTR) {
+                    continue;
+                }
+                throw e.rethrowAsIOException();
+            }
+            off += written;
+            len -= written;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mPipe.close();
+    }
+
+    private void awaitWritable() throws IOException {
+        // Later writes, such as the flush on close, fail right away instead of waiting again.
+        if (mTimedOut) {
+            throw new InterruptedIOException("Timed out writing to the pipe");
+        }
+
+        StructPollfd pollFd = new StructPollfd();
+        pollFd.fd = mFd;
+        pollFd.events = (short) OsConstants.POLLOUT;
+        while (true) {
+            int ready;
+            try {
+                ready = Os.poll(new StructPollfd[] {pollFd}, mTimeoutMillis);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EINTR) {
+                    continue;
+                }
+                throw e.rethrowAsIOException();
+            }
+            if (ready == 0) {
+                mTimedOut = true;
+                throw new InterruptedIOException("Timed out writing to the pipe");
+            }
+            // Errors, such as the client closing the read side, are reported by the write.
+            return;
+        }
+    }
+}
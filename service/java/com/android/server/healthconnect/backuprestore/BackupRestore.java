@@ -47,6 +47,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.ContextWrapper;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.health.connect.HealthConnectDataState;
 import android.health.connect.HealthConnectException;
 import android.health.connect.HealthConnectManager.DataDownloadState;
@@ -62,6 +63,7 @@ import android.os.Binder;
 import android.os.ParcelFileDescriptor;
 import android.os.PersistableBundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.format.DateUtils;
 import android.util.ArrayMap;
@@ -80,6 +82,7 @@ import com.android.server.healthconnect.permission.UserGrantTimeState;
 import com.android.server.healthconnect.storage.HealthConnectDatabase;
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.DeviceInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.PreferenceHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
@@ -87,6 +90,7 @@ import com.android.server.healthconnect.storage.request.ReadTableRequest;
 import com.android.server.healthconnect.storage.request.ReadTransactionRequest;
 import com.android.server.healthconnect.storage.request.UpsertTransactionRequest;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
+import com.android.server.healthconnect.storage.utils.StorageUtils;
 import com.android.server.healthconnect.utils.FilesUtil;
 import com.android.server.healthconnect.utils.RunnableWithThrowable;
 
@@ -175,6 +179,9 @@ public final class BackupRestore {
     @VisibleForTesting
     static final String GRANT_TIME_FILE_NAME = "health-permissions-first-grant-times.xml";
 
+    @VisibleForTesting
+    static final String DATABASE_SNAPSHOT_FILE_NAME = "healthconnect_snapshot.db";
+
     private static final String TAG = "HealthConnectBackupRestore";
     private final ReentrantReadWriteLock mStatesLock = new ReentrantReadWriteLock(true);
     private final FirstGrantTimeManager mFirstGrantTimeManager;
@@ -184,6 +191,7 @@ public final class BackupRestore {
     private final Context mContext;
     private final Map<Long, String> mStagedPackageNamesByAppIds = new ArrayMap<>();
     private final Object mMergingLock = new Object();
+    private final Object mDatabaseSnapshotLock = new Object();
 
     @GuardedBy("mMergingLock")
     private HealthConnectDatabase mStagedDatabase;
@@ -335,23 +343,31 @@ public final class BackupRestore {
         Map<String, ParcelFileDescriptor> pfdsByFileName =
                 stageRemoteDataRequest.getPfdsByFileName();
 
-        var backupFilesByFileNames = getBackupFilesByFileNames(userHandle);
-        pfdsByFileName.forEach(
-                (fileName, pfd) -> {
-                    Path sourceFilePath = backupFilesByFileNames.get(fileName).toPath();
-                    try (FileOutputStream outputStream =
-                            new FileOutputStream(pfd.getFileDescriptor())) {
-                        Files.copy(sourceFilePath, outputStream);
-                    } catch (IOException | SecurityException e) {
-                        Slog.e(TAG, "Failed to send " + fileName + " for backup", e);
-                    } finally {
-                        try {
-                            pfd.close();
-                        } catch (IOException e) {
-                            Slog.e(TAG, "Failed to close " + fileName + " for backup", e);
-                        }
-                    }
-                });
+        // Backups share the snapshot file, which each of them deletes once sent.
+        synchronized (mDatabaseSnapshotLock) {
+            var backupFilesByFileNames = getBackupFilesByFileNames(userHandle);
+            try {
+                pfdsByFileName.forEach(
+                        (fileName, pfd) -> {
+                            Path sourceFilePath = backupFilesByFileNames.get(fileName).toPath();
+                            try (FileOutputStream outputStream =
+                                    new FileOutputStream(pfd.getFileDescriptor())) {
+                                Files.copy(sourceFilePath, outputStream);
+                            } catch (IOException | SecurityException e) {
+                                Slog.e(TAG, "Failed to send " + fileName + " for backup", e);
+                            } finally {
+                                try {
+                                    pfd.close();
+                                } catch (IOException e) {
+                                    Slog.e(TAG, "Failed to close " + fileName + " for backup", e);
+                                }
+                            }
+                        });
+            } finally {
+                // Not kept for the next backup, as it would outlive the deletion of the data.
+                getDatabaseSnapshotFile(userHandle).delete();
+            }
+        }
     }
 
     /** Get the file names of all the files that are transported during backup / restore. */
@@ -589,11 +605,13 @@ public final class BackupRestore {
     private Map<String, File> getBackupFilesByFileNames(UserHandle userHandle) {
         ArrayMap<String, File> backupFilesByFileNames = new ArrayMap<>();
 
-        File databasePath = TransactionManager.getInitialisedInstance().getDatabasePath();
-        backupFilesByFileNames.put(databasePath.getName(), databasePath);
-
         File backupDataDir = getBackupDataDirectoryForUser(userHandle.getIdentifier());
         backupDataDir.mkdirs();
+
+        File databasePath = TransactionManager.getInitialisedInstance().getDatabasePath();
+        backupFilesByFileNames.put(
+                databasePath.getName(), getDatabaseSnapshot(getDatabaseSnapshotFile(userHandle)));
+
         File grantTimeFile = new File(backupDataDir, GRANT_TIME_FILE_NAME);
         try {
             grantTimeFile.createNewFile();
@@ -607,6 +625,39 @@ public final class BackupRestore {
         return backupFilesByFileNames;
     }
 
+    /**
+     * Returns a transactionally consistent copy of the database written into {@code snapshotFile},
+     * or the database file itself if it can't be copied.
+     */
+    private File getDatabaseSnapshot(File snapshotFile) {
+        TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
+        long startTime = SystemClock.elapsedRealtime();
+        try {
+            transactionManager.createDatabaseSnapshot(snapshotFile);
+        } catch (IOException | SQLiteException e) {
+            Slog.e(TAG, "Failed to snapshot the database, backing up the database file", e);
+            // The file only holds the committed data once the WAL is checkpointed into it.
+            if (!transactionManager.checkpointDatabase()) {
+                Slog.w(TAG, "Database busy, the backed up file misses the latest changes");
+            }
+            return transactionManager.getDatabasePath();
+        }
+        Slog.i(
+                TAG,
+                "Database snapshot of "
+                        + snapshotFile.length()
+                        + " bytes took "
+                        + (SystemClock.elapsedRealtime() - startTime)
+                        + "ms");
+        return snapshotFile;
+    }
+
+    private static File getDatabaseSnapshotFile(UserHandle userHandle) {
+        return new File(
+                getBackupDataDirectoryForUser(userHandle.getIdentifier()),
+                DATABASE_SNAPSHOT_FILE_NAME);
+    }
+
     @DataDownloadState private int getDataDownloadState() {
         mStatesLock.readLock().lock();
         try {
@@ -966,11 +1017,25 @@ public final class BackupRestore {
 
             // We are sure to migrate the db now, so prepare
             prepInternalDataPerStagedDb();
+            BulkRecordsMerger bulkRecordsMerger = attachBulkRecordsMerger();
 
             // Go through each record type and migrate all records of that type.
             var recordTypeMap = RecordMapper.getInstance().getRecordIdToExternalRecordClassMap();
-            for (var recordTypeMapEntry : recordTypeMap.entrySet()) {
-                mergeRecordsOfType(recordTypeMapEntry.getKey(), recordTypeMapEntry.getValue());
+            try {
+                for (var recordTypeMapEntry : recordTypeMap.entrySet()) {
+                    RecordHelper<?> recordHelper =
+                            RecordHelperProvider.getInstance()
+                                    .getRecordHelper(recordTypeMapEntry.getKey());
+                    if (bulkRecordsMerger == null
+                            || !bulkMergeRecordsOfType(bulkRecordsMerger, recordHelper)) {
+                        mergeRecordsOfType(
+                                recordTypeMapEntry.getKey(), recordTypeMapEntry.getValue());
+                    }
+                }
+            } finally {
+                if (bulkRecordsMerger != null) {
+                    bulkRecordsMerger.detach();
+                }
             }
 
             // Delete the staged db as we are done merging.
@@ -980,6 +1045,75 @@ public final class BackupRestore {
         }
     }
 
+    /**
+     * Returns a merger copying records from the staged database as rows, or null if the
+     * HealthConnect database couldn't be attached to the staged database.
+     */
+    private BulkRecordsMerger attachBulkRecordsMerger() {
+        Map<Long, Long> appInfoIds = new ArrayMap<>();
+        mStagedPackageNamesByAppIds.forEach(
+                (stagedAppInfoId, packageName) -> {
+                    try {
+                        appInfoIds.put(
+                                stagedAppInfoId,
+                                AppInfoHelper.getInstance()
+                                        .getOrInsertAppInfoId(packageName, mContext));
+                    } catch (IllegalArgumentException e) {
+                        Slog.e(TAG, "No app info for " + packageName + ", skipping its records", e);
+                    }
+                });
+        Map<Long, Long> deviceInfoIds;
+        try (Cursor cursor =
+                read(new ReadTableRequest(DeviceInfoHelper.getInstance().getTableName()))) {
+            deviceInfoIds = DeviceInfoHelper.getInstance().getOrInsertDeviceInfoIds(cursor);
+        }
+
+        BulkRecordsMerger bulkRecordsMerger =
+                new BulkRecordsMerger(getStagedDatabase().getWritableDatabase());
+        try {
+            bulkRecordsMerger.attach(
+                    TransactionManager.getInitialisedInstance().getDatabasePath(),
+                    appInfoIds,
+                    deviceInfoIds);
+        } catch (SQLiteException e) {
+            Slog.e(TAG, "Failed to attach the database, merging records one at a time", e);
+            return null;
+        }
+        return bulkRecordsMerger;
+    }
+
+    /**
+     * Merges the records of {@code recordHelper} as rows, returns false if they need to be merged
+     * one at a time instead. The records already merged are deleted from the staged database, so
+     * merging them one at a time only goes through the remaining ones.
+     */
+    private boolean bulkMergeRecordsOfType(
+            BulkRecordsMerger bulkRecordsMerger, RecordHelper<?> recordHelper) {
+        try {
+            if (!bulkRecordsMerger.canMerge(recordHelper)) {
+                return false;
+            }
+            long startTime = SystemClock.elapsedRealtime();
+            long mergedRecords = bulkRecordsMerger.merge(recordHelper);
+            long elapsedMillis = SystemClock.elapsedRealtime() - startTime;
+            Slog.i(
+                    TAG,
+                    "Merged "
+                            + mergedRecords
+                            + " records of type "
+                            + recordHelper.getRecordIdentifier()
+                            + " in "
+                            + elapsedMillis
+                            + "ms ("
+                            + mergedRecords * 1000 / Math.max(elapsedMillis, 1)
+                            + " records/s)");
+            return true;
+        } catch (SQLiteException e) {
+            Slog.e(TAG, "Failed to merge records as rows, merging them one at a time", e);
+            return false;
+        }
+    }
+
     private <T extends Record> void mergeRecordsOfType(int recordType, Class<T> recordTypeClass) {
         RecordHelper<?> recordHelper =
                 RecordHelperProvider.getInstance().getRecordHelper(recordType);
@@ -1072,7 +1206,10 @@ public final class BackupRestore {
 
     private Cursor read(ReadTableRequest request) {
         synchronized (mMergingLock) {
-            return mStagedDatabase.getReadableDatabase().rawQuery(request.getReadCommand(), null);
+            return StorageUtils.rawQuery(
+                    mStagedDatabase.getReadableDatabase(),
+                    request.getReadCommand(),
+                    request.getBindArgs());
         }
     }
 
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.backuprestore;
+
+import static android.health.connect.Constants.PARENT_KEY;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.APP_INFO_ID_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.DEVICE_INFO_ID_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.LAST_MODIFIED_TIME_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.PRIMARY_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.UUID_COLUMN_NAME;
+
+import android.annotation.NonNull;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
+import com.android.server.healthconnect.storage.request.CreateTableRequest;
+
+import java.io.File;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Merges the records of a staged database into the HealthConnect database by copying the rows of
+ * their tables with {@code INSERT ... SELECT} statements, without reading them into records.
+ *
+ * <p>The HealthConnect database is attached to the connection of the staged database, and the ids
+ * of app infos and device infos are remapped through temporary tables. Rows are copied in chunks,
+ * each in a transaction of its own, and deleted from the staged database once copied. This keeps
+ * the writers of the HealthConnect database from waiting long, and lets merging resume after it
+ * was interrupted.
+ *
+ * @hide
+ */
+final class BulkRecordsMerger {
+    private static final String SCHEMA_NAME = "hc";
+    private static final String STAGED_SCHEMA_NAME = "main";
+    private static final String APP_INFO_IDS_TABLE_NAME = "app_info_ids";
+    private static final String DEVICE_INFO_IDS_TABLE_NAME = "device_info_ids";
+    private static final String STAGED_ID_COLUMN_NAME = "staged_id";
+    private static final String ID_COLUMN_NAME = "id";
+    // Bounds the rows copied by a chunk, records and their child rows, and so how long it holds
+    // the write lock. Each record also fires the triggers of its table.
+    private static final int ROWS_PER_CHUNK = 2000;
+
+    private final SQLiteDatabase mStagedDb;
+
+    BulkRecordsMerger(@NonNull SQLiteDatabase stagedDb) {
+        mStagedDb = Objects.requireNonNull(stagedDb);
+    }
+
+    /**
+     * Attaches the HealthConnect database at {@code databasePath}, with the ids its app infos and
+     * device infos have for the ids they have in the staged database.
+     */
+    void attach(
+            @NonNull File databasePath,
+            @NonNull Map<Long, Long> appInfoIds,
+            @NonNull Map<Long, Long> deviceInfoIds) {
+        mStagedDb.execSQL(
+                "ATTACH DATABASE ? AS " + SCHEMA_NAME, new Object[] {databasePath.getPath()});
+        mStagedDb.beginTransaction();
+        try {
+            createIdsTable(APP_INFO_IDS_TABLE_NAME, appInfoIds);
+            createIdsTable(DEVICE_INFO_IDS_TABLE_NAME, deviceInfoIds);
+            mStagedDb.setTransactionSuccessful();
+        } finally {
+            mStagedDb.endTransaction();
+        }
+    }
+
+    /** Detaches the HealthConnect database. */
+    void detach() {
+        mStagedDb.execSQL("DROP TABLE IF EXISTS temp." + APP_INFO_IDS_TABLE_NAME);
+        mStagedDb.execSQL("DROP TABLE IF EXISTS temp." + DEVICE_INFO_IDS_TABLE_NAME);
+        mStagedDb.execSQL("DETACH DATABASE " + SCHEMA_NAME);
+    }
+
+    /**
+     * Returns whether the records of {@code recordHelper} can be copied as rows. They can't if
+     * their tables differ between the databases, or if their child tables have children of their
+     * own, which would need their parent keys remapped.
+     */
+    boolean canMerge(@NonNull RecordHelper<?> recordHelper) {
+        CreateTableRequest request = recordHelper.getCreateTableRequest();
+        if (!hasSameColumns(request.getTableName())) {
+            return false;
+        }
+        for (CreateTableRequest childRequest : request.getChildTableRequests()) {
+            if (!childRequest.getChildTableRequests().isEmpty()
+                    || !hasSameColumns(childRequest.getTableName())
+                    || !getColumns(STAGED_SCHEMA_NAME, childRequest.getTableName())
+                            .contains(PARENT_KEY)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the records of {@code recordHelper}, which {@link #canMerge} must allow, from the
+     * staged database and deletes them from it.
+     *
+     * <p>As when records are inserted one at a time, records conflicting with existing records are
+     * ignored along with their child rows, and the last modified time is set to now. Unlike then,
+     * uuids are kept: they were generated on the source device and are still unique.
+     *
+     * @return the number of records inserted.
+     */
+    long merge(@NonNull RecordHelper<?> recordHelper) {
+        CreateTableRequest request = recordHelper.getCreateTableRequest();
+        String tableName = request.getTableName();
+        List<String> childTableNames = new ArrayList<>();
+        List<String> insertChildRowsCommands = new ArrayList<>();
+        for (CreateTableRequest childRequest : request.getChildTableRequests()) {
+            String childTableName = childRequest.getTableName();
+            // Child rows are counted and deleted by their parent key.
+            mStagedDb.execSQL(
+                    "CREATE INDEX IF NOT EXISTS "
+                            + STAGED_SCHEMA_NAME
+                            + "."
+                            + childTableName
+                            + "_parent_key_idx ON "
+                            + childTableName
+                            + " ("
+                            + PARENT_KEY
+                            + ")");
+            childTableNames.add(childTableName);
+            insertChildRowsCommands.add(getInsertChildRowsCommand(tableName, childTableName));
+        }
+
+        long mergedRecords = 0;
+        long lastModifiedTime = Instant.now().toEpochMilli();
+        try (SQLiteStatement insertRecords =
+                        mStagedDb.compileStatement(getInsertRecordsCommand(tableName));
+                SQLiteStatement deleteStagedRecords =
+                        mStagedDb.compileStatement(
+                                "DELETE FROM "
+                                        + STAGED_SCHEMA_NAME
+                                        + "."
+                                        + tableName
+                                        + " WHERE "
+                                        + PRIMARY_COLUMN_NAME
+                                        + " < ?")) {
+            boolean lastChunk;
+            do {
+                long toRowId = getRowIdAfterChunk(tableName, childTableNames);
+                lastChunk = toRowId == Long.MAX_VALUE;
+                mStagedDb.beginTransaction();
+                try {
+                    long lastRowId = getLastRowId(tableName);
+
+                    insertRecords.bindLong(1, lastModifiedTime);
+                    insertRecords.bindLong(2, toRowId);
+                    mergedRecords += insertRecords.executeUpdateDelete();
+
+                    // Only the children of the records just inserted are copied.
+                    for (String insertChildRowsCommand : insertChildRowsCommands) {
+                        try (SQLiteStatement insertChildRows =
+                                mStagedDb.compileStatement(insertChildRowsCommand)) {
+                            insertChildRows.bindLong(1, lastRowId);
+                            insertChildRows.bindLong(2, toRowId);
+                            insertChildRows.executeUpdateDelete();
+                        }
+                    }
+                    mStagedDb.setTransactionSuccessful();
+                } finally {
+                    mStagedDb.endTransaction();
+                }
+
+                // The staged rows are only deleted once their copies are committed, as a
+                // transaction writing to both databases isn't atomic in write-ahead log mode. If
+                // merging is interrupted in between, the records copied again are ignored as
+                // conflicting, along with their child rows. Child rows are deleted by cascade.
+                deleteStagedRecords.bindLong(1, toRowId);
+                deleteStagedRecords.executeUpdateDelete();
+            } while (!lastChunk);
+        }
+        return mergedRecords;
+    }
+
+    /**
+     * Returns the command inserting the staged records with a row id below the second argument,
+     * with their last modified time set to the first argument.
+     */
+    private String getInsertRecordsCommand(String tableName) {
+        List<String> columns = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (String column : getColumns(STAGED_SCHEMA_NAME, tableName)) {
+            if (column.equals(PRIMARY_COLUMN_NAME)) {
+                continue;
+            }
+            columns.add(column);
+            switch (column) {
+                case APP_INFO_ID_COLUMN_NAME -> values.add("a." + ID_COLUMN_NAME);
+                case DEVICE_INFO_ID_COLUMN_NAME -> values.add("d." + ID_COLUMN_NAME);
+                case LAST_MODIFIED_TIME_COLUMN_NAME -> values.add("?1");
+                default -> values.add("s." + column);
+            }
+        }
+
+        // Records of apps without an app info are left out, device infos are optional.
+        return "INSERT OR IGNORE INTO "
+                + SCHEMA_NAME
+                + "."
+                + tableName
+                + " ("
+                + String.join(", ", columns)
+                + ") SELECT "
+                + String.join(", ", values)
+                + " FROM "
+                + STAGED_SCHEMA_NAME
+                + "."
+                + tableName
+                + " s JOIN temp."
+                + APP_INFO_IDS_TABLE_NAME
+                + " a ON a."
+                + STAGED_ID_COLUMN_NAME
+                + " = s."
+                + APP_INFO_ID_COLUMN_NAME
+                + " LEFT JOIN temp."
+                + DEVICE_INFO_IDS_TABLE_NAME
+                + " d ON d."
+                + STAGED_ID_COLUMN_NAME
+                + " = s."
+                + DEVICE_INFO_ID_COLUMN_NAME
+                + " WHERE s."
+                + PRIMARY_COLUMN_NAME
+                + " < ?2 ORDER BY s."
+                + PRIMARY_COLUMN_NAME;
+    }
+
+    /**
+     * Returns the command inserting the staged child rows of the staged records with a row id
+     * below the second argument, for the parents inserted with a row id above the first argument.
+     */
+    private String getInsertChildRowsCommand(String tableName, String childTableName) {
+        List<String> columns = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        columns.add(PARENT_KEY);
+        values.add("p." + PRIMARY_COLUMN_NAME);
+        for (String column : getColumns(STAGED_SCHEMA_NAME, childTableName)) {
+            if (!column.equals(PRIMARY_COLUMN_NAME) && !column.equals(PARENT_KEY)) {
+                columns.add(column);
+                values.add("c." + column);
+            }
+        }
+
+        return "INSERT INTO "
+                + SCHEMA_NAME
+                + "."
+                + childTableName
+                + " ("
+                + String.join(", ", columns)
+                + ") SELECT "
+                + String.join(", ", values)
+                + " FROM "
+                + STAGED_SCHEMA_NAME
+                + "."
+                + childTableName
+                + " c JOIN "
+                + STAGED_SCHEMA_NAME
+                + "."
+                + tableName
+                + " s ON s."
+                + PRIMARY_COLUMN_NAME
+                + " = c."
+                + PARENT_KEY
+                + " JOIN "
+                + SCHEMA_NAME
+                + "."
+                + tableName
+                + " p ON p."
+                + UUID_COLUMN_NAME
+                + " = s."
+                + UUID_COLUMN_NAME
+                + " WHERE s."
+                + PRIMARY_COLUMN_NAME
+                + " < ?2 AND p."
+                + PRIMARY_COLUMN_NAME
+                + " > ?1";
+    }
+
+    /**
+     * Returns the row id of the first staged record after the next chunk, or {@link
+     * Long#MAX_VALUE} if the remaining records fit in one chunk. A chunk holds as many records as
+     * fit in {@link #ROWS_PER_CHUNK} rows along with their child rows, and at least one record.
+     */
+    private long getRowIdAfterChunk(String tableName, List<String> childTableNames) {
+        List<String> rowCounts = new ArrayList<>();
+        rowCounts.add("1");
+        for (String childTableName : childTableNames) {
+            rowCounts.add(
+                    "(SELECT COUNT(*) FROM "
+                            + STAGED_SCHEMA_NAME
+                            + "."
+                            + childTableName
+                            + " c WHERE c."
+                            + PARENT_KEY
+                            + " = s."
+                            + PRIMARY_COLUMN_NAME
+                            + ")");
+        }
+
+        try (Cursor cursor =
+                mStagedDb.rawQuery(
+                        "SELECT s."
+                                + PRIMARY_COLUMN_NAME
+                                + ", "
+                                + String.join(" + ", rowCounts)
+                                + " FROM "
+                                + STAGED_SCHEMA_NAME
+                                + "."
+                                + tableName
+                                + " s ORDER BY s."
+                                + PRIMARY_COLUMN_NAME
+                                + " LIMIT "
+                                + (ROWS_PER_CHUNK + 1),
+                        null)) {
+            long rows = 0;
+            while (cursor.moveToNext()) {
+                rows += cursor.getLong(1);
+                if (rows > ROWS_PER_CHUNK && !cursor.isFirst()) {
+                    return cursor.getLong(0);
+                }
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private long getLastRowId(String tableName) {
+        try (Cursor cursor =
+                mStagedDb.rawQuery(
+                        "SELECT IFNULL(MAX("
+                                + PRIMARY_COLUMN_NAME
+                                + "), 0) FROM "
+                                + SCHEMA_NAME
+                                + "."
+                                + tableName,
+                        null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+
+    private boolean hasSameColumns(String tableName) {
+        List<String> stagedColumns = getColumns(STAGED_SCHEMA_NAME, tableName);
+        return !stagedColumns.isEmpty()
+                && stagedColumns.equals(getColumns(SCHEMA_NAME, tableName));
+    }
+
+    /** Returns the columns of the table, leaving out generated columns. */
+    private List<String> getColumns(String schemaName, String tableName) {
+        List<String> columns = new ArrayList<>();
+        try (Cursor cursor =
+                mStagedDb.rawQuery(
+                        "PRAGMA " + schemaName + ".table_info(" + tableName + ")", null)) {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(nameIndex));
+            }
+        }
+        return columns;
+    }
+
+    private void createIdsTable(String tableName, Map<Long, Long> ids) {
+        mStagedDb.execSQL(
+                "CREATE TEMP TABLE IF NOT EXISTS "
+                        + tableName
+                        + " ("
+                        + STAGED_ID_COLUMN_NAME
+                        + " INTEGER PRIMARY KEY, "
+                        + ID_COLUMN_NAME
+                        + " INTEGER NOT NULL)");
+        mStagedDb.execSQL("DELETE FROM temp." + tableName);
+        try (SQLiteStatement insertId =
+                mStagedDb.compileStatement(
+                        "INSERT INTO temp."
+                                + tableName
+                                + " ("
+                                + STAGED_ID_COLUMN_NAME
+                                + ", "
+                                + ID_COLUMN_NAME
+                                + ") VALUES (?, ?)")) {
+            for (Map.Entry<Long, Long> entry : ids.entrySet()) {
+                insertId.bindLong(1, entry.getKey());
+                insertId.bindLong(2, entry.getValue());
+                insertId.executeInsert();
+            }
+        }
+    }
+}
@@ -136,8 +136,10 @@ import static android.health.connect.ratelimiter.RateLimiter.QuotaBucket.QUOTA_B
 import android.annotation.IntDef;
 import android.annotation.NonNull;
 import android.health.HealthFitnessStatsLog;
+import android.health.connect.Constants;
 import android.health.connect.internal.datatypes.RecordInternal;
 import android.health.connect.ratelimiter.RateLimiter;
+import android.util.Slog;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -157,6 +159,7 @@ import java.util.Objects;
  */
 public class HealthConnectServiceLogger {
 
+    private static final String TAG = "HealthConnectServiceLogger";
     private final int mHealthDataServiceApiMethod;
     private final int mHealthDataServiceApiStatus;
     private final int mErrorCode;
@@ -166,8 +169,11 @@ public class HealthConnectServiceLogger {
     private final int mNumberOfRecords;
     private final int[] mRecordTypes;
     private final String mPackageName;
+    private final Map<Integer, Long> mAggregationDurationsMillis;
     private static final int MAX_NUMBER_OF_LOGGED_DATA_TYPES = 6;
     private static final int RECORD_TYPE_NOT_ASSIGNED_DEFAULT_VALUE = -1;
+    // Aggregations taking this long are logged in all builds.
+    private static final long SLOW_AGGREGATION_THRESHOLD_MILLIS = 1000;
 
     /**
      * HealthConnectService ApiMethods supported by logging.
@@ -356,6 +362,7 @@ public class HealthConnectServiceLogger {
         private final boolean mHoldsDataManagementPermission;
         private int[] mRecordTypes;
         private String mPackageName;
+        private Map<Integer, Long> mAggregationDurationsMillis;
 
         public Builder(boolean holdsDataManagementPermission, @ApiMethods.ApiMethod int apiMethod) {
             mStartTime = System.currentTimeMillis();
@@ -368,6 +375,7 @@ public class HealthConnectServiceLogger {
             mRecordTypes = new int[MAX_NUMBER_OF_LOGGED_DATA_TYPES];
             Arrays.fill(mRecordTypes, RECORD_TYPE_NOT_ASSIGNED_DEFAULT_VALUE);
             mPackageName = "UNKNOWN";
+            mAggregationDurationsMillis = Map.of();
         }
 
         /** Set the API was called successfully. */
@@ -475,6 +483,18 @@ public class HealthConnectServiceLogger {
             return this;
         }
 
+        /**
+         * Set the time taken by each aggregation of the API call.
+         *
+         * @param aggregationDurationsMillis Duration in millis by aggregation id.
+         */
+        public Builder setAggregationDurationsMillis(
+                @NonNull Map<Integer, Long> aggregationDurationsMillis) {
+            Objects.requireNonNull(aggregationDurationsMillis);
+            mAggregationDurationsMillis = aggregationDurationsMillis;
+            return this;
+        }
+
         /** Returns an object of {@link HealthConnectServiceLogger}. */
         public HealthConnectServiceLogger build() {
             mDuration = System.currentTimeMillis() - mStartTime;
@@ -595,10 +615,39 @@ public class HealthConnectServiceLogger {
         mNumberOfRecords = builder.mNumberOfRecords;
         mRecordTypes = builder.mRecordTypes;
         mPackageName = builder.mPackageName;
+        mAggregationDurationsMillis = builder.mAggregationDurationsMillis;
+    }
+
+    /** Returns the time taken by each aggregation of the API call, by aggregation id. */
+    @NonNull
+    public Map<Integer, Long> getAggregationDurationsMillis() {
+        return mAggregationDurationsMillis;
+    }
+
+    private void logAggregationDurations() {
+        boolean slow = false;
+        for (long durationMillis : mAggregationDurationsMillis.values()) {
+            slow |= durationMillis >= SLOW_AGGREGATION_THRESHOLD_MILLIS;
+        }
+        if (!slow && !Constants.DEBUG) {
+            return;
+        }
+
+        String message =
+                "Aggregation durations in millis by aggregation id: "
+                        + mAggregationDurationsMillis
+                        + ", total: "
+                        + mDuration;
+        if (slow) {
+            Slog.w(TAG, message);
+        } else if (!mAggregationDurationsMillis.isEmpty()) {
+            Slog.d(TAG, message);
+        }
     }
 
     /** Log to statsd. */
     public void log() {
+        logAggregationDurations();
 
         // Do not log API calls made from the controller
         if (mHoldsDataManagementPermission) {
@@ -31,9 +31,11 @@ import android.permission.PermissionManager;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
 
+import java.io.PrintWriter;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -48,10 +50,23 @@ import java.util.function.Function;
 public class DataPermissionEnforcer {
     private final PermissionManager mPermissionManager;
     private final Context mContext;
+    private final PermissionGrantStateCache mGrantStateCache;
 
     public DataPermissionEnforcer(PermissionManager permissionManager, Context context) {
+        this(
+                permissionManager,
+                context,
+                new PermissionGrantStateCache(context.getPackageManager()));
+    }
+
+    @VisibleForTesting
+    DataPermissionEnforcer(
+            PermissionManager permissionManager,
+            Context context,
+            PermissionGrantStateCache grantStateCache) {
         mPermissionManager = permissionManager;
         mContext = context;
+        mGrantStateCache = grantStateCache;
     }
 
     /** Enforces default write permissions for given recordTypeIds */
@@ -165,21 +180,36 @@ public class DataPermissionEnforcer {
                                 permission -> isPermissionGranted(permission, attributionSource)));
     }
 
+    /**
+     * Collects extra write permissions of {@code recordInternals} to their grant state. Each
+     * permission is checked once, however many records need it.
+     */
     public Map<String, Boolean> collectExtraWritePermissionStateMapping(
             List<RecordInternal<?>> recordInternals, AttributionSource attributionSource) {
         Map<String, Boolean> mapping = new ArrayMap<>();
+        int deduplicatedChecks = 0;
         for (RecordInternal<?> recordInternal : recordInternals) {
             int recordTypeId = recordInternal.getRecordType();
             RecordHelper<?> recordHelper =
                     RecordHelperProvider.getInstance().getRecordHelper(recordTypeId);
 
             for (String permName : recordHelper.getExtraWritePermissions()) {
-                mapping.put(permName, isPermissionGranted(permName, attributionSource));
+                if (mapping.containsKey(permName)) {
+                    deduplicatedChecks++;
+                } else {
+                    mapping.put(permName, isPermissionGranted(permName, attributionSource));
+                }
             }
         }
+        mGrantStateCache.onChecksDeduplicated(deduplicatedChecks);
         return mapping;
     }
 
+    /** Dumps the permission check counters. */
+    public void dump(@NonNull PrintWriter writer) {
+        mGrantStateCache.dump(writer);
+    }
+
     private void enforceRecordIdWritePermissionInternal(
             List<Integer> recordTypeIds, AttributionSource attributionSource) {
         for (Integer recordTypeId : recordTypeIds) {
@@ -210,10 +240,27 @@ public class DataPermissionEnforcer {
         }
     }
 
+    /**
+     * Checks a permission, serving only denials from the cache, so that every call granted the
+     * permission still starts its data delivery.
+     */
     private boolean isPermissionGranted(
             String permissionName, AttributionSource attributionSource) {
-        return mPermissionManager.checkPermissionForStartDataDelivery(
-                        permissionName, attributionSource, null)
-                == PERMISSION_GRANTED;
+        if (Boolean.FALSE.equals(mGrantStateCache.get(permissionName, attributionSource))) {
+            mGrantStateCache.onCheckAvoided();
+            return false;
+        }
+
+        return checkPermission(permissionName, attributionSource);
+    }
+
+    private boolean checkPermission(String permissionName, AttributionSource attributionSource) {
+        long generation = mGrantStateCache.getGeneration();
+        boolean granted =
+                mPermissionManager.checkPermissionForStartDataDelivery(
+                                permissionName, attributionSource, null)
+                        == PERMISSION_GRANTED;
+        mGrantStateCache.put(permissionName, attributionSource, granted, generation);
+        return granted;
     }
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.permission;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.AttributionSource;
+import android.content.pm.PackageManager;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the grant state of permissions per uid, so that permission checks whose result is already
+ * known don't need an IPC. The entries of a uid are dropped whenever its permissions change.
+ *
+ * <p>Only callers without an attribution chain are cached, as the grant state of a chain also
+ * depends on the apps it goes through.
+ *
+ * @hide
+ */
+final class PermissionGrantStateCache implements PackageManager.OnPermissionsChangedListener {
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseArray<Map<String, Boolean>> mGrantStatesByUid = new SparseArray<>();
+
+    // Incremented on every permission change, so that a check which raced with a change doesn't
+    // cache its outdated result.
+    @GuardedBy("mLock")
+    private long mGeneration;
+
+    private final AtomicLong mChecks = new AtomicLong();
+    private final AtomicLong mCacheHits = new AtomicLong();
+    private final AtomicLong mDeduplicatedChecks = new AtomicLong();
+
+    PermissionGrantStateCache(@NonNull PackageManager packageManager) {
+        packageManager.addOnPermissionsChangeListener(this);
+    }
+
+    /** Returns the cached grant state of {@code permission}, or null if it isn't known. */
+    @Nullable
+    Boolean get(@NonNull String permission, @NonNull AttributionSource attributionSource) {
+        if (!isCacheable(attributionSource)) {
+            return null;
+        }
+
+        synchronized (mLock) {
+            Map<String, Boolean> grantStates = mGrantStatesByUid.get(attributionSource.getUid());
+            return grantStates == null ? null : grantStates.get(permission);
+        }
+    }
+
+    /** Returns the generation to pass to {@link #put} for a check which is about to be made. */
+    long getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    /** Caches the result of a check made at {@code generation}. */
+    void put(
+            @NonNull String permission,
+            @NonNull AttributionSource attributionSource,
+            boolean granted,
+            long generation) {
+        mChecks.incrementAndGet();
+        if (!isCacheable(attributionSource)) {
+            return;
+        }
+
+        synchronized (mLock) {
+            if (generation != mGeneration) {
+                return;
+            }
+            Map<String, Boolean> grantStates = mGrantStatesByUid.get(attributionSource.getUid());
+            if (grantStates == null) {
+                grantStates = new ArrayMap<>();
+                mGrantStatesByUid.put(attributionSource.getUid(), grantStates);
+            }
+            grantStates.put(permission, granted);
+        }
+    }
+
+    /** Counts a check skipped because its result was served from the cache. */
+    void onCheckAvoided() {
+        mCacheHits.incrementAndGet();
+    }
+
+    /** Counts checks skipped because the same permission was already checked in the request. */
+    void onChecksDeduplicated(int count) {
+        mDeduplicatedChecks.addAndGet(count);
+    }
+
+    @Override
+    public void onPermissionsChanged(int uid) {
+        synchronized (mLock) {
+            mGeneration++;
+            mGrantStatesByUid.remove(uid);
+        }
+    }
+
+    void dump(@NonNull PrintWriter writer) {
+        writer.println("Permission checks:");
+        writer.println("  made: " + mChecks.get());
+        writer.println("  avoided by cache: " + mCacheHits.get());
+        writer.println("  avoided by deduplication: " + mDeduplicatedChecks.get());
+    }
+
+    private static boolean isCacheable(@NonNull AttributionSource attributionSource) {
+        return attributionSource.getNext() == null;
+    }
+}
@@ -16,19 +16,28 @@
 
 package com.android.server.healthconnect.storage;
 
+import static android.health.connect.Constants.DEBUG;
+
+import android.annotation.Nullable;
+import android.os.SystemClock;
 import android.util.Slog;
 
 import com.android.server.healthconnect.storage.datatypehelpers.AccessLogsHelper;
-import com.android.server.healthconnect.storage.datatypehelpers.ActivityDateHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.AggregationRollupHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsRequestHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.PreferenceHelper;
-import com.android.server.healthconnect.storage.request.DeleteTableRequest;
+import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.RecordStatsHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.RecordStatsHelper.RecordStats;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
 
-import java.util.ArrayList;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * A service that is run periodically to handle deletion of stale entries in HC DB.
@@ -38,7 +47,10 @@ import java.util.List;
 public class AutoDeleteService {
     private static final String AUTO_DELETE_DURATION_RECORDS_KEY =
             "auto_delete_duration_records_key";
+    private static final String AUTO_DELETE_PROGRESS_KEY = "auto_delete_progress_key";
     private static final String TAG = "HealthConnectAutoDelete";
+    // Bounds the rows a chunk goes through, and so how long it holds the write lock.
+    private static final int RECORDS_CHUNK_SIZE = 2000;
 
     /** Gets auto delete period for automatically deleting record entries */
     public static int getRecordRetentionPeriodInDays() {
@@ -64,9 +76,11 @@ public class AutoDeleteService {
             deleteStaleChangeLogEntries();
             deleteStaleAccessLogEntries();
             // Update the recordTypesUsed by packages if required after the deletion of records.
+            // Activity dates are kept up to date by the deletes themselves.
             AppInfoHelper.getInstance().syncAppInfoRecordTypesUsed();
-            // Re-sync activity dates table
-            ActivityDateHelper.getInstance().reSyncForAllRecords();
+            // Deleted and updated records leave the rollup buckets they covered dirty.
+            TransactionManager.getInitialisedInstance()
+                    .runAsTransaction(AggregationRollupHelper.getInstance()::recomputeDirtyBuckets);
         } catch (Exception e) {
             Slog.e(TAG, "Auto delete run failed", e);
             // Don't rethrow as that will crash system_server
@@ -82,20 +96,10 @@ public class AutoDeleteService {
                         : Integer.parseInt(recordAutoDeletePeriodString);
         if (recordAutoDeletePeriod != 0) {
             // 0 represents that no period is set,to delete only if not 0 else don't do anything
-            List<DeleteTableRequest> deleteTableRequests = new ArrayList<>();
-            RecordHelperProvider.getInstance()
-                    .getRecordHelpers()
-                    .values()
-                    .forEach(
-                            (recordHelper) -> {
-                                DeleteTableRequest request =
-                                        recordHelper.getDeleteRequestForAutoDelete(
-                                                recordAutoDeletePeriod);
-                                deleteTableRequests.add(request);
-                            });
+            long endTime =
+                    Instant.now().minus(recordAutoDeletePeriod, ChronoUnit.DAYS).toEpochMilli();
             try {
-                TransactionManager.getInitialisedInstance()
-                        .deleteWithoutChangeLogs(deleteTableRequests);
+                deleteStaleRecordEntriesInChunks(endTime);
             } catch (Exception exception) {
                 Slog.e(TAG, "Auto delete for records failed", exception);
                 // Don't rethrow as that will crash system_server
@@ -103,6 +107,85 @@ public class AutoDeleteService {
         }
     }
 
+    /**
+     * Deletes the records which started up to {@code endTime}, one record type at a time in chunks
+     * of the {@link #RECORDS_CHUNK_SIZE} oldest stale records, until a chunk deletes nothing. Each
+     * chunk is deleted in a transaction of its own, so other writers, which are queued for the
+     * connection, only wait for one chunk.
+     *
+     * <p>The record type reached is saved after each chunk, so that a run which was interrupted,
+     * such as by process death, resumes from there. Record types whose oldest record is more recent
+     * than {@code endTime} are skipped without reading their tables.
+     */
+    private static void deleteStaleRecordEntriesInChunks(long endTime) {
+        TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
+        PreferenceHelper preferenceHelper = PreferenceHelper.getInstance();
+        Map<Integer, RecordStats> recordStats = RecordStatsHelper.getInstance().getRecordStats();
+        // Record types are processed in the order of their ids, which the saved progress refers to.
+        Map<Integer, RecordHelper<?>> recordHelpers =
+                new TreeMap<>(RecordHelperProvider.getInstance().getRecordHelpers());
+        int fromRecordTypeId =
+                parseRecordsProgress(preferenceHelper.getPreference(AUTO_DELETE_PROGRESS_KEY));
+
+        long startTime = SystemClock.elapsedRealtime();
+        long deletedRecords = 0;
+        int chunks = 0;
+        for (Map.Entry<Integer, RecordHelper<?>> entry : recordHelpers.entrySet()) {
+            int recordTypeId = entry.getKey();
+            if (recordTypeId < fromRecordTypeId) {
+                continue;
+            }
+            RecordStats stats = recordStats.get(recordTypeId);
+            if (stats == null
+                    || stats.getOldestStartTime() == null
+                    || stats.getOldestStartTime() > endTime) {
+                continue;
+            }
+
+            RecordHelper<?> recordHelper = entry.getValue();
+            int deletedChunkRecords;
+            do {
+                deletedChunkRecords =
+                        transactionManager.deleteWithoutChangeLogs(
+                                recordHelper.getDeleteRequestForAutoDelete(
+                                        endTime, RECORDS_CHUNK_SIZE));
+                deletedRecords += deletedChunkRecords;
+                chunks++;
+                preferenceHelper.insertOrReplacePreference(
+                        AUTO_DELETE_PROGRESS_KEY, String.valueOf(recordTypeId));
+            } while (deletedChunkRecords > 0);
+            if (DEBUG) {
+                Slog.d(TAG, "Auto delete progress: done with record type " + recordTypeId);
+            }
+        }
+        preferenceHelper.removeKey(AUTO_DELETE_PROGRESS_KEY);
+
+        long elapsedMillis = SystemClock.elapsedRealtime() - startTime;
+        Slog.i(
+                TAG,
+                "Auto deleted "
+                        + deletedRecords
+                        + " records in "
+                        + chunks
+                        + " chunks over "
+                        + elapsedMillis
+                        + "ms ("
+                        + deletedRecords * 1000 / Math.max(elapsedMillis, 1)
+                        + " records/s)");
+    }
+
+    /** Returns the record type id from which to resume deleting records, or 0 to start over. */
+    private static int parseRecordsProgress(@Nullable String progress) {
+        if (progress != null) {
+            try {
+                return Integer.parseInt(progress);
+            } catch (NumberFormatException exception) {
+                Slog.e(TAG, "Invalid auto delete progress: " + progress, exception);
+            }
+        }
+        return 0;
+    }
+
     private static void deleteStaleChangeLogEntries() {
         try {
             TransactionManager.getInitialisedInstance()
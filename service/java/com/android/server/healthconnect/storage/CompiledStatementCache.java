@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import android.annotation.NonNull;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of the compiled insert and update statements of a database, so that statements of the
+ * same shape are compiled once instead of for every row. Evicted statements are closed.
+ *
+ * <p>A statement holds its bindings, so it must only be used by one thread at a time. See {@link
+ * TransactionManager} for how the cache is shared.
+ *
+ * @hide
+ */
+final class CompiledStatementCache {
+    private final SQLiteDatabase mDb;
+    private final LruCache<String, SQLiteStatement> mStatements;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    CompiledStatementCache(@NonNull SQLiteDatabase db, int maxSize) {
+        mDb = Objects.requireNonNull(db);
+        mStatements =
+                new LruCache<>(maxSize) {
+                    @Override
+                    protected void entryRemoved(
+                            boolean evicted,
+                            String sql,
+                            SQLiteStatement oldStatement,
+                            SQLiteStatement newStatement) {
+                        oldStatement.close();
+                    }
+                };
+    }
+
+    @NonNull
+    SQLiteDatabase getDatabase() {
+        return mDb;
+    }
+
+    /** Returns the compiled statement for {@code sql}, compiling it if it isn't cached. */
+    @NonNull
+    SQLiteStatement get(@NonNull String sql) {
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement != null) {
+            mHits.incrementAndGet();
+            return statement;
+        }
+
+        mMisses.incrementAndGet();
+        statement = mDb.compileStatement(sql);
+        mStatements.put(sql, statement);
+        return statement;
+    }
+
+    /** Closes all the cached statements. */
+    void close() {
+        mStatements.evictAll();
+    }
+
+    void dump(@NonNull PrintWriter writer) {
+        final long hits = mHits.get();
+        final long lookups = hits + mMisses.get();
+        writer.println("  size: " + mStatements.size() + "/" + mStatements.maxSize());
+        writer.println("  lookups: " + lookups + ", hits: " + hits);
+        writer.println("  hit rate: " + (lookups == 0 ? 0 : (hits * 100 / lookups)) + "%");
+    }
+}
@@ -25,6 +25,7 @@ import android.util.Log;
 import com.android.server.healthconnect.migration.PriorityMigrationHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AccessLogsHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ActivityDateHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.AggregationRollupHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsRequestHelper;
@@ -33,6 +34,7 @@ import com.android.server.healthconnect.storage.datatypehelpers.HealthDataCatego
 import com.android.server.healthconnect.storage.datatypehelpers.MigrationEntityHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.PreferenceHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.RecordStatsHelper;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.utils.DropTableRequest;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
@@ -52,8 +54,30 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
     public static final int DB_VERSION_UUID_BLOB = 9;
 
     public static final int DB_VERSION_GENERATED_LOCAL_TIME = 10;
+
+    public static final int DB_VERSION_TIME_INDEXES = 11;
+
+    public static final int DB_VERSION_AGGREGATION_ROLLUPS = 12;
+
+    public static final int DB_VERSION_STATELESS_PAGE_TOKENS = 13;
+
+    public static final int DB_VERSION_CHANGE_LOG_UUIDS_TABLE = 14;
+
+    public static final int DB_VERSION_ACTIVITY_DATE_COUNTS = 15;
+
+    public static final int DB_VERSION_RECORD_TYPES_USED_COUNTS = 16;
+
+    public static final int DB_VERSION_RECORD_STATS = 17;
+
+    public static final int DB_VERSION_PACKED_SERIES_SAMPLES = 18;
+
+    public static final int DB_VERSION_EXACT_ROLLUP_REMOVAL = 19;
+
+    public static final int DB_VERSION_DIRTY_ROLLUP_BUCKETS = 20;
+
+    public static final int DB_VERSION_INSTANT_TIME_INDEX = 21;
     private static final String TAG = "HealthConnectDatabase";
-    private static final int DATABASE_VERSION = 10;
+    private static final int DATABASE_VERSION = 21;
     private static final String DATABASE_NAME = "healthconnect.db";
     @NonNull private final Collection<RecordHelper<?>> mRecordHelpers;
     private final Context mContext;
@@ -62,6 +86,9 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         mRecordHelpers = RecordHelperProvider.getInstance().getRecordHelpers().values();
         mContext = context;
+        // Lets reads, such as the parallel parts of an aggregation, run concurrently on separate
+        // connections and alongside writes.
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
@@ -69,6 +96,10 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         for (CreateTableRequest createTableRequest : getCreateTableRequests()) {
             createTable(db, createTableRequest);
         }
+        AggregationRollupHelper.getInstance().onCreate(db);
+        ActivityDateHelper.getInstance().onCreate(db);
+        AppInfoHelper.getInstance().onCreate(db);
+        RecordStatsHelper.getInstance().onCreate(db);
     }
 
     @Override
@@ -90,6 +121,8 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         PriorityMigrationHelper.getInstance().onUpgrade(oldVersion, newVersion, db);
         PreferenceHelper.getInstance().onUpgrade(oldVersion, newVersion, db);
         AccessLogsHelper.getInstance().onUpgrade(oldVersion, newVersion, db);
+        AggregationRollupHelper.getInstance().onUpgrade(oldVersion, newVersion, db);
+        RecordStatsHelper.getInstance().onUpgrade(oldVersion, newVersion, db);
     }
 
     @Override
@@ -97,6 +130,9 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         // Enforce FK constraints for DB writes as we want to enforce FK constraints on DB write.
         // This is also required for when we delete entries, for cascade to work
         db.setForeignKeyConstraintsEnabled(true);
+        // Reads bind their arguments, so statements of the same shape can be reused from the
+        // per-connection cache. Keep it large enough to hold the shapes of all record tables.
+        db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
     }
 
     @Override
@@ -124,6 +160,7 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         addCreateRequestsFor(DeviceInfoHelper.getInstance().getCreateTableRequest(), requests);
         addCreateRequestsFor(AppInfoHelper.getInstance().getCreateTableRequest(), requests);
         addCreateRequestsFor(ActivityDateHelper.getInstance().getCreateTableRequest(), requests);
+        addCreateRequestsFor(RecordStatsHelper.getInstance().getCreateTableRequest(), requests);
         addCreateRequestsFor(ChangeLogsHelper.getInstance().getCreateTableRequest(), requests);
         addCreateRequestsFor(
                 ChangeLogsRequestHelper.getInstance().getCreateTableRequest(), requests);
@@ -134,6 +171,9 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         addCreateRequestsFor(MigrationEntityHelper.getInstance().getCreateTableRequest(), requests);
         addCreateRequestsFor(
                 PriorityMigrationHelper.getInstance().getCreateTableRequest(), requests);
+        AggregationRollupHelper.getInstance()
+                .getCreateTableRequests()
+                .forEach(request -> addCreateRequestsFor(request, requests));
 
         return requests;
     }
@@ -16,31 +16,37 @@
 
 package com.android.server.healthconnect.storage;
 
+import static android.database.sqlite.SQLiteDatabase.MAX_SQL_CACHE_SIZE;
 import static android.health.connect.Constants.DEFAULT_LONG;
 import static android.health.connect.Constants.DEFAULT_PAGE_SIZE;
 import static android.health.connect.Constants.PARENT_KEY;
 import static android.health.connect.HealthConnectException.ERROR_INTERNAL;
 
-import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.APP_INFO_ID_COLUMN_NAME;
 import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.PRIMARY_COLUMN_NAME;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
 
 import android.annotation.NonNull;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.health.connect.Constants;
 import android.health.connect.HealthConnectException;
 import android.health.connect.internal.datatypes.RecordInternal;
+import android.os.Build;
 import android.os.UserHandle;
 import android.util.Pair;
 import android.util.Slog;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.healthconnect.HealthConnectUserContext;
-import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.AggregationRollupHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.request.AggregateTableRequest;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
@@ -49,18 +55,25 @@ import com.android.server.healthconnect.storage.request.ReadTableRequest;
 import com.android.server.healthconnect.storage.request.ReadTransactionRequest;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTransactionRequest;
-import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
 import com.android.server.healthconnect.storage.utils.StorageUtils;
+import com.android.server.healthconnect.storage.utils.WhereClauses;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * A class to handle all the DB transaction request from the clients. {@link TransactionManager}
@@ -71,14 +84,27 @@ import java.util.function.BiConsumer;
  */
 public final class TransactionManager {
     private static final String TAG = "HealthConnectTransactionMan";
+    // Each record binds its uuid and dedupe hash in the conflict lookup, keep well below the
+    // limit of 999 bind args of older SQLite versions.
+    private static final int UPSERT_BATCH_SIZE = 400;
     private static final ConcurrentHashMap<UserHandle, HealthConnectDatabase>
             mUserHandleToDatabaseMap = new ConcurrentHashMap<>();
     private static volatile TransactionManager sTransactionManager;
     private volatile HealthConnectDatabase mHealthConnectDatabase;
+    private volatile UserHandle mCurrentUserHandle;
+
+    /**
+     * Compiled insert and update statements of the writable database. They are only used within
+     * transactions, which hold its single writable connection, so no two threads use a statement at
+     * the same time. See {@link #writeWithStatementCache}.
+     */
+    @GuardedBy("this")
+    private CompiledStatementCache mWriteStatementCache;
 
     private TransactionManager(@NonNull HealthConnectUserContext context) {
         mHealthConnectDatabase = new HealthConnectDatabase(context);
-        mUserHandleToDatabaseMap.put(context.getCurrentUserHandle(), mHealthConnectDatabase);
+        mCurrentUserHandle = context.getCurrentUserHandle();
+        mUserHandleToDatabaseMap.put(mCurrentUserHandle, mHealthConnectDatabase);
     }
 
     public void onUserUnlocked(@NonNull HealthConnectUserContext healthConnectUserContext) {
@@ -91,6 +117,13 @@ public final class TransactionManager {
 
         mHealthConnectDatabase =
                 mUserHandleToDatabaseMap.get(healthConnectUserContext.getCurrentUserHandle());
+        mCurrentUserHandle = healthConnectUserContext.getCurrentUserHandle();
+    }
+
+    /** Returns the user whose database is currently used. */
+    @NonNull
+    public UserHandle getCurrentUserHandle() {
+        return mCurrentUserHandle;
     }
 
     /**
@@ -109,22 +142,17 @@ public final class TransactionManager {
         final SQLiteDatabase db = getWritableDb();
         db.beginTransaction();
         try {
-            for (UpsertTableRequest upsertRequest : request.getUpsertRequests()) {
-                insertOrReplaceRecord(db, upsertRequest);
-            }
+            insertOrReplaceRecords(db, request.getUpsertRequests());
             for (UpsertTableRequest insertRequestsForChangeLog :
                     request.getInsertRequestsForChangeLogs()) {
                 insertRecord(db, insertRequestsForChangeLog);
             }
 
-            for (UpsertTableRequest insertRequestsForAccessLogs : request.getAccessLogs()) {
-                insertRecord(db, insertRequestsForAccessLogs);
-            }
-
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
+        request.addAccessLogs();
 
         return request.getUUIdsInOrder();
     }
@@ -217,6 +245,8 @@ public final class TransactionManager {
 
             request.getChangeLogUpsertRequests()
                     .forEach((insertRequest) -> insertRecord(db, insertRequest));
+            // Once for the whole batch, rather than in the triggers for every deleted record.
+            AggregationRollupHelper.getInstance().recomputeDirtyBuckets(db);
 
             db.setTransactionSuccessful();
         } finally {
@@ -236,14 +266,96 @@ public final class TransactionManager {
         if (!aggregateTableRequest.getRecordHelper().isRecordOperationsEnabled()) {
             return;
         }
-        try (Cursor cursor = db.rawQuery(aggregateTableRequest.getAggregationCommand(), null);
-                Cursor metaDataCursor =
-                        db.rawQuery(
-                                aggregateTableRequest.getCommandToFetchAggregateMetadata(), null)) {
-            aggregateTableRequest.onResultsFetched(cursor, metaDataCursor);
+        populateWithAggregation(db, aggregateTableRequest);
+    }
+
+    private static void populateWithAggregation(
+            SQLiteDatabase db, AggregateTableRequest aggregateTableRequest) {
+        if (!aggregateTableRequest.canUseRollups()) {
+            populateWithRecordAggregation(db, aggregateTableRequest);
+            return;
+        }
+
+        AggregationRollupHelper rollupHelper = AggregationRollupHelper.getInstance();
+        int recordType = aggregateTableRequest.getRecordHelper().getRecordIdentifier();
+        // The state of the rollups, the rollups and the records are read from one snapshot where
+        // possible, so that they all reflect the same writes.
+        boolean inSnapshot = beginReadTransaction(db);
+        try {
+            if (rollupHelper.isEnabled(db, recordType)) {
+                populateWithRollupAggregation(db, aggregateTableRequest);
+                // Without a snapshot, a write may have disabled the rollups after they were
+                // checked, in which case the records are the only exact source.
+                if (!inSnapshot && !rollupHelper.isEnabled(db, recordType)) {
+                    aggregateTableRequest.clearResults();
+                    populateWithRecordAggregation(db, aggregateTableRequest);
+                }
+            } else {
+                populateWithRecordAggregation(db, aggregateTableRequest);
+            }
+            if (inSnapshot) {
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            if (inSnapshot) {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Begins a deferred, read-only transaction on one of the WAL reader connections of {@code
+     * db}, which reads a single snapshot without taking the write lock.
+     *
+     * <p>Such transactions are only available from V. Before that, all transactions begin on the
+     * primary connection and block writes, so reads run outside of a transaction instead.
+     *
+     * @return whether a transaction was begun, which the caller must then end.
+     */
+    @VisibleForTesting
+    static boolean beginReadTransaction(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.VANILLA_ICE_CREAM) {
+            return false;
+        }
+        db.beginTransactionReadOnly();
+        return true;
+    }
+
+    private static void populateWithRecordAggregation(
+            SQLiteDatabase db, AggregateTableRequest aggregateTableRequest) {
+        try (Cursor cursor = db.rawQuery(aggregateTableRequest.getAggregationCommand(), null)) {
+            aggregateTableRequest.onResultsFetched(cursor);
         }
     }
 
+    /**
+     * Answers the groups aligned to the rollup buckets from the rollups, and aggregates the
+     * remaining groups from the records.
+     */
+    private static void populateWithRollupAggregation(
+            SQLiteDatabase db, AggregateTableRequest aggregateTableRequest) {
+        ReadTableRequest readRollupsRequest = aggregateTableRequest.getReadRollupsRequest();
+        try (Cursor cursor =
+                StorageUtils.rawQuery(
+                        db,
+                        readRollupsRequest.getReadCommand(),
+                        readRollupsRequest.getBindArgs())) {
+            aggregateTableRequest.onRollupsFetched(cursor);
+        }
+        for (Pair<Integer, Integer> groupRange :
+                aggregateTableRequest.getGroupRangesRequiringRecords()) {
+            try (Cursor cursor =
+                    db.rawQuery(
+                            aggregateTableRequest.getAggregationCommand(
+                                    groupRange.first, groupRange.second),
+                            null)) {
+                aggregateTableRequest.onRecordsFetched(
+                        cursor, groupRange.first, groupRange.second);
+            }
+        }
+        aggregateTableRequest.updateResultWithDataOriginPackageNames();
+    }
+
     /**
      * Reads the records {@link RecordInternal} stored in the HealthConnect database.
      *
@@ -369,10 +481,21 @@ public final class TransactionManager {
     /** Note: It is the responsibility of the caller to close the returned cursor */
     @NonNull
     public Cursor read(@NonNull ReadTableRequest request) {
+        final String readCommand = request.getReadCommand();
         if (Constants.DEBUG) {
-            Slog.d(TAG, "Read query: " + request.getReadCommand());
+            Slog.d(TAG, "Read query: " + readCommand);
+        }
+        return StorageUtils.rawQuery(getReadableDb(), readCommand, request.getBindArgs());
+    }
+
+    /** Dumps the state of the compiled statement cache for writes. */
+    public void dump(@NonNull PrintWriter writer) {
+        writer.println("Write statement cache:");
+        synchronized (this) {
+            if (mWriteStatementCache != null) {
+                mWriteStatementCache.dump(writer);
+            }
         }
-        return getReadableDb().rawQuery(request.getReadCommand(), null);
     }
 
     public long getLastRowIdFor(String tableName) {
@@ -426,51 +549,11 @@ public final class TransactionManager {
                     request.getInsertRequestsForChangeLogs()) {
                 insertRecord(db, insertRequestsForChangeLog);
             }
-            for (UpsertTableRequest insertRequestsForAccessLogs : request.getAccessLogs()) {
-                insertRecord(db, insertRequestsForAccessLogs);
-            }
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
-    }
-
-    /**
-     * @return list of distinct packageNames corresponding to the input table name after querying
-     *     the table.
-     */
-    public HashMap<Integer, HashSet<String>> getDistinctPackageNamesForRecordsTable(
-            Set<Integer> recordTypes) throws SQLiteException {
-        final SQLiteDatabase db = getReadableDb();
-        HashMap<Integer, HashSet<String>> packagesForRecordTypeMap = new HashMap<>();
-        for (Integer recordType : recordTypes) {
-            RecordHelper<?> recordHelper =
-                    RecordHelperProvider.getInstance().getRecordHelper(recordType);
-            HashSet<String> packageNamesForDatatype = new HashSet<>();
-            try (Cursor cursorForDistinctPackageNames =
-                    db.rawQuery(
-                            /* sql query */
-                            recordHelper
-                                    .getReadTableRequestWithDistinctAppInfoIds()
-                                    .getReadCommand(),
-                            /* selectionArgs */ null)) {
-                if (cursorForDistinctPackageNames.getCount() > 0) {
-                    AppInfoHelper appInfoHelper = AppInfoHelper.getInstance();
-                    while (cursorForDistinctPackageNames.moveToNext()) {
-                        String packageName =
-                                appInfoHelper.getPackageName(
-                                        cursorForDistinctPackageNames.getLong(
-                                                cursorForDistinctPackageNames.getColumnIndex(
-                                                        APP_INFO_ID_COLUMN_NAME)));
-                        if (!packageName.isEmpty()) {
-                            packageNamesForDatatype.add(packageName);
-                        }
-                    }
-                }
-            }
-            packagesForRecordTypeMap.put(recordType, packageNamesForDatatype);
-        }
-        return packagesForRecordTypeMap;
+        request.addAccessLogs();
     }
 
     /**
@@ -493,10 +576,64 @@ public final class TransactionManager {
         }
     }
 
+    /**
+     * Deletes the rows of {@code request} without change logs, in a transaction of its own.
+     *
+     * @return the number of rows deleted from the table of {@code request}, not counting the rows
+     *     of child tables deleted by cascade.
+     */
+    public int deleteWithoutChangeLogs(@NonNull DeleteTableRequest request) {
+        try (SQLiteStatement statement =
+                getWritableDb().compileStatement(request.getDeleteCommand())) {
+            return statement.executeUpdateDelete();
+        }
+    }
+
     public void onUserSwitching() {
+        synchronized (this) {
+            if (mWriteStatementCache != null) {
+                mWriteStatementCache.close();
+                mWriteStatementCache = null;
+            }
+        }
         mHealthConnectDatabase.close();
     }
 
+    /**
+     * Runs {@code write} with the cache of compiled statements of {@code db}, within a transaction
+     * of {@code db}. Writes made outside of a transaction are run in one of their own, which SQLite
+     * would otherwise begin for each of their statements, rather than with a cache of their own.
+     */
+    private <T> T writeWithStatementCache(
+            @NonNull SQLiteDatabase db, @NonNull Function<CompiledStatementCache, T> write) {
+        if (db.inTransaction()) {
+            return write.apply(getStatementCache(db));
+        }
+
+        db.beginTransaction();
+        try {
+            T result = write.apply(getStatementCache(db));
+            db.setTransactionSuccessful();
+            return result;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Expects the caller to be in a transaction of {@code db}. */
+    @NonNull
+    private synchronized CompiledStatementCache getStatementCache(@NonNull SQLiteDatabase db) {
+        // Only the database of the current user is written to outside of tests, and a new one
+        // after a user switch replaces the cache of the previous one.
+        if (mWriteStatementCache == null || mWriteStatementCache.getDatabase() != db) {
+            if (mWriteStatementCache != null) {
+                mWriteStatementCache.close();
+            }
+            mWriteStatementCache = new CompiledStatementCache(db, MAX_SQL_CACHE_SIZE);
+        }
+        return mWriteStatementCache;
+    }
+
     private void insertAll(
             @NonNull List<UpsertTableRequest> upsertTableRequests,
             @NonNull BiConsumer<SQLiteDatabase, UpsertTableRequest> insert) {
@@ -524,11 +661,18 @@ public final class TransactionManager {
 
     /** Assumes that caller will be closing {@code db} and handling the transaction if required */
     public long insertRecord(@NonNull SQLiteDatabase db, @NonNull UpsertTableRequest request) {
-        long rowId = db.insertOrThrow(request.getTable(), null, request.getContentValues());
-        request.getChildTableRequests()
-                .forEach(childRequest -> insertRecord(db, childRequest.withParentKey(rowId)));
-
-        return rowId;
+        return writeWithStatementCache(
+                db,
+                (statements) -> {
+                    long rowId =
+                            executeInsert(
+                                    request.getTable(),
+                                    request.getContentValues(),
+                                    /* orIgnore= */ false,
+                                    statements);
+                    insertChildTableRequest(request, rowId, statements);
+                    return rowId;
+                });
     }
 
     /**
@@ -539,19 +683,54 @@ public final class TransactionManager {
      * @return the row ID of the newly inserted row or <code>-1</code> if an error occurred.
      */
     public long insertOrIgnore(@NonNull SQLiteDatabase db, @NonNull UpsertTableRequest request) {
-        long rowId =
-                db.insertWithOnConflict(
-                        request.getTable(),
-                        null,
-                        request.getContentValues(),
-                        SQLiteDatabase.CONFLICT_IGNORE);
+        return writeWithStatementCache(
+                db,
+                (statements) -> {
+                    long rowId =
+                            executeInsert(
+                                    request.getTable(),
+                                    request.getContentValues(),
+                                    /* orIgnore= */ true,
+                                    statements);
+                    if (rowId != -1) {
+                        insertChildTableRequest(request, rowId, statements);
+                    }
+                    return rowId;
+                });
+    }
 
-        if (rowId != -1) {
-            request.getChildTableRequests()
-                    .forEach(childRequest -> insertRecord(db, childRequest.withParentKey(rowId)));
+    /**
+     * Inserts or updates the records of {@code requests}, with the same outcome as inserting or
+     * replacing them one by one in order. The rows conflicting with a batch of records are read
+     * with a single query, so that duplicates don't each cost a failed insert and a read, and new
+     * rows are written with statements compiled once for all the records.
+     *
+     * <p>Assumes that caller will be closing {@code db} and handling the transaction if required.
+     */
+    public void insertOrReplaceRecords(
+            @NonNull SQLiteDatabase db, @NonNull List<UpsertTableRequest> requests) {
+        // Records can only conflict with rows of their own table.
+        Map<String, List<UpsertTableRequest>> requestsByTable = new LinkedHashMap<>();
+        for (UpsertTableRequest request : requests) {
+            requestsByTable
+                    .computeIfAbsent(request.getTable(), (table) -> new ArrayList<>())
+                    .add(request);
         }
 
-        return rowId;
+        writeWithStatementCache(
+                db,
+                (statements) -> {
+                    for (List<UpsertTableRequest> tableRequests : requestsByTable.values()) {
+                        for (int start = 0;
+                                start < tableRequests.size();
+                                start += UPSERT_BATCH_SIZE) {
+                            int end = Math.min(start + UPSERT_BATCH_SIZE, tableRequests.size());
+                            insertOrReplaceBatch(
+                                    db, tableRequests.subList(start, end), statements);
+                        }
+                    }
+                    return null;
+                });
     }
 
     /** Note: NEVER close this DB */
@@ -580,6 +759,48 @@ public final class TransactionManager {
         return mHealthConnectDatabase.getDatabasePath();
     }
 
+    /**
+     * Moves all the changes from the write-ahead log into the database file, so that the file at
+     * {@link #getDatabasePath} can be copied on its own.
+     *
+     * @return whether all the changes were moved, which isn't the case if the checkpoint was
+     *     blocked by other connections.
+     */
+    public boolean checkpointDatabase() {
+        try (Cursor cursor = getWritableDb().rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null)) {
+            // The first column is 1 if the checkpoint couldn't complete.
+            return cursor.moveToFirst() && cursor.getInt(0) == 0;
+        }
+    }
+
+    /**
+     * Writes a transactionally consistent copy of the database into {@code snapshotFile}.
+     *
+     * <p>The copy is made by a read-only connection of its own within a single read transaction,
+     * which in write-ahead log mode doesn't block writers.
+     */
+    public void createDatabaseSnapshot(@NonNull File snapshotFile) throws IOException {
+        createDatabaseSnapshot(getDatabasePath(), snapshotFile);
+    }
+
+    /** Writes a transactionally consistent copy of {@code databaseFile} to {@code snapshotFile}. */
+    @VisibleForTesting
+    static void createDatabaseSnapshot(@NonNull File databaseFile, @NonNull File snapshotFile)
+            throws IOException {
+        // VACUUM INTO requires a file which doesn't exist yet.
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        tempFile.delete();
+        try (SQLiteDatabase db =
+                SQLiteDatabase.openDatabase(
+                        databaseFile.getPath(), null, SQLiteDatabase.OPEN_READONLY)) {
+            db.execSQL("VACUUM INTO ?", new Object[] {tempFile.getPath()});
+        }
+        if (!tempFile.renameTo(snapshotFile)) {
+            tempFile.delete();
+            throw new IOException("Failed to move the database snapshot to " + snapshotFile);
+        }
+    }
+
     public void updateTable(UpsertTableRequest upsertTableRequest) {
         getWritableDb()
                 .update(
@@ -594,15 +815,25 @@ public final class TransactionManager {
     }
 
     private void updateRecord(SQLiteDatabase db, UpsertTableRequest request) {
+        writeWithStatementCache(
+                db,
+                (statements) -> {
+                    updateRecord(request, statements);
+                    return null;
+                });
+    }
+
+    private void updateRecord(UpsertTableRequest request, CompiledStatementCache statements) {
+        final SQLiteDatabase db = statements.getDatabase();
         // Perform an update operation where UUID and packageName (mapped by appInfoId) is same
         // as that of the update request.
         try {
             long numberOfRowsUpdated =
-                    db.update(
+                    executeUpdate(
                             request.getTable(),
                             request.getContentValues(),
-                            request.getUpdateWhereClauses().get(/* withWhereKeyword */ false),
-                            /* WHERE args */ null);
+                            request.getUpdateWhereClauses(),
+                            statements);
 
             // throw an exception if the no row was updated, i.e. the uuid with corresponding
             // app_id_info for this request is not found in the table.
@@ -625,15 +856,17 @@ public final class TransactionManager {
             return;
         }
 
+        ReadTableRequest readRequest = request.getReadRequestUsingUpdateClause();
         try (Cursor cursor =
-                db.rawQuery(request.getReadRequestUsingUpdateClause().getReadCommand(), null)) {
+                StorageUtils.rawQuery(
+                        db, readRequest.getReadCommand(), readRequest.getBindArgs())) {
             if (!cursor.moveToFirst()) {
                 throw new HealthConnectException(
                         ERROR_INTERNAL, "Expected to read an entry for update, but none found");
             }
             final long rowId = StorageUtils.getCursorLong(cursor, request.getRowIdColName());
-            deleteChildTableRequest(request, rowId, db);
-            insertChildTableRequest(request, rowId, db);
+            deleteChildTableRequest(request, rowId, statements);
+            insertChildTableRequest(request, rowId, statements);
         }
     }
 
@@ -662,6 +895,12 @@ public final class TransactionManager {
      */
     private long insertOrReplaceRecord(
             @NonNull SQLiteDatabase db, @NonNull UpsertTableRequest request) {
+        return writeWithStatementCache(
+                db, (statements) -> insertOrReplaceRecord(request, statements));
+    }
+
+    private long insertOrReplaceRecord(
+            @NonNull UpsertTableRequest request, @NonNull CompiledStatementCache statements) {
         try {
             if (request.getUniqueColumnsCount() == 0) {
                 throw new RuntimeException(
@@ -669,36 +908,154 @@ public final class TransactionManager {
             }
 
             long rowId =
-                    db.insertWithOnConflict(
+                    executeInsert(
                             request.getTable(),
-                            null,
                             request.getContentValues(),
-                            SQLiteDatabase.CONFLICT_FAIL);
-            insertChildTableRequest(request, rowId, db);
+                            /* orIgnore= */ false,
+                            statements);
+            insertChildTableRequest(request, rowId, statements);
             return rowId;
         } catch (SQLiteConstraintException e) {
-            try (Cursor cursor = db.rawQuery(request.getReadRequest().getReadCommand(), null)) {
-                if (!cursor.moveToFirst()) {
-                    throw new HealthConnectException(
-                            ERROR_INTERNAL, "Conflict found, but couldn't read the entry.");
+            return updateConflictingRecord(request, statements);
+        }
+    }
+
+    private void insertOrReplaceBatch(
+            SQLiteDatabase db,
+            List<UpsertTableRequest> requests,
+            CompiledStatementCache statements) {
+        Map<Pair<String, Object>, Object[]> conflictingRows = new HashMap<>();
+        String[] columnNames = readConflictingRows(db, requests, conflictingRows);
+        // Keys of the rows written by the batch, whose values may no longer match what was read.
+        Set<Pair<String, Object>> writtenKeys = new HashSet<>();
+        for (UpsertTableRequest request : requests) {
+            Object[] conflictingRow = null;
+            boolean isResolved = request.getUniqueColumnsCount() > 0;
+            for (Pair<String, Object> key : getUniqueKeys(request)) {
+                Object[] row = conflictingRows.get(key);
+                if (writtenKeys.contains(key)
+                        || (row != null && conflictingRow != null && row != conflictingRow)) {
+                    isResolved = false;
+                    break;
+                }
+                if (row != null) {
+                    conflictingRow = row;
                 }
+            }
 
-                return updateEntriesIfRequired(db, request, cursor);
+            if (!isResolved) {
+                // Conflicts with rows written by the batch or with several rows are rare, leave
+                // them to the per record path which reads the current rows.
+                insertOrReplaceRecord(request, statements);
+            } else if (conflictingRow == null) {
+                insertNewRecord(db, request, statements);
+            } else {
+                try (MatrixCursor cursor =
+                        new MatrixCursor(columnNames, /* initialCapacity= */ 1)) {
+                    cursor.addRow(conflictingRow);
+                    cursor.moveToFirst();
+                    updateEntriesIfRequired(request, cursor, statements);
+                }
+                writtenKeys.addAll(
+                        getUniqueKeys(request.getUniqueColumns(), columnNames, conflictingRow));
             }
+            writtenKeys.addAll(getUniqueKeys(request));
+        }
+    }
+
+    /**
+     * Reads the rows conflicting with any of {@code requests} into {@code conflictingRows}, keyed
+     * by each of their unique column values, and returns the names of the columns read.
+     */
+    private static String[] readConflictingRows(
+            SQLiteDatabase db,
+            List<UpsertTableRequest> requests,
+            Map<Pair<String, Object>, Object[]> conflictingRows) {
+        List<Pair<String, Integer>> uniqueColumns = requests.get(0).getUniqueColumns();
+        StringBuilder whereClause = new StringBuilder();
+        List<Object> bindArgs = new ArrayList<>();
+        for (Pair<String, Integer> uniqueColumn : uniqueColumns) {
+            int numArgs = bindArgs.size();
+            for (UpsertTableRequest request : requests) {
+                Object value = request.getContentValues().get(uniqueColumn.first);
+                if (value != null) {
+                    bindArgs.add(value);
+                }
+            }
+            if (bindArgs.size() == numArgs) {
+                continue;
+            }
+            whereClause
+                    .append(whereClause.length() == 0 ? " WHERE " : " OR ")
+                    .append(uniqueColumn.first)
+                    .append(" IN (")
+                    .append(String.join(", ", Collections.nCopies(bindArgs.size() - numArgs, "?")))
+                    .append(")");
+        }
+        if (bindArgs.isEmpty()) {
+            return new String[0];
+        }
+
+        String sql = "SELECT * FROM " + requests.get(0).getTable() + whereClause;
+        try (Cursor cursor = StorageUtils.rawQuery(db, sql, bindArgs.toArray())) {
+            String[] columnNames = cursor.getColumnNames();
+            while (cursor.moveToNext()) {
+                Object[] row = new Object[columnNames.length];
+                for (int i = 0; i < columnNames.length; i++) {
+                    row[i] = getCursorValue(cursor, i);
+                }
+                for (Pair<String, Object> key : getUniqueKeys(uniqueColumns, columnNames, row)) {
+                    conflictingRows.put(key, row);
+                }
+            }
+            return columnNames;
+        }
+    }
+
+    /** Inserts a record expected not to conflict, updating the conflicting row if it does. */
+    private long insertNewRecord(
+            SQLiteDatabase db, UpsertTableRequest request, CompiledStatementCache statements) {
+        long rowId;
+        try {
+            rowId =
+                    executeInsert(
+                            request.getTable(),
+                            request.getContentValues(),
+                            /* orIgnore= */ false,
+                            statements);
+        } catch (SQLiteConstraintException e) {
+            return updateConflictingRecord(request, statements);
+        }
+        insertChildTableRequest(request, rowId, statements);
+        return rowId;
+    }
+
+    private long updateConflictingRecord(
+            UpsertTableRequest request, CompiledStatementCache statements) {
+        try (Cursor cursor =
+                statements
+                        .getDatabase()
+                        .rawQuery(request.getReadRequest().getReadCommand(), null)) {
+            if (!cursor.moveToFirst()) {
+                throw new HealthConnectException(
+                        ERROR_INTERNAL, "Conflict found, but couldn't read the entry.");
+            }
+
+            return updateEntriesIfRequired(request, cursor, statements);
         }
     }
 
     private long updateEntriesIfRequired(
-            SQLiteDatabase db, UpsertTableRequest request, Cursor cursor) {
+            UpsertTableRequest request, Cursor cursor, CompiledStatementCache statements) {
         if (!request.requiresUpdate(cursor, request)) {
             return -1;
         }
 
-        db.update(
+        executeUpdate(
                 request.getTable(),
                 request.getContentValues(),
-                request.getUpdateWhereClauses().get(/* withWhereKeyword */ false),
-                /* WHERE args */ null);
+                request.getUpdateWhereClauses(),
+                statements);
         if (cursor.getColumnIndex(request.getRowIdColName()) == -1) {
             // The table is not explicitly using row_ids hence returning -1 here is ok, as
             // the rowid is of no use to this table.
@@ -707,31 +1064,151 @@ public final class TransactionManager {
             return -1;
         }
         final long rowId = StorageUtils.getCursorLong(cursor, request.getRowIdColName());
-        deleteChildTableRequest(request, rowId, db);
-        insertChildTableRequest(request, rowId, db);
+        deleteChildTableRequest(request, rowId, statements);
+        insertChildTableRequest(request, rowId, statements);
 
         return rowId;
     }
 
     private void deleteChildTableRequest(
-            UpsertTableRequest request, long rowId, SQLiteDatabase db) {
+            UpsertTableRequest request, long rowId, CompiledStatementCache statements) {
         for (String childTable : request.getAllChildTablesToDelete()) {
-            DeleteTableRequest deleteTableRequest =
-                    new DeleteTableRequest(childTable).setId(PARENT_KEY, String.valueOf(rowId));
-            db.execSQL(deleteTableRequest.getDeleteCommand());
+            SQLiteStatement statement =
+                    statements.get("DELETE FROM " + childTable + " WHERE " + PARENT_KEY + " = ?");
+            statement.bindLong(1, rowId);
+            statement.executeUpdateDelete();
         }
     }
 
+    /**
+     * Inserts the child rows of {@code request}. Series records can carry thousands of child rows,
+     * so the insert statement is compiled once per child table and column set and then re-bound
+     * for each row instead of being built and compiled again for every row.
+     */
     private void insertChildTableRequest(
-            UpsertTableRequest request, long rowId, SQLiteDatabase db) {
+            UpsertTableRequest request, long rowId, CompiledStatementCache statements) {
         for (UpsertTableRequest childTableRequest : request.getChildTableRequests()) {
-            db.insertOrThrow(
-                    childTableRequest.withParentKey(rowId).getTable(),
-                    null,
-                    childTableRequest.getContentValues());
+            UpsertTableRequest childRequest = childTableRequest.withParentKey(rowId);
+            long childRowId =
+                    executeInsert(
+                            childRequest.getTable(),
+                            childRequest.getContentValues(),
+                            /* orIgnore= */ false,
+                            statements);
+            insertChildTableRequest(childRequest, childRowId, statements);
         }
     }
 
+    /**
+     * Inserts {@code contentValues} into {@code table} with a statement of {@code statements}.
+     *
+     * @return the row id of the inserted row, or -1 if it was ignored.
+     */
+    private static long executeInsert(
+            String table,
+            ContentValues contentValues,
+            boolean orIgnore,
+            CompiledStatementCache statements) {
+        List<String> columns = new ArrayList<>(contentValues.keySet());
+        SQLiteStatement statement = statements.get(getInsertCommand(table, columns, orIgnore));
+        statement.clearBindings();
+        for (int i = 0; i < columns.size(); i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, contentValues.get(columns.get(i)));
+        }
+        return statement.executeInsert();
+    }
+
+    /**
+     * Updates the rows of {@code table} matching {@code whereClauses} to {@code contentValues}.
+     * Only where clauses in the argument binding mode have a fixed shape, others are run without
+     * going through {@code statements} so that they don't evict the statements which are reused.
+     *
+     * @return the number of rows updated.
+     */
+    private static int executeUpdate(
+            String table,
+            ContentValues contentValues,
+            WhereClauses whereClauses,
+            CompiledStatementCache statements) {
+        String whereClause = whereClauses.get(/* withWhereKeyword */ false);
+        if (!whereClauses.isUseBindArgs()) {
+            return statements
+                    .getDatabase()
+                    .update(table, contentValues, whereClause, /* WHERE args */ null);
+        }
+
+        List<String> columns = new ArrayList<>(contentValues.keySet());
+        SQLiteStatement statement =
+                statements.get(
+                        "UPDATE "
+                                + table
+                                + " SET "
+                                + String.join(" = ?, ", columns)
+                                + " = ?"
+                                + (whereClause.isEmpty() ? "" : " WHERE " + whereClause));
+        statement.clearBindings();
+        for (int i = 0; i < columns.size(); i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, contentValues.get(columns.get(i)));
+        }
+        Object[] bindArgs = whereClauses.getBindArgs();
+        for (int i = 0; i < bindArgs.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, columns.size() + i + 1, bindArgs[i]);
+        }
+        return statement.executeUpdateDelete();
+    }
+
+    /** Returns the unique column values of {@code request}, as keys comparable with row values. */
+    private static List<Pair<String, Object>> getUniqueKeys(UpsertTableRequest request) {
+        List<Pair<String, Object>> keys = new ArrayList<>();
+        for (Pair<String, Integer> uniqueColumn : request.getUniqueColumns()) {
+            Object value = request.getContentValues().get(uniqueColumn.first);
+            if (value != null) {
+                keys.add(new Pair<>(uniqueColumn.first, getKeyValue(value)));
+            }
+        }
+        return keys;
+    }
+
+    private static List<Pair<String, Object>> getUniqueKeys(
+            List<Pair<String, Integer>> uniqueColumns, String[] columnNames, Object[] row) {
+        List<Pair<String, Object>> keys = new ArrayList<>();
+        for (Pair<String, Integer> uniqueColumn : uniqueColumns) {
+            for (int i = 0; i < columnNames.length; i++) {
+                if (columnNames[i].equals(uniqueColumn.first) && row[i] != null) {
+                    keys.add(new Pair<>(uniqueColumn.first, getKeyValue(row[i])));
+                }
+            }
+        }
+        return keys;
+    }
+
+    /** Wraps blobs, so that keys are compared by content. */
+    private static Object getKeyValue(Object value) {
+        return value instanceof byte[] ? ByteBuffer.wrap((byte[]) value) : value;
+    }
+
+    private static Object getCursorValue(Cursor cursor, int columnIndex) {
+        return switch (cursor.getType(columnIndex)) {
+            case Cursor.FIELD_TYPE_INTEGER -> cursor.getLong(columnIndex);
+            case Cursor.FIELD_TYPE_FLOAT -> cursor.getDouble(columnIndex);
+            case Cursor.FIELD_TYPE_STRING -> cursor.getString(columnIndex);
+            case Cursor.FIELD_TYPE_BLOB -> cursor.getBlob(columnIndex);
+            default -> null;
+        };
+    }
+
+    @NonNull
+    private static String getInsertCommand(
+            @NonNull String table, @NonNull List<String> columns, boolean orIgnore) {
+        return (orIgnore ? "INSERT OR IGNORE INTO " : "INSERT INTO ")
+                + table
+                + " ("
+                + String.join(", ", columns)
+                + ") VALUES ("
+                + String.join(", ", Collections.nCopies(columns.size(), "?"))
+                + ")";
+    }
+
     public interface TransactionRunnable<E extends Throwable> {
         void run(SQLiteDatabase db) throws E;
     }
@@ -33,8 +33,13 @@ import android.database.sqlite.SQLiteDatabase;
 import android.health.connect.accesslog.AccessLog;
 import android.health.connect.accesslog.AccessLog.OperationType;
 import android.health.connect.datatypes.RecordTypeIdentifier;
+import android.os.UserHandle;
 import android.util.Pair;
+import android.util.Slog;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.modules.utils.BackgroundThread;
+import com.android.server.healthconnect.HealthConnectThreadScheduler;
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
@@ -44,7 +49,11 @@ import com.android.server.healthconnect.storage.request.UpsertTableRequest;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 
 /**
@@ -60,8 +69,16 @@ public final class AccessLogsHelper {
     private static final String OPERATION_TYPE_COLUMN_NAME = "operation_type";
     private static final int NUM_COLS = 5;
     private static final int DEFAULT_ACCESS_LOG_TIME_PERIOD_IN_DAYS = 7;
+    private static final long FLUSH_DELAY_MILLIS = 1000;
+    private static final String TAG = "HealthConnectAccessLogs";
     private static volatile AccessLogsHelper sAccessLogsHelper;
 
+    // Access logs waiting to be written, with their latest access time.
+    @GuardedBy("mPendingAccessLogs")
+    private final Map<PendingAccessLog, Long> mPendingAccessLogs = new LinkedHashMap<>();
+
+    private final Object mFlushLock = new Object();
+
     private AccessLogsHelper() {}
 
     @NonNull
@@ -73,6 +90,7 @@ public final class AccessLogsHelper {
      * @return AccessLog list
      */
     public List<AccessLog> queryAccessLogs() {
+        flushAccessLogs();
         final ReadTableRequest readTableRequest = new ReadTableRequest(TABLE_NAME);
 
         List<AccessLog> accessLogsList = new ArrayList<>();
@@ -98,27 +116,105 @@ public final class AccessLogsHelper {
         return accessLogsList;
     }
 
-    /** Adds an entry in to the access logs table for every insert or read operation request */
+    /**
+     * Adds an entry in to the access logs table for every insert or read operation request.
+     *
+     * <p>The entry is buffered, and written in a single transaction with the others added within a
+     * second. Entries for the same app, record types and operation are merged into one, with the
+     * latest access time.
+     */
     public void addAccessLog(
             String packageName,
             @RecordTypeIdentifier.RecordType List<Integer> recordTypeList,
             @OperationType.OperationTypes int operationType) {
-        UpsertTableRequest request =
-                getUpsertTableRequest(packageName, recordTypeList, operationType);
-        TransactionManager.getInitialisedInstance().insert(request);
+        PendingAccessLog pendingAccessLog =
+                new PendingAccessLog(
+                        TransactionManager.getInitialisedInstance().getCurrentUserHandle(),
+                        AppInfoHelper.getInstance().getAppInfoId(packageName),
+                        recordTypeList.stream()
+                                .map(String::valueOf)
+                                .collect(Collectors.joining(",")),
+                        operationType);
+        long accessTime = Instant.now().toEpochMilli();
+        boolean isFirstPendingAccessLog;
+        synchronized (mPendingAccessLogs) {
+            isFirstPendingAccessLog = mPendingAccessLogs.isEmpty();
+            mPendingAccessLogs.put(pendingAccessLog, accessTime);
+        }
+
+        if (isFirstPendingAccessLog) {
+            scheduleFlush();
+        }
+    }
+
+    private void scheduleFlush() {
+        BackgroundThread.getHandler()
+                .postDelayed(
+                        () -> {
+                            try {
+                                HealthConnectThreadScheduler.scheduleInternalTask(
+                                        this::flushAccessLogs);
+                            } catch (RejectedExecutionException e) {
+                                // The executors are being reset for a user switch, try again once
+                                // they are back.
+                                Slog.w(TAG, "Unable to schedule the access logs flush", e);
+                                scheduleFlush();
+                            }
+                        },
+                        FLUSH_DELAY_MILLIS);
+    }
+
+    /**
+     * Writes the buffered access logs. Returns once they are written, including those being written
+     * by a flush already in progress.
+     *
+     * <p>Access logs are only written to the database of the user they were added for. Those added
+     * for another user, before a user switch, are dropped as that user's database is closed.
+     */
+    public void flushAccessLogs() {
+        synchronized (mFlushLock) {
+            TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
+            UserHandle currentUserHandle = transactionManager.getCurrentUserHandle();
+            List<UpsertTableRequest> requests;
+            int numDropped = 0;
+            synchronized (mPendingAccessLogs) {
+                if (mPendingAccessLogs.isEmpty()) {
+                    return;
+                }
+                requests = new ArrayList<>(mPendingAccessLogs.size());
+                for (Map.Entry<PendingAccessLog, Long> entry : mPendingAccessLogs.entrySet()) {
+                    if (Objects.equals(entry.getKey().mUserHandle, currentUserHandle)) {
+                        requests.add(getUpsertTableRequest(entry.getKey(), entry.getValue()));
+                    } else {
+                        numDropped++;
+                    }
+                }
+                mPendingAccessLogs.clear();
+            }
+            if (numDropped > 0) {
+                Slog.w(TAG, "Dropped " + numDropped + " access logs of a previous user");
+            }
+            if (requests.isEmpty()) {
+                return;
+            }
+
+            try {
+                transactionManager.insertAll(requests);
+            } catch (RuntimeException e) {
+                // Also runs on system threads, for example on user switch, which must not crash.
+                Slog.e(TAG, "Unable to write " + requests.size() + " access logs", e);
+            }
+        }
     }
 
     @NonNull
-    public UpsertTableRequest getUpsertTableRequest(
-            String packageName, List<Integer> recordTypeList, int operationType) {
+    private static UpsertTableRequest getUpsertTableRequest(
+            @NonNull PendingAccessLog pendingAccessLog, long accessTime) {
         ContentValues contentValues = new ContentValues();
-        contentValues.put(
-                RECORD_TYPE_COLUMN_NAME,
-                recordTypeList.stream().map(String::valueOf).collect(Collectors.joining(",")));
-        contentValues.put(
-                APP_ID_COLUMN_NAME, AppInfoHelper.getInstance().getAppInfoId(packageName));
-        contentValues.put(ACCESS_TIME_COLUMN_NAME, Instant.now().toEpochMilli());
-        contentValues.put(OPERATION_TYPE_COLUMN_NAME, operationType);
+        contentValues.put(RECORD_TYPE_COLUMN_NAME, pendingAccessLog.mRecordTypes);
+        contentValues.put(APP_ID_COLUMN_NAME, pendingAccessLog.mAppInfoId);
+        contentValues.put(ACCESS_TIME_COLUMN_NAME, accessTime);
+        contentValues.put(OPERATION_TYPE_COLUMN_NAME, pendingAccessLog.mOperationType);
 
         return new UpsertTableRequest(TABLE_NAME, contentValues);
     }
@@ -151,6 +247,44 @@ public final class AccessLogsHelper {
 
     public void onUpgrade(int oldVersion, int newVersion, SQLiteDatabase db) {}
 
+    private static final class PendingAccessLog {
+        private final UserHandle mUserHandle;
+        private final long mAppInfoId;
+        private final String mRecordTypes;
+        private final int mOperationType;
+
+        PendingAccessLog(
+                UserHandle userHandle,
+                long appInfoId,
+                @NonNull String recordTypes,
+                int operationType) {
+            mUserHandle = userHandle;
+            mAppInfoId = appInfoId;
+            mRecordTypes = recordTypes;
+            mOperationType = operationType;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            }
+            if (!(object instanceof PendingAccessLog)) {
+                return false;
+            }
+            PendingAccessLog other = (PendingAccessLog) object;
+            return Objects.equals(mUserHandle, other.mUserHandle)
+                    && mAppInfoId == other.mAppInfoId
+                    && mOperationType == other.mOperationType
+                    && mRecordTypes.equals(other.mRecordTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mUserHandle, mAppInfoId, mRecordTypes, mOperationType);
+        }
+    }
+
     public static synchronized AccessLogsHelper getInstance() {
         if (sAccessLogsHelper == null) {
             sAccessLogsHelper = new AccessLogsHelper();
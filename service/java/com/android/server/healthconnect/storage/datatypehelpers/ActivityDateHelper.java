@@ -16,6 +16,7 @@
 
 package com.android.server.healthconnect.storage.datatypehelpers;
 
+import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_ACTIVITY_DATE_COUNTS;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER_NOT_NULL;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.PRIMARY_AUTOINCREMENT;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
@@ -25,37 +26,49 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.health.connect.datatypes.Record;
-import android.health.connect.internal.datatypes.RecordInternal;
 import android.health.connect.internal.datatypes.utils.RecordMapper;
 import android.util.Pair;
+import android.util.Slog;
 
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
 import com.android.server.healthconnect.storage.request.ReadTableRequest;
-import com.android.server.healthconnect.storage.request.UpsertTableRequest;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
 
 import java.time.LocalDate;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
- * Helper for Activity Date Table. The table maps a record to a date on which there was a db write
- * for that record
+ * Helper for Activity Date Table. The table maps a record type to the dates on which there are
+ * records of that type, along with the number of such records.
+ *
+ * <p>The counts are maintained by triggers on the record tables, which keeps them in the same
+ * transaction as every write and delete of the records. A date is removed once it has no records
+ * left.
  *
  * @hide
  */
 public final class ActivityDateHelper {
+    private static final String TAG = "HealthConnectActivityDate";
     private static final String TABLE_NAME = "activity_date_table";
     private static final String EPOCH_DAYS_COLUMN_NAME = "epoch_days";
     private static final String RECORD_TYPE_ID_COLUMN_NAME = "record_type_id";
+    private static final String RECORD_COUNT_COLUMN_NAME = "record_count";
+    private static final String INTEGER_NOT_NULL_DEFAULT_ZERO = INTEGER_NOT_NULL + " DEFAULT 0";
+    private static final RecordCountTriggers COUNT_TRIGGERS =
+            new RecordCountTriggers(
+                    TABLE_NAME,
+                    EPOCH_DAYS_COLUMN_NAME,
+                    RECORD_TYPE_ID_COLUMN_NAME,
+                    RECORD_COUNT_COLUMN_NAME,
+                    "activity_date");
     private static volatile ActivityDateHelper sActivityDateHelper;
 
     private ActivityDateHelper() {}
@@ -70,28 +83,44 @@ public final class ActivityDateHelper {
                 .addUniqueConstraints(List.of(EPOCH_DAYS_COLUMN_NAME, RECORD_TYPE_ID_COLUMN_NAME));
     }
 
+    /**
+     * Creates the triggers maintaining the activity dates. Expects the record tables and the table
+     * of {@link #getCreateTableRequest} to exist.
+     */
+    public void onCreate(@NonNull SQLiteDatabase db) {
+        RecordHelperProvider.getInstance()
+                .getRecordHelpers()
+                .forEach(
+                        (recordTypeId, recordHelper) ->
+                                COUNT_TRIGGERS.create(
+                                        db,
+                                        recordTypeId,
+                                        recordHelper.getMainTableName(),
+                                        recordHelper.getPeriodGroupByColumnName()));
+    }
+
     /** Called on DB update. */
-    public void onUpgrade(int oldVersion, int newVersion, @NonNull SQLiteDatabase db) {}
+    public void onUpgrade(int oldVersion, int newVersion, @NonNull SQLiteDatabase db) {
+        if (oldVersion >= DB_VERSION_ACTIVITY_DATE_COUNTS) {
+            return;
+        }
+
+        db.execSQL(
+                "ALTER TABLE "
+                        + TABLE_NAME
+                        + " ADD COLUMN "
+                        + RECORD_COUNT_COLUMN_NAME
+                        + " "
+                        + INTEGER_NOT_NULL_DEFAULT_ZERO);
+        onCreate(db);
+        verifyRecordCounts(db);
+    }
 
     /** Deletes all entries from the database and clears the cache. */
     public synchronized void clearData(TransactionManager transactionManager) {
         transactionManager.delete(new DeleteTableRequest(TABLE_NAME));
     }
 
-    /** Insert a new activity dates for the given records */
-    @NonNull
-    public void insertRecordDate(@NonNull List<RecordInternal<?>> recordInternals) {
-        Objects.requireNonNull(recordInternals);
-
-        final TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
-
-        List<UpsertTableRequest> upsertTableRequests = new ArrayList<>();
-        recordInternals.forEach(
-                (recordInternal) -> upsertTableRequests.add(getUpsertTableRequest(recordInternal)));
-
-        transactionManager.insertOrIgnoreOnConflict(upsertTableRequests);
-    }
-
     /** Returns a list of all dates with database writes for the given record types */
     @NonNull
     public List<LocalDate> getActivityDates(@NonNull List<Class<? extends Record>> recordTypes) {
@@ -109,42 +138,14 @@ public final class ActivityDateHelper {
                         .setDistinctClause(true));
     }
 
-    public void reSyncForAllRecords() {
-        List<Integer> recordTypeIds =
-                RecordMapper.getInstance().getRecordIdToExternalRecordClassMap().keySet().stream()
-                        .toList();
-
-        reSyncByRecordTypeIds(recordTypeIds);
-    }
-
-    public void reSyncByRecordTypeIds(List<Integer> recordTypeIds) {
-        List<UpsertTableRequest> upsertTableRequests = new ArrayList<>();
-        final TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
-
-        DeleteTableRequest deleteTableRequest =
-                new DeleteTableRequest(TABLE_NAME)
-                        .setIds(
-                                RECORD_TYPE_ID_COLUMN_NAME,
-                                recordTypeIds.stream().map(String::valueOf).toList());
-
-        // Fetch updated dates from respective record table and update the activity dates cache.
-        HashMap<Integer, List<Long>> recordTypeIdToEpochDays =
-                fetchUpdatedDates(recordTypeIds, transactionManager);
-
-        recordTypeIdToEpochDays.forEach(
-                (recordTypeId, epochDays) ->
-                        epochDays.forEach(
-                                (epochDay) ->
-                                        upsertTableRequests.add(
-                                                getUpsertTableRequest(recordTypeId, epochDay))));
-
-        transactionManager.runAsTransaction(
-                db -> {
-                    db.execSQL(deleteTableRequest.getDeleteCommand());
-                    upsertTableRequests.forEach(
-                            upsertTableRequest ->
-                                    transactionManager.insertOrIgnore(db, upsertTableRequest));
-                });
+    /**
+     * Compares the activity dates with the record tables, and fixes the dates whose record count
+     * doesn't match. Only mismatching dates are written.
+     */
+    public void verifyRecordCounts(@NonNull SQLiteDatabase db) {
+        RecordHelperProvider.getInstance()
+                .getRecordHelpers()
+                .forEach((recordTypeId, recordHelper) -> verify(db, recordTypeId, recordHelper));
     }
 
     @NonNull
@@ -152,39 +153,89 @@ public final class ActivityDateHelper {
         return Arrays.asList(
                 new Pair<>(RecordHelper.PRIMARY_COLUMN_NAME, PRIMARY_AUTOINCREMENT),
                 new Pair<>(EPOCH_DAYS_COLUMN_NAME, INTEGER_NOT_NULL),
-                new Pair<>(RECORD_TYPE_ID_COLUMN_NAME, INTEGER_NOT_NULL));
+                new Pair<>(RECORD_TYPE_ID_COLUMN_NAME, INTEGER_NOT_NULL),
+                new Pair<>(RECORD_COUNT_COLUMN_NAME, INTEGER_NOT_NULL_DEFAULT_ZERO));
     }
 
-    private HashMap<Integer, List<Long>> fetchUpdatedDates(
-            List<Integer> recordTypeIds, TransactionManager transactionManager) {
-
-        ReadTableRequest request;
-        RecordHelper<?> recordHelper;
-        HashMap<Integer, List<Long>> recordTypeIdToEpochDays = new HashMap<>();
-        for (int recordTypeId : recordTypeIds) {
-            recordHelper = RecordHelperProvider.getInstance().getRecordHelper(recordTypeId);
-            request =
-                    new ReadTableRequest(recordHelper.getMainTableName())
-                            .setColumnNames(List.of(recordHelper.getPeriodGroupByColumnName()))
-                            .setDistinctClause(true);
-            try (Cursor cursor = transactionManager.read(request)) {
-                List<Long> distinctDates = new ArrayList<>();
-                while (cursor.moveToNext()) {
-                    long epochDay =
-                            getCursorLong(cursor, recordHelper.getPeriodGroupByColumnName());
-                    distinctDates.add(epochDay);
+    /** Fixes the record counts of {@code recordTypeId} which don't match its record table. */
+    private void verify(SQLiteDatabase db, int recordTypeId, RecordHelper<?> recordHelper) {
+        String dateColumnName = recordHelper.getPeriodGroupByColumnName();
+        Map<Long, Long> epochDayToCount = new HashMap<>();
+        try (Cursor cursor =
+                db.rawQuery(
+                        "SELECT "
+                                + dateColumnName
+                                + ", COUNT(*) FROM "
+                                + recordHelper.getMainTableName()
+                                + " WHERE "
+                                + dateColumnName
+                                + " IS NOT NULL GROUP BY "
+                                + dateColumnName,
+                        null)) {
+            while (cursor.moveToNext()) {
+                epochDayToCount.put(cursor.getLong(0), cursor.getLong(1));
+            }
+        }
+
+        int mismatches = 0;
+        try (Cursor cursor =
+                db.rawQuery(
+                        "SELECT "
+                                + EPOCH_DAYS_COLUMN_NAME
+                                + ", "
+                                + RECORD_COUNT_COLUMN_NAME
+                                + " FROM "
+                                + TABLE_NAME
+                                + " WHERE "
+                                + RECORD_TYPE_ID_COLUMN_NAME
+                                + " = "
+                                + recordTypeId,
+                        null)) {
+            while (cursor.moveToNext()) {
+                long epochDay = getCursorLong(cursor, EPOCH_DAYS_COLUMN_NAME);
+                Long count = epochDayToCount.remove(epochDay);
+                if (count == null) {
+                    db.delete(TABLE_NAME, getWhereClause(recordTypeId, epochDay), null);
+                    mismatches++;
+                } else if (count != getCursorLong(cursor, RECORD_COUNT_COLUMN_NAME)) {
+                    ContentValues contentValues = new ContentValues();
+                    contentValues.put(RECORD_COUNT_COLUMN_NAME, count);
+                    String whereClause = getWhereClause(recordTypeId, epochDay);
+                    db.update(TABLE_NAME, contentValues, whereClause, null);
+                    mismatches++;
                 }
-                recordTypeIdToEpochDays.put(recordTypeId, distinctDates);
             }
         }
-        return recordTypeIdToEpochDays;
+
+        // Dates left have records but no activity date.
+        for (Map.Entry<Long, Long> entry : epochDayToCount.entrySet()) {
+            ContentValues contentValues =
+                    getContentValues(recordTypeId, entry.getKey(), entry.getValue());
+            db.insertOrThrow(TABLE_NAME, null, contentValues);
+            mismatches++;
+        }
+
+        if (mismatches > 0) {
+            Slog.w(TAG, "Fixed " + mismatches + " activity dates of record type " + recordTypeId);
+        }
+    }
+
+    private static String getWhereClause(int recordTypeId, long epochDay) {
+        return EPOCH_DAYS_COLUMN_NAME
+                + " = "
+                + epochDay
+                + " AND "
+                + RECORD_TYPE_ID_COLUMN_NAME
+                + " = "
+                + recordTypeId;
     }
 
     @NonNull
-    private ContentValues getContentValues(int recordTypeId, long epochDays) {
+    private ContentValues getContentValues(int recordTypeId, long epochDays, long recordCount) {
         ContentValues contentValues = new ContentValues();
         contentValues.put(EPOCH_DAYS_COLUMN_NAME, epochDays);
         contentValues.put(RECORD_TYPE_ID_COLUMN_NAME, recordTypeId);
+        contentValues.put(RECORD_COUNT_COLUMN_NAME, recordCount);
 
         return contentValues;
     }
@@ -215,16 +266,4 @@ public final class ActivityDateHelper {
 
         return sActivityDateHelper;
     }
-
-    /** Creates UpsertTableRequest to insert into activity_date_table table. */
-    public UpsertTableRequest getUpsertTableRequest(int recordTypeId, long epochDays) {
-        return new UpsertTableRequest(TABLE_NAME, getContentValues(recordTypeId, epochDays));
-    }
-
-    /** Creates UpsertTableRequest to insert into activity_date_table table from recordInternal. */
-    public UpsertTableRequest getUpsertTableRequest(RecordInternal<?> recordInternal) {
-        return getUpsertTableRequest(
-                recordInternal.getRecordType(),
-                ChronoUnit.DAYS.between(LocalDate.EPOCH, recordInternal.getLocalDate()));
-    }
 }
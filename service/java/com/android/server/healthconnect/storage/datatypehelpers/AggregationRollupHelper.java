@@ -0,0 +1,1032 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.ACTIVE_CALORIES_BURNED_RECORD_ACTIVE_CALORIES_TOTAL;
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.DISTANCE_RECORD_DISTANCE_TOTAL;
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.ELEVATION_RECORD_ELEVATION_GAINED_TOTAL;
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.FLOORS_CLIMBED_RECORD_FLOORS_CLIMBED_TOTAL;
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.STEPS_RECORD_COUNT_TOTAL;
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.WHEEL_CHAIR_PUSHES_RECORD_COUNT_TOTAL;
+
+import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_AGGREGATION_ROLLUPS;
+import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_DIRTY_ROLLUP_BUCKETS;
+import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_EXACT_ROLLUP_REMOVAL;
+import static com.android.server.healthconnect.storage.datatypehelpers.IntervalRecordHelper.END_TIME_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.IntervalRecordHelper.END_ZONE_OFFSET_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.IntervalRecordHelper.LOCAL_DATE_TIME_END_TIME_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.IntervalRecordHelper.LOCAL_DATE_TIME_START_TIME_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.IntervalRecordHelper.START_TIME_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.IntervalRecordHelper.START_ZONE_OFFSET_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.APP_INFO_ID_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.PRIMARY_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER_NOT_NULL;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.PRIMARY;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.REAL_NOT_NULL;
+
+import android.annotation.NonNull;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.health.connect.datatypes.AggregationType;
+import android.health.connect.datatypes.RecordTypeIdentifier;
+import android.health.connect.internal.datatypes.utils.AggregationTypeIdMapper;
+import android.util.Pair;
+
+import com.android.server.healthconnect.storage.HealthConnectDatabase;
+import com.android.server.healthconnect.storage.request.AlterTableRequest;
+import com.android.server.healthconnect.storage.request.CreateTableRequest;
+import com.android.server.healthconnect.storage.request.ReadTableRequest;
+import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
+import com.android.server.healthconnect.storage.utils.WhereClauses;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helper for the aggregation rollup tables. The rollup table keeps hourly and daily totals per app
+ * for the SUM aggregations of activity records, so that group by period and duration requests
+ * don't have to re-read every raw record.
+ *
+ * <p>Rollups are maintained by triggers on the record tables, which keeps them in the same
+ * transaction as every write, delete and restore of the records. A bucket is flagged as requiring
+ * raw records when any record in it overlaps another one, as priority based de-duplication then
+ * has to be done by {@link
+ * com.android.server.healthconnect.storage.datatypehelpers.aggregation.PriorityRecordsAggregator}.
+ *
+ * <p>Removed records have their shares subtracted from the buckets they covered, which are then
+ * flagged dirty: their totals may have drifted by rounding errors and their first records may be
+ * gone. Dirty buckets are read from the raw records until {@link #recomputeDirtyBuckets}.
+ *
+ * @hide
+ */
+public final class AggregationRollupHelper {
+    public static final String TABLE_NAME = "aggregation_rollup_table";
+    public static final String RECORD_TYPE_COLUMN_NAME = "record_type";
+    public static final String BUCKET_SIZE_COLUMN_NAME = "bucket_size";
+    public static final String USE_LOCAL_TIME_COLUMN_NAME = "use_local_time";
+    public static final String BUCKET_START_COLUMN_NAME = "bucket_start";
+    public static final String TOTAL_COLUMN_NAME = "total";
+    public static final String FIRST_START_TIME_COLUMN_NAME = "first_start_time";
+    public static final String FIRST_ZONE_OFFSET_COLUMN_NAME = "first_zone_offset";
+    public static final String REQUIRES_RAW_COLUMN_NAME = "requires_raw";
+    public static final String DIRTY_COLUMN_NAME = "dirty";
+
+    public static final long BUCKET_SIZE_HOUR = 60 * 60 * 1000L;
+    public static final long BUCKET_SIZE_DAY = 24 * BUCKET_SIZE_HOUR;
+
+    private static final String STATE_TABLE_NAME = "aggregation_rollup_state_table";
+    private static final String MAX_DURATION_COLUMN_NAME = "max_duration";
+    private static final String DISABLED_COLUMN_NAME = "disabled";
+
+    private static final String OFFSETS_TABLE_NAME = "aggregation_rollup_offsets_table";
+    private static final String BUCKET_OFFSET_COLUMN_NAME = "bucket_offset";
+
+    private static final String DIRTY_INDEX_NAME = "aggregation_rollup_dirty_idx";
+
+    // Records are split over at most this many buckets. Longer records disable the rollups of
+    // their record type, and aggregations of that type fall back to the raw records.
+    private static final int MAX_BUCKETS_PER_RECORD = 24 * 366;
+    // Local durations can differ from physical ones by the change of zone offset within a record.
+    private static final long MAX_LOCAL_DURATION_DIFFERENCE = 2 * BUCKET_SIZE_DAY;
+
+    private static final long[] BUCKET_SIZES = {BUCKET_SIZE_HOUR, BUCKET_SIZE_DAY};
+    private static final String[] TRIGGER_NAMES = {"insert", "delete", "update"};
+    private static final String IS_DISABLED_QUERY =
+            "SELECT "
+                    + DISABLED_COLUMN_NAME
+                    + " FROM "
+                    + STATE_TABLE_NAME
+                    + " WHERE "
+                    + RECORD_TYPE_COLUMN_NAME
+                    + " = ?";
+    private static final String OTHER_ROW = "other";
+    private static final String NEW_ROW = "NEW";
+    private static final String OLD_ROW = "OLD";
+    private static final String BACKFILL_ROW = "r";
+
+    private static final Map<Integer, Integer> AGGREGATION_TYPE_TO_RECORD_TYPE =
+            Map.of(
+                    STEPS_RECORD_COUNT_TOTAL,
+                    RecordTypeIdentifier.RECORD_TYPE_STEPS,
+                    DISTANCE_RECORD_DISTANCE_TOTAL,
+                    RecordTypeIdentifier.RECORD_TYPE_DISTANCE,
+                    ACTIVE_CALORIES_BURNED_RECORD_ACTIVE_CALORIES_TOTAL,
+                    RecordTypeIdentifier.RECORD_TYPE_ACTIVE_CALORIES_BURNED,
+                    FLOORS_CLIMBED_RECORD_FLOORS_CLIMBED_TOTAL,
+                    RecordTypeIdentifier.RECORD_TYPE_FLOORS_CLIMBED,
+                    ELEVATION_RECORD_ELEVATION_GAINED_TOTAL,
+                    RecordTypeIdentifier.RECORD_TYPE_ELEVATION_GAINED,
+                    WHEEL_CHAIR_PUSHES_RECORD_COUNT_TOTAL,
+                    RecordTypeIdentifier.RECORD_TYPE_WHEELCHAIR_PUSHES);
+
+    private static volatile AggregationRollupHelper sAggregationRollupHelper;
+
+    private AggregationRollupHelper() {}
+
+    /** Returns whether {@code aggregationType} can be answered from the rollup table. */
+    public static boolean supportsAggregation(
+            @AggregationType.AggregationTypeIdentifier int aggregationType) {
+        return AGGREGATION_TYPE_TO_RECORD_TYPE.containsKey(aggregationType);
+    }
+
+    /**
+     * Returns requests representing the tables that should be created corresponding to this
+     * helper
+     */
+    @NonNull
+    public List<CreateTableRequest> getCreateTableRequests() {
+        return List.of(
+                new CreateTableRequest(TABLE_NAME, getColumnInfo())
+                        .addUniqueConstraints(
+                                List.of(
+                                        RECORD_TYPE_COLUMN_NAME,
+                                        BUCKET_SIZE_COLUMN_NAME,
+                                        USE_LOCAL_TIME_COLUMN_NAME,
+                                        BUCKET_START_COLUMN_NAME,
+                                        APP_INFO_ID_COLUMN_NAME)),
+                new CreateTableRequest(STATE_TABLE_NAME, getStateColumnInfo()),
+                new CreateTableRequest(
+                        OFFSETS_TABLE_NAME,
+                        List.of(new Pair<>(BUCKET_OFFSET_COLUMN_NAME, PRIMARY))));
+    }
+
+    /**
+     * Populates the rollup tables and creates the triggers maintaining them. Expects the record
+     * tables and the tables of {@link #getCreateTableRequests} to exist.
+     */
+    public void onCreate(@NonNull SQLiteDatabase db) {
+        db.execSQL(
+                "WITH RECURSIVE offsets(n) AS (SELECT 0 UNION ALL SELECT n + 1 FROM offsets"
+                        + " WHERE n + 1 < "
+                        + MAX_BUCKETS_PER_RECORD
+                        + ") INSERT OR IGNORE INTO "
+                        + OFFSETS_TABLE_NAME
+                        + " SELECT n FROM offsets");
+        db.execSQL(getCreateDirtyIndexCommand());
+        for (RollupSource source : getRollupSources()) {
+            db.execSQL(
+                    "INSERT OR IGNORE INTO "
+                            + STATE_TABLE_NAME
+                            + " ("
+                            + RECORD_TYPE_COLUMN_NAME
+                            + ", "
+                            + MAX_DURATION_COLUMN_NAME
+                            + ", "
+                            + DISABLED_COLUMN_NAME
+                            + ") VALUES ("
+                            + source.mRecordType
+                            + ", 0, 0)");
+            createTriggers(db, source);
+        }
+    }
+
+    /** Called on DB update. */
+    public void onUpgrade(int oldVersion, int newVersion, @NonNull SQLiteDatabase db) {
+        if (oldVersion < DB_VERSION_AGGREGATION_ROLLUPS) {
+            for (CreateTableRequest request : getCreateTableRequests()) {
+                HealthConnectDatabase.createTable(db, request);
+            }
+            onCreate(db);
+            rebuild(db);
+            return;
+        }
+
+        if (oldVersion < DB_VERSION_DIRTY_ROLLUP_BUCKETS) {
+            try {
+                db.execSQL(
+                        new AlterTableRequest(
+                                        TABLE_NAME,
+                                        List.of(new Pair<>(DIRTY_COLUMN_NAME, INTEGER)))
+                                .getAlterTableAddColumnsCommand());
+            } catch (SQLException sqlException) {
+                // Ignore this means the column exists. This is possible via module rollback
+                // followed by an upgrade
+            }
+            db.execSQL(getCreateDirtyIndexCommand());
+            // Triggers are only created if they don't exist, so they are dropped first.
+            for (RollupSource source : getRollupSources()) {
+                for (String name : TRIGGER_NAMES) {
+                    db.execSQL("DROP TRIGGER IF EXISTS " + getTriggerName(source, name));
+                }
+                createTriggers(db, source);
+            }
+        }
+
+        if (oldVersion < DB_VERSION_EXACT_ROLLUP_REMOVAL) {
+            // The older triggers subtracted the shares of removed records from the totals without
+            // flagging the buckets dirty, and never enabled the rollups again.
+            rebuild(db);
+        }
+    }
+
+    /** Recomputes the rollups of all record types from the record tables. */
+    public void rebuild(@NonNull SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + TABLE_NAME);
+        for (RollupSource source : getRollupSources()) {
+            db.execSQL(source.getRecomputeStateCommand());
+            for (long bucketSize : BUCKET_SIZES) {
+                for (boolean useLocalTime : new boolean[] {false, true}) {
+                    BucketSet set = new BucketSet(source, bucketSize, useLocalTime);
+                    db.execSQL(set.getBackfillCommand());
+                    db.execSQL(set.getBackfillZoneOffsetCommand());
+                }
+            }
+        }
+    }
+
+    /**
+     * Recomputes the totals and the first records of the buckets flagged dirty by removals from
+     * the records left in the tables, and deletes the buckets no record is left in. Only the
+     * dirty buckets are read, through the partial index on them, so a batch of removals is
+     * recomputed once per bucket rather than once per removed record.
+     */
+    public void recomputeDirtyBuckets(@NonNull SQLiteDatabase db) {
+        for (RollupSource source : getRollupSources()) {
+            for (long bucketSize : BUCKET_SIZES) {
+                for (boolean useLocalTime : new boolean[] {false, true}) {
+                    BucketSet set = new BucketSet(source, bucketSize, useLocalTime);
+                    for (String command : set.getRecomputeDirtyBucketsCommands()) {
+                        db.execSQL(command);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether the rollups of {@code recordType} can be used for aggregations. Expected to
+     * be called in the transaction reading the rollups, so that the state matches them.
+     *
+     * <p>The state is read with the same query for all record types, so the connection compiles
+     * it once and keeps it in its statement cache.
+     */
+    public boolean isEnabled(
+            @NonNull SQLiteDatabase db, @RecordTypeIdentifier.RecordType int recordType) {
+        try (Cursor cursor =
+                db.rawQuery(IS_DISABLED_QUERY, new String[] {String.valueOf(recordType)})) {
+            return cursor.moveToFirst() && cursor.getInt(0) == 0;
+        }
+    }
+
+    /**
+     * Returns a request reading the rollup buckets of all apps for {@code recordType} starting in
+     * [{@code startTime}, {@code endTime}).
+     */
+    @NonNull
+    public ReadTableRequest getReadRollupsRequest(
+            @RecordTypeIdentifier.RecordType int recordType,
+            long bucketSize,
+            boolean useLocalTime,
+            long startTime,
+            long endTime) {
+        return new ReadTableRequest(TABLE_NAME)
+                .setWhereClause(
+                        new WhereClauses()
+                                .addWhereInIntsClause(RECORD_TYPE_COLUMN_NAME, List.of(recordType))
+                                .addWhereInLongsClause(BUCKET_SIZE_COLUMN_NAME, List.of(bucketSize))
+                                .addWhereInLongsClause(
+                                        USE_LOCAL_TIME_COLUMN_NAME,
+                                        List.of(useLocalTime ? 1L : 0L))
+                                .addWhereGreaterThanOrEqualClause(
+                                        BUCKET_START_COLUMN_NAME, startTime)
+                                .addWhereLessThanClause(BUCKET_START_COLUMN_NAME, endTime));
+    }
+
+    private void createTriggers(SQLiteDatabase db, RollupSource source) {
+        List<String> insertStatements = new ArrayList<>();
+        List<String> deleteStatements = new ArrayList<>();
+        List<String> updateStatements = new ArrayList<>();
+        insertStatements.add(source.getUpdateStateCommand(NEW_ROW));
+        for (long bucketSize : BUCKET_SIZES) {
+            for (boolean useLocalTime : new boolean[] {false, true}) {
+                BucketSet set = new BucketSet(source, bucketSize, useLocalTime);
+                insertStatements.add(set.getAddRecordCommand(NEW_ROW));
+                deleteStatements.add(set.getRemoveRecordCommand(OLD_ROW));
+                // The updated record is removed, and added back by the insert statements.
+                updateStatements.add(set.getRemoveRecordCommand(OLD_ROW));
+            }
+        }
+        deleteStatements.add(source.getResetStateCommand(OLD_ROW));
+        updateStatements.add(source.getResetStateCommand(OLD_ROW));
+        updateStatements.addAll(insertStatements);
+
+        db.execSQL(getCreateTriggerCommand(source, "insert", "AFTER INSERT", insertStatements));
+        db.execSQL(getCreateTriggerCommand(source, "delete", "AFTER DELETE", deleteStatements));
+        db.execSQL(getCreateTriggerCommand(source, "update", "AFTER UPDATE", updateStatements));
+    }
+
+    private static String getCreateDirtyIndexCommand() {
+        return "CREATE INDEX IF NOT EXISTS "
+                + DIRTY_INDEX_NAME
+                + " ON "
+                + TABLE_NAME
+                + " ("
+                + RECORD_TYPE_COLUMN_NAME
+                + ") WHERE "
+                + DIRTY_COLUMN_NAME
+                + " = 1";
+    }
+
+    private static String getTriggerName(RollupSource source, String name) {
+        return source.mTableName + "_rollup_" + name;
+    }
+
+    private static String getCreateTriggerCommand(
+            RollupSource source, String name, String event, List<String> statements) {
+        return "CREATE TRIGGER IF NOT EXISTS "
+                + getTriggerName(source, name)
+                + " "
+                + event
+                + " ON "
+                + source.mTableName
+                + " BEGIN "
+                + String.join("; ", statements)
+                + "; END";
+    }
+
+    private static String getExceedsMaxBucketsExpression(String duration) {
+        return "(("
+                + duration
+                + " + "
+                + MAX_LOCAL_DURATION_DIFFERENCE
+                + ") / "
+                + BUCKET_SIZE_HOUR
+                + " + 1 >= "
+                + MAX_BUCKETS_PER_RECORD
+                + ")";
+    }
+
+    private static List<RollupSource> getRollupSources() {
+        List<RollupSource> sources = new ArrayList<>();
+        AggregationTypeIdMapper aggregationTypeIdMapper = AggregationTypeIdMapper.getInstance();
+        RecordHelperProvider recordHelperProvider = RecordHelperProvider.getInstance();
+        AGGREGATION_TYPE_TO_RECORD_TYPE.forEach(
+                (aggregationType, recordType) -> {
+                    RecordHelper<?> recordHelper = recordHelperProvider.getRecordHelper(recordType);
+                    String valueColumnName =
+                            recordHelper
+                                    .getAggregateParams(
+                                            aggregationTypeIdMapper.getAggregationTypeFor(
+                                                    aggregationType))
+                                    .getPriorityAggregationExtraParams()
+                                    .getColumnToAggregateName();
+                    sources.add(
+                            new RollupSource(
+                                    recordType, recordHelper.getMainTableName(), valueColumnName));
+                });
+        return sources;
+    }
+
+    @NonNull
+    private static List<Pair<String, String>> getColumnInfo() {
+        List<Pair<String, String>> columnInfo = new ArrayList<>();
+        columnInfo.add(new Pair<>(RECORD_TYPE_COLUMN_NAME, INTEGER_NOT_NULL));
+        columnInfo.add(new Pair<>(APP_INFO_ID_COLUMN_NAME, INTEGER));
+        columnInfo.add(new Pair<>(BUCKET_SIZE_COLUMN_NAME, INTEGER_NOT_NULL));
+        columnInfo.add(new Pair<>(USE_LOCAL_TIME_COLUMN_NAME, INTEGER_NOT_NULL));
+        columnInfo.add(new Pair<>(BUCKET_START_COLUMN_NAME, INTEGER_NOT_NULL));
+        columnInfo.add(new Pair<>(TOTAL_COLUMN_NAME, REAL_NOT_NULL));
+        columnInfo.add(new Pair<>(FIRST_START_TIME_COLUMN_NAME, INTEGER));
+        columnInfo.add(new Pair<>(FIRST_ZONE_OFFSET_COLUMN_NAME, INTEGER));
+        columnInfo.add(new Pair<>(REQUIRES_RAW_COLUMN_NAME, INTEGER_NOT_NULL));
+        columnInfo.add(new Pair<>(DIRTY_COLUMN_NAME, INTEGER));
+
+        return columnInfo;
+    }
+
+    @NonNull
+    private static List<Pair<String, String>> getStateColumnInfo() {
+        List<Pair<String, String>> columnInfo = new ArrayList<>();
+        columnInfo.add(new Pair<>(RECORD_TYPE_COLUMN_NAME, PRIMARY));
+        columnInfo.add(new Pair<>(MAX_DURATION_COLUMN_NAME, INTEGER_NOT_NULL));
+        columnInfo.add(new Pair<>(DISABLED_COLUMN_NAME, INTEGER_NOT_NULL));
+
+        return columnInfo;
+    }
+
+    public static synchronized AggregationRollupHelper getInstance() {
+        if (sAggregationRollupHelper == null) {
+            sAggregationRollupHelper = new AggregationRollupHelper();
+        }
+
+        return sAggregationRollupHelper;
+    }
+
+    /** Record table whose values are rolled up. */
+    private static final class RollupSource {
+        private final int mRecordType;
+        private final String mTableName;
+        private final String mValueColumnName;
+
+        RollupSource(int recordType, String tableName, String valueColumnName) {
+            mRecordType = recordType;
+            mTableName = tableName;
+            mValueColumnName = valueColumnName;
+        }
+
+        String getUpdateStateCommand(String row) {
+            String duration = getDurationExpression(row);
+            return "UPDATE "
+                    + STATE_TABLE_NAME
+                    + " SET "
+                    + MAX_DURATION_COLUMN_NAME
+                    + " = MAX("
+                    + MAX_DURATION_COLUMN_NAME
+                    + ", "
+                    + duration
+                    + "), "
+                    + DISABLED_COLUMN_NAME
+                    + " = MAX("
+                    + DISABLED_COLUMN_NAME
+                    + ", "
+                    + getExceedsMaxBucketsExpression(duration)
+                    + ") WHERE "
+                    + RECORD_TYPE_COLUMN_NAME
+                    + " = "
+                    + mRecordType;
+        }
+
+        /** Recomputes the state of the record type from all the records of the table. */
+        String getRecomputeStateCommand() {
+            String duration = getDurationExpression(mTableName);
+            return "UPDATE "
+                    + STATE_TABLE_NAME
+                    + " SET "
+                    + MAX_DURATION_COLUMN_NAME
+                    + " = IFNULL((SELECT MAX("
+                    + duration
+                    + ") FROM "
+                    + mTableName
+                    + "), 0), "
+                    + DISABLED_COLUMN_NAME
+                    + " = IFNULL((SELECT MAX("
+                    + getExceedsMaxBucketsExpression(duration)
+                    + ") FROM "
+                    + mTableName
+                    + "), 0) WHERE "
+                    + RECORD_TYPE_COLUMN_NAME
+                    + " = "
+                    + mRecordType;
+        }
+
+        /**
+         * Recomputes the state of the record type if the record in {@code row}, which was removed,
+         * disabled the rollups, so that they are enabled again once no such record is left.
+         */
+        String getResetStateCommand(String row) {
+            return getRecomputeStateCommand()
+                    + " AND "
+                    + DISABLED_COLUMN_NAME
+                    + " = 1 AND "
+                    + getExceedsMaxBucketsExpression(getDurationExpression(row));
+        }
+
+        private static String getDurationExpression(String row) {
+            return row + "." + END_TIME_COLUMN_NAME + " - " + row + "." + START_TIME_COLUMN_NAME;
+        }
+    }
+
+    /** Rollups of one record type for one bucket size and time base. */
+    private static final class BucketSet {
+        private final RollupSource mSource;
+        private final long mBucketSize;
+        private final boolean mUseLocalTime;
+
+        BucketSet(RollupSource source, long bucketSize, boolean useLocalTime) {
+            mSource = source;
+            mBucketSize = bucketSize;
+            mUseLocalTime = useLocalTime;
+        }
+
+        /** Adds the shares of the record in {@code row} to the buckets it covers. */
+        String getAddRecordCommand(String row) {
+            String bucketStart = getBucketStartExpression(row);
+            return "INSERT INTO "
+                    + TABLE_NAME
+                    + " ("
+                    + getRollupColumns()
+                    + ") SELECT "
+                    + mSource.mRecordType
+                    + ", "
+                    + row
+                    + "."
+                    + APP_INFO_ID_COLUMN_NAME
+                    + ", "
+                    + mBucketSize
+                    + ", "
+                    + (mUseLocalTime ? 1 : 0)
+                    + ", "
+                    + bucketStart
+                    + ", "
+                    + getShareExpression(row, bucketStart)
+                    + ", "
+                    + getStartTime(row)
+                    + ", "
+                    + row
+                    + "."
+                    + START_ZONE_OFFSET_COLUMN_NAME
+                    + ", "
+                    + getOverlapExpression(row)
+                    + " FROM "
+                    + OFFSETS_TABLE_NAME
+                    + " WHERE "
+                    + getCoveredOffsetsCondition(row)
+                    + " ON CONFLICT ("
+                    + RECORD_TYPE_COLUMN_NAME
+                    + ", "
+                    + BUCKET_SIZE_COLUMN_NAME
+                    + ", "
+                    + USE_LOCAL_TIME_COLUMN_NAME
+                    + ", "
+                    + BUCKET_START_COLUMN_NAME
+                    + ", "
+                    + APP_INFO_ID_COLUMN_NAME
+                    + ") DO UPDATE SET "
+                    + TOTAL_COLUMN_NAME
+                    + " = "
+                    + TOTAL_COLUMN_NAME
+                    + " + excluded."
+                    + TOTAL_COLUMN_NAME
+                    + ", "
+                    + FIRST_ZONE_OFFSET_COLUMN_NAME
+                    + " = CASE WHEN "
+                    + getIsNewFirstRecordCondition()
+                    + " THEN excluded."
+                    + FIRST_ZONE_OFFSET_COLUMN_NAME
+                    + " ELSE "
+                    + FIRST_ZONE_OFFSET_COLUMN_NAME
+                    + " END, "
+                    + FIRST_START_TIME_COLUMN_NAME
+                    + " = CASE WHEN "
+                    + getIsNewFirstRecordCondition()
+                    + " THEN excluded."
+                    + FIRST_START_TIME_COLUMN_NAME
+                    + " ELSE "
+                    + FIRST_START_TIME_COLUMN_NAME
+                    + " END, "
+                    + REQUIRES_RAW_COLUMN_NAME
+                    + " = MAX("
+                    + REQUIRES_RAW_COLUMN_NAME
+                    + ", excluded."
+                    + REQUIRES_RAW_COLUMN_NAME
+                    + ")";
+        }
+
+        /**
+         * Subtracts the shares of the record in {@code row} from the buckets it covered, and flags
+         * them dirty.
+         */
+        String getRemoveRecordCommand(String row) {
+            return "UPDATE "
+                    + TABLE_NAME
+                    + " SET "
+                    + TOTAL_COLUMN_NAME
+                    + " = "
+                    + TOTAL_COLUMN_NAME
+                    + " - "
+                    + getShareExpression(row, TABLE_NAME + "." + BUCKET_START_COLUMN_NAME)
+                    + ", "
+                    + DIRTY_COLUMN_NAME
+                    + " = 1 WHERE "
+                    + getCoveredBucketsCondition(row);
+        }
+
+        /**
+         * Recomputes the totals and the first records of the dirty buckets from the records left
+         * in the table, deletes the buckets no record is left in and clears the flags. Totals are
+         * summed again rather than kept from the subtractions, so that rounding errors don't add
+         * up over removals.
+         */
+        List<String> getRecomputeDirtyBucketsCommands() {
+            String bucketStart = TABLE_NAME + "." + BUCKET_START_COLUMN_NAME;
+            String dirtyBuckets = getSetCondition() + " AND " + DIRTY_COLUMN_NAME + " = 1";
+            String otherRows =
+                    " FROM "
+                            + mSource.mTableName
+                            + " "
+                            + OTHER_ROW
+                            + " WHERE "
+                            + getOtherCoversBucketCondition(bucketStart);
+            return List.of(
+                    "UPDATE "
+                            + TABLE_NAME
+                            + " SET "
+                            + TOTAL_COLUMN_NAME
+                            + " = IFNULL((SELECT SUM("
+                            + getShareExpression(OTHER_ROW, bucketStart)
+                            + ")"
+                            + otherRows
+                            + "), 0), ("
+                            + FIRST_START_TIME_COLUMN_NAME
+                            + ", "
+                            + FIRST_ZONE_OFFSET_COLUMN_NAME
+                            + ") = (SELECT "
+                            + OTHER_ROW
+                            + "."
+                            + getStartTimeColumnName()
+                            + ", "
+                            + OTHER_ROW
+                            + "."
+                            + START_ZONE_OFFSET_COLUMN_NAME
+                            + otherRows
+                            + " ORDER BY "
+                            + OTHER_ROW
+                            + "."
+                            + getStartTimeColumnName()
+                            + " LIMIT 1) WHERE "
+                            + dirtyBuckets,
+                    "DELETE FROM "
+                            + TABLE_NAME
+                            + " WHERE "
+                            + dirtyBuckets
+                            + " AND "
+                            + FIRST_START_TIME_COLUMN_NAME
+                            + " IS NULL",
+                    "UPDATE "
+                            + TABLE_NAME
+                            + " SET "
+                            + DIRTY_COLUMN_NAME
+                            + " = NULL WHERE "
+                            + dirtyBuckets);
+        }
+
+        /** Rolls up all the records of the source table, expects no rollups for the set. */
+        String getBackfillCommand() {
+            String bucketStart = getBucketStartExpression(BACKFILL_ROW);
+            return "INSERT INTO "
+                    + TABLE_NAME
+                    + " ("
+                    + getRollupColumns()
+                    + ") SELECT "
+                    + mSource.mRecordType
+                    + ", "
+                    + BACKFILL_ROW
+                    + "."
+                    + APP_INFO_ID_COLUMN_NAME
+                    + ", "
+                    + mBucketSize
+                    + ", "
+                    + (mUseLocalTime ? 1 : 0)
+                    + ", "
+                    + bucketStart
+                    + ", SUM("
+                    + getShareExpression(BACKFILL_ROW, bucketStart)
+                    + "), MIN("
+                    + getStartTime(BACKFILL_ROW)
+                    + "), NULL, MAX("
+                    + getOverlapExpression(BACKFILL_ROW)
+                    + ") FROM "
+                    + mSource.mTableName
+                    + " "
+                    + BACKFILL_ROW
+                    + " INNER JOIN "
+                    + OFFSETS_TABLE_NAME
+                    + " ON "
+                    + getCoveredOffsetsCondition(BACKFILL_ROW)
+                    + " GROUP BY "
+                    + BACKFILL_ROW
+                    + "."
+                    + APP_INFO_ID_COLUMN_NAME
+                    + ", "
+                    + bucketStart;
+        }
+
+        /** Fills in the zone offsets of the first records after {@link #getBackfillCommand}. */
+        String getBackfillZoneOffsetCommand() {
+            return "UPDATE "
+                    + TABLE_NAME
+                    + " SET "
+                    + FIRST_ZONE_OFFSET_COLUMN_NAME
+                    + " = (SELECT "
+                    + OTHER_ROW
+                    + "."
+                    + START_ZONE_OFFSET_COLUMN_NAME
+                    + " FROM "
+                    + mSource.mTableName
+                    + " "
+                    + OTHER_ROW
+                    + " WHERE "
+                    + OTHER_ROW
+                    + "."
+                    + APP_INFO_ID_COLUMN_NAME
+                    + " = "
+                    + TABLE_NAME
+                    + "."
+                    + APP_INFO_ID_COLUMN_NAME
+                    + " AND "
+                    + OTHER_ROW
+                    + "."
+                    + getStartTimeColumnName()
+                    + " = "
+                    + TABLE_NAME
+                    + "."
+                    + FIRST_START_TIME_COLUMN_NAME
+                    + " LIMIT 1) WHERE "
+                    + getSetCondition();
+        }
+
+        private String getRollupColumns() {
+            return String.join(
+                    ", ",
+                    RECORD_TYPE_COLUMN_NAME,
+                    APP_INFO_ID_COLUMN_NAME,
+                    BUCKET_SIZE_COLUMN_NAME,
+                    USE_LOCAL_TIME_COLUMN_NAME,
+                    BUCKET_START_COLUMN_NAME,
+                    TOTAL_COLUMN_NAME,
+                    FIRST_START_TIME_COLUMN_NAME,
+                    FIRST_ZONE_OFFSET_COLUMN_NAME,
+                    REQUIRES_RAW_COLUMN_NAME);
+        }
+
+        private String getSetCondition() {
+            return RECORD_TYPE_COLUMN_NAME
+                    + " = "
+                    + mSource.mRecordType
+                    + " AND "
+                    + BUCKET_SIZE_COLUMN_NAME
+                    + " = "
+                    + mBucketSize
+                    + " AND "
+                    + USE_LOCAL_TIME_COLUMN_NAME
+                    + " = "
+                    + (mUseLocalTime ? 1 : 0);
+        }
+
+        private String getIsNewFirstRecordCondition() {
+            return FIRST_START_TIME_COLUMN_NAME
+                    + " IS NULL OR excluded."
+                    + FIRST_START_TIME_COLUMN_NAME
+                    + " < "
+                    + FIRST_START_TIME_COLUMN_NAME;
+        }
+
+        /**
+         * Condition on the rollup rows of the app of {@code row} which cover the record, the same
+         * ones as {@link #getCoveredOffsetsCondition} selects.
+         */
+        private String getCoveredBucketsCondition(String row) {
+            String start = getStartTime(row);
+            return getSetCondition()
+                    + " AND "
+                    + APP_INFO_ID_COLUMN_NAME
+                    + " = "
+                    + row
+                    + "."
+                    + APP_INFO_ID_COLUMN_NAME
+                    + " AND "
+                    + BUCKET_START_COLUMN_NAME
+                    + " >= "
+                    + getFirstBucketExpression(row)
+                    + " * "
+                    + mBucketSize
+                    + " AND "
+                    + BUCKET_START_COLUMN_NAME
+                    + " < MAX("
+                    + getEndTime(row)
+                    + ", "
+                    + start
+                    + " + 1) AND "
+                    + BUCKET_START_COLUMN_NAME
+                    + " < "
+                    + getCoverageEndExpression(row);
+        }
+
+        /** Returns the end of the last bucket a record in {@code row} can cover. */
+        private String getCoverageEndExpression(String row) {
+            return "("
+                    + getFirstBucketExpression(row)
+                    + " + "
+                    + MAX_BUCKETS_PER_RECORD
+                    + ") * "
+                    + mBucketSize;
+        }
+
+        /** Condition on the offsets table selecting the buckets covered by {@code row}. */
+        private String getCoveredOffsetsCondition(String row) {
+            String start = getStartTime(row);
+            String end = getEndTime(row);
+            return OFFSETS_TABLE_NAME
+                    + "."
+                    + BUCKET_OFFSET_COLUMN_NAME
+                    + " <= (CASE WHEN "
+                    + end
+                    + " > "
+                    + start
+                    + " THEN ("
+                    + end
+                    + " - 1) / "
+                    + mBucketSize
+                    + " ELSE "
+                    + getFirstBucketExpression(row)
+                    + " END) - "
+                    + getFirstBucketExpression(row);
+        }
+
+        private String getBucketStartExpression(String row) {
+            return "(("
+                    + getFirstBucketExpression(row)
+                    + " + "
+                    + OFFSETS_TABLE_NAME
+                    + "."
+                    + BUCKET_OFFSET_COLUMN_NAME
+                    + ") * "
+                    + mBucketSize
+                    + ")";
+        }
+
+        private String getFirstBucketExpression(String row) {
+            return "(" + getStartTime(row) + " / " + mBucketSize + ")";
+        }
+
+        /**
+         * Returns the part of the value of {@code row} within the bucket starting at {@code
+         * bucketStart}, split proportionally to time like {@link
+         * com.android.server.healthconnect.storage.datatypehelpers.aggregation.ValueColumnAggregationData}.
+         */
+        private String getShareExpression(String row, String bucketStart) {
+            String start = getStartTime(row);
+            String end = getEndTime(row);
+            String value = row + "." + mSource.mValueColumnName;
+            return "(CASE WHEN "
+                    + end
+                    + " > "
+                    + start
+                    + " THEN "
+                    + value
+                    + " * 1.0 * (MIN("
+                    + end
+                    + ", "
+                    + bucketStart
+                    + " + "
+                    + mBucketSize
+                    + ") - MAX("
+                    + start
+                    + ", "
+                    + bucketStart
+                    + ")) / ("
+                    + end
+                    + " - "
+                    + start
+                    + ") ELSE "
+                    + value
+                    + " END)";
+        }
+
+        /**
+         * Returns 1 if the record in {@code row} overlaps any other record of the table, or has no
+         * duration. Priorities only matter for such records.
+         */
+        private String getOverlapExpression(String row) {
+            String start = getStartTime(row);
+            String end = getEndTime(row);
+            return "("
+                    + end
+                    + " <= "
+                    + start
+                    + " OR EXISTS (SELECT 1 FROM "
+                    + mSource.mTableName
+                    + " "
+                    + OTHER_ROW
+                    + " WHERE "
+                    + OTHER_ROW
+                    + "."
+                    + getStartTimeColumnName()
+                    + " >= "
+                    + start
+                    + " - "
+                    + getMaxDurationExpression()
+                    + " AND "
+                    + OTHER_ROW
+                    + "."
+                    + getStartTimeColumnName()
+                    + " < "
+                    + end
+                    + " AND "
+                    + OTHER_ROW
+                    + "."
+                    + getEndTimeColumnName()
+                    + " > "
+                    + start
+                    + " AND "
+                    + OTHER_ROW
+                    + "."
+                    + PRIMARY_COLUMN_NAME
+                    + " != "
+                    + row
+                    + "."
+                    + PRIMARY_COLUMN_NAME
+                    + "))";
+        }
+
+        /** Condition on {@link #OTHER_ROW} covering the bucket starting at {@code bucketStart}. */
+        private String getOtherTouchesBucketCondition(String bucketStart) {
+            String otherStart = OTHER_ROW + "." + getStartTimeColumnName();
+            String otherEnd = OTHER_ROW + "." + getEndTimeColumnName();
+            return otherStart
+                    + " >= "
+                    + bucketStart
+                    + " - "
+                    + getMaxDurationExpression()
+                    + " AND "
+                    + otherStart
+                    + " < "
+                    + bucketStart
+                    + " + "
+                    + mBucketSize
+                    + " AND ("
+                    + otherEnd
+                    + " > "
+                    + bucketStart
+                    + " OR "
+                    + otherStart
+                    + " >= "
+                    + bucketStart
+                    + ")";
+        }
+
+        /**
+         * Condition on {@link #OTHER_ROW} of the app of the rollup row covering the bucket starting
+         * at {@code bucketStart}.
+         */
+        private String getOtherCoversBucketCondition(String bucketStart) {
+            return OTHER_ROW
+                    + "."
+                    + APP_INFO_ID_COLUMN_NAME
+                    + " = "
+                    + TABLE_NAME
+                    + "."
+                    + APP_INFO_ID_COLUMN_NAME
+                    + " AND "
+                    + getOtherTouchesBucketCondition(bucketStart)
+                    + " AND "
+                    + bucketStart
+                    + " < "
+                    + getCoverageEndExpression(OTHER_ROW);
+        }
+
+        /** Upper bound of the record durations, bounding the overlap lookups on the time index. */
+        private String getMaxDurationExpression() {
+            return "(SELECT "
+                    + MAX_DURATION_COLUMN_NAME
+                    + (mUseLocalTime ? " + " + MAX_LOCAL_DURATION_DIFFERENCE : "")
+                    + " FROM "
+                    + STATE_TABLE_NAME
+                    + " WHERE "
+                    + RECORD_TYPE_COLUMN_NAME
+                    + " = "
+                    + mSource.mRecordType
+                    + ")";
+        }
+
+        private String getStartTimeColumnName() {
+            return mUseLocalTime ? LOCAL_DATE_TIME_START_TIME_COLUMN_NAME : START_TIME_COLUMN_NAME;
+        }
+
+        private String getEndTimeColumnName() {
+            return mUseLocalTime ? LOCAL_DATE_TIME_END_TIME_COLUMN_NAME : END_TIME_COLUMN_NAME;
+        }
+
+        // Trigger rows don't expose the generated local time columns, so they are computed here
+        // the same way as in IntervalRecordHelper.
+        private String getStartTime(String row) {
+            return getTime(row, START_TIME_COLUMN_NAME, START_ZONE_OFFSET_COLUMN_NAME);
+        }
+
+        private String getEndTime(String row) {
+            return getTime(row, END_TIME_COLUMN_NAME, END_ZONE_OFFSET_COLUMN_NAME);
+        }
+
+        private String getTime(String row, String timeColumnName, String offsetColumnName) {
+            if (!mUseLocalTime) {
+                return row + "." + timeColumnName;
+            }
+            return "("
+                    + row
+                    + "."
+                    + timeColumnName
+                    + " + 1000 * "
+                    + row
+                    + "."
+                    + offsetColumnName
+                    + ")";
+        }
+    }
+}
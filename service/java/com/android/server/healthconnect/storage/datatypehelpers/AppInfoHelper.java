@@ -19,12 +19,15 @@ package com.android.server.healthconnect.storage.datatypehelpers;
 import static android.health.connect.Constants.DEBUG;
 import static android.health.connect.Constants.DEFAULT_LONG;
 
+import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_RECORD_TYPES_USED_COUNTS;
 import static com.android.server.healthconnect.storage.request.UpsertTableRequest.TYPE_STRING;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.BLOB;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER_NOT_NULL;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.PRIMARY;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.TEXT_NOT_NULL_UNIQUE;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.TEXT_NULL;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorBlob;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorInt;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorString;
 
@@ -49,16 +52,18 @@ import android.health.connect.Constants;
 import android.health.connect.datatypes.AppInfo;
 import android.health.connect.internal.datatypes.AppInfoInternal;
 import android.health.connect.internal.datatypes.RecordInternal;
-import android.health.connect.internal.datatypes.utils.RecordMapper;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.Pair;
 import android.util.Slog;
 
+import com.android.server.healthconnect.storage.HealthConnectDatabase;
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
 import com.android.server.healthconnect.storage.request.ReadTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
 
 import java.io.ByteArrayOutputStream;
@@ -91,7 +96,18 @@ public final class AppInfoHelper {
     public static final String APP_ICON_COLUMN_NAME = "app_icon";
     private static final String TAG = "HealthConnectAppInfoHelper";
     private static final String RECORD_TYPES_USED_COLUMN_NAME = "record_types_used";
+    private static final String RECORD_TYPES_USED_TABLE_NAME = "app_info_record_types_table";
+    private static final String RECORD_TYPE_ID_COLUMN_NAME = "record_type_id";
+    private static final String RECORD_COUNT_COLUMN_NAME = "record_count";
+    private static final RecordCountTriggers COUNT_TRIGGERS =
+            new RecordCountTriggers(
+                    RECORD_TYPES_USED_TABLE_NAME,
+                    RecordHelper.APP_INFO_ID_COLUMN_NAME,
+                    RECORD_TYPE_ID_COLUMN_NAME,
+                    RECORD_COUNT_COLUMN_NAME,
+                    "record_types_used");
     private static final int COMPRESS_FACTOR = 100;
+    private static final int MAX_ICON_CACHE_SIZE_BYTES = 4 * 1024 * 1024;
     private static volatile AppInfoHelper sAppInfoHelper;
 
     /**
@@ -103,12 +119,30 @@ public final class AppInfoHelper {
 
     /**
      * Map to store application package-name -> AppInfo mapping (such as packageName -> appName,
-     * icon, rowId in the DB etc.)
+     * rowId in the DB etc.). Icons are not kept in this map, see {@link #mIconCache}.
      *
      * <p>TO HAVE THREAD SAFETY DON'T USE THESE VARIABLES DIRECTLY, INSTEAD USE ITS GETTER
      */
     private volatile ConcurrentHashMap<String, AppInfoInternal> mAppInfoMap;
 
+    /**
+     * Immutable map of recordType -> contributing packages, replaced whenever the record types used
+     * by a package change so that it can be read without locking.
+     */
+    @Nullable private volatile Map<Integer, Set<String>> mRecordTypesToContributingPackagesMap;
+
+    /**
+     * Decoded icons by package name, bounded by their size in bytes. Icons are only read from the
+     * DB when app infos with icons are returned.
+     */
+    private final LruCache<String, Bitmap> mIconCache =
+            new LruCache<>(MAX_ICON_CACHE_SIZE_BYTES) {
+                @Override
+                protected int sizeOf(String packageName, Bitmap icon) {
+                    return icon.getAllocationByteCount();
+                }
+            };
+
     private AppInfoHelper() {}
 
     /** Deletes all entries from the database and clears the cache. */
@@ -120,6 +154,8 @@ public final class AppInfoHelper {
     public synchronized void clearCache() {
         mAppInfoMap = null;
         mIdPackageNameMap = null;
+        mRecordTypesToContributingPackagesMap = null;
+        mIconCache.evictAll();
     }
 
     /**
@@ -128,7 +164,24 @@ public final class AppInfoHelper {
      */
     @NonNull
     public CreateTableRequest getCreateTableRequest() {
-        return new CreateTableRequest(TABLE_NAME, getColumnInfo());
+        return new CreateTableRequest(TABLE_NAME, getColumnInfo())
+                .setChildTableRequests(List.of(getRecordTypesUsedTableCreateRequest()));
+    }
+
+    /**
+     * Creates the triggers counting the records of each package per record type. Expects the
+     * record tables and the tables of {@link #getCreateTableRequest} to exist.
+     */
+    public void onCreate(@NonNull SQLiteDatabase db) {
+        RecordHelperProvider.getInstance()
+                .getRecordHelpers()
+                .forEach(
+                        (recordTypeId, recordHelper) ->
+                                COUNT_TRIGGERS.create(
+                                        db,
+                                        recordTypeId,
+                                        recordHelper.getMainTableName(),
+                                        RecordHelper.APP_INFO_ID_COLUMN_NAME));
     }
 
     /** Populates record with appInfoId */
@@ -150,7 +203,7 @@ public final class AppInfoHelper {
                                 DEFAULT_LONG, packageName, record.getAppName(), null, null);
             }
 
-            insertIfNotPresent(packageName, appInfo);
+            appInfo = insertIfNotPresent(packageName, appInfo, encodeBitmap(appInfo.getIcon()));
         }
 
         record.setAppInfoId(appInfo.getId());
@@ -177,13 +230,13 @@ public final class AppInfoHelper {
                     containsAppInfo(packageName)
                             ? mAppInfoMap.get(packageName).getRecordTypesUsed()
                             : null;
+            // The icon is stored as is, it is only decoded when it is returned.
             AppInfoInternal appInfoInternal =
-                    new AppInfoInternal(
-                            DEFAULT_LONG, packageName, name, decodeBitmap(icon), recordTypesUsed);
+                    new AppInfoInternal(DEFAULT_LONG, packageName, name, null, recordTypesUsed);
             if (onlyUpdate) {
-                updateIfPresent(packageName, appInfoInternal);
+                updateIfPresent(packageName, appInfoInternal, icon);
             } else {
-                insertIfNotPresent(packageName, appInfoInternal);
+                insertIfNotPresent(packageName, appInfoInternal, icon);
             }
         }
     }
@@ -217,7 +270,13 @@ public final class AppInfoHelper {
      * Called when a db update happens to make any required changes in appInfoHelper respecting
      * version upgrade.
      */
-    public void onUpgrade(int oldVersion, int newVersion, @NonNull SQLiteDatabase db) {}
+    public void onUpgrade(int oldVersion, int newVersion, @NonNull SQLiteDatabase db) {
+        if (oldVersion < DB_VERSION_RECORD_TYPES_USED_COUNTS) {
+            HealthConnectDatabase.createTable(db, getRecordTypesUsedTableCreateRequest());
+            onCreate(db);
+            populateRecordTypesUsedTable(db);
+        }
+    }
 
     /**
      * @return id of {@code packageName} or {@link Constants#DEFAULT_LONG} if the id is not found
@@ -288,7 +347,13 @@ public final class AppInfoHelper {
                         (appInfo) ->
                                 (appInfo.getRecordTypesUsed() != null
                                         && !appInfo.getRecordTypesUsed().isEmpty()))
-                .map(AppInfoInternal::toExternal)
+                .map(
+                        (appInfo) ->
+                                new AppInfo.Builder(
+                                                appInfo.getPackageName(),
+                                                appInfo.getName(),
+                                                getIcon(appInfo.getPackageName()))
+                                        .build())
                 .collect(Collectors.toList());
     }
 
@@ -303,7 +368,9 @@ public final class AppInfoHelper {
                 throw new IllegalArgumentException("Could not find package info for package", e);
             }
 
-            insertIfNotPresent(packageName, appInfoInternal);
+            appInfoInternal =
+                    insertIfNotPresent(
+                            packageName, appInfoInternal, encodeBitmap(appInfoInternal.getIcon()));
         }
 
         return appInfoInternal.getId();
@@ -316,13 +383,20 @@ public final class AppInfoHelper {
         ConcurrentHashMap<String, AppInfoInternal> appInfoMap = new ConcurrentHashMap<>();
         ConcurrentHashMap<Long, String> idPackageNameMap = new ConcurrentHashMap<>();
         final TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
-        try (Cursor cursor = transactionManager.read(new ReadTableRequest(TABLE_NAME))) {
+        // Icons are left out, they are read when needed by getIcon.
+        ReadTableRequest request =
+                new ReadTableRequest(TABLE_NAME)
+                        .setColumnNames(
+                                List.of(
+                                        RecordHelper.PRIMARY_COLUMN_NAME,
+                                        PACKAGE_COLUMN_NAME,
+                                        APPLICATION_COLUMN_NAME,
+                                        RECORD_TYPES_USED_COLUMN_NAME));
+        try (Cursor cursor = transactionManager.read(request)) {
             while (cursor.moveToNext()) {
                 long rowId = getCursorLong(cursor, RecordHelper.PRIMARY_COLUMN_NAME);
                 String packageName = getCursorString(cursor, PACKAGE_COLUMN_NAME);
                 String appName = getCursorString(cursor, APPLICATION_COLUMN_NAME);
-                byte[] icon = getCursorBlob(cursor, APP_ICON_COLUMN_NAME);
-                Bitmap bitmap = decodeBitmap(icon);
                 String recordTypesUsed = getCursorString(cursor, RECORD_TYPES_USED_COLUMN_NAME);
 
                 Set<Integer> recordTypesListAsSet = getRecordTypesAsSet(recordTypesUsed);
@@ -330,7 +404,7 @@ public final class AppInfoHelper {
                 appInfoMap.put(
                         packageName,
                         new AppInfoInternal(
-                                rowId, packageName, appName, bitmap, recordTypesListAsSet));
+                                rowId, packageName, appName, null, recordTypesListAsSet));
                 idPackageNameMap.put(rowId, packageName);
             }
         }
@@ -354,161 +428,56 @@ public final class AppInfoHelper {
      * <p><b>NOTE:</b> This method should only be used for insert operation on recordType tables.
      * Should not be called elsewhere.
      *
-     * <p>see {@link AppInfoHelper#syncAppInfoMapRecordTypesUsed(Map)}} for updating this table
-     * during delete operations on recordTypes.
+     * <p>see {@link AppInfoHelper#syncAppInfoRecordTypesUsed()} for updating this table during
+     * delete operations on recordTypes.
      *
      * @param recordTypes The record types that needs to be inserted.
      * @param packageName The package for which the records need to be inserted.
      */
-    @SuppressLint("LongLogTag")
-    public synchronized void updateAppInfoRecordTypesUsedOnInsert(
+    public void updateAppInfoRecordTypesUsedOnInsert(
             Set<Integer> recordTypes, String packageName) {
-        AppInfoInternal appInfo = getAppInfoMap().get(packageName);
-        if (appInfo == null) {
-            Log.e(
-                    TAG,
-                    "AppInfo for the current package: "
-                            + packageName
-                            + " does not exist. "
-                            + "Hence recordTypesUsed is not getting updated.");
-
+        if (recordTypes == null || recordTypes.isEmpty()) {
             return;
         }
 
-        if (recordTypes == null || recordTypes.isEmpty()) {
+        // Packages mostly insert record types they already use, which doesn't need the lock.
+        AppInfoInternal appInfo = getAppInfoMap().get(packageName);
+        if (appInfo != null
+                && appInfo.getRecordTypesUsed() != null
+                && appInfo.getRecordTypesUsed().containsAll(recordTypes)) {
             return;
         }
-        Set<Integer> updatedRecordTypes = new HashSet<>(recordTypes);
-        if (appInfo.getRecordTypesUsed() != null) {
-            updatedRecordTypes.addAll(appInfo.getRecordTypesUsed());
-        }
-        if (!updatedRecordTypes.equals(appInfo.getRecordTypesUsed())) {
-            updateAppInfoRecordTypesUsedSync(packageName, appInfo, updatedRecordTypes);
-        }
-    }
 
-    /**
-     * Updates recordTypesUsed by for all packages in app info table.
-     *
-     * <p><b>NOTE:</b> This method should only be used for delete operation on recordType tables.
-     * Should not be called elsewhere.
-     *
-     * <p>Use this method to update the table for passed recordTypes, not passing any record will
-     * update all recordTypes.
-     *
-     * <p>see {@link AppInfoHelper#updateAppInfoRecordTypesUsedOnInsert(Set, String)} for updating
-     * this table during insert operations on recordTypes.
-     */
-    public synchronized void syncAppInfoRecordTypesUsed() {
-        syncAppInfoRecordTypesUsed(null);
+        addRecordTypesUsed(recordTypes, packageName);
     }
 
     /**
-     * Updates recordTypesUsed by for all packages in app info table.
+     * Updates recordTypesUsed for all packages in app info table from the number of records of each
+     * package per record type, which the record tables keep up to date.
      *
      * <p><b>NOTE:</b> This method should only be used for delete operation on recordType tables.
      * Should not be called elsewhere.
      *
-     * <p>Use this method to update the table for passed {@code recordTypesToBeSynced}, not passing
-     * any record will update all recordTypes.
-     *
      * <p>see {@link AppInfoHelper#updateAppInfoRecordTypesUsedOnInsert(Set, String)} for updating
      * this table during insert operations on recordTypes.
      */
-    public synchronized void syncAppInfoRecordTypesUsed(
-            @Nullable Set<Integer> recordTypesToBeSynced) {
-        Set<Integer> recordTypesToBeUpdated =
-                Objects.requireNonNullElseGet(
-                        recordTypesToBeSynced,
-                        () ->
-                                RecordMapper.getInstance()
-                                        .getRecordIdToExternalRecordClassMap()
-                                        .keySet());
-
-        HashMap<Integer, HashSet<String>> recordTypeToContributingPackagesMap =
-                TransactionManager.getInitialisedInstance()
-                        .getDistinctPackageNamesForRecordsTable(recordTypesToBeUpdated);
-
-        if (recordTypesToBeSynced == null) {
-            syncAppInfoMapRecordTypesUsed(recordTypeToContributingPackagesMap);
-        } else {
-            getAppInfoMap()
-                    .keySet()
-                    .forEach(
-                            (packageName) -> {
-                                deleteRecordTypesForPackagesIfRequiredInternal(
-                                        recordTypesToBeUpdated,
-                                        recordTypeToContributingPackagesMap,
-                                        packageName);
-                            });
-        }
-    }
-
-    /**
-     * This method updates recordTypesUsed for all packages and hence is a heavy operation. This
-     * method is used during AutoDeleteService and is run once per day.
-     */
-    @SuppressLint("LongLogTag")
-    private synchronized void syncAppInfoMapRecordTypesUsed(
-            @NonNull Map<Integer, HashSet<String>> recordTypeToContributingPackagesMap) {
-        HashMap<String, List<Integer>> packageToRecordTypesMap =
-                getPackageToRecordTypesMap(recordTypeToContributingPackagesMap);
+    public synchronized void syncAppInfoRecordTypesUsed() {
+        Map<Long, Set<Integer>> appInfoIdToRecordTypesMap = readRecordTypesUsed();
         getAppInfoMap()
                 .forEach(
                         (packageName, appInfo) -> {
-                            if (packageToRecordTypesMap.containsKey(packageName)) {
-                                updateAppInfoRecordTypesUsedSync(
-                                        packageName,
-                                        appInfo,
-                                        new HashSet<>(packageToRecordTypesMap.get(packageName)));
-                            } else {
+                            Set<Integer> recordTypesUsed =
+                                    appInfoIdToRecordTypesMap.get(appInfo.getId());
+                            if (!Objects.equals(recordTypesUsed, appInfo.getRecordTypesUsed())) {
                                 updateAppInfoRecordTypesUsedSync(
-                                        packageName, appInfo, /* recordTypesUsed */ null);
-                            }
-                            if (DEBUG) {
-                                Log.d(
-                                        TAG,
-                                        "Syncing packages and corresponding recordTypesUsed for"
-                                                + " package : "
-                                                + packageName
-                                                + ", recordTypesUsed : "
-                                                + appInfo.getRecordTypesUsed());
+                                        packageName, appInfo, recordTypesUsed);
                             }
                         });
+        publishRecordTypesToContributingPackagesMap();
     }
 
-    private HashMap<String, List<Integer>> getPackageToRecordTypesMap(
-            @NonNull Map<Integer, HashSet<String>> recordTypeToContributingPackagesMap) {
-        HashMap<String, List<Integer>> packageToRecordTypesMap = new HashMap<>();
-        recordTypeToContributingPackagesMap.forEach(
-                (recordType, packageList) -> {
-                    packageList.forEach(
-                            (packageName) -> {
-                                if (packageToRecordTypesMap.containsKey(packageName)) {
-                                    packageToRecordTypesMap.get(packageName).add(recordType);
-                                } else {
-                                    packageToRecordTypesMap.put(
-                                            packageName,
-                                            new ArrayList<>() {
-                                                {
-                                                    add(recordType);
-                                                }
-                                            });
-                                }
-                            });
-                });
-        return packageToRecordTypesMap;
-    }
-
-    /**
-     * Checks and deletes record types in app info table for which the package is no longer
-     * contributing data. This is done after delete records operation has been performed.
-     */
     @SuppressLint("LongLogTag")
-    private synchronized void deleteRecordTypesForPackagesIfRequiredInternal(
-            Set<Integer> recordTypesToBeDeleted,
-            HashMap<Integer, HashSet<String>> currentRecordTypePackageMap,
-            String packageName) {
+    private synchronized void addRecordTypesUsed(Set<Integer> recordTypes, String packageName) {
         AppInfoInternal appInfo = getAppInfoMap().get(packageName);
         if (appInfo == null) {
             Log.e(
@@ -520,27 +489,32 @@ public final class AppInfoHelper {
 
             return;
         }
-        if (appInfo.getRecordTypesUsed() == null || appInfo.getRecordTypesUsed().isEmpty()) {
-            // return since this package is not contributing to any recordType and hence there
-            // is nothing to delete.
-            return;
-        }
-        Set<Integer> updatedRecordTypesUsed = new HashSet<>(appInfo.getRecordTypesUsed());
-        for (Integer recordType : recordTypesToBeDeleted) {
-            // get the distinct packages used by the record after the deletion process, check if
-            // the recordType does not have the current package then remove record type from
-            // the package's app info record.
-            if (!currentRecordTypePackageMap.get(recordType).contains(packageName)) {
-                updatedRecordTypesUsed.remove(recordType);
-            }
+
+        Set<Integer> updatedRecordTypes = new HashSet<>(recordTypes);
+        if (appInfo.getRecordTypesUsed() != null) {
+            updatedRecordTypes.addAll(appInfo.getRecordTypesUsed());
         }
-        if (updatedRecordTypesUsed.equals(appInfo.getRecordTypesUsed())) {
-            return;
+        if (!updatedRecordTypes.equals(appInfo.getRecordTypesUsed())) {
+            updateAppInfoRecordTypesUsedSync(packageName, appInfo, updatedRecordTypes);
+            publishRecordTypesToContributingPackagesMap();
         }
-        if (updatedRecordTypesUsed.isEmpty()) {
-            updatedRecordTypesUsed = null;
+    }
+
+    /** Returns the record types each app info id has records of. */
+    private Map<Long, Set<Integer>> readRecordTypesUsed() {
+        Map<Long, Set<Integer>> appInfoIdToRecordTypesMap = new HashMap<>();
+        try (Cursor cursor =
+                TransactionManager.getInitialisedInstance()
+                        .read(getRecordTypesUsedReadRequest())) {
+            while (cursor.moveToNext()) {
+                appInfoIdToRecordTypesMap
+                        .computeIfAbsent(
+                                getCursorLong(cursor, RecordHelper.APP_INFO_ID_COLUMN_NAME),
+                                (appInfoId) -> new HashSet<>())
+                        .add(getCursorInt(cursor, RECORD_TYPE_ID_COLUMN_NAME));
+            }
         }
-        updateAppInfoRecordTypesUsedSync(packageName, appInfo, updatedRecordTypesUsed);
+        return appInfoIdToRecordTypesMap;
     }
 
     @SuppressLint("LongLogTag")
@@ -572,8 +546,25 @@ public final class AppInfoHelper {
         }
     }
 
-    /** Returns a map for recordTypes and their contributing packages. */
+    /** Returns an immutable map for recordTypes and their contributing packages. */
     public Map<Integer, Set<String>> getRecordTypesToContributingPackagesMap() {
+        Map<Integer, Set<String>> recordTypeContributingPackagesMap =
+                mRecordTypesToContributingPackagesMap;
+        if (recordTypeContributingPackagesMap != null) {
+            return recordTypeContributingPackagesMap;
+        }
+        return publishRecordTypesToContributingPackagesMap();
+    }
+
+    /** Returns a read request for the record types each app info id has records of. */
+    @NonNull
+    static ReadTableRequest getRecordTypesUsedReadRequest() {
+        return new ReadTableRequest(RECORD_TYPES_USED_TABLE_NAME)
+                .setColumnNames(
+                        List.of(RecordHelper.APP_INFO_ID_COLUMN_NAME, RECORD_TYPE_ID_COLUMN_NAME));
+    }
+
+    private synchronized Map<Integer, Set<String>> publishRecordTypesToContributingPackagesMap() {
         Map<Integer, Set<String>> recordTypeContributingPackagesMap = new HashMap<>();
         Map<String, AppInfoInternal> appInfoMap = getAppInfoMap();
         appInfoMap.forEach(
@@ -594,7 +585,11 @@ public final class AppInfoHelper {
                                 });
                     }
                 });
-        return recordTypeContributingPackagesMap;
+        recordTypeContributingPackagesMap.replaceAll(
+                (recordType, packageNames) -> Collections.unmodifiableSet(packageNames));
+        mRecordTypesToContributingPackagesMap =
+                Collections.unmodifiableMap(recordTypeContributingPackagesMap);
+        return mRecordTypesToContributingPackagesMap;
     }
 
     private Map<String, AppInfoInternal> getAppInfoMap() {
@@ -625,45 +620,90 @@ public final class AppInfoHelper {
         return new AppInfoInternal(DEFAULT_LONG, packageName, appName, bitmap, null);
     }
 
-    private synchronized void insertIfNotPresent(
-            @NonNull String packageName, @NonNull AppInfoInternal appInfo) {
-        if (getAppInfoMap().containsKey(packageName)) {
-            return;
+    /**
+     * Inserts {@code appInfo} with the encoded {@code icon} if {@code packageName} has no app info
+     * yet, and returns the app info of {@code packageName}.
+     */
+    @NonNull
+    private synchronized AppInfoInternal insertIfNotPresent(
+            @NonNull String packageName,
+            @NonNull AppInfoInternal appInfo,
+            @Nullable byte[] icon) {
+        AppInfoInternal existingAppInfo = getAppInfoMap().get(packageName);
+        if (existingAppInfo != null) {
+            return existingAppInfo;
         }
 
+        ContentValues contentValues = getContentValues(packageName, appInfo);
+        contentValues.put(APP_ICON_COLUMN_NAME, icon);
         long rowId =
                 TransactionManager.getInitialisedInstance()
                         .insert(
                                 new UpsertTableRequest(
-                                        TABLE_NAME,
-                                        getContentValues(packageName, appInfo),
-                                        UNIQUE_COLUMN_INFO));
-        appInfo.setId(rowId);
-        getAppInfoMap().put(packageName, appInfo);
-        getIdPackageNameMap().put(appInfo.getId(), packageName);
+                                        TABLE_NAME, contentValues, UNIQUE_COLUMN_INFO));
+        if (appInfo.getIcon() != null) {
+            mIconCache.put(packageName, appInfo.getIcon());
+        }
+        AppInfoInternal indexedAppInfo = getAppInfoWithoutIcon(appInfo, rowId);
+        getAppInfoMap().put(packageName, indexedAppInfo);
+        getIdPackageNameMap().put(rowId, packageName);
+        return indexedAppInfo;
     }
 
-    private synchronized void updateIfPresent(String packageName, AppInfoInternal appInfoInternal) {
-        if (!getAppInfoMap().containsKey(packageName)) {
+    private synchronized void updateIfPresent(
+            String packageName, AppInfoInternal appInfoInternal, @Nullable byte[] icon) {
+        AppInfoInternal existingAppInfo = getAppInfoMap().get(packageName);
+        if (existingAppInfo == null) {
             return;
         }
 
+        ContentValues contentValues = getContentValues(packageName, appInfoInternal);
+        contentValues.put(APP_ICON_COLUMN_NAME, icon);
         UpsertTableRequest upsertTableRequest =
-                new UpsertTableRequest(
-                        TABLE_NAME,
-                        getContentValues(packageName, appInfoInternal),
-                        UNIQUE_COLUMN_INFO);
+                new UpsertTableRequest(TABLE_NAME, contentValues, UNIQUE_COLUMN_INFO);
 
         TransactionManager.getInitialisedInstance().updateTable(upsertTableRequest);
-        getAppInfoMap().put(packageName, appInfoInternal);
+        mIconCache.remove(packageName);
+        getAppInfoMap()
+                .put(
+                        packageName,
+                        getAppInfoWithoutIcon(appInfoInternal, existingAppInfo.getId()));
+    }
+
+    /** Returns the icon of {@code packageName}, decoding it from the DB if it isn't cached. */
+    @Nullable
+    private Bitmap getIcon(@NonNull String packageName) {
+        Bitmap icon = mIconCache.get(packageName);
+        if (icon != null) {
+            return icon;
+        }
+
+        ReadTableRequest request =
+                new ReadTableRequest(TABLE_NAME)
+                        .setColumnNames(List.of(APP_ICON_COLUMN_NAME))
+                        .setWhereClause(
+                                new WhereClauses()
+                                        .addWhereEqualsClause(PACKAGE_COLUMN_NAME, packageName));
+        try (Cursor cursor = TransactionManager.getInitialisedInstance().read(request)) {
+            if (cursor.moveToFirst()) {
+                icon = decodeBitmap(getCursorBlob(cursor, APP_ICON_COLUMN_NAME));
+            }
+        }
+        if (icon != null) {
+            mIconCache.put(packageName, icon);
+        }
+        return icon;
     }
 
+    /**
+     * Returns the values of the columns of {@code appInfo}, apart from its icon which is only
+     * written on insert and update of the app info itself.
+     */
     @NonNull
     private ContentValues getContentValues(String packageName, AppInfoInternal appInfo) {
         ContentValues contentValues = new ContentValues();
         contentValues.put(PACKAGE_COLUMN_NAME, packageName);
         contentValues.put(APPLICATION_COLUMN_NAME, appInfo.getName());
-        contentValues.put(APP_ICON_COLUMN_NAME, encodeBitmap(appInfo.getIcon()));
         String recordTypesUsedAsString = null;
         // Since a list of recordTypeIds cannot be saved directly in the database, record types IDs
         // are concatenated using ',' and are saved as a string.
@@ -678,6 +718,49 @@ public final class AppInfoHelper {
         return contentValues;
     }
 
+    @NonNull
+    private static CreateTableRequest getRecordTypesUsedTableCreateRequest() {
+        return new CreateTableRequest(
+                        RECORD_TYPES_USED_TABLE_NAME,
+                        List.of(
+                                new Pair<>(RecordHelper.APP_INFO_ID_COLUMN_NAME, INTEGER_NOT_NULL),
+                                new Pair<>(RECORD_TYPE_ID_COLUMN_NAME, INTEGER_NOT_NULL),
+                                new Pair<>(RECORD_COUNT_COLUMN_NAME, INTEGER_NOT_NULL)))
+                .addForeignKey(
+                        TABLE_NAME,
+                        Collections.singletonList(RecordHelper.APP_INFO_ID_COLUMN_NAME),
+                        Collections.singletonList(RecordHelper.PRIMARY_COLUMN_NAME))
+                .addUniqueConstraints(
+                        List.of(RecordHelper.APP_INFO_ID_COLUMN_NAME, RECORD_TYPE_ID_COLUMN_NAME));
+    }
+
+    /** Counts the records of each package per record type written before the counts existed. */
+    private static void populateRecordTypesUsedTable(@NonNull SQLiteDatabase db) {
+        RecordHelperProvider.getInstance()
+                .getRecordHelpers()
+                .forEach(
+                        (recordTypeId, recordHelper) ->
+                                db.execSQL(
+                                        "INSERT INTO "
+                                                + RECORD_TYPES_USED_TABLE_NAME
+                                                + " ("
+                                                + RecordHelper.APP_INFO_ID_COLUMN_NAME
+                                                + ", "
+                                                + RECORD_TYPE_ID_COLUMN_NAME
+                                                + ", "
+                                                + RECORD_COUNT_COLUMN_NAME
+                                                + ") SELECT "
+                                                + RecordHelper.APP_INFO_ID_COLUMN_NAME
+                                                + ", "
+                                                + recordTypeId
+                                                + ", COUNT(*) FROM "
+                                                + recordHelper.getMainTableName()
+                                                + " WHERE "
+                                                + RecordHelper.APP_INFO_ID_COLUMN_NAME
+                                                + " IS NOT NULL GROUP BY "
+                                                + RecordHelper.APP_INFO_ID_COLUMN_NAME));
+    }
+
     /**
      * This implementation should return the column names with which the table should be created.
      *
@@ -706,6 +789,17 @@ public final class AppInfoHelper {
         return sAppInfoHelper;
     }
 
+    @NonNull
+    private static AppInfoInternal getAppInfoWithoutIcon(
+            @NonNull AppInfoInternal appInfo, long id) {
+        return new AppInfoInternal(
+                id,
+                appInfo.getPackageName(),
+                appInfo.getName(),
+                null,
+                appInfo.getRecordTypesUsed());
+    }
+
     @Nullable
     private static byte[] encodeBitmap(@Nullable Bitmap bitmap) {
         if (bitmap == null) {
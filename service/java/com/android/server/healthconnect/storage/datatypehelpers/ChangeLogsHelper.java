@@ -20,11 +20,14 @@ import static android.health.connect.Constants.DEFAULT_LONG;
 import static android.health.connect.Constants.DELETE;
 import static android.health.connect.Constants.UPSERT;
 
+import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_CHANGE_LOG_UUIDS_TABLE;
 import static com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsRequestHelper.DEFAULT_CHANGE_LOG_TIME_PERIOD_IN_DAYS;
 import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.PRIMARY_COLUMN_NAME;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.BLOB_NON_NULL;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER_NOT_NULL;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.PRIMARY_AUTOINCREMENT;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.UUID_BYTE_SIZE;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorInt;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
 
@@ -39,6 +42,7 @@ import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.util.ArrayMap;
 import android.util.Pair;
 
+import com.android.server.healthconnect.storage.HealthConnectDatabase;
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
@@ -51,6 +55,7 @@ import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -70,6 +75,15 @@ public final class ChangeLogsHelper {
     private static final String OPERATION_TYPE_COLUMN_NAME = "operation_type";
     private static final String TIME_COLUMN_NAME = "time";
     private static final int NUM_COLS = 5;
+
+    /**
+     * Holds a row per uuid of the upsert change logs, so that the upserted records can be read
+     * with an indexed lookup instead of listing their uuids in the query.
+     */
+    public static final String UUIDS_TABLE_NAME = "change_log_uuids_table";
+
+    private static final String CHANGE_LOG_ROW_ID_COLUMN_NAME = "change_log_row_id";
+    private static final String UUID_COLUMN_NAME = "uuid";
     private static volatile ChangeLogsHelper sChangeLogsHelper;
 
     private ChangeLogsHelper() {}
@@ -88,11 +102,17 @@ public final class ChangeLogsHelper {
     public CreateTableRequest getCreateTableRequest() {
         return new CreateTableRequest(TABLE_NAME, getColumnInfo())
                 .createIndexOn(RECORD_TYPE_COLUMN_NAME)
-                .createIndexOn(APP_ID_COLUMN_NAME);
+                .createIndexOn(APP_ID_COLUMN_NAME)
+                .setChildTableRequests(List.of(getUuidsTableCreateRequest()));
     }
 
     // Called on DB update.
-    public void onUpgrade(int oldVersion, int newVersion, @NonNull SQLiteDatabase db) {}
+    public void onUpgrade(int oldVersion, int newVersion, @NonNull SQLiteDatabase db) {
+        if (oldVersion < DB_VERSION_CHANGE_LOG_UUIDS_TABLE) {
+            HealthConnectDatabase.createTable(db, getUuidsTableCreateRequest());
+            populateUuidsTable(db);
+        }
+    }
 
     /** Returns change logs post the time when {@code changeLogTokenRequest} was generated */
     public ChangeLogsResponse getChangeLogs(
@@ -133,7 +153,7 @@ public final class ChangeLogsHelper {
                     break;
                 }
                 count += addChangeLogs(cursor, operationToChangeLogMap);
-                nextChangesToken = getCursorInt(cursor, PRIMARY_COLUMN_NAME);
+                nextChangesToken = getCursorLong(cursor, PRIMARY_COLUMN_NAME);
             }
         }
 
@@ -155,15 +175,59 @@ public final class ChangeLogsHelper {
         int recordType = getCursorInt(cursor, RECORD_TYPE_COLUMN_NAME);
         @OperationType.OperationTypes
         int operationType = getCursorInt(cursor, OPERATION_TYPE_COLUMN_NAME);
-        List<UUID> uuidList = StorageUtils.getCursorUUIDList(cursor, UUIDS_COLUMN_NAME);
-        long appId = getCursorLong(cursor, APP_ID_COLUMN_NAME);
         changeLogs.putIfAbsent(
                 operationType,
                 new ChangeLogs(operationType, getCursorLong(cursor, TIME_COLUMN_NAME)));
+        if (operationType == UPSERT) {
+            // The upserted records are read by joining on the uuids table, so their uuids don't
+            // have to be decoded here.
+            changeLogs
+                    .get(operationType)
+                    .addChangeLogRowId(recordType, getCursorLong(cursor, PRIMARY_COLUMN_NAME));
+            return cursor.getBlob(cursor.getColumnIndex(UUIDS_COLUMN_NAME)).length
+                    / UUID_BYTE_SIZE;
+        }
+
+        long appId = getCursorLong(cursor, APP_ID_COLUMN_NAME);
+        List<UUID> uuidList = StorageUtils.getCursorUUIDList(cursor, UUIDS_COLUMN_NAME);
         changeLogs.get(operationType).addUUIDs(recordType, appId, uuidList);
         return uuidList.size();
     }
 
+    @NonNull
+    private static CreateTableRequest getUuidsTableCreateRequest() {
+        return new CreateTableRequest(
+                        UUIDS_TABLE_NAME,
+                        List.of(
+                                new Pair<>(CHANGE_LOG_ROW_ID_COLUMN_NAME, INTEGER_NOT_NULL),
+                                new Pair<>(UUID_COLUMN_NAME, BLOB_NON_NULL)))
+                .addForeignKey(
+                        TABLE_NAME,
+                        Collections.singletonList(CHANGE_LOG_ROW_ID_COLUMN_NAME),
+                        Collections.singletonList(PRIMARY_COLUMN_NAME));
+    }
+
+    /** Adds the uuids of the upsert change logs written before the uuids table existed. */
+    private static void populateUuidsTable(@NonNull SQLiteDatabase db) {
+        ReadTableRequest readTableRequest =
+                new ReadTableRequest(TABLE_NAME)
+                        .setColumnNames(List.of(PRIMARY_COLUMN_NAME, UUIDS_COLUMN_NAME))
+                        .setWhereClause(
+                                new WhereClauses()
+                                        .addWhereInIntsClause(
+                                                OPERATION_TYPE_COLUMN_NAME, List.of(UPSERT)));
+        try (Cursor cursor = db.rawQuery(readTableRequest.getReadCommand(), null)) {
+            while (cursor.moveToNext()) {
+                long rowId = getCursorLong(cursor, PRIMARY_COLUMN_NAME);
+                for (UUID uuid : StorageUtils.getCursorUUIDList(cursor, UUIDS_COLUMN_NAME)) {
+                    ContentValues contentValues = getUuidsTableContentValues(uuid);
+                    contentValues.put(CHANGE_LOG_ROW_ID_COLUMN_NAME, rowId);
+                    db.insertOrThrow(UUIDS_TABLE_NAME, null, contentValues);
+                }
+            }
+        }
+    }
+
     @NonNull
     private List<Pair<String, String>> getColumnInfo() {
         List<Pair<String, String>> columnInfo = new ArrayList<>(NUM_COLS);
@@ -202,21 +266,46 @@ public final class ChangeLogsHelper {
         return new ArrayList<>();
     }
 
+    /**
+     * Returns requests selecting the uuids upserted in {@code operationToChangeLogs} from the uuids
+     * table, mapped to their record type.
+     */
     @NonNull
-    public static Map<Integer, List<UUID>> getRecordTypeToInsertedUuids(
+    public static Map<Integer, ReadTableRequest> getRecordTypeToUpsertedUuidsReadRequests(
             Map<Integer, ChangeLogs> operationToChangeLogs) {
         ChangeLogs logs = operationToChangeLogs.getOrDefault(UPSERT, null);
-
-        if (!Objects.isNull(logs)) {
-            return logs.getRecordTypeToUUIDMap();
+        Map<Integer, ReadTableRequest> requests = new ArrayMap<>();
+        if (Objects.isNull(logs)) {
+            return requests;
         }
 
-        return new ArrayMap<>(0);
+        // The row ids are not bound, as a page can hold more change logs than the bind argument
+        // limit of older SQLite versions.
+        logs.mRecordTypeToChangeLogRowIds.forEach(
+                (recordType, rowIds) ->
+                        requests.put(
+                                recordType,
+                                new ReadTableRequest(UUIDS_TABLE_NAME)
+                                        .setColumnNames(List.of(UUID_COLUMN_NAME))
+                                        .setWhereClause(
+                                                new WhereClauses()
+                                                        .addWhereInLongsClause(
+                                                                CHANGE_LOG_ROW_ID_COLUMN_NAME,
+                                                                rowIds))));
+        return requests;
+    }
+
+    @NonNull
+    private static ContentValues getUuidsTableContentValues(@NonNull UUID uuid) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(UUID_COLUMN_NAME, StorageUtils.convertUUIDToBytes(uuid));
+        return contentValues;
     }
 
     public static final class ChangeLogs {
         private final Map<RecordTypeAndAppIdPair, List<UUID>> mRecordTypeAndAppIdToUUIDMap =
                 new ArrayMap<>();
+        private final Map<Integer, List<Long>> mRecordTypeToChangeLogRowIds = new ArrayMap<>();
         @OperationType.OperationTypes private final int mOperationType;
         private final String mPackageName;
         private final long mChangeLogTimeStamp;
@@ -251,20 +340,6 @@ public final class ChangeLogsHelper {
             mPackageName = null;
         }
 
-        public Map<Integer, List<UUID>> getRecordTypeToUUIDMap() {
-            Map<Integer, List<UUID>> recordTypeToUUIDMap = new ArrayMap<>();
-            mRecordTypeAndAppIdToUUIDMap.forEach(
-                    (recordTypeAndAppIdPair, uuids) -> {
-                        recordTypeToUUIDMap.putIfAbsent(
-                                recordTypeAndAppIdPair.getRecordType(), new ArrayList<>());
-                        Objects.requireNonNull(
-                                        recordTypeToUUIDMap.get(
-                                                recordTypeAndAppIdPair.getRecordType()))
-                                .addAll(uuids);
-                    });
-            return recordTypeToUUIDMap;
-        }
-
         public List<UUID> getUUIds() {
             return mRecordTypeAndAppIdToUUIDMap.values().stream()
                     .flatMap(Collection::stream)
@@ -307,11 +382,26 @@ public final class ChangeLogsHelper {
                         contentValues.put(TIME_COLUMN_NAME, mChangeLogTimeStamp);
                         contentValues.put(
                                 UUIDS_COLUMN_NAME, StorageUtils.getSingleByteArray(uuids));
-                        requests.add(new UpsertTableRequest(TABLE_NAME, contentValues));
+                        UpsertTableRequest request =
+                                new UpsertTableRequest(TABLE_NAME, contentValues);
+                        if (mOperationType == UPSERT) {
+                            request.setChildTableRequests(getUuidsTableUpsertRequests(uuids));
+                        }
+                        requests.add(request);
                     });
             return requests;
         }
 
+        private static List<UpsertTableRequest> getUuidsTableUpsertRequests(List<UUID> uuids) {
+            List<UpsertTableRequest> requests = new ArrayList<>(uuids.size());
+            for (UUID uuid : uuids) {
+                requests.add(
+                        new UpsertTableRequest(UUIDS_TABLE_NAME, getUuidsTableContentValues(uuid))
+                                .setParentColumnForChildTables(CHANGE_LOG_ROW_ID_COLUMN_NAME));
+            }
+            return requests;
+        }
+
         public ChangeLogs addUUIDs(
                 @RecordTypeIdentifier.RecordType int recordType,
                 @NonNull long appId,
@@ -323,8 +413,15 @@ public final class ChangeLogsHelper {
             return this;
         }
 
+        /** Adds a read upsert change log, whose uuids are kept in the uuids table. */
+        void addChangeLogRowId(@RecordTypeIdentifier.RecordType int recordType, long rowId) {
+            mRecordTypeToChangeLogRowIds.putIfAbsent(recordType, new ArrayList<>());
+            mRecordTypeToChangeLogRowIds.get(recordType).add(rowId);
+        }
+
         public void clear() {
             mRecordTypeAndAppIdToUUIDMap.clear();
+            mRecordTypeToChangeLogRowIds.clear();
         }
 
         /** A helper class to create a pair of recordType and appId */
@@ -16,14 +16,17 @@
 
 package com.android.server.healthconnect.storage.datatypehelpers;
 
+import static android.health.connect.Constants.DEFAULT_LONG;
+
+import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_STATELESS_PAGE_TOKENS;
 import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.PRIMARY_COLUMN_NAME;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.DELIMITER;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.PRIMARY;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.TEXT_NOT_NULL;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.TEXT_NULL;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorInt;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorIntegerList;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorString;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorStringList;
 
@@ -64,12 +67,24 @@ public final class ChangeLogsRequestHelper {
     private static final String PACKAGE_NAME_COLUMN_NAME = "package_name";
     private static final String ROW_ID_CHANGE_LOGS_TABLE_COLUMN_NAME = "row_id_change_logs_table";
     private static final String TIME_COLUMN_NAME = "time";
+    // Tokens in use are kept from auto delete by refreshing their time at most once this often.
+    private static final long TOKEN_REFRESH_INTERVAL_IN_DAYS = 1;
+    // Separates the row id of the token from the row id of the change logs in page tokens.
+    private static final char PAGE_TOKEN_SEPARATOR = ':';
     private static volatile ChangeLogsRequestHelper sChangeLogsRequestHelper;
 
     private ChangeLogsRequestHelper() {}
 
     // Called on DB update.
-    public void onUpgrade(int oldVersion, int newVersion, @NonNull SQLiteDatabase db) {}
+    public void onUpgrade(int oldVersion, int newVersion, @NonNull SQLiteDatabase db) {
+        if (oldVersion < DB_VERSION_STATELESS_PAGE_TOKENS) {
+            // Page tokens used to be stored without a time, so auto delete never removed them.
+            // Stamp them now, so that they are removed once they expire like the other tokens.
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(TIME_COLUMN_NAME, Instant.now().toEpochMilli());
+            db.update(TABLE_NAME, contentValues, TIME_COLUMN_NAME + " IS NULL", null);
+        }
+    }
 
     @NonNull
     public CreateTableRequest getCreateTableRequest() {
@@ -136,11 +151,18 @@ public final class ChangeLogsRequestHelper {
 
     @NonNull
     public static TokenRequest getRequest(@NonNull String packageName, @NonNull String token) {
+        String tokenRowId = token;
+        long pageRowIdChangeLogs = DEFAULT_LONG;
+        int separatorIndex = token.indexOf(PAGE_TOKEN_SEPARATOR);
+        if (separatorIndex >= 0) {
+            tokenRowId = token.substring(0, separatorIndex);
+            pageRowIdChangeLogs = parseRowId(token.substring(separatorIndex + 1));
+        }
         ReadTableRequest readTableRequest =
                 new ReadTableRequest(TABLE_NAME)
                         .setWhereClause(
                                 new WhereClauses()
-                                        .addWhereEqualsClause(PRIMARY_COLUMN_NAME, token)
+                                        .addWhereEqualsClause(PRIMARY_COLUMN_NAME, tokenRowId)
                                         .addWhereEqualsClause(
                                                 PACKAGE_NAME_COLUMN_NAME, packageName));
         TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
@@ -149,56 +171,97 @@ public final class ChangeLogsRequestHelper {
                 throw new IllegalArgumentException("Invalid token");
             }
 
+            long rowIdChangeLogs = getCursorLong(cursor, ROW_ID_CHANGE_LOGS_TABLE_COLUMN_NAME);
+            if (pageRowIdChangeLogs != DEFAULT_LONG) {
+                // Pages only move forward from where the token started.
+                if (pageRowIdChangeLogs < rowIdChangeLogs) {
+                    throw new IllegalArgumentException("Invalid token");
+                }
+                rowIdChangeLogs = pageRowIdChangeLogs;
+            }
+            long rowId = getCursorLong(cursor, PRIMARY_COLUMN_NAME);
+            refreshTimeIfStale(transactionManager, rowId, getCursorLong(cursor, TIME_COLUMN_NAME));
             return new TokenRequest(
+                    rowId,
                     getCursorStringList(cursor, PACKAGES_TO_FILTERS_COLUMN_NAME, DELIMITER),
                     getCursorIntegerList(cursor, RECORD_TYPES_COLUMN_NAME, DELIMITER),
                     getCursorString(cursor, PACKAGE_NAME_COLUMN_NAME),
-                    getCursorInt(cursor, ROW_ID_CHANGE_LOGS_TABLE_COLUMN_NAME));
+                    rowIdChangeLogs);
         }
     }
 
+    /**
+     * Returns the token for the page after {@code nextRowId}, made of the row id of the token the
+     * pages come from and of {@code nextRowId}, so that paging doesn't need to store anything.
+     */
     @NonNull
     public static String getNextPageToken(TokenRequest changeLogTokenRequest, long nextRowId) {
+        return changeLogTokenRequest.getTokenRowId() + PAGE_TOKEN_SEPARATOR + nextRowId;
+    }
+
+    /**
+     * Page tokens are not stored, so a token that keeps being paged through must not expire
+     * {@link #DEFAULT_CHANGE_LOG_TIME_PERIOD_IN_DAYS} after it was created. Its time is moved to
+     * now when the token is used, but at most once per {@link #TOKEN_REFRESH_INTERVAL_IN_DAYS} so
+     * that reading pages stays free of writes.
+     */
+    private static void refreshTimeIfStale(
+            @NonNull TransactionManager transactionManager, long tokenRowId, long time) {
+        Instant now = Instant.now();
+        if (time > now.minus(TOKEN_REFRESH_INTERVAL_IN_DAYS, ChronoUnit.DAYS).toEpochMilli()) {
+            return;
+        }
+
         ContentValues contentValues = new ContentValues();
-        contentValues.put(
-                PACKAGES_TO_FILTERS_COLUMN_NAME,
-                String.join(DELIMITER, changeLogTokenRequest.getPackageNamesToFilter()));
-        contentValues.put(
-                RECORD_TYPES_COLUMN_NAME,
-                StorageUtils.flattenIntList(changeLogTokenRequest.getRecordTypes()));
-        contentValues.put(
-                PACKAGE_NAME_COLUMN_NAME, changeLogTokenRequest.getRequestingPackageName());
-        contentValues.put(ROW_ID_CHANGE_LOGS_TABLE_COLUMN_NAME, nextRowId);
+        contentValues.put(TIME_COLUMN_NAME, now.toEpochMilli());
+        transactionManager.updateTable(
+                new UpsertTableRequest(TABLE_NAME, contentValues)
+                        .setUpdateWhereClauses(
+                                new WhereClauses()
+                                        .addWhereEqualsClause(
+                                                PRIMARY_COLUMN_NAME, String.valueOf(tokenRowId))));
+    }
 
-        return String.valueOf(
-                TransactionManager.getInitialisedInstance()
-                        .insert(new UpsertTableRequest(TABLE_NAME, contentValues)));
+    private static long parseRowId(@NonNull String rowId) {
+        try {
+            return Long.parseLong(rowId);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid token", e);
+        }
     }
 
     /** A class to represent the request corresponding to a token */
     public static final class TokenRequest {
+        private final long mTokenRowId;
         private final List<String> mPackageNamesToFilter;
         private final List<Integer> mRecordTypes;
         private final String mRequestingPackageName;
         private final long mRowIdChangeLogs;
 
         /**
+         * @param tokenRowId row id of the token in the change log request table
          * @param requestingPackageName contributing package name
          * @param packageNamesToFilter package names to filter
          * @param recordTypes records to filter
          * @param rowIdChangeLogs row id of change log table after which the logs are to be fetched
          */
         public TokenRequest(
+                long tokenRowId,
                 @NonNull List<String> packageNamesToFilter,
                 @NonNull List<Integer> recordTypes,
                 @NonNull String requestingPackageName,
                 long rowIdChangeLogs) {
+            mTokenRowId = tokenRowId;
             mPackageNamesToFilter = packageNamesToFilter;
             mRecordTypes = recordTypes;
             mRequestingPackageName = requestingPackageName;
             mRowIdChangeLogs = rowIdChangeLogs;
         }
 
+        public long getTokenRowId() {
+            return mTokenRowId;
+        }
+
         public long getRowIdChangeLogs() {
             return mRowIdChangeLogs;
         }
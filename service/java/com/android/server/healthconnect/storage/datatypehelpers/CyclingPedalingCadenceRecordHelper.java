@@ -18,12 +18,7 @@ package com.android.server.healthconnect.storage.datatypehelpers;
 
 import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.REAL;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorDouble;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorUUID;
 
-import android.content.ContentValues;
-import android.database.Cursor;
 import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.health.connect.internal.datatypes.CyclingPedalingCadenceRecordInternal;
 import android.util.Pair;
@@ -31,9 +26,7 @@ import android.util.Pair;
 import androidx.annotation.NonNull;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.UUID;
 
 /**
  * Helper class for CyclingPedalingCadenceRecord.
@@ -48,7 +41,6 @@ public class CyclingPedalingCadenceRecordHelper
     private static final String TABLE_NAME = "CyclingPedalingCadenceRecordTable";
     private static final String SERIES_TABLE_NAME = "cycling_pedaling_cadence_record_table";
     private static final String REVOLUTIONS_PER_MINUTE_COLUMN_NAME = "revolutions_per_minute";
-    private static final String EPOCH_MILLIS_COLUMN_NAME = "epoch_millis";
 
     public CyclingPedalingCadenceRecordHelper() {
         super(RecordTypeIdentifier.RECORD_TYPE_CYCLING_PEDALING_CADENCE);
@@ -72,34 +64,29 @@ public class CyclingPedalingCadenceRecordHelper
         return SERIES_TABLE_NAME;
     }
 
-    /** Populates the {@code record} with values specific to datatype */
     @Override
-    void populateSpecificValues(
-            @NonNull Cursor seriesTableCursor, CyclingPedalingCadenceRecordInternal record) {
-        HashSet<CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample>
-                cyclingPedalingCadenceRecordSampleSet = new HashSet<>();
-        UUID uuid = getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME);
-        do {
-            cyclingPedalingCadenceRecordSampleSet.add(
-                    new CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample(
-                            getCursorDouble(seriesTableCursor, REVOLUTIONS_PER_MINUTE_COLUMN_NAME),
-                            getCursorLong(seriesTableCursor, EPOCH_MILLIS_COLUMN_NAME)));
-        } while (seriesTableCursor.moveToNext()
-                && uuid.equals(getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME)));
-        // In case we hit another record, move the cursor back to read next record in outer
-        // RecordHelper#getInternalRecords loop.
-        seriesTableCursor.moveToPrevious();
-        record.setSamples(cyclingPedalingCadenceRecordSampleSet);
+    String getSeriesValueColumnName() {
+        return REVOLUTIONS_PER_MINUTE_COLUMN_NAME;
     }
 
     @Override
-    void populateSampleTo(
-            ContentValues contentValues,
-            CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample
+    long getEpochMillis(
+            @NonNull CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample
                     cyclingPedalingCadenceRecord) {
-        contentValues.put(
-                REVOLUTIONS_PER_MINUTE_COLUMN_NAME,
-                cyclingPedalingCadenceRecord.getRevolutionsPerMinute());
-        contentValues.put(EPOCH_MILLIS_COLUMN_NAME, cyclingPedalingCadenceRecord.getEpochMillis());
+        return cyclingPedalingCadenceRecord.getEpochMillis();
+    }
+
+    @Override
+    double getValue(
+            @NonNull CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample
+                    cyclingPedalingCadenceRecord) {
+        return cyclingPedalingCadenceRecord.getRevolutionsPerMinute();
+    }
+
+    @Override
+    CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample createSample(
+            double value, long epochMillis) {
+        return new CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample(
+                value, epochMillis);
     }
 }
@@ -21,6 +21,9 @@ import android.content.Context;
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
 
+import java.util.Map;
+import java.util.function.Predicate;
+
 /**
  * Helper class to collect Health Connect database stats for logging.
  *
@@ -36,48 +39,20 @@ public class DatabaseStatsCollector {
 
     /** Get the number of interval record entries in Health Connect database. */
     public static long getNumberOfIntervalRecordRows() {
-        final TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
-        long count = 0L;
-        for (RecordHelper<?> recordHelper :
-                RecordHelperProvider.getInstance().getRecordHelpers().values()) {
-            if (recordHelper instanceof IntervalRecordHelper
-                    && !(recordHelper instanceof SeriesRecordHelper)) {
-                count +=
-                        transactionManager.getNumberOfEntriesInTheTable(
-                                recordHelper.getMainTableName());
-            }
-        }
-        return count;
+        return getNumberOfRecordRows(
+                recordHelper ->
+                        recordHelper instanceof IntervalRecordHelper
+                                && !(recordHelper instanceof SeriesRecordHelper));
     }
 
     /** Get the number of series record entries in Health Connect database. */
     public static long getNumberOfSeriesRecordRows() {
-        final TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
-        long count = 0L;
-        for (RecordHelper<?> recordHelper :
-                RecordHelperProvider.getInstance().getRecordHelpers().values()) {
-            if (recordHelper instanceof SeriesRecordHelper) {
-                count +=
-                        transactionManager.getNumberOfEntriesInTheTable(
-                                recordHelper.getMainTableName());
-            }
-        }
-        return count;
+        return getNumberOfRecordRows(recordHelper -> recordHelper instanceof SeriesRecordHelper);
     }
 
     /** Get the number of instant record entries in Health Connect database. */
     public static long getNumberOfInstantRecordRows() {
-        final TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
-        long count = 0L;
-        for (RecordHelper<?> recordHelper :
-                RecordHelperProvider.getInstance().getRecordHelpers().values()) {
-            if (recordHelper instanceof InstantRecordHelper) {
-                count +=
-                        transactionManager.getNumberOfEntriesInTheTable(
-                                recordHelper.getMainTableName());
-            }
-        }
-        return count;
+        return getNumberOfRecordRows(recordHelper -> recordHelper instanceof InstantRecordHelper);
     }
 
     /** Get the number of change log entries in Health Connect database. */
@@ -85,4 +60,19 @@ public class DatabaseStatsCollector {
         return TransactionManager.getInitialisedInstance()
                 .getNumberOfEntriesInTheTable(ChangeLogsHelper.TABLE_NAME);
     }
+
+    /** Sums the record counts kept by {@link RecordStatsHelper} of the matching record types. */
+    private static long getNumberOfRecordRows(Predicate<RecordHelper<?>> recordHelperFilter) {
+        Map<Integer, RecordHelper<?>> recordHelpers =
+                RecordHelperProvider.getInstance().getRecordHelpers();
+        long count = 0L;
+        for (Map.Entry<Integer, Long> entry :
+                RecordStatsHelper.getInstance().getRecordCounts().entrySet()) {
+            RecordHelper<?> recordHelper = recordHelpers.get(entry.getKey());
+            if (recordHelper != null && recordHelperFilter.test(recordHelper)) {
+                count += entry.getValue();
+            }
+        }
+        return count;
+    }
 }
@@ -31,6 +31,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.health.connect.datatypes.Device.DeviceType;
 import android.health.connect.internal.datatypes.RecordInternal;
+import android.util.ArrayMap;
 import android.util.Pair;
 
 import com.android.server.healthconnect.storage.TransactionManager;
@@ -81,11 +82,28 @@ public class DeviceInfoHelper {
         String model = recordInternal.getModel();
         int deviceType = recordInternal.getDeviceType();
         DeviceInfo deviceInfo = new DeviceInfo(manufacturer, model, deviceType);
-        long rowId = getDeviceInfoMap().getOrDefault(deviceInfo, DEFAULT_LONG);
-        if (rowId == DEFAULT_LONG) {
-            rowId = insertIfNotPresent(deviceInfo);
+        recordInternal.setDeviceInfoId(getOrInsertDeviceInfoId(deviceInfo));
+    }
+
+    /**
+     * Returns the ids of the device infos read by {@code cursor} from the device info table of
+     * another database, such as a staged one, keyed by their ids in that database. Device infos
+     * which aren't present yet are inserted.
+     */
+    @NonNull
+    public Map<Long, Long> getOrInsertDeviceInfoIds(@NonNull Cursor cursor) {
+        Map<Long, Long> deviceInfoIds = new ArrayMap<>();
+        while (cursor.moveToNext()) {
+            DeviceInfo deviceInfo =
+                    new DeviceInfo(
+                            getCursorString(cursor, MANUFACTURER_COLUMN_NAME),
+                            getCursorString(cursor, MODEL_COLUMN_NAME),
+                            getCursorInt(cursor, DEVICE_TYPE_COLUMN_NAME));
+            deviceInfoIds.put(
+                    getCursorLong(cursor, RecordHelper.PRIMARY_COLUMN_NAME),
+                    getOrInsertDeviceInfoId(deviceInfo));
         }
-        recordInternal.setDeviceInfoId(rowId);
+        return deviceInfoIds;
     }
 
     /**
@@ -152,6 +170,14 @@ public class DeviceInfoHelper {
         return mDeviceInfoMap;
     }
 
+    private long getOrInsertDeviceInfoId(DeviceInfo deviceInfo) {
+        long rowId = getDeviceInfoMap().getOrDefault(deviceInfo, DEFAULT_LONG);
+        if (rowId == DEFAULT_LONG) {
+            rowId = insertIfNotPresent(deviceInfo);
+        }
+        return rowId;
+    }
+
     private synchronized long insertIfNotPresent(DeviceInfo deviceInfo) {
         Long currentRowId = getDeviceInfoMap().get(deviceInfo);
         if (currentRowId != null) {
@@ -60,7 +60,6 @@ import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.request.ReadTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
 import com.android.server.healthconnect.storage.utils.SqlJoin;
-import com.android.server.healthconnect.storage.utils.StorageUtils;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
 
 import java.util.ArrayList;
@@ -313,7 +312,7 @@ public final class ExerciseSessionRecordHelper
     @Override
     List<ReadTableRequest> getExtraDataReadRequests(
             String packageName,
-            List<UUID> uuids,
+            ReadTableRequest uuidsReadRequest,
             long startDateAccess,
             Map<String, Boolean> extraPermsState) {
         int routeAccessType = getExerciseRouteReadAccessType(packageName, extraPermsState);
@@ -324,8 +323,8 @@ public final class ExerciseSessionRecordHelper
 
         WhereClauses sessionsWithAccessibleRouteClause =
                 new WhereClauses()
-                        .addWhereInClauseWithoutQuotes(
-                                UUID_COLUMN_NAME, StorageUtils.getListOfHexString(uuids))
+                        .setUseBindArgs(true)
+                        .addWhereInSQLRequestClause(UUID_COLUMN_NAME, uuidsReadRequest)
                         .addWhereLaterThanTimeClause(getStartTimeColumnName(), startDateAccess);
 
         if (routeAccessType == ROUTE_READ_ACCESS_TYPE_OWN) {
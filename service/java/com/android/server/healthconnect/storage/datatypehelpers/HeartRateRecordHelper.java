@@ -22,11 +22,8 @@ import static android.health.connect.datatypes.AggregationType.AggregationTypeId
 import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.HEART_RATE_RECORD_MEASUREMENTS_COUNT;
 
 import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorInt;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorUUID;
 
-import android.content.ContentValues;
+import android.annotation.NonNull;
 import android.database.Cursor;
 import android.health.connect.AggregateResult;
 import android.health.connect.datatypes.AggregationType;
@@ -36,13 +33,9 @@ import android.util.Pair;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.healthconnect.storage.request.AggregateParams;
-import com.android.server.healthconnect.storage.utils.SqlJoin;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.UUID;
 
 /**
  * Helper class for HeartRateRecord.
@@ -57,7 +50,6 @@ public class HeartRateRecordHelper
     public static final int NUM_LOCAL_COLUMNS = 2;
     private static final String SERIES_TABLE_NAME = "heart_rate_record_series_table";
     private static final String BEATS_PER_MINUTE_COLUMN_NAME = "beats_per_minute";
-    private static final String EPOCH_MILLIS_COLUMN_NAME = "epoch_millis";
 
     public HeartRateRecordHelper() {
         super(RecordTypeIdentifier.RECORD_TYPE_HEART_RATE);
@@ -92,15 +84,7 @@ public class HeartRateRecordHelper
             case HEART_RATE_RECORD_BPM_MIN:
             case HEART_RATE_RECORD_BPM_AVG:
             case HEART_RATE_RECORD_MEASUREMENTS_COUNT:
-                return new AggregateParams(
-                                SERIES_TABLE_NAME,
-                                Collections.singletonList(BEATS_PER_MINUTE_COLUMN_NAME))
-                        .setJoin(
-                                new SqlJoin(
-                                        SERIES_TABLE_NAME,
-                                        TABLE_NAME,
-                                        PARENT_KEY_COLUMN_NAME,
-                                        PRIMARY_COLUMN_NAME));
+                return getSamplesAggregateParams(aggregateRequest, BEATS_PER_MINUTE_COLUMN_NAME);
             default:
                 return null;
         }
@@ -120,26 +104,27 @@ public class HeartRateRecordHelper
     }
 
     @Override
-    void populateSpecificValues(Cursor seriesTableCursor, HeartRateRecordInternal record) {
-        HashSet<HeartRateRecordInternal.HeartRateSample> heartRateSamplesSet = new HashSet<>();
-        UUID uuid = getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME);
-        do {
-            heartRateSamplesSet.add(
-                    new HeartRateRecordInternal.HeartRateSample(
-                            getCursorInt(seriesTableCursor, BEATS_PER_MINUTE_COLUMN_NAME),
-                            getCursorLong(seriesTableCursor, EPOCH_MILLIS_COLUMN_NAME)));
-        } while (seriesTableCursor.moveToNext()
-                && uuid.equals(getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME)));
-        // In case we hit another record, move the cursor back to read next record in outer
-        // RecordHelper#getInternalRecords loop.
-        seriesTableCursor.moveToPrevious();
-        record.setSamples(heartRateSamplesSet);
+    final String getSeriesValueColumnName() {
+        return BEATS_PER_MINUTE_COLUMN_NAME;
     }
 
     @Override
-    final void populateSampleTo(
-            ContentValues contentValues, HeartRateRecordInternal.HeartRateSample heartRateSample) {
-        contentValues.put(BEATS_PER_MINUTE_COLUMN_NAME, heartRateSample.getBeatsPerMinute());
-        contentValues.put(EPOCH_MILLIS_COLUMN_NAME, heartRateSample.getEpochMillis());
+    final long getEpochMillis(@NonNull HeartRateRecordInternal.HeartRateSample heartRateSample) {
+        return heartRateSample.getEpochMillis();
+    }
+
+    @Override
+    final double getValue(@NonNull HeartRateRecordInternal.HeartRateSample heartRateSample) {
+        return heartRateSample.getBeatsPerMinute();
+    }
+
+    @Override
+    final HeartRateRecordInternal.HeartRateSample createSample(double value, long epochMillis) {
+        return new HeartRateRecordInternal.HeartRateSample((int) value, epochMillis);
+    }
+
+    @Override
+    final boolean hasIntegerValues() {
+        return true;
     }
 }
@@ -17,6 +17,8 @@
 package com.android.server.healthconnect.storage.datatypehelpers;
 
 import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_GENERATED_LOCAL_TIME;
+import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_INSTANT_TIME_INDEX;
+import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_TIME_INDEXES;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorInt;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
@@ -31,6 +33,7 @@ import android.health.connect.internal.datatypes.InstantRecordInternal;
 import android.util.Pair;
 
 import com.android.server.healthconnect.storage.request.AlterTableRequest;
+import com.android.server.healthconnect.storage.request.CreateIndexRequest;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.utils.StorageUtils;
 
@@ -97,6 +100,34 @@ public abstract class InstantRecordHelper<T extends InstantRecordInternal<?>>
             // Ignore this means the field exists. This is possible via module rollback followed by
             // an upgrade
         }
+        // Older databases get all the indexes of getCreateIndexRequests in RecordHelper.onUpgrade.
+        if (oldVersion >= DB_VERSION_TIME_INDEXES && oldVersion < DB_VERSION_INSTANT_TIME_INDEX) {
+            try {
+                db.execSQL(getTimeIndexRequest().getCommand());
+            } catch (SQLException sqlException) {
+                // Ignore this means the index exists. This is possible via module rollback
+                // followed by an upgrade
+            }
+        }
+        super.onUpgrade(db, oldVersion, newVersion);
+    }
+
+    @Override
+    @NonNull
+    List<CreateIndexRequest> getCreateIndexRequests() {
+        List<CreateIndexRequest> indexRequests = super.getCreateIndexRequests();
+        indexRequests.add(getTimeIndexRequest());
+        return indexRequests;
+    }
+
+    /** Auto delete goes through the oldest records of all apps at once, in the order of time. */
+    @NonNull
+    private CreateIndexRequest getTimeIndexRequest() {
+        return new CreateIndexRequest(
+                getMainTableName(),
+                getIndexName(TIME_COLUMN_NAME),
+                /* isUnique= */ false,
+                List.of(TIME_COLUMN_NAME));
     }
 
     @Override
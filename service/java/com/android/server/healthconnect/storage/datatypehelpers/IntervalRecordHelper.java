@@ -31,6 +31,7 @@ import android.health.connect.internal.datatypes.IntervalRecordInternal;
 import android.util.Pair;
 
 import com.android.server.healthconnect.storage.request.AlterTableRequest;
+import com.android.server.healthconnect.storage.request.CreateIndexRequest;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.utils.StorageUtils;
 
@@ -110,6 +111,20 @@ public abstract class IntervalRecordHelper<T extends IntervalRecordInternal<?>>
             // Ignore this means the field exists. This is possible via module rollback followed by
             // an upgrade
         }
+        super.onUpgrade(db, oldVersion, newVersion);
+    }
+
+    @Override
+    @NonNull
+    List<CreateIndexRequest> getCreateIndexRequests() {
+        List<CreateIndexRequest> indexRequests = super.getCreateIndexRequests();
+        indexRequests.add(
+                new CreateIndexRequest(
+                        getMainTableName(),
+                        getIndexName(START_TIME_COLUMN_NAME, END_TIME_COLUMN_NAME),
+                        /* isUnique= */ false,
+                        List.of(START_TIME_COLUMN_NAME, END_TIME_COLUMN_NAME)));
+        return indexRequests;
     }
 
     @Override
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import android.annotation.NonNull;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Creates triggers which keep, in a counts table, the number of records of each record type per
+ * value of a column of the record tables. A row of the counts table is removed once its count
+ * reaches zero.
+ *
+ * <p>The counts table is keyed by the counted value and the record type id, and must have a unique
+ * constraint on these two columns.
+ *
+ * <p>Other tables derived from the record tables, such as the record stats, create their triggers
+ * with {@link #createTriggers} so that all such triggers have the same shape.
+ *
+ * @hide
+ */
+final class RecordCountTriggers {
+    private static final String NEW_ROW = "NEW";
+    private static final String OLD_ROW = "OLD";
+
+    private final String mCountsTableName;
+    private final String mValueColumnName;
+    private final String mRecordTypeIdColumnName;
+    private final String mRecordCountColumnName;
+    private final String mTriggerName;
+
+    RecordCountTriggers(
+            @NonNull String countsTableName,
+            @NonNull String valueColumnName,
+            @NonNull String recordTypeIdColumnName,
+            @NonNull String recordCountColumnName,
+            @NonNull String triggerName) {
+        mCountsTableName = Objects.requireNonNull(countsTableName);
+        mValueColumnName = Objects.requireNonNull(valueColumnName);
+        mRecordTypeIdColumnName = Objects.requireNonNull(recordTypeIdColumnName);
+        mRecordCountColumnName = Objects.requireNonNull(recordCountColumnName);
+        mTriggerName = Objects.requireNonNull(triggerName);
+    }
+
+    /**
+     * Creates the triggers counting the records of {@code recordTypeId} per value of {@code
+     * columnName} in {@code tableName}. Records whose value is null are not counted.
+     */
+    void create(
+            @NonNull SQLiteDatabase db,
+            int recordTypeId,
+            @NonNull String tableName,
+            @NonNull String columnName) {
+        List<String> insertStatements =
+                List.of(getIncrementCountCommand(recordTypeId, NEW_ROW + "." + columnName));
+        List<String> deleteStatements =
+                getDecrementCountCommands(recordTypeId, OLD_ROW + "." + columnName);
+        List<String> updateStatements = new ArrayList<>(deleteStatements);
+        updateStatements.addAll(insertStatements);
+
+        createTriggers(
+                db,
+                tableName,
+                mTriggerName,
+                columnName,
+                insertStatements,
+                deleteStatements,
+                updateStatements);
+    }
+
+    /**
+     * Creates the insert, delete and update triggers named {@code
+     * <tableName>_<triggerName>_<event>} on {@code tableName}, running the given statements. The
+     * update trigger only runs when the value of {@code columnName} changes.
+     */
+    static void createTriggers(
+            @NonNull SQLiteDatabase db,
+            @NonNull String tableName,
+            @NonNull String triggerName,
+            @NonNull String columnName,
+            @NonNull List<String> insertStatements,
+            @NonNull List<String> deleteStatements,
+            @NonNull List<String> updateStatements) {
+        db.execSQL(
+                getCreateTriggerCommand(
+                        tableName, triggerName, "insert", "AFTER INSERT", "", insertStatements));
+        db.execSQL(
+                getCreateTriggerCommand(
+                        tableName, triggerName, "delete", "AFTER DELETE", "", deleteStatements));
+        db.execSQL(
+                getCreateTriggerCommand(
+                        tableName,
+                        triggerName,
+                        "update",
+                        "AFTER UPDATE OF " + columnName,
+                        " WHEN "
+                                + OLD_ROW
+                                + "."
+                                + columnName
+                                + " IS NOT "
+                                + NEW_ROW
+                                + "."
+                                + columnName,
+                        updateStatements));
+    }
+
+    private static String getCreateTriggerCommand(
+            String tableName,
+            String triggerName,
+            String name,
+            String event,
+            String condition,
+            List<String> statements) {
+        return "CREATE TRIGGER IF NOT EXISTS "
+                + tableName
+                + "_"
+                + triggerName
+                + "_"
+                + name
+                + " "
+                + event
+                + " ON "
+                + tableName
+                + condition
+                + " BEGIN "
+                + String.join("; ", statements)
+                + "; END";
+    }
+
+    private String getIncrementCountCommand(int recordTypeId, String value) {
+        return "INSERT INTO "
+                + mCountsTableName
+                + " ("
+                + mValueColumnName
+                + ", "
+                + mRecordTypeIdColumnName
+                + ", "
+                + mRecordCountColumnName
+                + ") SELECT "
+                + value
+                + ", "
+                + recordTypeId
+                + ", 1 WHERE "
+                + value
+                + " IS NOT NULL ON CONFLICT ("
+                + mValueColumnName
+                + ", "
+                + mRecordTypeIdColumnName
+                + ") DO UPDATE SET "
+                + mRecordCountColumnName
+                + " = "
+                + mRecordCountColumnName
+                + " + 1";
+    }
+
+    private List<String> getDecrementCountCommands(int recordTypeId, String value) {
+        String whereClause =
+                " WHERE "
+                        + mValueColumnName
+                        + " = "
+                        + value
+                        + " AND "
+                        + mRecordTypeIdColumnName
+                        + " = "
+                        + recordTypeId;
+        return List.of(
+                "UPDATE "
+                        + mCountsTableName
+                        + " SET "
+                        + mRecordCountColumnName
+                        + " = "
+                        + mRecordCountColumnName
+                        + " - 1"
+                        + whereClause,
+                "DELETE FROM "
+                        + mCountsTableName
+                        + whereClause
+                        + " AND "
+                        + mRecordCountColumnName
+                        + " <= 0");
+    }
+}
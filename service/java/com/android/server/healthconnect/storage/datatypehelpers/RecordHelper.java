@@ -20,6 +20,7 @@ import static android.health.connect.Constants.DEFAULT_INT;
 import static android.health.connect.Constants.DEFAULT_LONG;
 import static android.health.connect.Constants.MAXIMUM_PAGE_SIZE;
 
+import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_TIME_INDEXES;
 import static com.android.server.healthconnect.storage.datatypehelpers.IntervalRecordHelper.END_TIME_COLUMN_NAME;
 import static com.android.server.healthconnect.storage.request.ReadTransactionRequest.TYPE_NOT_PRESENT_PACKAGE_NAME;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.BLOB_UNIQUE_NON_NULL;
@@ -27,16 +28,13 @@ import static com.android.server.healthconnect.storage.utils.StorageUtils.BLOB_U
 import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.PRIMARY_AUTOINCREMENT;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.TEXT_NULL;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorInt;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorString;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorUUID;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getDedupeByteBuffer;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.supportsPriority;
 
 import android.annotation.NonNull;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.health.connect.AggregateResult;
 import android.health.connect.aidl.ReadRecordsRequestParcel;
@@ -52,18 +50,17 @@ import androidx.annotation.Nullable;
 
 import com.android.server.healthconnect.storage.request.AggregateParams;
 import com.android.server.healthconnect.storage.request.AggregateTableRequest;
+import com.android.server.healthconnect.storage.request.CreateIndexRequest;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
 import com.android.server.healthconnect.storage.request.ReadTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+import com.android.server.healthconnect.storage.utils.ColumnIndexCachingCursor;
 import com.android.server.healthconnect.storage.utils.OrderByClause;
 import com.android.server.healthconnect.storage.utils.SqlJoin;
 import com.android.server.healthconnect.storage.utils.StorageUtils;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
 
-import java.lang.reflect.InvocationTargetException;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -85,7 +82,7 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
     public static final String APP_INFO_ID_COLUMN_NAME = "app_info_id";
     public static final String LAST_MODIFIED_TIME_COLUMN_NAME = "last_modified_time";
     private static final String CLIENT_RECORD_VERSION_COLUMN_NAME = "client_record_version";
-    private static final String DEVICE_INFO_ID_COLUMN_NAME = "device_info_id";
+    public static final String DEVICE_INFO_ID_COLUMN_NAME = "device_info_id";
     private static final String RECORDING_METHOD_COLUMN_NAME = "recording_method";
     private static final String DEDUPE_HASH_COLUMN_NAME = "dedupe_hash";
     private static final List<Pair<String, Integer>> UNIQUE_COLUMNS_INFO =
@@ -100,14 +97,28 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
         mRecordIdentifier = recordIdentifier;
     }
 
-    public DeleteTableRequest getDeleteRequestForAutoDelete(int recordAutoDeletePeriodInDays) {
+    /**
+     * Returns a request auto deleting the {@code limit} oldest records which started up to {@code
+     * endTime}, or all of them if there are fewer.
+     */
+    @NonNull
+    public DeleteTableRequest getDeleteRequestForAutoDelete(long endTime, int limit) {
+        ReadTableRequest oldestRecordsRequest =
+                new ReadTableRequest(getMainTableName())
+                        .setColumnNames(List.of(PRIMARY_COLUMN_NAME))
+                        .setWhereClause(
+                                new WhereClauses()
+                                        .addWhereLessThanOrEqualClause(
+                                                getStartTimeColumnName(), endTime))
+                        .setOrderBy(
+                                new OrderByClause()
+                                        .addOrderByClause(getStartTimeColumnName(), true))
+                        .setRowLimit(limit);
         return new DeleteTableRequest(getMainTableName())
-                .setTimeFilter(
-                        getStartTimeColumnName(),
-                        Instant.EPOCH.toEpochMilli(),
-                        Instant.now()
-                                .minus(recordAutoDeletePeriodInDays, ChronoUnit.DAYS)
-                                .toEpochMilli());
+                .setCustomWhereClauses(
+                        new WhereClauses()
+                                .addWhereInSQLRequestClause(
+                                        PRIMARY_COLUMN_NAME, oldestRecordsRequest));
     }
 
     @RecordTypeIdentifier.RecordType
@@ -117,10 +128,19 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
 
     /**
      * Called on DB update. Inheriting classes should implement this if they need to add new columns
-     * or tables.
+     * or tables, and call through to this implementation once their own columns are in place.
      */
     public void onUpgrade(@NonNull SQLiteDatabase db, int oldVersion, int newVersion) {
-        // empty
+        if (oldVersion < DB_VERSION_TIME_INDEXES) {
+            for (CreateIndexRequest createIndexRequest : getCreateIndexRequests()) {
+                try {
+                    db.execSQL(createIndexRequest.getCommand());
+                } catch (SQLException sqlException) {
+                    // Ignore this means the index exists. This is possible via module rollback
+                    // followed by an upgrade
+                }
+            }
+        }
     }
 
     /**
@@ -203,7 +223,36 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
                         Collections.singletonList(APP_INFO_ID_COLUMN_NAME),
                         Collections.singletonList(PRIMARY_COLUMN_NAME))
                 .setChildTableRequests(getChildTableCreateRequests())
-                .setGeneratedColumnInfo(getGeneratedColumnInfo());
+                .setGeneratedColumnInfo(getGeneratedColumnInfo())
+                .setIndexRequests(getCreateIndexRequests());
+    }
+
+    /**
+     * Returns the time ordered indexes for the main table. Read, aggregate and auto delete requests
+     * all filter and sort on the start time, so these keep them from scanning the whole table.
+     */
+    @NonNull
+    List<CreateIndexRequest> getCreateIndexRequests() {
+        List<CreateIndexRequest> indexRequests = new ArrayList<>();
+        indexRequests.add(
+                new CreateIndexRequest(
+                        getMainTableName(),
+                        getIndexName(APP_INFO_ID_COLUMN_NAME, getStartTimeColumnName()),
+                        /* isUnique= */ false,
+                        List.of(APP_INFO_ID_COLUMN_NAME, getStartTimeColumnName())));
+        indexRequests.add(
+                new CreateIndexRequest(
+                        getMainTableName(),
+                        getIndexName(getLocalStartTimeColumnName()),
+                        /* isUnique= */ false,
+                        List.of(getLocalStartTimeColumnName())));
+        return indexRequests;
+    }
+
+    /** Returns name for an index on {@code columnNames} of the main table. */
+    @NonNull
+    final String getIndexName(@NonNull String... columnNames) {
+        return "idx_" + getMainTableName() + "_" + String.join("_", columnNames);
     }
 
     public UpsertTableRequest getUpsertTableRequest(RecordInternal<?> recordInternal) {
@@ -340,24 +389,28 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
         // Do nothing, implement in record specific helpers
     }
 
-    /** Returns ReadTableRequest for {@code uuids} */
+    /**
+     * Returns ReadTableRequest for the records whose uuids are selected by {@code
+     * uuidsReadRequest}, so that the uuids are looked up in the database instead of being listed
+     * in the query.
+     */
     public ReadTableRequest getReadTableRequest(
             String packageName,
-            List<UUID> uuids,
+            ReadTableRequest uuidsReadRequest,
             long startDateAccess,
             Map<String, Boolean> extraPermsState) {
         return new ReadTableRequest(getMainTableName())
                 .setJoinClause(getJoinForReadRequest())
                 .setWhereClause(
                         new WhereClauses()
-                                .addWhereInClauseWithoutQuotes(
-                                        UUID_COLUMN_NAME, StorageUtils.getListOfHexString(uuids))
+                                .setUseBindArgs(true)
+                                .addWhereInSQLRequestClause(UUID_COLUMN_NAME, uuidsReadRequest)
                                 .addWhereLaterThanTimeClause(
                                         getStartTimeColumnName(), startDateAccess))
                 .setRecordHelper(this)
                 .setExtraReadRequests(
                         getExtraDataReadRequests(
-                                packageName, uuids, startDateAccess, extraPermsState));
+                                packageName, uuidsReadRequest, startDateAccess, extraPermsState));
     }
 
     /**
@@ -373,12 +426,12 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
     }
 
     /**
-     * Returns list if ReadSingleTableRequest for {@code uuids} to populate extra data. Called in
-     * change logs read requests.
+     * Returns list if ReadSingleTableRequest for the uuids selected by {@code uuidsReadRequest} to
+     * populate extra data. Called in change logs read requests.
      */
     List<ReadTableRequest> getExtraDataReadRequests(
             String packageName,
-            List<UUID> uuids,
+            ReadTableRequest uuidsReadRequest,
             long startDateAccess,
             Map<String, Boolean> extraPermsState) {
         return Collections.emptyList();
@@ -412,81 +465,71 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
         long currentStartTime = DEFAULT_LONG;
         int tempCount = 0;
         List<RecordInternal<?>> tempList = new ArrayList<>();
+        RecordMapper recordMapper = RecordMapper.getInstance();
+        CommonColumnIndices columnIndices = new CommonColumnIndices(cursor);
+        // Typed helpers read their columns by name, resolve each name once for the whole cursor.
+        Cursor recordCursor = new ColumnIndexCachingCursor(cursor);
         while (cursor.moveToNext()) {
-            try {
-                T record =
-                        (T)
-                                RecordMapper.getInstance()
-                                        .getRecordIdToInternalRecordClassMap()
-                                        .get(getRecordIdentifier())
-                                        .getConstructor()
-                                        .newInstance();
-                record.setUuid(getCursorUUID(cursor, UUID_COLUMN_NAME));
-                record.setLastModifiedTime(getCursorLong(cursor, LAST_MODIFIED_TIME_COLUMN_NAME));
-                record.setClientRecordId(getCursorString(cursor, CLIENT_RECORD_ID_COLUMN_NAME));
-                record.setClientRecordVersion(
-                        getCursorLong(cursor, CLIENT_RECORD_VERSION_COLUMN_NAME));
-                record.setRecordingMethod(getCursorInt(cursor, RECORDING_METHOD_COLUMN_NAME));
-                record.setRowId(getCursorInt(cursor, PRIMARY_COLUMN_NAME));
-                long deviceInfoId = getCursorLong(cursor, DEVICE_INFO_ID_COLUMN_NAME);
-                DeviceInfoHelper.getInstance().populateRecordWithValue(deviceInfoId, record);
-                long appInfoId = getCursorLong(cursor, APP_INFO_ID_COLUMN_NAME);
-                AppInfoHelper.getInstance()
-                        .populateRecordWithValue(appInfoId, record, packageNamesByAppIds);
-                populateRecordValue(cursor, record);
-
-                prevStartTime = currentStartTime;
-                currentStartTime = getCursorLong(cursor, getStartTimeColumnName());
-                if (prevStartTime == DEFAULT_LONG || prevStartTime == currentStartTime) {
-                    // Fetch and add records with same startTime to tempList
+            T record = (T) recordMapper.newInternalRecord(getRecordIdentifier());
+            record.setUuid(StorageUtils.convertBytesToUUID(cursor.getBlob(columnIndices.mUuid)));
+            record.setLastModifiedTime(cursor.getLong(columnIndices.mLastModifiedTime));
+            record.setClientRecordId(cursor.getString(columnIndices.mClientRecordId));
+            record.setClientRecordVersion(cursor.getLong(columnIndices.mClientRecordVersion));
+            record.setRecordingMethod(cursor.getInt(columnIndices.mRecordingMethod));
+            record.setRowId(cursor.getInt(columnIndices.mRowId));
+            long deviceInfoId = cursor.getLong(columnIndices.mDeviceInfoId);
+            DeviceInfoHelper.getInstance().populateRecordWithValue(deviceInfoId, record);
+            long appInfoId = cursor.getLong(columnIndices.mAppInfoId);
+            AppInfoHelper.getInstance()
+                    .populateRecordWithValue(appInfoId, record, packageNamesByAppIds);
+            populateRecordValue(recordCursor, record);
+
+            prevStartTime = currentStartTime;
+            currentStartTime = cursor.getLong(columnIndices.mStartTime);
+            if (prevStartTime == DEFAULT_LONG || prevStartTime == currentStartTime) {
+                // Fetch and add records with same startTime to tempList
+                tempList.add(record);
+                tempCount++;
+            } else {
+                if (count == 0) {
+                    // items in tempList having startTime same as the first record from cursor
+                    // is added to final list.
+                    // This makes sure that we return at least 1 record if the count of
+                    // records with startTime same as second record exceeds requestSize.
+                    recordInternalList.addAll(tempList);
+                    count = tempCount;
+                    tempList.clear();
+                    tempCount = 0;
+                    if (count >= requestSize) {
+                        // startTime of current record should be fetched for pageToken
+                        cursor.moveToPrevious();
+                        break;
+                    }
                     tempList.add(record);
-                    tempCount++;
-                } else {
-                    if (count == 0) {
-                        // items in tempList having startTime same as the first record from cursor
-                        // is added to final list.
-                        // This makes sure that we return at least 1 record if the count of
-                        // records with startTime same as second record exceeds requestSize.
-                        recordInternalList.addAll(tempList);
-                        count = tempCount;
-                        tempList.clear();
-                        tempCount = 0;
-                        if (count >= requestSize) {
-                            // startTime of current record should be fetched for pageToken
-                            cursor.moveToPrevious();
-                            break;
-                        }
-                        tempList.add(record);
-                        tempCount = 1;
-                    } else if (tempCount + count <= requestSize) {
-                        // Makes sure after adding records in tempList with same starTime
-                        // the count does not exceed requestSize
-                        recordInternalList.addAll(tempList);
-                        count += tempCount;
-                        tempList.clear();
-                        tempCount = 0;
-                        if (count >= requestSize) {
-                            // After adding records if count is equal to requestSize then startTime
-                            // of current fetched record should be the next page token.
-                            cursor.moveToPrevious();
-                            break;
-                        }
-                        tempList.add(record);
-                        tempCount = 1;
-                    } else {
-                        // If adding records in tempList makes count > requestSize, then ignore temp
-                        // list and startTime of records in temp list should be the next page token.
-                        tempList.clear();
-                        int lastposition = cursor.getPosition();
-                        cursor.moveToPosition(lastposition - 2);
+                    tempCount = 1;
+                } else if (tempCount + count <= requestSize) {
+                    // Makes sure after adding records in tempList with same starTime
+                    // the count does not exceed requestSize
+                    recordInternalList.addAll(tempList);
+                    count += tempCount;
+                    tempList.clear();
+                    tempCount = 0;
+                    if (count >= requestSize) {
+                        // After adding records if count is equal to requestSize then startTime
+                        // of current fetched record should be the next page token.
+                        cursor.moveToPrevious();
                         break;
                     }
+                    tempList.add(record);
+                    tempCount = 1;
+                } else {
+                    // If adding records in tempList makes count > requestSize, then ignore temp
+                    // list and startTime of records in temp list should be the next page token.
+                    tempList.clear();
+                    int lastposition = cursor.getPosition();
+                    cursor.moveToPosition(lastposition - 2);
+                    break;
                 }
-            } catch (InstantiationException
-                    | IllegalAccessException
-                    | NoSuchMethodException
-                    | InvocationTargetException exception) {
-                throw new IllegalArgumentException(exception);
             }
         }
         if (!tempList.isEmpty()) {
@@ -634,7 +677,9 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
             }
 
             WhereClauses clauses =
-                    new WhereClauses().addWhereInLongsClause(APP_INFO_ID_COLUMN_NAME, appIds);
+                    new WhereClauses()
+                            .setUseBindArgs(true)
+                            .addWhereInLongsClause(APP_INFO_ID_COLUMN_NAME, appIds);
 
             if (request.getPageToken() != DEFAULT_LONG) {
                 // Since pageToken passed contains detail of sort order. Actual token value for read
@@ -671,8 +716,8 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
                         .collect(Collectors.toList());
         WhereClauses whereClauses =
                 new WhereClauses()
-                        .addWhereInClauseWithoutQuotes(
-                                UUID_COLUMN_NAME, StorageUtils.getListOfHexString(ids));
+                        .setUseBindArgs(true)
+                        .addWhereInUuidsClause(UUID_COLUMN_NAME, ids);
 
         if (enforceSelfRead) {
             long id = AppInfoHelper.getInstance().getAppInfoId(packageName);
@@ -761,4 +806,32 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
     public List<String> getRequiredExtraWritePermissions(RecordInternal<?> recordInternal) {
         return Collections.emptyList();
     }
+
+    /**
+     * Indices of the columns common to all the record tables. Resolved once per cursor, rather than
+     * once per row and column.
+     */
+    private final class CommonColumnIndices {
+        final int mUuid;
+        final int mLastModifiedTime;
+        final int mClientRecordId;
+        final int mClientRecordVersion;
+        final int mRecordingMethod;
+        final int mRowId;
+        final int mDeviceInfoId;
+        final int mAppInfoId;
+        final int mStartTime;
+
+        CommonColumnIndices(Cursor cursor) {
+            mUuid = cursor.getColumnIndex(UUID_COLUMN_NAME);
+            mLastModifiedTime = cursor.getColumnIndex(LAST_MODIFIED_TIME_COLUMN_NAME);
+            mClientRecordId = cursor.getColumnIndex(CLIENT_RECORD_ID_COLUMN_NAME);
+            mClientRecordVersion = cursor.getColumnIndex(CLIENT_RECORD_VERSION_COLUMN_NAME);
+            mRecordingMethod = cursor.getColumnIndex(RECORDING_METHOD_COLUMN_NAME);
+            mRowId = cursor.getColumnIndex(PRIMARY_COLUMN_NAME);
+            mDeviceInfoId = cursor.getColumnIndex(DEVICE_INFO_ID_COLUMN_NAME);
+            mAppInfoId = cursor.getColumnIndex(APP_INFO_ID_COLUMN_NAME);
+            mStartTime = cursor.getColumnIndex(getStartTimeColumnName());
+        }
+    }
 }
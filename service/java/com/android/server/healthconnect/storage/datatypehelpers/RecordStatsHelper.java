@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_RECORD_STATS;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER_NOT_NULL;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER_NOT_NULL_UNIQUE;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.PRIMARY_AUTOINCREMENT;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorInt;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.isNullValue;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Pair;
+import android.util.Slog;
+
+import com.android.server.healthconnect.storage.HealthConnectDatabase;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.request.CreateTableRequest;
+import com.android.server.healthconnect.storage.request.ReadTableRequest;
+import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Helper for the record stats table, a catalog of the number of records of each record type along
+ * with the start times of the oldest and newest of them.
+ *
+ * <p>The stats are maintained by triggers on the record tables, which keeps them in the same
+ * transaction as every write and delete of the records, auto deletes included. A trigger can't
+ * narrow the start time bounds without scanning the record table, so deleting the oldest or newest
+ * record marks them stale and they are recomputed once when next read.
+ *
+ * @hide
+ */
+public final class RecordStatsHelper {
+    private static final String TAG = "HealthConnectRecordStats";
+    private static final String TABLE_NAME = "record_stats_table";
+    private static final String RECORD_TYPE_ID_COLUMN_NAME = "record_type_id";
+    private static final String RECORD_COUNT_COLUMN_NAME = "record_count";
+    private static final String OLDEST_START_TIME_COLUMN_NAME = "oldest_start_time";
+    private static final String NEWEST_START_TIME_COLUMN_NAME = "newest_start_time";
+    private static final String BOUNDS_STALE_COLUMN_NAME = "bounds_stale";
+    private static final String INTEGER_NOT_NULL_DEFAULT_ZERO = INTEGER_NOT_NULL + " DEFAULT 0";
+    private static volatile RecordStatsHelper sRecordStatsHelper;
+
+    private RecordStatsHelper() {}
+
+    /** Stats of the records of one record type. */
+    public static final class RecordStats {
+        private final long mRecordCount;
+        @Nullable private final Long mOldestStartTime;
+        @Nullable private final Long mNewestStartTime;
+
+        public RecordStats(
+                long recordCount, @Nullable Long oldestStartTime, @Nullable Long newestStartTime) {
+            mRecordCount = recordCount;
+            mOldestStartTime = oldestStartTime;
+            mNewestStartTime = newestStartTime;
+        }
+
+        public long getRecordCount() {
+            return mRecordCount;
+        }
+
+        /** Returns the start time of the oldest record, or null if there are no records. */
+        @Nullable
+        public Long getOldestStartTime() {
+            return mOldestStartTime;
+        }
+
+        /** Returns the start time of the newest record, or null if there are no records. */
+        @Nullable
+        public Long getNewestStartTime() {
+            return mNewestStartTime;
+        }
+    }
+
+    /**
+     * Returns a requests representing the tables that should be created corresponding to this
+     * helper
+     */
+    @NonNull
+    public CreateTableRequest getCreateTableRequest() {
+        return new CreateTableRequest(TABLE_NAME, getColumnInfo());
+    }
+
+    /**
+     * Creates the triggers maintaining the record stats. Expects the record tables and the table of
+     * {@link #getCreateTableRequest} to exist.
+     */
+    public void onCreate(@NonNull SQLiteDatabase db) {
+        RecordHelperProvider.getInstance()
+                .getRecordHelpers()
+                .forEach(
+                        (recordTypeId, recordHelper) ->
+                                createTriggers(
+                                        db,
+                                        recordTypeId,
+                                        recordHelper.getMainTableName(),
+                                        recordHelper.getStartTimeColumnName()));
+    }
+
+    /** Called on DB update. */
+    public void onUpgrade(int oldVersion, int newVersion, @NonNull SQLiteDatabase db) {
+        if (oldVersion >= DB_VERSION_RECORD_STATS) {
+            return;
+        }
+
+        HealthConnectDatabase.createTable(db, getCreateTableRequest());
+        onCreate(db);
+        verifyRecordStats(db);
+    }
+
+    /**
+     * Returns the number of records of each record type which has or had records. This only reads
+     * the record stats table.
+     */
+    @NonNull
+    public Map<Integer, Long> getRecordCounts() {
+        ReadTableRequest request =
+                new ReadTableRequest(TABLE_NAME)
+                        .setColumnNames(
+                                List.of(RECORD_TYPE_ID_COLUMN_NAME, RECORD_COUNT_COLUMN_NAME));
+        Map<Integer, Long> recordCounts = new HashMap<>();
+        try (Cursor cursor = TransactionManager.getInitialisedInstance().read(request)) {
+            while (cursor.moveToNext()) {
+                recordCounts.put(
+                        getCursorInt(cursor, RECORD_TYPE_ID_COLUMN_NAME),
+                        getCursorLong(cursor, RECORD_COUNT_COLUMN_NAME));
+            }
+        }
+        return recordCounts;
+    }
+
+    /**
+     * Returns the stats of each record type which has or had records, recomputing the start time
+     * bounds which are stale.
+     */
+    @NonNull
+    public Map<Integer, RecordStats> getRecordStats() {
+        Map<Integer, RecordStats> recordStats = new HashMap<>();
+        TransactionManager.getInitialisedInstance()
+                .runAsTransaction(
+                        db -> {
+                            refreshStaleBounds(db);
+                            try (Cursor cursor = db.rawQuery("SELECT * FROM " + TABLE_NAME, null)) {
+                                while (cursor.moveToNext()) {
+                                    recordStats.put(
+                                            getCursorInt(cursor, RECORD_TYPE_ID_COLUMN_NAME),
+                                            getRecordStats(cursor));
+                                }
+                            }
+                        });
+        return recordStats;
+    }
+
+    /**
+     * Compares the record stats with the record tables, and fixes the stats which don't match.
+     * Only mismatching stats are written.
+     */
+    public void verifyRecordStats(@NonNull SQLiteDatabase db) {
+        Map<Integer, RecordStats> storedStats = new HashMap<>();
+        try (Cursor cursor = db.rawQuery("SELECT * FROM " + TABLE_NAME, null)) {
+            while (cursor.moveToNext()) {
+                storedStats.put(
+                        getCursorInt(cursor, RECORD_TYPE_ID_COLUMN_NAME),
+                        getCursorLong(cursor, BOUNDS_STALE_COLUMN_NAME) != 0
+                                ? null
+                                : getRecordStats(cursor));
+            }
+        }
+
+        List<Integer> mismatches = new ArrayList<>();
+        RecordHelperProvider.getInstance()
+                .getRecordHelpers()
+                .forEach(
+                        (recordTypeId, recordHelper) -> {
+                            RecordStats stats = computeRecordStats(db, recordHelper);
+                            boolean isStored = storedStats.containsKey(recordTypeId);
+                            RecordStats stored = storedStats.get(recordTypeId);
+                            if (isStored ? !isEqual(stats, stored) : stats.getRecordCount() > 0) {
+                                db.insertWithOnConflict(
+                                        TABLE_NAME,
+                                        null,
+                                        getContentValues(recordTypeId, stats),
+                                        SQLiteDatabase.CONFLICT_REPLACE);
+                                mismatches.add(recordTypeId);
+                            }
+                        });
+
+        if (!mismatches.isEmpty()) {
+            Slog.w(TAG, "Fixed record stats of record types " + mismatches);
+        }
+    }
+
+    @NonNull
+    List<Pair<String, String>> getColumnInfo() {
+        return Arrays.asList(
+                new Pair<>(RecordHelper.PRIMARY_COLUMN_NAME, PRIMARY_AUTOINCREMENT),
+                new Pair<>(RECORD_TYPE_ID_COLUMN_NAME, INTEGER_NOT_NULL_UNIQUE),
+                new Pair<>(RECORD_COUNT_COLUMN_NAME, INTEGER_NOT_NULL_DEFAULT_ZERO),
+                new Pair<>(OLDEST_START_TIME_COLUMN_NAME, INTEGER),
+                new Pair<>(NEWEST_START_TIME_COLUMN_NAME, INTEGER),
+                new Pair<>(BOUNDS_STALE_COLUMN_NAME, INTEGER_NOT_NULL_DEFAULT_ZERO));
+    }
+
+    /** Recomputes the start time bounds which were marked stale by deletes and updates. */
+    private void refreshStaleBounds(@NonNull SQLiteDatabase db) {
+        List<Integer> recordTypeIds = new ArrayList<>();
+        try (Cursor cursor =
+                db.rawQuery(
+                        "SELECT "
+                                + RECORD_TYPE_ID_COLUMN_NAME
+                                + " FROM "
+                                + TABLE_NAME
+                                + " WHERE "
+                                + BOUNDS_STALE_COLUMN_NAME
+                                + " != 0",
+                        null)) {
+            while (cursor.moveToNext()) {
+                recordTypeIds.add(cursor.getInt(0));
+            }
+        }
+
+        RecordHelperProvider recordHelperProvider = RecordHelperProvider.getInstance();
+        for (int recordTypeId : recordTypeIds) {
+            RecordStats stats =
+                    computeRecordStats(db, recordHelperProvider.getRecordHelper(recordTypeId));
+            db.update(
+                    TABLE_NAME,
+                    getContentValues(recordTypeId, stats),
+                    RECORD_TYPE_ID_COLUMN_NAME + " = " + recordTypeId,
+                    null);
+        }
+    }
+
+    @NonNull
+    private static RecordStats computeRecordStats(
+            @NonNull SQLiteDatabase db, @NonNull RecordHelper<?> recordHelper) {
+        String startTimeColumnName = recordHelper.getStartTimeColumnName();
+        try (Cursor cursor =
+                db.rawQuery(
+                        "SELECT COUNT(*), MIN("
+                                + startTimeColumnName
+                                + "), MAX("
+                                + startTimeColumnName
+                                + ") FROM "
+                                + recordHelper.getMainTableName(),
+                        null)) {
+            cursor.moveToFirst();
+            return new RecordStats(
+                    cursor.getLong(0),
+                    cursor.isNull(1) ? null : cursor.getLong(1),
+                    cursor.isNull(2) ? null : cursor.getLong(2));
+        }
+    }
+
+    @NonNull
+    private static RecordStats getRecordStats(@NonNull Cursor cursor) {
+        return new RecordStats(
+                getCursorLong(cursor, RECORD_COUNT_COLUMN_NAME),
+                isNullValue(cursor, OLDEST_START_TIME_COLUMN_NAME)
+                        ? null
+                        : getCursorLong(cursor, OLDEST_START_TIME_COLUMN_NAME),
+                isNullValue(cursor, NEWEST_START_TIME_COLUMN_NAME)
+                        ? null
+                        : getCursorLong(cursor, NEWEST_START_TIME_COLUMN_NAME));
+    }
+
+    private static boolean isEqual(@NonNull RecordStats stats, @Nullable RecordStats stored) {
+        return stored != null
+                && stats.getRecordCount() == stored.getRecordCount()
+                && Objects.equals(stats.getOldestStartTime(), stored.getOldestStartTime())
+                && Objects.equals(stats.getNewestStartTime(), stored.getNewestStartTime());
+    }
+
+    @NonNull
+    private static ContentValues getContentValues(int recordTypeId, @NonNull RecordStats stats) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(RECORD_TYPE_ID_COLUMN_NAME, recordTypeId);
+        contentValues.put(RECORD_COUNT_COLUMN_NAME, stats.getRecordCount());
+        contentValues.put(OLDEST_START_TIME_COLUMN_NAME, stats.getOldestStartTime());
+        contentValues.put(NEWEST_START_TIME_COLUMN_NAME, stats.getNewestStartTime());
+        contentValues.put(BOUNDS_STALE_COLUMN_NAME, 0);
+
+        return contentValues;
+    }
+
+    private static void createTriggers(
+            @NonNull SQLiteDatabase db,
+            int recordTypeId,
+            @NonNull String tableName,
+            @NonNull String startTimeColumnName) {
+        String whereClause = " WHERE " + RECORD_TYPE_ID_COLUMN_NAME + " = " + recordTypeId;
+        String newStartTime = "NEW." + startTimeColumnName;
+        String oldStartTime = "OLD." + startTimeColumnName;
+        // Removing a record at either bound leaves the bounds wider than the records.
+        String staleIfOldRecordAtBound =
+                "CASE WHEN "
+                        + oldStartTime
+                        + " <= "
+                        + OLDEST_START_TIME_COLUMN_NAME
+                        + " OR "
+                        + oldStartTime
+                        + " >= "
+                        + NEWEST_START_TIME_COLUMN_NAME
+                        + " THEN 1 ELSE "
+                        + BOUNDS_STALE_COLUMN_NAME
+                        + " END";
+
+        // The expressions of an update all see the values from before the update.
+        String insertStatement =
+                "INSERT INTO "
+                        + TABLE_NAME
+                        + " ("
+                        + RECORD_TYPE_ID_COLUMN_NAME
+                        + ", "
+                        + RECORD_COUNT_COLUMN_NAME
+                        + ", "
+                        + OLDEST_START_TIME_COLUMN_NAME
+                        + ", "
+                        + NEWEST_START_TIME_COLUMN_NAME
+                        + ") VALUES ("
+                        + recordTypeId
+                        + ", 1, "
+                        + newStartTime
+                        + ", "
+                        + newStartTime
+                        + ") ON CONFLICT ("
+                        + RECORD_TYPE_ID_COLUMN_NAME
+                        + ") DO UPDATE SET "
+                        + OLDEST_START_TIME_COLUMN_NAME
+                        + " = CASE WHEN "
+                        + RECORD_COUNT_COLUMN_NAME
+                        + " = 0 THEN "
+                        + newStartTime
+                        + " ELSE MIN("
+                        + OLDEST_START_TIME_COLUMN_NAME
+                        + ", "
+                        + newStartTime
+                        + ") END, "
+                        + NEWEST_START_TIME_COLUMN_NAME
+                        + " = CASE WHEN "
+                        + RECORD_COUNT_COLUMN_NAME
+                        + " = 0 THEN "
+                        + newStartTime
+                        + " ELSE MAX("
+                        + NEWEST_START_TIME_COLUMN_NAME
+                        + ", "
+                        + newStartTime
+                        + ") END, "
+                        + BOUNDS_STALE_COLUMN_NAME
+                        + " = CASE WHEN "
+                        + RECORD_COUNT_COLUMN_NAME
+                        + " = 0 THEN 0 ELSE "
+                        + BOUNDS_STALE_COLUMN_NAME
+                        + " END, "
+                        + RECORD_COUNT_COLUMN_NAME
+                        + " = "
+                        + RECORD_COUNT_COLUMN_NAME
+                        + " + 1";
+        String deleteStatement =
+                "UPDATE "
+                        + TABLE_NAME
+                        + " SET "
+                        + RECORD_COUNT_COLUMN_NAME
+                        + " = "
+                        + RECORD_COUNT_COLUMN_NAME
+                        + " - 1, "
+                        + OLDEST_START_TIME_COLUMN_NAME
+                        + " = CASE WHEN "
+                        + RECORD_COUNT_COLUMN_NAME
+                        + " <= 1 THEN NULL ELSE "
+                        + OLDEST_START_TIME_COLUMN_NAME
+                        + " END, "
+                        + NEWEST_START_TIME_COLUMN_NAME
+                        + " = CASE WHEN "
+                        + RECORD_COUNT_COLUMN_NAME
+                        + " <= 1 THEN NULL ELSE "
+                        + NEWEST_START_TIME_COLUMN_NAME
+                        + " END, "
+                        + BOUNDS_STALE_COLUMN_NAME
+                        + " = CASE WHEN "
+                        + RECORD_COUNT_COLUMN_NAME
+                        + " <= 1 THEN 0 ELSE "
+                        + staleIfOldRecordAtBound
+                        + " END"
+                        + whereClause;
+        String updateStatement =
+                "UPDATE "
+                        + TABLE_NAME
+                        + " SET "
+                        + OLDEST_START_TIME_COLUMN_NAME
+                        + " = MIN("
+                        + OLDEST_START_TIME_COLUMN_NAME
+                        + ", "
+                        + newStartTime
+                        + "), "
+                        + NEWEST_START_TIME_COLUMN_NAME
+                        + " = MAX("
+                        + NEWEST_START_TIME_COLUMN_NAME
+                        + ", "
+                        + newStartTime
+                        + "), "
+                        + BOUNDS_STALE_COLUMN_NAME
+                        + " = "
+                        + staleIfOldRecordAtBound
+                        + whereClause;
+
+        RecordCountTriggers.createTriggers(
+                db,
+                tableName,
+                "record_stats",
+                startTimeColumnName,
+                List.of(insertStatement),
+                List.of(deleteStatement),
+                List.of(updateStatement));
+    }
+
+    /** Returns an instance of this class */
+    public static synchronized RecordStatsHelper getInstance() {
+        if (sRecordStatsHelper == null) {
+            sRecordStatsHelper = new RecordStatsHelper();
+        }
+
+        return sRecordStatsHelper;
+    }
+}
@@ -17,34 +17,88 @@
 package com.android.server.healthconnect.storage.datatypehelpers;
 
 import static android.health.connect.Constants.PARENT_KEY;
+import static android.health.connect.datatypes.AggregationType.AVG;
+import static android.health.connect.datatypes.AggregationType.COUNT;
+import static android.health.connect.datatypes.AggregationType.MAX;
+import static android.health.connect.datatypes.AggregationType.MIN;
 
+import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_PACKED_SERIES_SAMPLES;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.BLOB;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.REAL;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorBlob;
 
 import android.annotation.NonNull;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.health.connect.datatypes.AggregationType;
 import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.health.connect.internal.datatypes.SeriesRecordInternal;
+import android.util.ArrayMap;
 import android.util.Pair;
 
+import com.android.server.healthconnect.storage.request.AggregateParams;
+import com.android.server.healthconnect.storage.request.AlterTableRequest;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
-import com.android.server.healthconnect.storage.request.UpsertTableRequest;
-import com.android.server.healthconnect.storage.utils.SqlJoin;
+import com.android.server.healthconnect.storage.request.DeleteTableRequest;
+import com.android.server.healthconnect.storage.request.ReadTableRequest;
+import com.android.server.healthconnect.storage.utils.OrderByClause;
+import com.android.server.healthconnect.storage.utils.PackedSamples;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
-/** @hide */
+/**
+ * Parent class for the series records. The samples of a record are stored in its main table row,
+ * packed into a single blob by {@link PackedSamples}, along with their count, minimum, maximum and
+ * sum so that aggregations don't need to unpack them.
+ *
+ * @hide
+ */
 abstract class SeriesRecordHelper<
                 T extends SeriesRecordInternal<?, ?>, U extends SeriesRecordInternal.Sample>
         extends IntervalRecordHelper<T> {
     protected static final String PARENT_KEY_COLUMN_NAME = PARENT_KEY;
+    protected static final String EPOCH_MILLIS_COLUMN_NAME = "epoch_millis";
+    private static final String SAMPLES_COLUMN_NAME = "samples";
+    private static final String SAMPLE_COUNT_COLUMN_NAME = "sample_count";
+    private static final String SAMPLE_MIN_COLUMN_NAME = "sample_min";
+    private static final String SAMPLE_MAX_COLUMN_NAME = "sample_max";
+    private static final String SAMPLE_SUM_COLUMN_NAME = "sample_sum";
 
     SeriesRecordHelper(@RecordTypeIdentifier.RecordType int recordIdentifier) {
         super(recordIdentifier);
     }
 
+    @Override
+    public void onUpgrade(@NonNull SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < DB_VERSION_PACKED_SERIES_SAMPLES) {
+            for (Pair<String, String> columnInfo : getIntervalRecordColumnInfo()) {
+                try {
+                    db.execSQL(
+                            new AlterTableRequest(getMainTableName(), List.of(columnInfo))
+                                    .getAlterTableAddColumnsCommand());
+                } catch (SQLException sqlException) {
+                    // Ignore this means the column exists. This is possible via module rollback
+                    // followed by an upgrade
+                }
+            }
+            packSeriesTableSamples(db);
+        }
+        super.onUpgrade(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Samples were stored one per row in the series table before {@code
+     * DB_VERSION_PACKED_SERIES_SAMPLES}. The table is kept, as tables can't be removed from the
+     * schema, but it stays empty: {@link #onUpgrade} packs its samples into their records.
+     */
     @Override
     final List<CreateTableRequest> getChildTableCreateRequests() {
         return Collections.singletonList(
@@ -55,71 +109,192 @@ abstract class SeriesRecordHelper<
                                 Collections.singletonList(PRIMARY_COLUMN_NAME)));
     }
 
+    /** The series table is empty, so there are no child rows to replace. */
     @Override
-    @SuppressWarnings("unchecked")
-    final List<UpsertTableRequest> getChildTableUpsertRequests(@NonNull T record) {
-        List<? extends SeriesRecordInternal.Sample> samples = record.getSamples().stream().toList();
-        List<UpsertTableRequest> requests = new ArrayList<>(samples.size());
-        samples.forEach(
-                (sample -> {
-                    ContentValues contentValues = new ContentValues();
-                    populateSampleTo(contentValues, (U) sample);
-                    requests.add(
-                            new UpsertTableRequest(getSeriesDataTableName(), contentValues)
-                                    .setParentColumnForChildTables(PARENT_KEY_COLUMN_NAME));
-                }));
-
-        return requests;
-    }
-
-    /** Returns the INNER JOIN clause for querying from the table for series datatype */
-    @Override
-    final SqlJoin getJoinForReadRequest() {
-        return new SqlJoin(
-                getMainTableName(),
-                getSeriesDataTableName(),
-                PRIMARY_COLUMN_NAME,
-                PARENT_KEY_COLUMN_NAME);
+    public final List<String> getChildTablesToDeleteOnRecordUpsert(
+            ArrayMap<String, Boolean> extraWritePermissionToState) {
+        return Collections.emptyList();
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     final void populateSpecificContentValues(
             @NonNull ContentValues contentValues, @NonNull T record) {
-        // Empty as we don't want to populate any additional in the main table
+        List<U> samples = new ArrayList<>((Set<U>) record.getSamples());
+        samples.sort(Comparator.comparingLong(this::getEpochMillis));
+        long[] epochMillis = new long[samples.size()];
+        double[] values = new double[samples.size()];
+        for (int i = 0; i < samples.size(); i++) {
+            epochMillis[i] = getEpochMillis(samples.get(i));
+            values[i] = getValue(samples.get(i));
+        }
+        populateSamplesTo(contentValues, epochMillis, values);
     }
 
     /** Populates record with datatype specific details */
     @Override
     final void populateSpecificRecordValue(@NonNull Cursor cursor, @NonNull T record) {
-        populateSpecificValues(cursor, record);
+        Set<U> samples = new HashSet<>();
+        byte[] packedSamples = getCursorBlob(cursor, SAMPLES_COLUMN_NAME);
+        if (packedSamples != null) {
+            PackedSamples.unpack(
+                    packedSamples,
+                    (epochMillis, value) -> samples.add(createSample(value, epochMillis)));
+        }
+        record.setSamples(samples);
     }
 
     /**
-     * A typical series data type should not use the main table to store any of its data, and should
-     * instead implement get addition table related functions. Hence, an empty final function
+     * Series data types store their samples packed in the main table, along with the summary of
+     * the samples used by aggregations.
      */
     @NonNull
     final List<Pair<String, String>> getIntervalRecordColumnInfo() {
-        // We don't want to populate anything additional in the main table. Series data types use
-        // additional table to store all the data.
-        return Collections.emptyList();
+        List<Pair<String, String>> columnInfo = new ArrayList<>();
+        columnInfo.add(new Pair<>(SAMPLES_COLUMN_NAME, BLOB));
+        columnInfo.add(new Pair<>(SAMPLE_COUNT_COLUMN_NAME, INTEGER));
+        columnInfo.add(new Pair<>(SAMPLE_MIN_COLUMN_NAME, REAL));
+        columnInfo.add(new Pair<>(SAMPLE_MAX_COLUMN_NAME, REAL));
+        columnInfo.add(new Pair<>(SAMPLE_SUM_COLUMN_NAME, REAL));
+        return columnInfo;
     }
 
     /**
-     * Returns the column names required to store the series data, excluding the parent key field
+     * Returns the params of an aggregation of the sample values with {@code aggregationType},
+     * computed from the sample summaries of the records. The result is named {@code
+     * resultColumnName}.
+     */
+    @NonNull
+    final AggregateParams getSamplesAggregateParams(
+            @NonNull AggregationType<?> aggregationType, @NonNull String resultColumnName) {
+        String expression =
+                switch (aggregationType.getAggregateOperationType()) {
+                    case MAX -> "MAX(" + SAMPLE_MAX_COLUMN_NAME + ")";
+                    case MIN -> "MIN(" + SAMPLE_MIN_COLUMN_NAME + ")";
+                    case AVG -> "SUM("
+                            + SAMPLE_SUM_COLUMN_NAME
+                            + ") / SUM("
+                            + SAMPLE_COUNT_COLUMN_NAME
+                            + ")";
+                    case COUNT -> "SUM(" + SAMPLE_COUNT_COLUMN_NAME + ")";
+                    default -> throw new IllegalArgumentException(
+                            "Unsupported aggregation type " + aggregationType);
+                };
+        return new AggregateParams(
+                        getMainTableName(), Collections.singletonList(resultColumnName))
+                .setAggregateExpression(expression);
+    }
+
+    /**
+     * Returns the column names of the series table, excluding the parent key field
+     *
+     * @see #getChildTableCreateRequests
      */
     @NonNull
     abstract List<Pair<String, String>> getSeriesRecordColumnInfo();
 
-    /** Returns the table name required to store the series data */
+    /** Returns the table name the series data was stored in, one row per sample */
     @NonNull
     abstract String getSeriesDataTableName();
 
-    /** Populates the {@code record} with values specific to dataytpe */
-    abstract void populateSpecificValues(@NonNull Cursor cursor, T record);
+    /** Returns the column of the series table storing the sample values */
+    @NonNull
+    abstract String getSeriesValueColumnName();
+
+    /** Returns the time of {@code sample} */
+    abstract long getEpochMillis(@NonNull U sample);
+
+    /** Returns the value of {@code sample} */
+    abstract double getValue(@NonNull U sample);
+
+    /** Returns the sample with {@code value} at {@code epochMillis} */
+    @NonNull
+    abstract U createSample(double value, long epochMillis);
+
+    /**
+     * Returns whether the sample values are integers, which are packed more compactly than doubles.
+     */
+    boolean hasIntegerValues() {
+        return false;
+    }
+
+    private void populateSamplesTo(
+            @NonNull ContentValues contentValues,
+            @NonNull long[] epochMillis,
+            @NonNull double[] values) {
+        contentValues.put(
+                SAMPLES_COLUMN_NAME, PackedSamples.pack(epochMillis, values, hasIntegerValues()));
+        contentValues.put(SAMPLE_COUNT_COLUMN_NAME, values.length);
+        if (values.length == 0) {
+            contentValues.putNull(SAMPLE_MIN_COLUMN_NAME);
+            contentValues.putNull(SAMPLE_MAX_COLUMN_NAME);
+            contentValues.put(SAMPLE_SUM_COLUMN_NAME, 0d);
+            return;
+        }
+
+        double min = values[0];
+        double max = values[0];
+        double sum = 0;
+        for (double value : values) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+        contentValues.put(SAMPLE_MIN_COLUMN_NAME, min);
+        contentValues.put(SAMPLE_MAX_COLUMN_NAME, max);
+        contentValues.put(SAMPLE_SUM_COLUMN_NAME, sum);
+    }
 
-    /** Puts the {@code sample} to the {@code contentValues} */
-    abstract void populateSampleTo(@NonNull ContentValues contentValues, @NonNull U sample);
+    /** Packs the samples of the series table into their records, and empties the table. */
+    private void packSeriesTableSamples(@NonNull SQLiteDatabase db) {
+        ReadTableRequest readSamplesRequest =
+                new ReadTableRequest(getSeriesDataTableName())
+                        .setColumnNames(
+                                List.of(
+                                        PARENT_KEY_COLUMN_NAME,
+                                        EPOCH_MILLIS_COLUMN_NAME,
+                                        getSeriesValueColumnName()))
+                        .setOrderBy(
+                                new OrderByClause()
+                                        .addOrderByClause(PARENT_KEY_COLUMN_NAME, true)
+                                        .addOrderByClause(EPOCH_MILLIS_COLUMN_NAME, true));
+        try (Cursor cursor = db.rawQuery(readSamplesRequest.getReadCommand(), null)) {
+            List<Long> epochMillis = new ArrayList<>();
+            List<Double> values = new ArrayList<>();
+            long parentKey = 0;
+            while (cursor.moveToNext()) {
+                if (!epochMillis.isEmpty() && cursor.getLong(0) != parentKey) {
+                    updatePackedSamples(db, parentKey, epochMillis, values);
+                    epochMillis.clear();
+                    values.clear();
+                }
+                parentKey = cursor.getLong(0);
+                epochMillis.add(cursor.getLong(1));
+                values.add(cursor.getDouble(2));
+            }
+            if (!epochMillis.isEmpty()) {
+                updatePackedSamples(db, parentKey, epochMillis, values);
+            }
+        }
+        db.execSQL(new DeleteTableRequest(getSeriesDataTableName()).getDeleteCommand());
+    }
+
+    private void updatePackedSamples(
+            @NonNull SQLiteDatabase db,
+            long rowId,
+            @NonNull List<Long> epochMillis,
+            @NonNull List<Double> values) {
+        ContentValues contentValues = new ContentValues();
+        populateSamplesTo(
+                contentValues,
+                epochMillis.stream().mapToLong(Long::longValue).toArray(),
+                values.stream().mapToDouble(Double::doubleValue).toArray());
+        db.update(
+                getMainTableName(),
+                contentValues,
+                PRIMARY_COLUMN_NAME + " = ?",
+                new String[] {String.valueOf(rowId)});
+    }
 
     @NonNull
     private List<Pair<String, String>> getSeriesTableColumnInfo() {
@@ -18,21 +18,14 @@ package com.android.server.healthconnect.storage.datatypehelpers;
 
 import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.REAL;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorDouble;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorUUID;
 
 import android.annotation.NonNull;
-import android.content.ContentValues;
-import android.database.Cursor;
 import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.health.connect.internal.datatypes.StepsCadenceRecordInternal;
 import android.util.Pair;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.UUID;
 
 /**
  * Helper class for StepsCadenceRecord.
@@ -46,7 +39,6 @@ public class StepsCadenceRecordHelper
     private static final String TABLE_NAME = "StepsCadenceRecordTable";
     private static final String SERIES_TABLE_NAME = "steps_cadence_record_table";
     private static final String RATE_COLUMN_NAME = "rate";
-    private static final String EPOCH_MILLIS_COLUMN_NAME = "epoch_millis";
 
     public StepsCadenceRecordHelper() {
         super(RecordTypeIdentifier.RECORD_TYPE_STEPS_CADENCE);
@@ -69,31 +61,27 @@ public class StepsCadenceRecordHelper
     String getSeriesDataTableName() {
         return SERIES_TABLE_NAME;
     }
-    /** Populates the {@code record} with values specific to datatype */
+
+    @Override
+    String getSeriesValueColumnName() {
+        return RATE_COLUMN_NAME;
+    }
+
+    @Override
+    long getEpochMillis(
+            @NonNull StepsCadenceRecordInternal.StepsCadenceRecordSample stepsCadenceRecord) {
+        return stepsCadenceRecord.getEpochMillis();
+    }
+
     @Override
-    void populateSpecificValues(
-            @NonNull Cursor seriesTableCursor, StepsCadenceRecordInternal record) {
-        HashSet<StepsCadenceRecordInternal.StepsCadenceRecordSample> stepsCadenceRecordSampleSet =
-                new HashSet<>();
-        UUID uuid = getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME);
-        do {
-            stepsCadenceRecordSampleSet.add(
-                    new StepsCadenceRecordInternal.StepsCadenceRecordSample(
-                            getCursorDouble(seriesTableCursor, RATE_COLUMN_NAME),
-                            getCursorLong(seriesTableCursor, EPOCH_MILLIS_COLUMN_NAME)));
-        } while (seriesTableCursor.moveToNext()
-                && uuid.equals(getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME)));
-        // In case we hit another record, move the cursor back to read next record in outer
-        // RecordHelper#getInternalRecords loop.
-        seriesTableCursor.moveToPrevious();
-        record.setSamples(stepsCadenceRecordSampleSet);
+    double getValue(
+            @NonNull StepsCadenceRecordInternal.StepsCadenceRecordSample stepsCadenceRecord) {
+        return stepsCadenceRecord.getRate();
     }
 
     @Override
-    void populateSampleTo(
-            ContentValues contentValues,
-            StepsCadenceRecordInternal.StepsCadenceRecordSample stepsCadenceRecord) {
-        contentValues.put(RATE_COLUMN_NAME, stepsCadenceRecord.getRate());
-        contentValues.put(EPOCH_MILLIS_COLUMN_NAME, stepsCadenceRecord.getEpochMillis());
+    StepsCadenceRecordInternal.StepsCadenceRecordSample createSample(
+            double value, long epochMillis) {
+        return new StepsCadenceRecordInternal.StepsCadenceRecordSample(value, epochMillis);
     }
 }
@@ -35,41 +35,71 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.healthconnect.storage.request.AggregateParams;
 
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeSet;
+import java.util.PriorityQueue;
 
 /**
  * Aggregates records with priorities.
  *
+ * <p>Records are read from the cursor, which returns them in start time order, only as far as the
+ * sweep has got, so only the open records and the next one to open are kept in memory. A heap holds
+ * the open records ordered by priority, so each interval between two consecutive events is
+ * attributed to the highest priority open record. Ended records are removed lazily, once they
+ * reach the top of the heap or when the heap has grown enough to be compacted.
+ *
  * @hide
  */
 public class PriorityRecordsAggregator {
     static final String TAG = "HealthPriorityRecordsAggregator";
+    private static final int MIN_HEAP_COMPACTION_SIZE = 64;
 
-    private final List<Long> mGroupSplits;
+    private final long[] mGroupSplits;
     private final Map<Long, Integer> mAppIdToPriority;
-    private final Map<Integer, Double> mGroupToAggregationResult;
-    private final Map<Integer, ZoneOffset> mGroupToFirstZoneOffset;
+    private final double[] mGroupToAggregationResult;
+    private final boolean[] mGroupHasResult;
+    private final ZoneOffset[] mGroupToFirstZoneOffset;
     private final int mNumberOfGroups;
-    private int mCurrentGroup = -1;
-    private long mLatestPopulatedStart = -1;
     @AggregationType.AggregationTypeIdentifier private final int mAggregationType;
 
-    private final TreeSet<AggregationTimestamp> mTimestampsBuffer;
-    private final TreeSet<AggregationRecordData> mOpenIntervals;
-
     private final AggregateParams.PriorityAggregationExtraParams mExtraParams;
 
     private final boolean mUseLocalTime;
 
+    // Records read from the cursor but not opened yet, ordered by start time. As the cursor
+    // returns records in start time order, it only holds the next records to open.
+    private final PriorityQueue<AggregationRecordData> mPendingRecords =
+            new PriorityQueue<>(Comparator.comparingLong(AggregationRecordData::getStartTime));
+    private long mLastReadStartTime = Long.MIN_VALUE;
+    private boolean mAllRecordsRead;
+
+    // Max heap of the open records, ordered by priority.
+    private AggregationRecordData[] mOpenRecordsHeap =
+            new AggregationRecordData[MIN_HEAP_COMPACTION_SIZE];
+    private int mOpenRecordsHeapSize;
+    // Heap size from which ended records are removed from the whole heap.
+    private int mOpenRecordsHeapCompactionSize = MIN_HEAP_COMPACTION_SIZE;
+    // Records starting and ending at the current time of the sweep.
+    private final List<AggregationRecordData> mInstantRecords = new ArrayList<>();
+
+    // Group of the last accounted interval, it never decreases during the sweep.
+    private int mCurrentGroup;
+    // Groups before this one are known to have a result or not.
+    private int mFirstUnresolvedGroup;
+
     public PriorityRecordsAggregator(
             List<Long> groupSplits,
             List<Long> appIdPriorityList,
             @AggregationType.AggregationTypeIdentifier int aggregationType,
             AggregateParams.PriorityAggregationExtraParams extraParams,
             boolean useLocalTime) {
-        mGroupSplits = groupSplits;
+        mGroupSplits = new long[groupSplits.size()];
+        for (int i = 0; i < groupSplits.size(); i++) {
+            mGroupSplits[i] = groupSplits.get(i);
+        }
         mAggregationType = aggregationType;
         mExtraParams = extraParams;
         mAppIdToPriority = new ArrayMap<>();
@@ -78,17 +108,16 @@ public class PriorityRecordsAggregator {
             mAppIdToPriority.put(appIdPriorityList.get(i), appIdPriorityList.size() - i);
         }
         mUseLocalTime = useLocalTime;
-        mTimestampsBuffer = new TreeSet<>();
-        mNumberOfGroups = mGroupSplits.size() - 1;
-        mGroupToFirstZoneOffset = new ArrayMap<>(mNumberOfGroups);
-        mOpenIntervals = new TreeSet<>();
-        mGroupToAggregationResult = new ArrayMap<>(mGroupSplits.size());
+        mNumberOfGroups = Math.max(mGroupSplits.length - 1, 0);
+        mGroupToAggregationResult = new double[mNumberOfGroups];
+        mGroupHasResult = new boolean[mNumberOfGroups];
+        mGroupToFirstZoneOffset = new ZoneOffset[mNumberOfGroups];
 
         if (Constants.DEBUG) {
             Slog.d(
                     TAG,
                     "Aggregation request for splits: "
-                            + mGroupSplits
+                            + groupSplits
                             + " with priorities: "
                             + appIdPriorityList);
         }
@@ -96,103 +125,242 @@ public class PriorityRecordsAggregator {
 
     /** Calculates aggregation result for each group. */
     public void calculateAggregation(Cursor cursor) {
-        initialiseTimestampsBuffer(cursor);
-        populateTimestampBuffer(cursor);
-        AggregationTimestamp scanPoint, nextPoint;
-        while (mTimestampsBuffer.size() > 1) {
-            scanPoint = mTimestampsBuffer.pollFirst();
-            nextPoint = mTimestampsBuffer.first();
-            if (scanPoint.getType() == AggregationTimestamp.GROUP_BORDER) {
-                mCurrentGroup += 1;
-            } else if (scanPoint.getType() == AggregationTimestamp.INTERVAL_START) {
-                mOpenIntervals.add(scanPoint.getParentData());
-            } else if (scanPoint.getType() == AggregationTimestamp.INTERVAL_END) {
-                mOpenIntervals.remove(scanPoint.getParentData());
-            } else {
-                throw new UnsupportedOperationException(
-                        "Unknown aggregation timestamp type: " + scanPoint.getType());
-            }
-            updateAggregationResult(scanPoint, nextPoint);
-            populateTimestampBuffer(cursor);
-        }
+        sweepRecords(cursor);
 
         if (Constants.DEBUG) {
-            Slog.d(TAG, "Aggregation result: " + mGroupToAggregationResult.toString());
+            Slog.d(
+                    TAG,
+                    "Aggregation result: "
+                            + Arrays.toString(mGroupToAggregationResult)
+                            + " zone offsets: "
+                            + Arrays.toString(mGroupToFirstZoneOffset));
+        }
+    }
+
+    @VisibleForTesting
+    AggregationRecordData readNewData(Cursor cursor) {
+        AggregationRecordData data = createAggregationRecordData();
+        data.populateAggregationData(cursor, mUseLocalTime, mAppIdToPriority);
+        return data;
+    }
+
+    /** Returns result for the given group */
+    public Double getResultForGroup(Integer groupNumber) {
+        if (!mGroupHasResult[groupNumber]) {
+            return null;
         }
+        return mGroupToAggregationResult[groupNumber];
+    }
+
+    /** Returns start time zone offset for the given group */
+    public ZoneOffset getZoneOffsetForGroup(Integer groupNumber) {
+        return mGroupToFirstZoneOffset[groupNumber];
     }
 
-    private void populateTimestampBuffer(Cursor cursor) {
-        // Buffer populating strategy guarantees that at the moment we start to process the earliest
-        // record, we added to the buffer later overlapping records and the first non-overlapping
-        // record. It guarantees that the aggregation score can be calculated correctly for any
-        // timestamp within the earliest record interval.
-        if (mTimestampsBuffer.first().getType() != AggregationTimestamp.INTERVAL_START) {
+    private void sweepRecords(Cursor cursor) {
+        if (mNumberOfGroups == 0) {
             return;
         }
 
-        // Add record timestamps to buffer until latest buffer record do not overlap with earliest
-        // buffer record.
-        long expansionBorder = mTimestampsBuffer.first().getParentData().getEndTime();
-        if (Constants.DEBUG) {
-            Slog.d(
-                    TAG,
-                    "Try to update buffer exp border: "
-                            + expansionBorder
-                            + " latest start: "
-                            + mLatestPopulatedStart);
+        long endOfGroups = mGroupSplits[mNumberOfGroups];
+        long time = Long.MIN_VALUE;
+        AggregationRecordData nextRecord = peekNextRecord(cursor);
+        while (time < endOfGroups) {
+            if (mOpenRecordsHeapSize == 0) {
+                // Later records don't overlap with any group, so they are never read.
+                if (nextRecord == null || nextRecord.getStartTime() >= endOfGroups) {
+                    break;
+                }
+                time = Math.max(time, nextRecord.getStartTime());
+            }
+
+            // Records are opened at the time they start, as time only moves to start or end times.
+            if (mOpenRecordsHeapSize >= mOpenRecordsHeapCompactionSize) {
+                compactOpenRecords(time);
+            }
+            while (nextRecord != null && nextRecord.getStartTime() <= time) {
+                mPendingRecords.poll();
+                resolveGroupsWithResult(nextRecord);
+                if (nextRecord.getEndTime() > nextRecord.getStartTime()) {
+                    pushOpenRecord(nextRecord);
+                } else {
+                    mInstantRecords.add(nextRecord);
+                }
+                nextRecord = peekNextRecord(cursor);
+            }
+            for (int i = 0; i < mInstantRecords.size(); i++) {
+                addInstantRecordResult(mInstantRecords.get(i), time);
+            }
+            mInstantRecords.clear();
+
+            removeOpenRecordsEndedBy(time, /* inclusive= */ true);
+            if (mOpenRecordsHeapSize == 0) {
+                continue;
+            }
+
+            // The highest priority record stays on top until it ends or another record starts.
+            AggregationRecordData topRecord = mOpenRecordsHeap[0];
+            long nextTime = topRecord.getEndTime();
+            if (nextRecord != null) {
+                nextTime = Math.min(nextTime, nextRecord.getStartTime());
+            }
+            addResult(topRecord, time, nextTime);
+            time = nextTime;
         }
+    }
 
-        while (mLatestPopulatedStart <= expansionBorder && cursor.moveToNext()) {
-            AggregationRecordData data = readNewDataAndAddToBuffer(cursor);
-            mLatestPopulatedStart = data.getStartTime();
+    /**
+     * Returns the record to open next, or null if there is none. Records are read until one starts
+     * after it, so that records which the cursor doesn't return in start time order are still
+     * opened in order as long as they are close enough.
+     */
+    private AggregationRecordData peekNextRecord(Cursor cursor) {
+        while (!mAllRecordsRead
+                && (mPendingRecords.isEmpty()
+                        || mLastReadStartTime <= mPendingRecords.peek().getStartTime())) {
+            if (!cursor.moveToNext()) {
+                mAllRecordsRead = true;
+                break;
+            }
+            AggregationRecordData record = readNewData(cursor);
+            mLastReadStartTime = record.getStartTime();
+            mPendingRecords.add(record);
+        }
+        return mPendingRecords.peek();
+    }
 
-            if (Constants.DEBUG) {
-                Slog.d(TAG, "Updated buffer with : " + data);
+    /**
+     * Marks the groups which overlap with {@code record} as having a result, and sets their zone
+     * offset to the one of the earliest record, as records are passed in start time order. Records
+     * ending at the start of a group count as overlapping, so such a group has a zero result.
+     */
+    private void resolveGroupsWithResult(AggregationRecordData record) {
+        // The first record not ended before a group overlaps with it if it starts before the group
+        // ends, as later records start even later.
+        while (mFirstUnresolvedGroup < mNumberOfGroups
+                && record.getEndTime() >= mGroupSplits[mFirstUnresolvedGroup]) {
+            if (record.getStartTime() < mGroupSplits[mFirstUnresolvedGroup + 1]) {
+                mGroupHasResult[mFirstUnresolvedGroup] = true;
+                mGroupToFirstZoneOffset[mFirstUnresolvedGroup] = record.getStartTimeZoneOffset();
             }
+            mFirstUnresolvedGroup++;
         }
+    }
 
-        if (Constants.DEBUG) {
-            Slog.d(TAG, "Timestamps buffer: " + mTimestampsBuffer);
+    /** Adds the result of a record over the given interval to the groups it overlaps with. */
+    private void addResult(AggregationRecordData record, long startTime, long endTime) {
+        while (mCurrentGroup < mNumberOfGroups && mGroupSplits[mCurrentGroup + 1] <= startTime) {
+            mCurrentGroup++;
+        }
+
+        while (mCurrentGroup < mNumberOfGroups && mGroupSplits[mCurrentGroup] < endTime) {
+            long groupStart = Math.max(startTime, mGroupSplits[mCurrentGroup]);
+            long groupEnd = Math.min(endTime, mGroupSplits[mCurrentGroup + 1]);
+            if (groupStart < groupEnd) {
+                mGroupToAggregationResult[mCurrentGroup] +=
+                        record.getResultOnInterval(groupStart, groupEnd);
+            }
+            if (mGroupSplits[mCurrentGroup + 1] > endTime) {
+                break;
+            }
+            mCurrentGroup++;
         }
     }
 
-    private void initialiseTimestampsBuffer(Cursor cursor) {
-        for (Long groupSplit : mGroupSplits) {
-            mTimestampsBuffer.add(
-                    new AggregationTimestamp(AggregationTimestamp.GROUP_BORDER, groupSplit));
+    /**
+     * Adds the result of a record which starts and ends at {@code time}, unless a higher priority
+     * record is open at that time.
+     */
+    private void addInstantRecordResult(AggregationRecordData record, long time) {
+        removeOpenRecordsEndedBy(time, /* inclusive= */ false);
+        if (mOpenRecordsHeapSize > 0 && hasHigherPriority(mOpenRecordsHeap[0], record)) {
+            return;
         }
 
-        if (cursor.moveToNext()) {
-            readNewDataAndAddToBuffer(cursor);
+        while (mCurrentGroup < mNumberOfGroups && mGroupSplits[mCurrentGroup + 1] <= time) {
+            mCurrentGroup++;
+        }
+        if (mCurrentGroup < mNumberOfGroups && mGroupSplits[mCurrentGroup] <= time) {
+            mGroupToAggregationResult[mCurrentGroup] += record.getResultOnInterval(time, time);
         }
+    }
 
-        if (Constants.DEBUG) {
-            Slog.d(TAG, "Initialised aggregation buffer: " + mTimestampsBuffer);
+    private void removeOpenRecordsEndedBy(long time, boolean inclusive) {
+        while (mOpenRecordsHeapSize > 0) {
+            long endTime = mOpenRecordsHeap[0].getEndTime();
+            if (endTime > time || (!inclusive && endTime == time)) {
+                return;
+            }
+            popOpenRecord();
         }
     }
 
-    private AggregationRecordData readNewDataAndAddToBuffer(Cursor cursor) {
-        AggregationRecordData data = readNewData(cursor);
-        mTimestampsBuffer.add(data.getStartTimestamp());
-        mTimestampsBuffer.add(data.getEndTimestamp());
-        return data;
+    /**
+     * Removes the records ended by {@code time} from the heap. Lower priority records which end
+     * under a higher priority one never reach the top, so they would otherwise stay in the heap.
+     */
+    private void compactOpenRecords(long time) {
+        int size = 0;
+        for (int i = 0; i < mOpenRecordsHeapSize; i++) {
+            if (mOpenRecordsHeap[i].getEndTime() > time) {
+                mOpenRecordsHeap[size++] = mOpenRecordsHeap[i];
+            }
+        }
+        Arrays.fill(mOpenRecordsHeap, size, mOpenRecordsHeapSize, null);
+        mOpenRecordsHeapSize = size;
+        for (int index = size / 2 - 1; index >= 0; index--) {
+            siftDown(index, mOpenRecordsHeap[index]);
+        }
+        // Doubling the size keeps the amortised cost of compactions constant per record.
+        mOpenRecordsHeapCompactionSize = Math.max(2 * size, MIN_HEAP_COMPACTION_SIZE);
     }
 
-    @VisibleForTesting
-    AggregationRecordData readNewData(Cursor cursor) {
-        AggregationRecordData data = createAggregationRecordData();
-        data.populateAggregationData(cursor, mUseLocalTime, mAppIdToPriority);
-        return data;
+    private void pushOpenRecord(AggregationRecordData record) {
+        if (mOpenRecordsHeapSize == mOpenRecordsHeap.length) {
+            mOpenRecordsHeap = Arrays.copyOf(mOpenRecordsHeap, 2 * mOpenRecordsHeapSize);
+        }
+        int index = mOpenRecordsHeapSize++;
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!hasHigherPriority(record, mOpenRecordsHeap[parent])) {
+                break;
+            }
+            mOpenRecordsHeap[index] = mOpenRecordsHeap[parent];
+            index = parent;
+        }
+        mOpenRecordsHeap[index] = record;
     }
 
-    /** Returns result for the given group */
-    public Double getResultForGroup(Integer groupNumber) {
-        return mGroupToAggregationResult.get(groupNumber);
+    private void popOpenRecord() {
+        AggregationRecordData last = mOpenRecordsHeap[--mOpenRecordsHeapSize];
+        mOpenRecordsHeap[mOpenRecordsHeapSize] = null;
+        if (mOpenRecordsHeapSize > 0) {
+            siftDown(0, last);
+        }
     }
 
-    /** Returns start time zone offset for the given group */
-    public ZoneOffset getZoneOffsetForGroup(Integer groupNumber) {
-        return mGroupToFirstZoneOffset.get(groupNumber);
+    private void siftDown(int index, AggregationRecordData record) {
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= mOpenRecordsHeapSize) {
+                break;
+            }
+            if (child + 1 < mOpenRecordsHeapSize
+                    && hasHigherPriority(mOpenRecordsHeap[child + 1], mOpenRecordsHeap[child])) {
+                child++;
+            }
+            if (!hasHigherPriority(mOpenRecordsHeap[child], record)) {
+                break;
+            }
+            mOpenRecordsHeap[index] = mOpenRecordsHeap[child];
+            index = child;
+        }
+        mOpenRecordsHeap[index] = record;
+    }
+
+    private static boolean hasHigherPriority(
+            AggregationRecordData record, AggregationRecordData otherRecord) {
+        return record.compareTo(otherRecord) > 0;
     }
 
     private AggregationRecordData createAggregationRecordData() {
@@ -213,57 +381,4 @@ public class PriorityRecordsAggregator {
                     "Priority aggregation do not support type: " + mAggregationType);
         };
     }
-
-    private void updateAggregationResult(
-            AggregationTimestamp startPoint, AggregationTimestamp endPoint) {
-        if (Constants.DEBUG) {
-            Slog.d(
-                    TAG,
-                    "Updating result for group "
-                            + mCurrentGroup
-                            + " for interval: ("
-                            + startPoint.getTime()
-                            + ", "
-                            + endPoint.getTime()
-                            + ")");
-        }
-
-        if (mOpenIntervals.isEmpty() || mCurrentGroup < 0 || mCurrentGroup >= mNumberOfGroups) {
-            if (Constants.DEBUG) {
-                Slog.d(TAG, "No open intervals or current group: " + mCurrentGroup);
-            }
-            return;
-        }
-
-        if (!mGroupToAggregationResult.containsKey(mCurrentGroup)) {
-            mGroupToAggregationResult.put(mCurrentGroup, 0.0d);
-        }
-
-        if (Constants.DEBUG) {
-            Slog.d(TAG, "Update result with: " + mOpenIntervals.last());
-        }
-
-        mGroupToAggregationResult.put(
-                mCurrentGroup,
-                mGroupToAggregationResult.get(mCurrentGroup)
-                        + mOpenIntervals
-                                .last()
-                                .getResultOnInterval(startPoint.getTime(), endPoint.getTime()));
-
-        if (mCurrentGroup >= 0
-                && !mGroupToFirstZoneOffset.containsKey(mCurrentGroup)
-                && !mOpenIntervals.isEmpty()) {
-            mGroupToFirstZoneOffset.put(mCurrentGroup, getZoneOffsetOfEarliestOpenInterval());
-        }
-    }
-
-    private ZoneOffset getZoneOffsetOfEarliestOpenInterval() {
-        AggregationRecordData earliestInterval = mOpenIntervals.first();
-        for (AggregationRecordData data : mOpenIntervals) {
-            if (data.getStartTime() < earliestInterval.getStartTime()) {
-                earliestInterval = data;
-            }
-        }
-        return earliestInterval.getStartTimeZoneOffset();
-    }
 }
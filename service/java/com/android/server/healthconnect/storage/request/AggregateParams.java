@@ -46,6 +46,10 @@ public class AggregateParams {
 
     private String mTimeOffsetColumnName;
 
+    // SQL expression computing the aggregation, null to apply the aggregation operation to the
+    // column to fetch.
+    private String mAggregateExpression;
+
     private PriorityAggregationExtraParams mPriorityAggregationExtraParams;
 
     public AggregateParams(String tableName, List<String> columnsToFetch, String timeColumnName) {
@@ -100,12 +104,26 @@ public class AggregateParams {
         return mTimeOffsetColumnName;
     }
 
+    public String getAggregateExpression() {
+        return mAggregateExpression;
+    }
+
     /** Sets join type. */
     public AggregateParams setJoin(SqlJoin join) {
         mJoin = join;
         return this;
     }
 
+    /**
+     * Sets the SQL expression computing the aggregation, for values which aren't stored in a
+     * column. The result is still named after the column to fetch.
+     */
+    public AggregateParams setAggregateExpression(@NonNull String aggregateExpression) {
+        Objects.requireNonNull(aggregateExpression);
+        mAggregateExpression = aggregateExpression;
+        return this;
+    }
+
     public AggregateParams setTimeColumnName(String columnName) {
         mTimeColumnName = columnName;
         return this;
@@ -26,6 +26,7 @@ import static com.android.server.healthconnect.storage.datatypehelpers.RecordHel
 
 import android.annotation.NonNull;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.health.connect.AggregateResult;
 import android.health.connect.Constants;
 import android.health.connect.LocalTimeRangeFilter;
@@ -33,10 +34,12 @@ import android.health.connect.TimeRangeFilter;
 import android.health.connect.TimeRangeFilterHelper;
 import android.health.connect.datatypes.AggregationType;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Pair;
 import android.util.Slog;
 
 import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.datatypehelpers.AggregationRollupHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.aggregation.PriorityRecordsAggregator;
@@ -48,9 +51,13 @@ import com.android.server.healthconnect.storage.utils.WhereClauses;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.Period;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A request for {@link TransactionManager} to query the DB for aggregation results
@@ -60,13 +67,20 @@ import java.util.Map;
 public class AggregateTableRequest {
     private static final String TAG = "HealthConnectAggregate";
     private static final String GROUP_BY_COLUMN_NAME = "category";
+    // App ids of the scanned records, comma separated for grouped aggregations.
+    private static final String DATA_ORIGINS_COLUMN_NAME = "data_origins";
+    private static final long[] ROLLUP_BUCKET_SIZES = {
+        AggregationRollupHelper.BUCKET_SIZE_DAY, AggregationRollupHelper.BUCKET_SIZE_HOUR
+    };
 
     private final long DEFAULT_TIME = -1;
     private final String mTableName;
     private final List<String> mColumnNamesToAggregate;
+    private final String mAggregateExpression;
     private final AggregationType<?> mAggregationType;
     private final RecordHelper<?> mRecordHelper;
     private final Map<Integer, AggregateResult<?>> mAggregateResults = new ArrayMap<>();
+    private final Set<Long> mDataOriginAppIds = new ArraySet<>();
     private final String mTimeColumnName;
     // Additional column used for time filtering. End time for interval records,
     // null for other records.
@@ -82,6 +96,8 @@ public class AggregateTableRequest {
     private final AggregateParams.PriorityAggregationExtraParams mPriorityParams;
     private final boolean mUseLocalTime;
     private List<Long> mTimeSplits;
+    // Groups which are not answered by the rollups, the rest are populated in onRollupsFetched.
+    private boolean[] mGroupsRequiringRecords;
 
     public AggregateTableRequest(
             AggregateParams params,
@@ -90,6 +106,7 @@ public class AggregateTableRequest {
             boolean useLocalTime) {
         mTableName = params.getTableName();
         mColumnNamesToAggregate = params.getColumnsToFetch();
+        mAggregateExpression = params.getAggregateExpression();
         mTimeColumnName = params.getTimeColumnName();
         mAggregationType = aggregationType;
         mRecordHelper = recordHelper;
@@ -133,13 +150,6 @@ public class AggregateTableRequest {
         return aggregateResults;
     }
 
-    /** Returns SQL statement to get data origins for the aggregation operation */
-    public String getCommandToFetchAggregateMetadata() {
-        final StringBuilder builder = new StringBuilder("SELECT DISTINCT ");
-        builder.append(APP_INFO_ID_COLUMN_NAME).append(", ");
-        return appendAggregateCommand(builder, /* isMetadata= */ true);
-    }
-
     /** Returns name of the main time column (start time for Interval, time for Instant records) */
     public String getTimeColumnName() {
         return mTimeColumnName;
@@ -153,6 +163,20 @@ public class AggregateTableRequest {
     /** Returns SQL statement to perform aggregation operation */
     @NonNull
     public String getAggregationCommand() {
+        return getAggregationCommand(mStartTime, mEndTime);
+    }
+
+    /**
+     * Returns SQL statement to perform aggregation operation on the records of groups [{@code
+     * fromGroup}, {@code toGroup}).
+     */
+    @NonNull
+    public String getAggregationCommand(int fromGroup, int toGroup) {
+        return getAggregationCommand(mTimeSplits.get(fromGroup), mTimeSplits.get(toGroup));
+    }
+
+    @NonNull
+    private String getAggregationCommand(long startTime, long endTime) {
         final StringBuilder builder = new StringBuilder("SELECT ");
         String aggCommand;
         boolean usingPriority =
@@ -168,11 +192,12 @@ public class AggregateTableRequest {
             aggCommand = getSqlCommandFor(mAggregationType.getAggregateOperationType());
 
             for (String columnName : mColumnNamesToAggregate) {
-                builder.append(aggCommand)
-                        .append("(")
-                        .append(columnName)
-                        .append(")")
-                        .append(" as ")
+                if (mAggregateExpression != null) {
+                    builder.append(mAggregateExpression);
+                } else {
+                    builder.append(aggCommand).append("(").append(columnName).append(")");
+                }
+                builder.append(" as ")
                         .append(columnName)
                         .append(", ");
             }
@@ -184,7 +209,15 @@ public class AggregateTableRequest {
             }
         }
 
-        return appendAggregateCommand(builder, usingPriority);
+        // Data origins are collected from the same scan instead of a separate DISTINCT query.
+        if (usingPriority) {
+            builder.append(APP_INFO_ID_COLUMN_NAME);
+        } else {
+            builder.append("GROUP_CONCAT(DISTINCT ").append(APP_INFO_ID_COLUMN_NAME).append(")");
+        }
+        builder.append(" AS ").append(DATA_ORIGINS_COLUMN_NAME).append(", ");
+
+        return appendAggregateCommand(builder, usingPriority, startTime, endTime);
     }
 
     public AggregateTableRequest setPackageFilter(
@@ -232,47 +265,170 @@ public class AggregateTableRequest {
         }
     }
 
-    public void onResultsFetched(Cursor cursor, Cursor metaDataCursor) {
+    public void onResultsFetched(Cursor results) {
+        Cursor cursor = new DataOriginsCollectingCursor(results, mDataOriginAppIds);
         if (StorageUtils.isDerivedType(mRecordHelper.getRecordIdentifier())) {
             deriveAggregate(cursor);
         } else if (StorageUtils.supportsPriority(
                 mRecordHelper.getRecordIdentifier(),
                 mAggregationType.getAggregateOperationType())) {
-            processPriorityRequest(cursor);
+            processPriorityRequest(cursor, /* fromGroup= */ 0, mGroupBySize);
         } else {
             processNoPrioritiesRequest(cursor);
         }
 
-        updateResultWithDataOriginPackageNames(metaDataCursor);
+        updateResultWithDataOriginPackageNames();
+    }
+
+    /** Discards the results populated so far, so that they can be populated again. */
+    public void clearResults() {
+        mAggregateResults.clear();
+        mDataOriginAppIds.clear();
+    }
+
+    /**
+     * Returns whether the groups of this request can be answered from {@link
+     * AggregationRollupHelper} rollups, falling back to the records only where they can't.
+     */
+    public boolean canUseRollups() {
+        return mTimeSplits != null
+                && mGroupByColumnName != null
+                && AggregationRollupHelper.supportsAggregation(
+                        mAggregationType.getAggregationTypeIdentifier())
+                && getRollupBucketSize() != 0;
+    }
+
+    /** Returns a request reading the rollups covering the groups of this request. */
+    @NonNull
+    public ReadTableRequest getReadRollupsRequest() {
+        return AggregationRollupHelper.getInstance()
+                .getReadRollupsRequest(
+                        mRecordHelper.getRecordIdentifier(),
+                        getRollupBucketSize(),
+                        mUseLocalTime,
+                        mTimeSplits.get(0),
+                        mTimeSplits.get(mGroupBySize));
+    }
+
+    /**
+     * Populates the results of the groups aligned to rollup buckets, where no records overlap.
+     * Remaining groups are returned by {@link #getGroupRangesRequiringRecords}.
+     */
+    public void onRollupsFetched(Cursor cursor) {
+        long bucketSize = getRollupBucketSize();
+        mGroupsRequiringRecords = new boolean[mGroupBySize];
+        for (int groupNumber = 0; groupNumber < mGroupBySize; groupNumber++) {
+            mGroupsRequiringRecords[groupNumber] =
+                    mTimeSplits.get(groupNumber) % bucketSize != 0
+                            || mTimeSplits.get(groupNumber + 1) % bucketSize != 0;
+        }
+
+        double[] totals = new double[mGroupBySize];
+        long[] firstStartTimes = new long[mGroupBySize];
+        int[] firstZoneOffsets = new int[mGroupBySize];
+        Arrays.fill(firstStartTimes, Long.MAX_VALUE);
+        while (cursor.moveToNext()) {
+            int groupNumber =
+                    getGroupNumber(
+                            StorageUtils.getCursorLong(
+                                    cursor, AggregationRollupHelper.BUCKET_START_COLUMN_NAME));
+            // Priorities only matter for overlapping records, and overlaps with the records of
+            // any app make the group fall back to the records. So do records removed from the
+            // bucket since it was last recomputed.
+            if (StorageUtils.getCursorInt(cursor, AggregationRollupHelper.REQUIRES_RAW_COLUMN_NAME)
+                            != 0
+                    || StorageUtils.getCursorInt(cursor, AggregationRollupHelper.DIRTY_COLUMN_NAME)
+                            != 0) {
+                mGroupsRequiringRecords[groupNumber] = true;
+            }
+
+            long appInfoId = StorageUtils.getCursorLong(cursor, APP_INFO_ID_COLUMN_NAME);
+            int firstStartTimeIndex =
+                    cursor.getColumnIndex(AggregationRollupHelper.FIRST_START_TIME_COLUMN_NAME);
+            if ((mPackageFilters != null
+                            && !mPackageFilters.isEmpty()
+                            && !mPackageFilters.contains(appInfoId))
+                    || cursor.isNull(firstStartTimeIndex)) {
+                continue;
+            }
+            mDataOriginAppIds.add(appInfoId);
+
+            totals[groupNumber] +=
+                    StorageUtils.getCursorDouble(
+                            cursor, AggregationRollupHelper.TOTAL_COLUMN_NAME);
+            long firstStartTime = cursor.getLong(firstStartTimeIndex);
+            if (firstStartTime < firstStartTimes[groupNumber]) {
+                firstStartTimes[groupNumber] = firstStartTime;
+                firstZoneOffsets[groupNumber] =
+                        StorageUtils.getCursorInt(
+                                cursor, AggregationRollupHelper.FIRST_ZONE_OFFSET_COLUMN_NAME);
+            }
+        }
+
+        for (int groupNumber = 0; groupNumber < mGroupBySize; groupNumber++) {
+            if (mGroupsRequiringRecords[groupNumber]
+                    || firstStartTimes[groupNumber] == Long.MAX_VALUE) {
+                continue;
+            }
+
+            mAggregateResults.put(
+                    groupNumber,
+                    getPriorityAggregateResult(totals[groupNumber])
+                            .setZoneOffset(
+                                    ZoneOffset.ofTotalSeconds(firstZoneOffsets[groupNumber])));
+        }
+    }
+
+    /**
+     * Returns [from, to) ranges of consecutive groups which have to be aggregated from the records
+     * after {@link #onRollupsFetched}.
+     */
+    @NonNull
+    public List<Pair<Integer, Integer>> getGroupRangesRequiringRecords() {
+        List<Pair<Integer, Integer>> ranges = new ArrayList<>();
+        int groupNumber = 0;
+        while (groupNumber < mGroupBySize) {
+            if (!mGroupsRequiringRecords[groupNumber]) {
+                groupNumber++;
+                continue;
+            }
+
+            int fromGroup = groupNumber;
+            while (groupNumber < mGroupBySize && mGroupsRequiringRecords[groupNumber]) {
+                groupNumber++;
+            }
+            ranges.add(new Pair<>(fromGroup, groupNumber));
+        }
+
+        return ranges;
+    }
+
+    /** Populates the results of groups [{@code fromGroup}, {@code toGroup}) from the records. */
+    public void onRecordsFetched(Cursor records, int fromGroup, int toGroup) {
+        processPriorityRequest(
+                new DataOriginsCollectingCursor(records, mDataOriginAppIds), fromGroup, toGroup);
     }
 
-    private void processPriorityRequest(Cursor cursor) {
+    private void processPriorityRequest(Cursor cursor, int fromGroup, int toGroup) {
         List<Long> priorityList =
                 StorageUtils.getAppIdPriorityList(mRecordHelper.getRecordIdentifier());
         PriorityRecordsAggregator aggregator =
                 new PriorityRecordsAggregator(
-                        mTimeSplits,
+                        mTimeSplits.subList(fromGroup, toGroup + 1),
                         priorityList,
                         mAggregationType.getAggregationTypeIdentifier(),
                         mPriorityParams,
                         mUseLocalTime);
         aggregator.calculateAggregation(cursor);
-        AggregateResult<?> result;
-        for (int groupNumber = 0; groupNumber < mGroupBySize; groupNumber++) {
+        for (int groupNumber = 0; groupNumber < toGroup - fromGroup; groupNumber++) {
             if (aggregator.getResultForGroup(groupNumber) == null) {
                 continue;
             }
 
-            if (mAggregationType.getAggregateResultClass() == Long.class) {
-                result =
-                        new AggregateResult<>(
-                                aggregator.getResultForGroup(groupNumber).longValue());
-            } else {
-                result = new AggregateResult<>(aggregator.getResultForGroup(groupNumber));
-            }
             mAggregateResults.put(
-                    groupNumber,
-                    result.setZoneOffset(aggregator.getZoneOffsetForGroup(groupNumber)));
+                    fromGroup + groupNumber,
+                    getPriorityAggregateResult(aggregator.getResultForGroup(groupNumber))
+                            .setZoneOffset(aggregator.getZoneOffsetForGroup(groupNumber)));
         }
 
         if (Constants.DEBUG) {
@@ -288,6 +444,35 @@ public class AggregateTableRequest {
         }
     }
 
+    private AggregateResult<?> getPriorityAggregateResult(double value) {
+        if (mAggregationType.getAggregateResultClass() == Long.class) {
+            return new AggregateResult<>((long) value);
+        }
+        return new AggregateResult<>(value);
+    }
+
+    /**
+     * Returns the largest rollup bucket size all inner group borders are aligned to, or 0 if
+     * there is none. Unaligned outer borders are aggregated from the records.
+     */
+    private long getRollupBucketSize() {
+        for (long bucketSize : ROLLUP_BUCKET_SIZES) {
+            boolean aligned = true;
+            for (int i = 1; i < mTimeSplits.size() - 1 && aligned; i++) {
+                aligned = mTimeSplits.get(i) % bucketSize == 0;
+            }
+            if (aligned) {
+                return bucketSize;
+            }
+        }
+        return 0;
+    }
+
+    private int getGroupNumber(long time) {
+        int index = Collections.binarySearch(mTimeSplits, time);
+        return index >= 0 ? index : -index - 2;
+    }
+
     private static String getSqlCommandFor(@AggregationType.AggregateOperationType int type) {
         return switch (type) {
             case MAX -> "MAX";
@@ -299,8 +484,9 @@ public class AggregateTableRequest {
         };
     }
 
-    private String appendAggregateCommand(StringBuilder builder, boolean isMetadata) {
-        boolean useGroupBy = mGroupByColumnName != null && !isMetadata;
+    private String appendAggregateCommand(
+            StringBuilder builder, boolean selectsRows, long startTime, long endTime) {
+        boolean useGroupBy = mGroupByColumnName != null && !selectsRows;
         if (useGroupBy) {
             builder.append(" CASE ");
             int groupByIndex = 0;
@@ -326,7 +512,7 @@ public class AggregateTableRequest {
             builder.append(mSqlJoin.getJoinCommand());
         }
 
-        builder.append(buildAggregationWhereCondition());
+        builder.append(buildAggregationWhereCondition(startTime, endTime));
 
         if (useGroupBy) {
             builder.append(" GROUP BY " + GROUP_BY_COLUMN_NAME);
@@ -343,28 +529,29 @@ public class AggregateTableRequest {
         return builder.toString();
     }
 
-    private String buildAggregationWhereCondition() {
+    private String buildAggregationWhereCondition(long startTime, long endTime) {
         WhereClauses whereClauses = new WhereClauses();
         whereClauses.addWhereInLongsClause(mPackageColumnName, mPackageFilters);
 
         if (mEndTimeColumnName != null) {
             // Filter all records which overlap with time filter interval:
             // recordStartTime < filterEndTime and recordEndTime >= filterStartTime
-            whereClauses.addWhereGreaterThanOrEqualClause(mEndTimeColumnName, mStartTime);
+            whereClauses.addWhereGreaterThanOrEqualClause(mEndTimeColumnName, startTime);
         } else {
-            whereClauses.addWhereGreaterThanOrEqualClause(mTimeColumnName, mStartTime);
+            whereClauses.addWhereGreaterThanOrEqualClause(mTimeColumnName, startTime);
         }
-        whereClauses.addWhereLessThanClause(mTimeColumnName, mEndTime);
+        whereClauses.addWhereLessThanClause(mTimeColumnName, endTime);
 
         return whereClauses.get(/* withWhereKeyword= */ true);
     }
 
-    private void updateResultWithDataOriginPackageNames(Cursor metaDataCursor) {
-        List<Long> packageIds = new ArrayList<>();
-        while (metaDataCursor.moveToNext()) {
-            packageIds.add(StorageUtils.getCursorLong(metaDataCursor, APP_INFO_ID_COLUMN_NAME));
-        }
-        List<String> packageNames = AppInfoHelper.getInstance().getPackageNames(packageIds);
+    /**
+     * Sets the apps which contributed to the aggregation as data origins of the results, once all
+     * the rollups and records of this request have been fetched.
+     */
+    public void updateResultWithDataOriginPackageNames() {
+        List<String> packageNames =
+                AppInfoHelper.getInstance().getPackageNames(new ArrayList<>(mDataOriginAppIds));
 
         mAggregateResults.replaceAll(
                 (n, v) -> mAggregateResults.get(n).setDataOrigins(packageNames));
@@ -433,4 +620,59 @@ public class AggregateTableRequest {
             index++;
         }
     }
+
+    /**
+     * Adds the app ids of each row the wrapped cursor moves to to the data origins, so that they
+     * are collected in the same pass that aggregates the rows.
+     */
+    private static final class DataOriginsCollectingCursor extends CursorWrapper {
+        private final Set<Long> mDataOriginAppIds;
+        private final int mDataOriginsIndex;
+
+        DataOriginsCollectingCursor(Cursor cursor, Set<Long> dataOriginAppIds) {
+            super(cursor);
+            mDataOriginAppIds = dataOriginAppIds;
+            mDataOriginsIndex = cursor.getColumnIndex(DATA_ORIGINS_COLUMN_NAME);
+        }
+
+        @Override
+        public boolean move(int offset) {
+            return collect(super.move(offset));
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            return collect(super.moveToPosition(position));
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return collect(super.moveToFirst());
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return collect(super.moveToLast());
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return collect(super.moveToNext());
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            return collect(super.moveToPrevious());
+        }
+
+        private boolean collect(boolean moved) {
+            if (!moved || mDataOriginsIndex < 0 || isNull(mDataOriginsIndex)) {
+                return moved;
+            }
+            for (String appInfoId : getString(mDataOriginsIndex).split(",")) {
+                mDataOriginAppIds.add(Long.parseLong(appInfoId));
+            }
+            return moved;
+        }
+    }
 }
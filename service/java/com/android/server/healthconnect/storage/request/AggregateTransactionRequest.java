@@ -25,8 +25,10 @@ import android.health.connect.aidl.AggregateDataRequestParcel;
 import android.health.connect.aidl.AggregateDataResponseParcel;
 import android.health.connect.datatypes.AggregationType;
 import android.health.connect.internal.datatypes.utils.AggregationTypeIdMapper;
+import android.os.SystemClock;
 import android.util.ArrayMap;
 
+import com.android.server.healthconnect.HealthConnectThreadScheduler;
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
@@ -37,6 +39,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Refines aggregate request from what the client sent to a format that makes the most sense for the
@@ -50,6 +54,7 @@ public final class AggregateTransactionRequest {
     private final Period mPeriod;
     private final Duration mDuration;
     private final TimeRangeFilter mTimeRangeFilter;
+    private final long[] mAggregationDurationsMillis;
 
     public AggregateTransactionRequest(
             @NonNull String packageName, @NonNull AggregateDataRequestParcel request) {
@@ -58,6 +63,7 @@ public final class AggregateTransactionRequest {
         mPeriod = request.getPeriod();
         mDuration = request.getDuration();
         mTimeRangeFilter = request.getTimeRangeFilter();
+        mAggregationDurationsMillis = new long[request.getAggregateIds().length];
 
         final AggregationTypeIdMapper aggregationTypeIdMapper =
                 AggregationTypeIdMapper.getInstance();
@@ -95,15 +101,31 @@ public final class AggregateTransactionRequest {
         return mPackageName;
     }
 
+    /**
+     * Returns the time taken by each aggregation by aggregation id.
+     *
+     * <p>Note: Only available after the call to {@link #getAggregateDataResponseParcel}
+     */
+    @NonNull
+    public Map<Integer, Long> getAggregationDurationsMillis() {
+        Map<Integer, Long> aggregationDurationsMillis = new ArrayMap<>();
+        for (int i = 0; i < mAggregateTableRequests.size(); i++) {
+            aggregationDurationsMillis.put(
+                    AggregationTypeIdMapper.getInstance()
+                            .getIdFor(mAggregateTableRequests.get(i).getAggregationType()),
+                    mAggregationDurationsMillis[i]);
+        }
+        return aggregationDurationsMillis;
+    }
+
     /**
      * @return Compute and return aggregations
      */
     public AggregateDataResponseParcel getAggregateDataResponseParcel() {
+        computeAggregations();
+
         Map<AggregationType<?>, List<AggregateResult<?>>> results = new ArrayMap<>();
         for (AggregateTableRequest aggregateTableRequest : mAggregateTableRequests) {
-            // Compute aggregations
-            TransactionManager.getInitialisedInstance()
-                    .populateWithAggregation(aggregateTableRequest);
             results.put(
                     aggregateTableRequest.getAggregationType(),
                     aggregateTableRequest.getAggregateResults());
@@ -136,4 +158,45 @@ public final class AggregateTransactionRequest {
 
         return aggregateDataResponseParcel;
     }
+
+    /**
+     * Computes the aggregations of all the table requests. They are independent of each other, so
+     * all but the last one run on the aggregation executor, each on its own WAL reader connection,
+     * while the last one runs on the calling thread.
+     */
+    private void computeAggregations() {
+        List<Future<?>> futures = new ArrayList<>(mAggregateTableRequests.size());
+        try {
+            for (int i = 0; i < mAggregateTableRequests.size() - 1; i++) {
+                final int index = i;
+                futures.add(
+                        HealthConnectThreadScheduler.scheduleAggregationTask(
+                                () -> computeAggregation(index)));
+            }
+            if (!mAggregateTableRequests.isEmpty()) {
+                computeAggregation(mAggregateTableRequests.size() - 1);
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw (Error) e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while aggregating", e);
+        } finally {
+            // No-op for the finished ones, avoids leaving work behind if one of them failed.
+            futures.forEach(future -> future.cancel(/* mayInterruptIfRunning= */ true));
+        }
+    }
+
+    private void computeAggregation(int index) {
+        long startTime = SystemClock.elapsedRealtime();
+        TransactionManager.getInitialisedInstance()
+                .populateWithAggregation(mAggregateTableRequests.get(index));
+        mAggregationDurationsMillis[index] = SystemClock.elapsedRealtime() - startTime;
+    }
 }
@@ -46,6 +46,7 @@ public final class CreateTableRequest {
     private final List<Pair<String, String>> mColumnInfo;
     private final List<String> mColumnsToIndex = new ArrayList<>();
     private final List<List<String>> mUniqueColumns = new ArrayList<>();
+    private List<CreateIndexRequest> mIndexRequests = Collections.emptyList();
     private List<ForeignKey> mForeignKeys = new ArrayList<>();
     private List<CreateTableRequest> mChildTableRequests = Collections.emptyList();
     private List<GeneratedColumnInfo> mGeneratedColumnInfo = Collections.emptyList();
@@ -76,6 +77,15 @@ public final class CreateTableRequest {
         return this;
     }
 
+    /** Sets additional, possibly multi-column, indexes to be created along with the table. */
+    @NonNull
+    public CreateTableRequest setIndexRequests(@NonNull List<CreateIndexRequest> indexRequests) {
+        Objects.requireNonNull(indexRequests);
+
+        mIndexRequests = indexRequests;
+        return this;
+    }
+
     @NonNull
     public List<CreateTableRequest> getChildTableRequests() {
         return mChildTableRequests;
@@ -159,6 +169,10 @@ public final class CreateTableRequest {
             }
         }
 
+        for (CreateIndexRequest indexRequest : mIndexRequests) {
+            result.add(indexRequest.getCommand());
+        }
+
         return result;
     }
 
@@ -89,6 +89,15 @@ public class DeleteTableRequest {
         return this;
     }
 
+    /**
+     * Sets the clauses which the other filters of this request are added to, replacing any clauses
+     * set before. {@code whereClauses} itself isn't modified.
+     */
+    public DeleteTableRequest setCustomWhereClauses(@NonNull WhereClauses whereClauses) {
+        mCustomWhereClauses = Objects.requireNonNull(whereClauses);
+        return this;
+    }
+
     public DeleteTableRequest setIds(@NonNull String idColumnName, @NonNull List<String> ids) {
         Objects.requireNonNull(ids);
         Objects.requireNonNull(idColumnName);
@@ -160,7 +169,9 @@ public class DeleteTableRequest {
 
     public String getWhereCommand() {
         WhereClauses whereClauses =
-                Objects.isNull(mCustomWhereClauses) ? new WhereClauses() : mCustomWhereClauses;
+                Objects.isNull(mCustomWhereClauses)
+                        ? new WhereClauses()
+                        : new WhereClauses(mCustomWhereClauses);
         whereClauses.addWhereInLongsClause(mPackageColumnName, mPackageFilters);
         whereClauses.addWhereBetweenTimeClause(mTimeColumnName, mStartTime, mEndTime);
         whereClauses.addWhereInClauseWithoutQuotes(mIdColumnName, mIds);
@@ -33,6 +33,7 @@ import com.android.server.healthconnect.storage.utils.SqlJoin;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 
@@ -146,6 +147,23 @@ public class ReadTableRequest {
         return readQuery;
     }
 
+    /**
+     * Returns the arguments to bind to the placeholders of {@link #getReadCommand()}, in order.
+     * Empty unless the where clause uses {@link WhereClauses#setUseBindArgs}.
+     */
+    @NonNull
+    public Object[] getBindArgs() {
+        List<Object> bindArgs = new ArrayList<>();
+        if (mUnionReadRequests != null) {
+            for (ReadTableRequest unionReadRequest : mUnionReadRequests) {
+                bindArgs.addAll(Arrays.asList(unionReadRequest.getBindArgs()));
+            }
+        }
+        bindArgs.addAll(Arrays.asList(mWhereClauses.getBindArgs()));
+
+        return bindArgs.toArray();
+    }
+
     /** Get requests for populating extra data */
     @Nullable
     public List<ReadTableRequest> getExtraReadRequests() {
@@ -181,6 +199,16 @@ public class ReadTableRequest {
         return this;
     }
 
+    /**
+     * Sets LIMIT size for the read query to {@code limit}, for requests which aren't read in pages.
+     * See {@link #setLimit} for paged reads.
+     */
+    @NonNull
+    public ReadTableRequest setRowLimit(int limit) {
+        mLimitClause = LIMIT_SIZE + limit;
+        return this;
+    }
+
     /** Returns page size of the read request */
     public int getPageSize() {
         return mPageSize;
@@ -19,6 +19,7 @@ package com.android.server.healthconnect.storage.request;
 import android.annotation.NonNull;
 import android.health.connect.aidl.ReadRecordsRequestParcel;
 
+import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
 
@@ -26,7 +27,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 
 /**
  * Refines a request from what the user sent to a format that makes the most sense for the
@@ -58,20 +58,24 @@ public class ReadTransactionRequest {
                                 extraPermsState));
     }
 
+    /**
+     * Reads the records whose uuids are selected by the request mapped to their record type, see
+     * {@link ChangeLogsHelper#getRecordTypeToUpsertedUuidsReadRequests}.
+     */
     public ReadTransactionRequest(
             String packageName,
-            Map<Integer, List<UUID>> recordTypeToUuids,
+            Map<Integer, ReadTableRequest> recordTypeToUuidsReadRequest,
             long startDateAccess,
             Map<String, Boolean> extraPermsState) {
         mReadTableRequests = new ArrayList<>();
-        recordTypeToUuids.forEach(
-                (recordType, uuids) ->
+        recordTypeToUuidsReadRequest.forEach(
+                (recordType, uuidsReadRequest) ->
                         mReadTableRequests.add(
                                 RecordHelperProvider.getInstance()
                                         .getRecordHelper(recordType)
                                         .getReadTableRequest(
                                                 packageName,
-                                                uuids,
+                                                uuidsReadRequest,
                                                 startDateAccess,
                                                 extraPermsState)));
     }
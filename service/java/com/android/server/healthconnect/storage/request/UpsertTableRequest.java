@@ -79,6 +79,12 @@ public class UpsertTableRequest {
         return mUniqueColumns.size();
     }
 
+    /** Returns the columns on which this request conflicts with existing rows, and their types. */
+    @NonNull
+    public List<Pair<String, Integer>> getUniqueColumns() {
+        return mUniqueColumns;
+    }
+
     @NonNull
     public UpsertTableRequest withParentKey(long rowId) {
         mRowId = rowId;
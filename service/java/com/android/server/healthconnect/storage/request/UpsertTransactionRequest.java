@@ -59,7 +59,6 @@ public class UpsertTransactionRequest {
     private static final String TAG = "HealthConnectUTR";
     @NonNull private final List<UpsertTableRequest> mUpsertRequests = new ArrayList<>();
     @NonNull private final String mPackageName;
-    private final List<UpsertTableRequest> mAccessLogs = new ArrayList<>();
     private final boolean mSkipPackageNameAndLogs;
     @RecordTypeIdentifier.RecordType Set<Integer> mRecordTypes = new ArraySet<>();
 
@@ -132,13 +131,6 @@ public class UpsertTransactionRequest {
         }
 
         if (!mRecordTypes.isEmpty()) {
-            if (!mSkipPackageNameAndLogs) {
-                mAccessLogs.add(
-                        AccessLogsHelper.getInstance()
-                                .getUpsertTableRequest(
-                                        packageName, new ArrayList<>(mRecordTypes), UPSERT));
-            }
-
             Slog.d(
                     TAG,
                     "Upserting transaction for "
@@ -148,8 +140,12 @@ public class UpsertTransactionRequest {
         }
     }
 
-    public List<UpsertTableRequest> getAccessLogs() {
-        return mAccessLogs;
+    /** Adds the access log for this request, to be called once it has been committed. */
+    public void addAccessLogs() {
+        if (!mRecordTypes.isEmpty() && !mSkipPackageNameAndLogs) {
+            AccessLogsHelper.getInstance()
+                    .addAccessLog(mPackageName, new ArrayList<>(mRecordTypes), UPSERT);
+        }
     }
 
     @NonNull
@@ -183,12 +179,12 @@ public class UpsertTransactionRequest {
     }
 
     private WhereClauses generateWhereClausesForUpdate(@NonNull RecordInternal<?> recordInternal) {
-        WhereClauses whereClauseForUpdateRequest = new WhereClauses();
-        whereClauseForUpdateRequest.addWhereEqualsClause(
-                RecordHelper.UUID_COLUMN_NAME, StorageUtils.getHexString(recordInternal.getUuid()));
-        whereClauseForUpdateRequest.addWhereEqualsClause(
-                RecordHelper.APP_INFO_ID_COLUMN_NAME,
-                /* expected args value */ String.valueOf(recordInternal.getAppInfoId()));
+        // Bound, so that updates of records of the same type share a compiled statement.
+        WhereClauses whereClauseForUpdateRequest = new WhereClauses().setUseBindArgs(true);
+        whereClauseForUpdateRequest.addWhereInUuidsClause(
+                RecordHelper.UUID_COLUMN_NAME, List.of(recordInternal.getUuid()));
+        whereClauseForUpdateRequest.addWhereInLongsClause(
+                RecordHelper.APP_INFO_ID_COLUMN_NAME, List.of(recordInternal.getAppInfoId()));
         return whereClauseForUpdateRequest;
     }
 
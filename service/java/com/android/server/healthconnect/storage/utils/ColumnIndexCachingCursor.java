@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import android.annotation.NonNull;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wraps a cursor to resolve the index of each column name once. Record helpers read every column by
+ * name on every row, so later lookups are served from a small map of the names already resolved
+ * instead of going through the cursor's name lookup.
+ *
+ * <p>The wrapper shares the position of the wrapped cursor, and closing it closes the wrapped
+ * cursor.
+ *
+ * @hide
+ */
+public final class ColumnIndexCachingCursor extends CursorWrapper {
+    private final Map<String, Integer> mColumnIndices = new HashMap<>();
+
+    public ColumnIndexCachingCursor(@NonNull Cursor cursor) {
+        super(cursor);
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        Integer columnIndex = mColumnIndices.get(columnName);
+        if (columnIndex == null) {
+            columnIndex = super.getColumnIndex(columnName);
+            mColumnIndices.put(columnName, columnIndex);
+        }
+        return columnIndex;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        int columnIndex = getColumnIndex(columnName);
+        if (columnIndex < 0) {
+            throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+        }
+        return columnIndex;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import android.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Packs the samples of a series record into a single blob, as an array of sample times followed by
+ * an array of sample values.
+ *
+ * <p>The blob starts with the format byte, the number of samples and the length in bytes of the
+ * times array. Times are stored as the first time followed by the deltas to the previous time.
+ * Integer values are stored the same way, while double values are stored as their 8 byte IEEE 754
+ * bits, as deltas of doubles can't be stored exactly. All the integers are zigzag encoded varints,
+ * so that the small deltas of regularly sampled series take one or two bytes.
+ *
+ * @hide
+ */
+public final class PackedSamples {
+    private static final byte FORMAT_INTEGER_VALUES = 1;
+    private static final byte FORMAT_DOUBLE_VALUES = 2;
+    private static final int MAX_VARINT_LENGTH = 10;
+
+    /** Receives the samples of a blob. */
+    public interface SampleConsumer {
+        /** Called for each sample, in the order the samples were packed in. */
+        void accept(long epochMillis, double value);
+    }
+
+    private PackedSamples() {}
+
+    /**
+     * Returns the blob packing the samples with times {@code epochMillis} and values {@code
+     * values}. Values are packed as integers if {@code integerValues} is set, and must then have
+     * no fractional part.
+     */
+    @NonNull
+    public static byte[] pack(
+            @NonNull long[] epochMillis, @NonNull double[] values, boolean integerValues) {
+        Objects.requireNonNull(epochMillis);
+        Objects.requireNonNull(values);
+        if (epochMillis.length != values.length) {
+            throw new IllegalArgumentException(
+                    "Got " + epochMillis.length + " times for " + values.length + " values");
+        }
+
+        int count = epochMillis.length;
+        byte[] times = new byte[count * MAX_VARINT_LENGTH];
+        int timesLength = 0;
+        long previousTime = 0;
+        for (long time : epochMillis) {
+            timesLength = writeVarLong(times, timesLength, time - previousTime);
+            previousTime = time;
+        }
+
+        byte[] blob = new byte[1 + 2 * MAX_VARINT_LENGTH + timesLength + count * MAX_VARINT_LENGTH];
+        blob[0] = integerValues ? FORMAT_INTEGER_VALUES : FORMAT_DOUBLE_VALUES;
+        int position = writeVarLong(blob, 1, count);
+        position = writeVarLong(blob, position, timesLength);
+        System.arraycopy(times, 0, blob, position, timesLength);
+        position += timesLength;
+        long previousValue = 0;
+        for (double value : values) {
+            if (integerValues) {
+                long integerValue = (long) value;
+                position = writeVarLong(blob, position, integerValue - previousValue);
+                previousValue = integerValue;
+            } else {
+                long bits = Double.doubleToRawLongBits(value);
+                for (int i = 0; i < Long.BYTES; i++) {
+                    blob[position++] = (byte) (bits >>> (8 * i));
+                }
+            }
+        }
+        return Arrays.copyOf(blob, position);
+    }
+
+    /** Passes the samples packed in {@code blob} to {@code consumer}. */
+    public static void unpack(@NonNull byte[] blob, @NonNull SampleConsumer consumer) {
+        Objects.requireNonNull(consumer);
+        boolean integerValues = isIntegerFormat(blob);
+        long[] varLong = new long[2];
+        int position = readVarLong(blob, 1, varLong);
+        int count = (int) varLong[0];
+        position = readVarLong(blob, position, varLong);
+        int timePosition = position;
+        int valuePosition = position + (int) varLong[0];
+
+        long time = 0;
+        long integerValue = 0;
+        for (int i = 0; i < count; i++) {
+            timePosition = readVarLong(blob, timePosition, varLong);
+            time += varLong[0];
+            double value;
+            if (integerValues) {
+                valuePosition = readVarLong(blob, valuePosition, varLong);
+                integerValue += varLong[0];
+                value = integerValue;
+            } else {
+                long bits = 0;
+                for (int j = 0; j < Long.BYTES; j++) {
+                    bits |= (blob[valuePosition++] & 0xFFL) << (8 * j);
+                }
+                value = Double.longBitsToDouble(bits);
+            }
+            consumer.accept(time, value);
+        }
+    }
+
+    private static boolean isIntegerFormat(byte[] blob) {
+        Objects.requireNonNull(blob);
+        if (blob.length == 0
+                || (blob[0] != FORMAT_INTEGER_VALUES && blob[0] != FORMAT_DOUBLE_VALUES)) {
+            throw new IllegalArgumentException("Not a packed samples blob");
+        }
+        return blob[0] == FORMAT_INTEGER_VALUES;
+    }
+
+    /** Writes {@code value} zigzag encoded at {@code position}, and returns the next position. */
+    private static int writeVarLong(byte[] buffer, int position, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        buffer[position++] = (byte) zigzag;
+        return position;
+    }
+
+    /**
+     * Reads the zigzag encoded value at {@code position} into the first element of {@code value},
+     * and returns the next position.
+     */
+    private static int readVarLong(byte[] buffer, int position, long[] value) {
+        long zigzag = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer[position++];
+            zigzag |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        value[0] = (zigzag >>> 1) ^ -(zigzag & 1);
+        return position;
+    }
+}
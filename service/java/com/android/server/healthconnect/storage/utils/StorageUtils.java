@@ -36,6 +36,9 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.health.connect.HealthDataCategory;
 import android.health.connect.RecordIdFilter;
 import android.health.connect.internal.datatypes.InstantRecordInternal;
@@ -86,6 +89,10 @@ public final class StorageUtils {
     public static final int BOOLEAN_FALSE_VALUE = 0;
     public static final int BOOLEAN_TRUE_VALUE = 1;
     public static final int UUID_BYTE_SIZE = 16;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // The x'' around the hex digits of a blob literal.
+    private static final int HEX_LITERAL_EXTRA_CHARS = 3;
+    private static final int UUID_HEX_LITERAL_LENGTH = UUID_BYTE_SIZE * 2 + HEX_LITERAL_EXTRA_CHARS;
     private static final String TAG = "HealthConnectUtils";
 
     // Returns null if fetching any of the fields resulted in an error
@@ -263,6 +270,31 @@ public final class StorageUtils {
                 + tableName;
     }
 
+    /**
+     * Runs {@code sql} on {@code db} binding {@code bindArgs} to its placeholders. Unlike {@link
+     * SQLiteDatabase#rawQuery}, this also binds non string args, like UUID blobs and longs.
+     *
+     * <p>Note: It is the responsibility of the caller to close the returned cursor
+     */
+    @NonNull
+    public static Cursor rawQuery(
+            @NonNull SQLiteDatabase db, @NonNull String sql, @Nullable Object[] bindArgs) {
+        if (bindArgs == null || bindArgs.length == 0) {
+            return db.rawQuery(sql, /* selectionArgs */ null);
+        }
+
+        return db.rawQueryWithFactory(
+                (database, driver, editTable, query) -> {
+                    for (int i = 0; i < bindArgs.length; i++) {
+                        DatabaseUtils.bindObjectToProgram(query, i + 1, bindArgs[i]);
+                    }
+                    return new SQLiteCursor(driver, editTable, query);
+                },
+                sql,
+                /* selectionArgs */ null,
+                /* editTable */ null);
+    }
+
     /**
      * Reads ZoneOffset using given cursor. Returns null of column name is not present in the table.
      */
@@ -366,17 +398,14 @@ public final class StorageUtils {
     }
 
     public static UUID convertBytesToUUID(byte[] bytes) {
-        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-        long high = byteBuffer.getLong();
-        long low = byteBuffer.getLong();
-        return new UUID(high, low);
+        return new UUID(getLong(bytes, 0), getLong(bytes, Long.BYTES));
     }
 
     public static byte[] convertUUIDToBytes(UUID uuid) {
-        ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[16]);
-        byteBuffer.putLong(uuid.getMostSignificantBits());
-        byteBuffer.putLong(uuid.getLeastSignificantBits());
-        return byteBuffer.array();
+        byte[] bytes = new byte[UUID_BYTE_SIZE];
+        putLong(bytes, 0, uuid.getMostSignificantBits());
+        putLong(bytes, Long.BYTES, uuid.getLeastSignificantBits());
+        return bytes;
     }
 
     public static String getHexString(byte[] value) {
@@ -384,23 +413,50 @@ public final class StorageUtils {
             return "";
         }
 
-        final StringBuilder builder = new StringBuilder("x'");
+        char[] chars = new char[value.length * 2 + HEX_LITERAL_EXTRA_CHARS];
+        int index = 0;
+        chars[index++] = 'x';
+        chars[index++] = '\'';
         for (byte b : value) {
-            builder.append(String.format("%02x", b));
+            chars[index++] = HEX_DIGITS[(b >> 4) & 0xF];
+            chars[index++] = HEX_DIGITS[b & 0xF];
         }
-        builder.append("'");
+        chars[index] = '\'';
 
-        return builder.toString();
+        return new String(chars);
     }
 
     public static String getHexString(UUID uuid) {
-        return getHexString(convertUUIDToBytes(uuid));
+        char[] chars = new char[UUID_HEX_LITERAL_LENGTH];
+        writeHexString(uuid, chars);
+        return new String(chars);
+    }
+
+    /**
+     * Appends the hex literals of {@code uuids} separated by {@code delimiter}, without creating a
+     * string per uuid.
+     */
+    public static StringBuilder appendHexStrings(
+            StringBuilder builder, List<UUID> uuids, String delimiter) {
+        builder.ensureCapacity(
+                builder.length() + uuids.size() * (UUID_HEX_LITERAL_LENGTH + delimiter.length()));
+        char[] chars = new char[UUID_HEX_LITERAL_LENGTH];
+        for (int i = 0; i < uuids.size(); i++) {
+            if (i > 0) {
+                builder.append(delimiter);
+            }
+            writeHexString(uuids.get(i), chars);
+            builder.append(chars);
+        }
+        return builder;
     }
 
     public static List<String> getListOfHexString(List<UUID> uuids) {
-        List<String> hexStrings = new ArrayList<>();
+        List<String> hexStrings = new ArrayList<>(uuids.size());
+        char[] chars = new char[UUID_HEX_LITERAL_LENGTH];
         for (UUID uuid : uuids) {
-            hexStrings.add(getHexString(convertUUIDToBytes(uuid)));
+            writeHexString(uuid, chars);
+            hexStrings.add(new String(chars));
         }
 
         return hexStrings;
@@ -409,28 +465,59 @@ public final class StorageUtils {
     public static byte[] getSingleByteArray(List<UUID> uuids) {
         byte[] allByteArray = new byte[UUID_BYTE_SIZE * uuids.size()];
 
-        ByteBuffer byteBuffer = ByteBuffer.wrap(allByteArray);
+        int offset = 0;
         for (UUID uuid : uuids) {
-            byteBuffer.put(convertUUIDToBytes(uuid));
+            putLong(allByteArray, offset, uuid.getMostSignificantBits());
+            putLong(allByteArray, offset + Long.BYTES, uuid.getLeastSignificantBits());
+            offset += UUID_BYTE_SIZE;
         }
 
-        return byteBuffer.array();
+        return allByteArray;
     }
 
     public static List<UUID> getCursorUUIDList(Cursor cursor, String columnName) {
         byte[] bytes = cursor.getBlob(cursor.getColumnIndex(columnName));
-        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
 
-        List<UUID> uuidList = new ArrayList<>();
-        while (byteBuffer.hasRemaining()) {
-            long high = byteBuffer.getLong();
-            long low = byteBuffer.getLong();
-            uuidList.add(new UUID(high, low));
+        List<UUID> uuidList = new ArrayList<>(bytes.length / UUID_BYTE_SIZE);
+        for (int offset = 0; offset + UUID_BYTE_SIZE <= bytes.length; offset += UUID_BYTE_SIZE) {
+            uuidList.add(new UUID(getLong(bytes, offset), getLong(bytes, offset + Long.BYTES)));
         }
 
         return uuidList;
     }
 
+    /** Writes the hex literal of {@code uuid} into {@code chars}, without allocating. */
+    private static void writeHexString(UUID uuid, char[] chars) {
+        chars[0] = 'x';
+        chars[1] = '\'';
+        writeHexDigits(uuid.getMostSignificantBits(), chars, 2);
+        writeHexDigits(uuid.getLeastSignificantBits(), chars, 2 + Long.BYTES * 2);
+        chars[UUID_HEX_LITERAL_LENGTH - 1] = '\'';
+    }
+
+    private static void writeHexDigits(long value, char[] chars, int offset) {
+        for (int i = Long.BYTES * 2 - 1; i >= 0; i--) {
+            chars[offset + i] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+
+    /** Reads a big endian long, the byte order of {@link ByteBuffer}. */
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
     /**
      * Returns a quoted id if {@code id} is not quoted. Following examples show the expected return
      * values,
@@ -16,19 +16,60 @@
 
 package com.android.server.healthconnect.storage.utils;
 
+import android.annotation.NonNull;
+
 import com.android.server.healthconnect.storage.request.ReadTableRequest;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.UUID;
 import java.util.stream.Collectors;
 
 /** @hide */
 public final class WhereClauses {
+    private static final String BIND_ARG_PLACEHOLDER = "?";
     private final List<String> mClauses = new ArrayList<>();
+    private final List<Object> mBindArgs = new ArrayList<>();
     private boolean mUseOr = false;
+    private boolean mUseBindArgs = false;
+
+    public WhereClauses() {}
+
+    /** Creates a copy of {@code whereClauses}, to which clauses can be added on their own. */
+    public WhereClauses(@NonNull WhereClauses whereClauses) {
+        mClauses.addAll(whereClauses.mClauses);
+        mBindArgs.addAll(whereClauses.mBindArgs);
+        mUseOr = whereClauses.mUseOr;
+        mUseBindArgs = whereClauses.mUseBindArgs;
+    }
+
+    /**
+     * Enables the argument binding mode. In this mode numeric and UUID values are emitted as {@code
+     * ?} placeholders and collected in {@link #getBindArgs()}, so that queries of the same shape
+     * share a compiled statement instead of being parsed and planned on every call.
+     *
+     * <p>NOTE: Has to be set before any clause is added, and the returned args must be passed along
+     * with the query, see {@link StorageUtils#rawQuery}.
+     */
+    public WhereClauses setUseBindArgs(boolean useBindArgs) {
+        mUseBindArgs = useBindArgs;
+
+        return this;
+    }
+
+    public boolean isUseBindArgs() {
+        return mUseBindArgs;
+    }
+
+    /** Returns the arguments to bind to the placeholders of {@link #get}, in order. */
+    @NonNull
+    public Object[] getBindArgs() {
+        return mBindArgs.toArray();
+    }
 
     public WhereClauses addWhereBetweenClause(String columnName, long start, long end) {
-        mClauses.add(columnName + " BETWEEN " + start + " AND " + end);
+        mClauses.add(columnName + " BETWEEN " + getValue(start) + " AND " + getValue(end));
 
         return this;
     }
@@ -41,7 +82,8 @@ public final class WhereClauses {
             return addWhereLaterThanTimeClause(columnName, startTime);
         }
 
-        mClauses.add(columnName + " BETWEEN " + startTime + " AND " + endTime);
+        mClauses.add(
+                columnName + " BETWEEN " + getValue(startTime) + " AND " + getValue(endTime));
 
         return this;
     }
@@ -51,7 +93,7 @@ public final class WhereClauses {
             return this;
         }
 
-        mClauses.add(columnName + " > " + startTime);
+        mClauses.add(columnName + " > " + getValue(startTime));
 
         return this;
     }
@@ -72,6 +114,31 @@ public final class WhereClauses {
         return this;
     }
 
+    /**
+     * Adds where in condition for a UUID column. UUIDs are bound as blobs in the argument binding
+     * mode, and written as hex literals otherwise.
+     */
+    public WhereClauses addWhereInUuidsClause(String columnName, List<UUID> uuids) {
+        if (uuids == null || uuids.isEmpty()) return this;
+
+        if (!mUseBindArgs) {
+            StringBuilder builder = new StringBuilder(columnName).append(" IN (");
+            StorageUtils.appendHexStrings(builder, uuids, ", ");
+            mClauses.add(builder.append(")").toString());
+            return this;
+        }
+
+        StringBuilder builder = new StringBuilder(columnName).append(" IN (");
+        for (UUID uuid : uuids) {
+            mBindArgs.add(StorageUtils.convertUUIDToBytes(uuid));
+            builder.append(BIND_ARG_PLACEHOLDER).append(", ");
+        }
+        builder.setLength(builder.length() - 2); // Remove the last 2 char i.e. ", "
+        mClauses.add(builder.append(")").toString());
+
+        return this;
+    }
+
     public WhereClauses addWhereEqualsClause(String columnName, String value) {
         if (columnName == null || value == null || value.isEmpty() || columnName.isEmpty()) {
             return this;
@@ -89,26 +156,26 @@ public final class WhereClauses {
 
     /** Add clause columnName > value */
     public WhereClauses addWhereGreaterThanClause(String columnName, long value) {
-        mClauses.add(columnName + " > " + value);
+        mClauses.add(columnName + " > " + getValue(value));
 
         return this;
     }
 
     public WhereClauses addWhereGreaterThanOrEqualClause(String columnName, long value) {
-        mClauses.add(columnName + " >= " + value);
+        mClauses.add(columnName + " >= " + getValue(value));
 
         return this;
     }
 
     public WhereClauses addWhereLessThanOrEqualClause(String columnName, long value) {
-        mClauses.add(columnName + " <= " + value);
+        mClauses.add(columnName + " <= " + getValue(value));
 
         return this;
     }
 
     /** Add clause columnName < value */
     public WhereClauses addWhereLessThanClause(String columnName, long value) {
-        mClauses.add(columnName + " < " + value);
+        mClauses.add(columnName + " < " + getValue(value));
 
         return this;
     }
@@ -119,7 +186,7 @@ public final class WhereClauses {
         mClauses.add(
                 columnName
                         + " IN ("
-                        + values.stream().map(String::valueOf).collect(Collectors.joining(", "))
+                        + values.stream().map(this::getValue).collect(Collectors.joining(", "))
                         + ")");
 
         return this;
@@ -137,7 +204,7 @@ public final class WhereClauses {
         mClauses.add(
                 columnName
                         + " IN ("
-                        + values.stream().map(String::valueOf).collect(Collectors.joining(", "))
+                        + values.stream().map(this::getValue).collect(Collectors.joining(", "))
                         + ")");
 
         return this;
@@ -149,6 +216,7 @@ public final class WhereClauses {
      */
     public WhereClauses addWhereInSQLRequestClause(String columnName, ReadTableRequest inRequest) {
         mClauses.add(columnName + " IN (" + inRequest.getReadCommand() + ") ");
+        mBindArgs.addAll(Arrays.asList(inRequest.getBindArgs()));
 
         return this;
     }
@@ -165,6 +233,15 @@ public final class WhereClauses {
         return (withWhereKeyword ? " WHERE " : "") + String.join(getJoinClause(), mClauses);
     }
 
+    private String getValue(Object value) {
+        if (!mUseBindArgs) {
+            return String.valueOf(value);
+        }
+
+        mBindArgs.add(value);
+        return BIND_ARG_PLACEHOLDER;
+    }
+
     private String getJoinClause() {
         return mUseOr ? " OR " : " AND ";
     }
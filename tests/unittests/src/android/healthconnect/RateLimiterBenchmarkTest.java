@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.healthconnect;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.health.connect.ratelimiter.RateLimiter;
+import android.health.connect.ratelimiter.RateLimiter.QuotaBucket;
+import android.health.connect.ratelimiter.RateLimiter.QuotaCategory;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of {@link RateLimiter#tryAcquireApiCallQuota} with threads of the same
+ * uid contending for the same quota buckets. Results are logged, in the style of a JMH throughput
+ * benchmark: a warmup run followed by measured runs per thread count.
+ *
+ * <p>The benchmark is a {@link LargeTest}, which the unit test configuration doesn't run by
+ * default. The quota kept under contention is checked by {@link RateLimiterTest}.
+ */
+public class RateLimiterBenchmarkTest {
+    private static final String TAG = "RateLimiterBenchmark";
+    private static final int UID = 1;
+    private static final int[] NUM_THREADS = {1, 4, 16};
+    private static final long WARMUP_MILLIS = 200;
+    private static final long MEASUREMENT_MILLIS = 500;
+    private static final int MEASUREMENT_ITERATIONS = 3;
+
+    @Before
+    public void setUp() {
+        // Large enough for no call to be rejected during the benchmark.
+        Map<Integer, Integer> quotaBucketToMaxApiCallQuotaMap = new HashMap<>();
+        for (int quotaBucket = QuotaBucket.QUOTA_BUCKET_READS_PER_15M_FOREGROUND;
+                quotaBucket <= QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_BACKGROUND;
+                quotaBucket++) {
+            quotaBucketToMaxApiCallQuotaMap.put(quotaBucket, Integer.MAX_VALUE);
+        }
+        RateLimiter.updateApiCallQuotaMap(quotaBucketToMaxApiCallQuotaMap);
+        RateLimiter.updateEnableRateLimiterFlag(true);
+        RateLimiter.clearCache();
+    }
+
+    @After
+    public void tearDown() {
+        RateLimiter.clearCache();
+        RateLimiter.updateEnableRateLimiterFlag(false);
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkTryAcquireApiCallQuota_contended() throws Exception {
+        for (int numThreads : NUM_THREADS) {
+            runIteration(numThreads, WARMUP_MILLIS);
+            long totalOperations = 0;
+            for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+                totalOperations += runIteration(numThreads, MEASUREMENT_MILLIS);
+            }
+            long operationsPerSecond =
+                    totalOperations * 1000 / (MEASUREMENT_MILLIS * MEASUREMENT_ITERATIONS);
+            Log.i(
+                    TAG,
+                    "threads: " + numThreads + ", throughput: " + operationsPerSecond + " ops/s");
+            assertThat(operationsPerSecond).isGreaterThan(0);
+        }
+    }
+
+    /** Runs {@code numThreads} threads acquiring quota for {@code durationMillis}. */
+    private static long runIteration(int numThreads, long durationMillis) throws Exception {
+        AtomicLong operations = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] =
+                    new Thread(
+                            () -> {
+                                try {
+                                    start.await();
+                                } catch (InterruptedException e) {
+                                    return;
+                                }
+                                long endTime = SystemClock.elapsedRealtime() + durationMillis;
+                                long threadOperations = 0;
+                                while (SystemClock.elapsedRealtime() < endTime) {
+                                    RateLimiter.tryAcquireApiCallQuota(
+                                            UID, QuotaCategory.QUOTA_CATEGORY_READ, true);
+                                    threadOperations++;
+                                }
+                                operations.addAndGet(threadOperations);
+                            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return operations.get();
+    }
+}
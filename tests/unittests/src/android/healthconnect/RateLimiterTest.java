@@ -19,6 +19,8 @@ package android.healthconnect;
 import static android.health.connect.ratelimiter.RateLimiter.CHUNK_SIZE_LIMIT_IN_BYTES;
 import static android.health.connect.ratelimiter.RateLimiter.RECORD_SIZE_LIMIT_IN_BYTES;
 
+import static com.google.common.truth.Truth.assertThat;
+
 import static org.hamcrest.CoreMatchers.containsString;
 
 import android.health.connect.HealthConnectException;
@@ -36,6 +38,7 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RateLimiterTest {
     private static final int UID = 1;
@@ -165,6 +168,70 @@ public class RateLimiterTest {
         tryAcquireCallQuotaNTimes(quotaCategoryWrite, IS_IN_FOREGROUND_FALSE, ceilQuotaAcquired);
     }
 
+    @Test
+    public void testTryAcquireApiCallQuota_concurrentCalls_grantsQuotaOnce() throws Exception {
+        RateLimiter.clearCache();
+        @QuotaCategory.Type int quotaCategoryRead = 2;
+        int numThreads = 16;
+        int numCallsPerThread = MAX_FOREGROUND_CALL_15M / numThreads * 2;
+        AtomicInteger acquired = new AtomicInteger();
+        Thread[] threads = new Thread[numThreads];
+        Instant startTime = Instant.now();
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] =
+                    new Thread(
+                            () -> {
+                                for (int call = 0; call < numCallsPerThread; call++) {
+                                    try {
+                                        RateLimiter.tryAcquireApiCallQuota(
+                                                UID, quotaCategoryRead, IS_IN_FOREGROUND_TRUE);
+                                        acquired.incrementAndGet();
+                                    } catch (HealthConnectException e) {
+                                        // Quota exceeded, expected for half of the calls.
+                                    }
+                                }
+                            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Instant endTime = Instant.now();
+
+        assertThat(acquired.get()).isAtLeast(MAX_FOREGROUND_CALL_15M);
+        assertThat(acquired.get())
+                .isAtMost(
+                        MAX_FOREGROUND_CALL_15M
+                                + getCeilQuotaAcquired(
+                                        startTime, endTime, WINDOW_15M, MAX_FOREGROUND_CALL_15M));
+    }
+
+    @Test
+    public void testTryAcquireApiCallQuota_zeroQuota_alwaysExceeded() {
+        RateLimiter.clearCache();
+        @QuotaCategory.Type int quotaCategoryRead = 2;
+        Map<Integer, Integer> quotaBucketToMaxApiCallQuotaMap = new HashMap<>();
+        quotaBucketToMaxApiCallQuotaMap.put(
+                RateLimiter.QuotaBucket.QUOTA_BUCKET_READS_PER_15M_FOREGROUND, 0);
+        RateLimiter.updateApiCallQuotaMap(quotaBucketToMaxApiCallQuotaMap);
+        exception.expect(HealthConnectException.class);
+        exception.expectMessage(containsString("API call quota exceeded"));
+        RateLimiter.tryAcquireApiCallQuota(UID, quotaCategoryRead, IS_IN_FOREGROUND_TRUE);
+    }
+
+    @Test
+    public void testTryAcquireApiCallQuota_negativeQuota_alwaysExceeded() {
+        RateLimiter.clearCache();
+        @QuotaCategory.Type int quotaCategoryWrite = 3;
+        Map<Integer, Integer> quotaBucketToMaxApiCallQuotaMap = new HashMap<>();
+        quotaBucketToMaxApiCallQuotaMap.put(
+                RateLimiter.QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_BACKGROUND, -1);
+        RateLimiter.updateApiCallQuotaMap(quotaBucketToMaxApiCallQuotaMap);
+        exception.expect(HealthConnectException.class);
+        exception.expectMessage(containsString("API call quota exceeded"));
+        RateLimiter.tryAcquireApiCallQuota(UID, quotaCategoryWrite, IS_IN_FOREGROUND_FALSE);
+    }
+
     @Test
     public void checkMaxChunkMemoryUsage_LimitExceeded() {
         long valueExceeding = 5000001;
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.healthconnect;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.health.connect.aidl.RecordsParcel;
+import android.health.connect.internal.ParcelUtils;
+import android.health.connect.internal.datatypes.HeartRateRecordInternal;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.StepsRecordInternal;
+import android.health.connect.internal.datatypes.utils.ParcelStringDictionary;
+import android.healthconnect.internal.datatypes.TestUtils;
+import android.os.Parcel;
+import android.os.SharedMemory;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Measures the time taken to send {@link RecordsParcel}s of 10k records from one side of the
+ * binder to the other, which is what large insert and read requests go through, and compares the
+ * size of pages in the original and dictionary formats, and the cost of writing them before and
+ * after the shared memory changes. Results are logged.
+ *
+ * <p>The benchmarks are {@link LargeTest}s, which the unit test configuration doesn't run by
+ * default.
+ */
+public class RecordsParcelBenchmarkTest {
+    private static final String TAG = "RecordsParcelBenchmark";
+    private static final int NUM_RECORDS = 10000;
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASUREMENT_ITERATIONS = 10;
+    private static final int PAGE_SIZE = 2000;
+    // Small enough to be sent in the binder transaction rather than through shared memory.
+    private static final int SMALL_PAGE_SIZE = 100;
+    private static final String PACKAGE_NAME = "android.healthconnect.cts.app";
+
+    @Test
+    @LargeTest
+    public void benchmarkInsertRoundTrip() {
+        // Records sent by clients don't have ids or app info set yet.
+        List<RecordInternal<?>> records = new ArrayList<>(NUM_RECORDS);
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            records.add(buildStepsRecord(i).setClientRecordId("steps_" + i));
+        }
+
+        runBenchmark("insert", records);
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkReadRoundTrip() {
+        List<RecordInternal<?>> records = new ArrayList<>(NUM_RECORDS);
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            records.add(
+                    buildStepsRecord(i)
+                            .setUuid(UUID.randomUUID())
+                            .setPackageName("android.healthconnect.cts.app")
+                            .setAppName("Example App")
+                            .setLastModifiedTime(i));
+        }
+
+        runBenchmark("read", records);
+    }
+
+    @Test
+    public void testRoundTrip_sharedMemory_keepsRecords() {
+        List<RecordInternal<?>> records = new ArrayList<>(PAGE_SIZE);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            records.add(withReadMetadata(buildStepsRecord(i)));
+        }
+
+        List<RecordInternal<?>> receivedRecords =
+                roundTrip(new RecordsParcel(records)).getRecords();
+
+        assertThat(receivedRecords).hasSize(PAGE_SIZE);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            assertThat(receivedRecords.get(i).getUuid()).isEqualTo(records.get(i).getUuid());
+            assertThat(((StepsRecordInternal) receivedRecords.get(i)).getCount()).isEqualTo(i);
+        }
+    }
+
+    @Test
+    public void testDictionaryFormat_smallerThanOriginal() {
+        List<RecordInternal<?>> records = new ArrayList<>(SMALL_PAGE_SIZE);
+        for (int i = 0; i < SMALL_PAGE_SIZE; i++) {
+            records.add(withReadMetadata(buildStepsRecord(i)));
+        }
+
+        assertThat(writeDictionaryFormat(records)).isLessThan(writeOriginalFormat(records));
+    }
+
+    @Test
+    @LargeTest
+    public void compareEncodings_stepsPage() {
+        List<RecordInternal<?>> records = new ArrayList<>(PAGE_SIZE);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            records.add(withReadMetadata(buildStepsRecord(i)));
+        }
+
+        compareEncodings("steps", records);
+    }
+
+    @Test
+    @LargeTest
+    public void compareEncodings_heartRatePage() {
+        List<RecordInternal<?>> records = new ArrayList<>(PAGE_SIZE);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            long startTime = Instant.now().toEpochMilli() + i * 60000L;
+            Set<HeartRateRecordInternal.HeartRateSample> samples = new HashSet<>();
+            for (int j = 0; j < 10; j++) {
+                samples.add(new HeartRateRecordInternal.HeartRateSample(60 + j, startTime + j));
+            }
+            records.add(
+                    withReadMetadata(
+                            new HeartRateRecordInternal()
+                                    .setSamples(samples)
+                                    .setStartTime(startTime)
+                                    .setEndTime(startTime + 10)));
+        }
+
+        compareEncodings("heart rate", records);
+    }
+
+    @Test
+    @LargeTest
+    public void compareEncodings_exerciseSessionPage() {
+        List<RecordInternal<?>> records = new ArrayList<>(PAGE_SIZE);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            records.add(withReadMetadata(TestUtils.buildExerciseSessionInternal()));
+        }
+
+        compareEncodings("exercise session", records);
+    }
+
+    @Test
+    @LargeTest
+    public void comparePutToRequiredMemory_smallPage() {
+        List<RecordInternal<?>> records = new ArrayList<>(SMALL_PAGE_SIZE);
+        for (int i = 0; i < SMALL_PAGE_SIZE; i++) {
+            records.add(withReadMetadata(buildStepsRecord(i)));
+        }
+
+        comparePutToRequiredMemory("small page", records);
+    }
+
+    @Test
+    @LargeTest
+    public void comparePutToRequiredMemory_sharedMemory() {
+        List<RecordInternal<?>> records = new ArrayList<>(NUM_RECORDS);
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            records.add(withReadMetadata(buildStepsRecord(i)));
+        }
+
+        comparePutToRequiredMemory("shared memory", records);
+    }
+
+    /**
+     * Logs the time to write {@code records} with {@link ParcelUtils#putToRequiredMemory} before
+     * and after the payload stopped being serialised twice and the shared memory was released.
+     */
+    private static void comparePutToRequiredMemory(String name, List<RecordInternal<?>> records) {
+        ParcelUtils.IPutToParcelRunnable payload = dest -> writeDictionaryFormat(records, dest);
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            putToRequiredMemoryBefore(payload);
+            putToRequiredMemoryAfter(payload);
+        }
+
+        long beforeNanos = 0;
+        long afterNanos = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            long startTime = SystemClock.elapsedRealtimeNanos();
+            putToRequiredMemoryBefore(payload);
+            beforeNanos += SystemClock.elapsedRealtimeNanos() - startTime;
+
+            startTime = SystemClock.elapsedRealtimeNanos();
+            putToRequiredMemoryAfter(payload);
+            afterNanos += SystemClock.elapsedRealtimeNanos() - startTime;
+        }
+        Log.i(
+                TAG,
+                name
+                        + " of "
+                        + records.size()
+                        + " records: before "
+                        + beforeNanos / MEASUREMENT_ITERATIONS / 1000
+                        + "us, after "
+                        + afterNanos / MEASUREMENT_ITERATIONS / 1000
+                        + "us");
+    }
+
+    /**
+     * Writes {@code payload} the way {@link ParcelUtils#putToRequiredMemory} did before: small
+     * payloads are serialised a second time into the destination, and the shared memory mapping
+     * is left to the garbage collector.
+     */
+    private static void putToRequiredMemoryBefore(ParcelUtils.IPutToParcelRunnable payload) {
+        Parcel dest = Parcel.obtain();
+        Parcel dataParcel = Parcel.obtain();
+        try {
+            payload.writeToParcel(dataParcel);
+            int dataParcelSize = dataParcel.dataSize();
+            if (dataParcelSize > ParcelUtils.IPC_PARCEL_LIMIT) {
+                try (SharedMemory sharedMemory =
+                        SharedMemory.create("RecordsParcelSharedMemory", dataParcelSize)) {
+                    ByteBuffer buffer = sharedMemory.mapReadWrite();
+                    buffer.put(dataParcel.marshall(), 0, dataParcelSize);
+                    dest.writeInt(ParcelUtils.USING_SHARED_MEMORY);
+                    sharedMemory.writeToParcel(dest, 0);
+                }
+            } else {
+                dest.writeInt(ParcelUtils.USING_PARCEL);
+                payload.writeToParcel(dest);
+            }
+        } catch (ErrnoException e) {
+            throw new RuntimeException(e);
+        } finally {
+            dataParcel.recycle();
+            dest.recycle();
+        }
+    }
+
+    private static void putToRequiredMemoryAfter(ParcelUtils.IPutToParcelRunnable payload) {
+        Parcel dest = Parcel.obtain();
+        try {
+            ParcelUtils.putToRequiredMemory(dest, 0, payload);
+        } finally {
+            dest.recycle();
+        }
+    }
+
+    /** Logs the size and time to write {@code records} in the original and dictionary formats. */
+    private static void compareEncodings(String name, List<RecordInternal<?>> records) {
+        int originalSize = writeOriginalFormat(records);
+        int dictionarySize = writeDictionaryFormat(records);
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            writeOriginalFormat(records);
+            writeDictionaryFormat(records);
+        }
+
+        long originalNanos = 0;
+        long dictionaryNanos = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            long startTime = SystemClock.elapsedRealtimeNanos();
+            writeOriginalFormat(records);
+            originalNanos += SystemClock.elapsedRealtimeNanos() - startTime;
+
+            startTime = SystemClock.elapsedRealtimeNanos();
+            writeDictionaryFormat(records);
+            dictionaryNanos += SystemClock.elapsedRealtimeNanos() - startTime;
+        }
+        Log.i(
+                TAG,
+                name
+                        + " page of "
+                        + records.size()
+                        + " records: original "
+                        + originalSize
+                        + " bytes in "
+                        + originalNanos / MEASUREMENT_ITERATIONS / 1000
+                        + "us, dictionary "
+                        + dictionarySize
+                        + " bytes in "
+                        + dictionaryNanos / MEASUREMENT_ITERATIONS / 1000
+                        + "us");
+
+        assertThat(dictionarySize).isLessThan(originalSize);
+    }
+
+    private static int writeOriginalFormat(List<RecordInternal<?>> records) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(records.size());
+            for (RecordInternal<?> record : records) {
+                parcel.writeInt(record.getRecordType());
+                record.writeToParcel(parcel);
+            }
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static int writeDictionaryFormat(List<RecordInternal<?>> records) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            writeDictionaryFormat(records, parcel);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static void writeDictionaryFormat(List<RecordInternal<?>> records, Parcel parcel) {
+        ParcelStringDictionary dictionary = new ParcelStringDictionary();
+        parcel.writeInt(records.size());
+        for (RecordInternal<?> record : records) {
+            parcel.writeInt(record.getRecordType());
+            record.writeToParcel(parcel, dictionary);
+        }
+    }
+
+    private static RecordInternal<?> withReadMetadata(RecordInternal<?> record) {
+        return record.setUuid(UUID.randomUUID())
+                .setPackageName(PACKAGE_NAME)
+                .setAppName("Example App")
+                .setManufacturer("Device")
+                .setModel("Model");
+    }
+
+    private static void runBenchmark(String name, List<RecordInternal<?>> records) {
+        RecordsParcel recordsParcel = new RecordsParcel(records);
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            roundTrip(recordsParcel);
+        }
+
+        long totalMillis = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            long startTime = SystemClock.elapsedRealtime();
+            RecordsParcel receivedRecordsParcel = roundTrip(recordsParcel);
+            totalMillis += SystemClock.elapsedRealtime() - startTime;
+
+            assertThat(receivedRecordsParcel.getRecords()).hasSize(NUM_RECORDS);
+        }
+        Log.i(
+                TAG,
+                name
+                        + " round trip of "
+                        + NUM_RECORDS
+                        + " records: "
+                        + totalMillis / MEASUREMENT_ITERATIONS
+                        + "ms");
+    }
+
+    private static RecordsParcel roundTrip(RecordsParcel recordsParcel) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            recordsParcel.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            assertThat(parcel.readInt()).isEqualTo(ParcelUtils.USING_SHARED_MEMORY);
+            parcel.setDataPosition(0);
+            return RecordsParcel.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static StepsRecordInternal buildStepsRecord(int index) {
+        long startTime = Instant.now().toEpochMilli() + index * 1000L;
+        return (StepsRecordInternal)
+                new StepsRecordInternal()
+                        .setCount(index)
+                        .setStartTime(startTime)
+                        .setEndTime(startTime + 500)
+                        .setManufacturer("Device")
+                        .setModel("Model");
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.healthconnect;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.health.connect.aidl.RecordsParcel;
+import android.health.connect.internal.ParcelUtils;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.StepsRecordInternal;
+import android.healthconnect.internal.datatypes.TestUtils;
+import android.os.Parcel;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+public class RecordsParcelTest {
+    private static final String PACKAGE_NAME = "android.healthconnect.unittests";
+
+    @Test
+    public void testRoundTrip_keepsRecords() {
+        List<RecordInternal<?>> records =
+                List.of(
+                        buildStepsRecord(1).setUuid(UUID.randomUUID()),
+                        buildStepsRecord(2),
+                        TestUtils.buildExerciseSessionInternal(),
+                        buildStepsRecord(3).setModel(null));
+
+        Parcel parcel = Parcel.obtain();
+        new RecordsParcel(records).writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        List<RecordInternal<?>> receivedRecords =
+                RecordsParcel.CREATOR.createFromParcel(parcel).getRecords();
+        parcel.recycle();
+
+        assertThat(receivedRecords).hasSize(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            RecordInternal<?> record = records.get(i);
+            RecordInternal<?> receivedRecord = receivedRecords.get(i);
+            assertThat(receivedRecord.getRecordType()).isEqualTo(record.getRecordType());
+            assertThat(receivedRecord.getUuid()).isEqualTo(record.getUuid());
+            assertThat(receivedRecord.getPackageName()).isEqualTo(record.getPackageName());
+            assertThat(receivedRecord.getClientRecordId()).isEqualTo(record.getClientRecordId());
+            assertThat(receivedRecord.getManufacturer()).isEqualTo(record.getManufacturer());
+            assertThat(receivedRecord.getModel()).isEqualTo(record.getModel());
+        }
+        assertThat(((StepsRecordInternal) receivedRecords.get(3)).getCount()).isEqualTo(3);
+        assertThat(receivedRecords.get(2).toExternalRecord())
+                .isEqualTo(records.get(2).toExternalRecord());
+    }
+
+    @Test
+    public void testOriginalFormat_isStillRead() {
+        List<RecordInternal<?>> records = List.of(buildStepsRecord(1), buildStepsRecord(2));
+        Parcel parcel = Parcel.obtain();
+        parcel.writeInt(ParcelUtils.USING_PARCEL);
+        parcel.writeInt(records.size());
+        for (RecordInternal<?> record : records) {
+            parcel.writeInt(record.getRecordType());
+            record.writeToParcel(parcel);
+        }
+        parcel.setDataPosition(0);
+
+        List<RecordInternal<?>> receivedRecords =
+                RecordsParcel.CREATOR.createFromParcel(parcel).getRecords();
+        parcel.recycle();
+
+        assertThat(receivedRecords).hasSize(2);
+        assertThat(((StepsRecordInternal) receivedRecords.get(1)).getCount()).isEqualTo(2);
+        assertThat(receivedRecords.get(1).getPackageName()).isEqualTo(PACKAGE_NAME);
+    }
+
+    @Test
+    public void testUnknownFormat_throws() {
+        Parcel parcel = Parcel.obtain();
+        parcel.writeInt(ParcelUtils.USING_PARCEL);
+        parcel.writeInt(-2);
+        parcel.setDataPosition(0);
+
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> RecordsParcel.CREATOR.createFromParcel(parcel));
+        parcel.recycle();
+    }
+
+    @Test
+    public void testUnknownRecordType_throws() {
+        Parcel parcel = Parcel.obtain();
+        parcel.writeInt(ParcelUtils.USING_PARCEL);
+        parcel.writeInt(1);
+        parcel.writeInt(-1);
+        parcel.setDataPosition(0);
+
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> RecordsParcel.CREATOR.createFromParcel(parcel));
+        parcel.recycle();
+    }
+
+    private static StepsRecordInternal buildStepsRecord(int count) {
+        return (StepsRecordInternal)
+                new StepsRecordInternal()
+                        .setCount(count)
+                        .setStartTime(TestUtils.START_TIME)
+                        .setEndTime(TestUtils.END_TIME)
+                        .setPackageName(PACKAGE_NAME)
+                        .setClientRecordId("steps_" + count)
+                        .setManufacturer("manufacturer")
+                        .setModel("Pixel4a");
+    }
+}
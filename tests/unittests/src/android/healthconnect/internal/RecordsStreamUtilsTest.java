@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.healthconnect.internal;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.health.connect.HealthConnectException;
+import android.health.connect.internal.RecordsStreamUtils;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.StepsRecordInternal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+public class RecordsStreamUtilsTest {
+    private static final long NEXT_PAGE_TOKEN = 42;
+
+    @Test
+    public void testRecordsFrames_readInOrder() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        RecordsStreamUtils.writeRecords(out, List.of(buildStepsRecord(1), buildStepsRecord(2)), 2);
+        RecordsStreamUtils.writeRecords(out, List.of(buildStepsRecord(3)), NEXT_PAGE_TOKEN);
+        RecordsStreamUtils.writeEnd(out);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertThat(in.readInt()).isEqualTo(RecordsStreamUtils.FRAME_RECORDS);
+        assertThat(in.readLong()).isEqualTo(2);
+        List<RecordInternal<?>> records = RecordsStreamUtils.readRecords(in);
+        assertThat(records).hasSize(2);
+        assertThat(((StepsRecordInternal) records.get(0)).getCount()).isEqualTo(1);
+        assertThat(((StepsRecordInternal) records.get(1)).getCount()).isEqualTo(2);
+
+        assertThat(in.readInt()).isEqualTo(RecordsStreamUtils.FRAME_RECORDS);
+        assertThat(in.readLong()).isEqualTo(NEXT_PAGE_TOKEN);
+        records = RecordsStreamUtils.readRecords(in);
+        assertThat(records).hasSize(1);
+        assertThat(((StepsRecordInternal) records.get(0)).getCount()).isEqualTo(3);
+
+        assertThat(in.readInt()).isEqualTo(RecordsStreamUtils.FRAME_END);
+        assertThat(in.available()).isEqualTo(0);
+    }
+
+    @Test
+    public void testErrorFrame_keepsCodeAndMessage() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RecordsStreamUtils.writeError(
+                new DataOutputStream(bytes), HealthConnectException.ERROR_SECURITY, "denied");
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertThat(in.readInt()).isEqualTo(RecordsStreamUtils.FRAME_ERROR);
+        assertThat(in.readInt()).isEqualTo(HealthConnectException.ERROR_SECURITY);
+        assertThat(in.readUTF()).isEqualTo("denied");
+    }
+
+    @Test
+    public void testErrorFrame_nullMessage_writesEmptyMessage() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RecordsStreamUtils.writeError(
+                new DataOutputStream(bytes), HealthConnectException.ERROR_INTERNAL, null);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        in.readInt();
+        in.readInt();
+        assertThat(in.readUTF()).isEmpty();
+    }
+
+    private static StepsRecordInternal buildStepsRecord(int count) {
+        return (StepsRecordInternal)
+                new StepsRecordInternal().setCount(count).setStartTime(count).setEndTime(count + 1);
+    }
+}
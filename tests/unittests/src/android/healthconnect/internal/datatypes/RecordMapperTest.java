@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.healthconnect.internal.datatypes;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.utils.RecordMapper;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+public class RecordMapperTest {
+    @Test
+    public void testNewInternalRecord_returnsNewRecordOfEachType() {
+        RecordMapper recordMapper = RecordMapper.getInstance();
+
+        for (Map.Entry<Integer, Class<? extends RecordInternal<?>>> entry :
+                recordMapper.getRecordIdToInternalRecordClassMap().entrySet()) {
+            RecordInternal<?> record = recordMapper.newInternalRecord(entry.getKey());
+
+            assertThat(record).isInstanceOf(entry.getValue());
+            assertThat(record.getRecordType()).isEqualTo(entry.getKey());
+            assertThat(recordMapper.newInternalRecord(entry.getKey())).isNotSameInstanceAs(record);
+        }
+    }
+
+    @Test
+    public void testNewInternalRecord_unknownType_throws() {
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> RecordMapper.getInstance().newInternalRecord(-1));
+    }
+}
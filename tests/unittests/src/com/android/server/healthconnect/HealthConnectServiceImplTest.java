@@ -26,6 +26,8 @@ import static com.android.server.healthconnect.backuprestore.BackupRestore.INTER
 import static com.google.common.truth.Truth.assertThat;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.mock;
@@ -36,12 +38,21 @@ import static org.mockito.Mockito.when;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.health.connect.HealthConnectException;
+import android.health.connect.ReadRecordsRequestUsingFilters;
 import android.health.connect.aidl.IDataStagingFinishedCallback;
+import android.health.connect.datatypes.StepsRecord;
+import android.health.connect.internal.RecordsStreamUtils;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.ratelimiter.RateLimiter;
 import android.health.connect.restore.StageRemoteDataRequest;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.UserHandle;
+import android.permission.PermissionManager;
 import android.util.ArrayMap;
+import android.util.Pair;
 
 import androidx.test.platform.app.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
@@ -55,6 +66,8 @@ import com.android.server.healthconnect.migration.MigrationUiStateManager;
 import com.android.server.healthconnect.permission.FirstGrantTimeManager;
 import com.android.server.healthconnect.permission.HealthConnectPermissionHelper;
 import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.datatypehelpers.AccessLogsHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.PreferenceHelper;
 
 import org.junit.After;
@@ -66,10 +79,14 @@ import org.mockito.MockitoAnnotations;
 import org.mockito.MockitoSession;
 import org.mockito.quality.Strictness;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.time.Instant;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 /** Unit test class for {@link HealthConnectServiceImpl} */
 @RunWith(AndroidJUnit4.class)
@@ -84,6 +101,9 @@ public class HealthConnectServiceImplTest {
     @Mock private PreferenceHelper mPreferenceHelper;
     @Mock private AppOpsManagerLocal mAppOpsManagerLocal;
     @Mock private PackageManager mPackageManager;
+    @Mock private PermissionManager mPermissionManager;
+    @Mock private AppInfoHelper mAppInfoHelper;
+    @Mock private AccessLogsHelper mAccessLogsHelper;
 
     private Context mContext;
     private HealthConnectServiceImpl mHealthConnectService;
@@ -98,6 +118,8 @@ public class HealthConnectServiceImplTest {
                         .mockStatic(Environment.class)
                         .mockStatic(PreferenceHelper.class)
                         .mockStatic(LocalManagerRegistry.class)
+                        .mockStatic(AppInfoHelper.class)
+                        .mockStatic(AccessLogsHelper.class)
                         .strictness(Strictness.LENIENT)
                         .startMocking();
         MockitoAnnotations.initMocks(this);
@@ -109,6 +131,10 @@ public class HealthConnectServiceImplTest {
                 .thenReturn(mAppOpsManagerLocal);
         when(mServiceContext.getPackageManager()).thenReturn(mPackageManager);
         when(mServiceContext.getUser()).thenReturn(mUserHandle);
+        when(mServiceContext.getSystemService(PermissionManager.class))
+                .thenReturn(mPermissionManager);
+        when(AppInfoHelper.getInstance()).thenReturn(mAppInfoHelper);
+        when(AccessLogsHelper.getInstance()).thenReturn(mAccessLogsHelper);
 
         mHealthConnectService =
                 new HealthConnectServiceImpl(
@@ -262,6 +288,105 @@ public class HealthConnectServiceImplTest {
                         eq(DATA_DOWNLOAD_STATE_KEY), eq(String.valueOf(DATA_DOWNLOAD_STARTED)));
     }
 
+    @Test
+    public void testReadRecordsStream_movesToBackground_readsOwnRecordsFromNextPage()
+            throws Exception {
+        setUpStreamCaller();
+        when(mAppOpsManagerLocal.isUidInForeground(anyInt())).thenReturn(true, false);
+        when(mTransactionManager.readRecordsAndGetNextToken(any()))
+                .thenReturn(new Pair<>(Collections.<RecordInternal<?>>emptyList(), 1L))
+                .thenReturn(new Pair<>(Collections.<RecordInternal<?>>emptyList(), -1L));
+
+        try (DataInputStream in = readRecordsStream()) {
+            assertThat(in.readInt()).isEqualTo(RecordsStreamUtils.FRAME_RECORDS);
+            in.readLong();
+            RecordsStreamUtils.readRecords(in);
+            assertThat(in.readInt()).isEqualTo(RecordsStreamUtils.FRAME_RECORDS);
+            in.readLong();
+            RecordsStreamUtils.readRecords(in);
+            assertThat(in.readInt()).isEqualTo(RecordsStreamUtils.FRAME_END);
+        }
+
+        verify(mAppOpsManagerLocal, times(2)).isUidInForeground(anyInt());
+        // Only the second page is restricted to the records of the app.
+        verify(mAppInfoHelper, times(1))
+                .getAppInfoIds(Collections.singletonList(mContext.getPackageName()));
+    }
+
+    @Test
+    public void testReadRecordsStream_permissionRevokedAfterFirstPage_failsWithSecurityError()
+            throws Exception {
+        setUpStreamCaller();
+        when(mPermissionManager.checkPermissionForStartDataDelivery(anyString(), any(), any()))
+                .thenReturn(PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_DENIED);
+        when(mTransactionManager.readRecordsAndGetNextToken(any()))
+                .thenReturn(new Pair<>(Collections.<RecordInternal<?>>emptyList(), 1L));
+
+        try (DataInputStream in = readRecordsStream()) {
+            assertThat(in.readInt()).isEqualTo(RecordsStreamUtils.FRAME_RECORDS);
+            in.readLong();
+            RecordsStreamUtils.readRecords(in);
+            assertThat(in.readInt()).isEqualTo(RecordsStreamUtils.FRAME_ERROR);
+            assertThat(in.readInt()).isEqualTo(HealthConnectException.ERROR_SECURITY);
+        }
+
+        verify(mTransactionManager, times(1)).readRecordsAndGetNextToken(any());
+    }
+
+    @Test
+    public void testReadRecordsStream_streamAlreadyRunning_failsWithRateLimitError()
+            throws Exception {
+        setUpStreamCaller();
+        CountDownLatch runningStreamDone = new CountDownLatch(1);
+        assertThat(
+                        HealthConnectThreadScheduler.scheduleStreamTask(
+                                Process.myUid(),
+                                () -> {
+                                    try {
+                                        runningStreamDone.await();
+                                    } catch (InterruptedException e) {
+                                        Thread.currentThread().interrupt();
+                                    }
+                                }))
+                .isTrue();
+
+        try (DataInputStream in = readRecordsStream()) {
+            assertThat(in.readInt()).isEqualTo(RecordsStreamUtils.FRAME_ERROR);
+            assertThat(in.readInt()).isEqualTo(HealthConnectException.ERROR_RATE_LIMIT_EXCEEDED);
+        } finally {
+            runningStreamDone.countDown();
+        }
+
+        verify(mTransactionManager, times(0)).readRecordsAndGetNextToken(any());
+    }
+
+    /** Sets up the test app as a caller with read permission and no management permission. */
+    private void setUpStreamCaller() throws Exception {
+        RateLimiter.updateEnableRateLimiterFlag(false);
+        when(mServiceContext.checkPermission(anyString(), anyInt(), anyInt()))
+                .thenReturn(PackageManager.PERMISSION_DENIED);
+        when(mServiceContext.createContextAsUser(any(), anyInt())).thenReturn(mServiceContext);
+        when(mPackageManager.getPackageUid(eq(mContext.getPackageName()), anyInt()))
+                .thenReturn(Process.myUid());
+        when(mPermissionManager.checkPermissionForStartDataDelivery(anyString(), any(), any()))
+                .thenReturn(PackageManager.PERMISSION_GRANTED);
+        when(mAppOpsManagerLocal.isUidInForeground(anyInt())).thenReturn(true);
+        when(mHealthConnectPermissionHelper.getHealthDataStartDateAccess(anyString(), any()))
+                .thenReturn(Instant.EPOCH);
+    }
+
+    /** Starts streaming steps records and returns the read side of the stream. */
+    private DataInputStream readRecordsStream() throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        mHealthConnectService.readRecordsStream(
+                mContext.getAttributionSource(),
+                new ReadRecordsRequestUsingFilters.Builder<>(StepsRecord.class)
+                        .build()
+                        .toReadRecordsRequestParcel(),
+                pipe[1]);
+        return new DataInputStream(new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]));
+    }
+
     private static File createAndGetNonEmptyFile(File dir, String fileName) throws IOException {
         File file = new File(dir, fileName);
         FileWriter fileWriter = new FileWriter(file);
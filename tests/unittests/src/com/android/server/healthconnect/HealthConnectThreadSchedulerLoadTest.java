@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect;
+
+import static android.app.ActivityManager.RunningAppProcessInfo.IMPORTANCE_CACHED;
+import static android.app.ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.when;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/** Simulates concurrent clients of the scheduler and reports the latency of their tasks. */
+@RunWith(AndroidJUnit4.class)
+public class HealthConnectThreadSchedulerLoadTest {
+    private static final String TAG = "HealthConnectSchedulerLoadTest";
+    private static final int NUM_CLIENTS = 20;
+    private static final int NUM_TASKS_PER_CLIENT = 25;
+    // Every fifth task of a client is a write.
+    private static final int WRITE_TASK_INTERVAL = 5;
+    private static final long TASK_DURATION_MILLIS = 2;
+    private static final int FIRST_CLIENT_UID = 10100;
+
+    @Mock private Context mContext;
+    @Mock private ActivityManager mActivityManager;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        HealthConnectThreadScheduler.resetThreadPools();
+        List<ActivityManager.RunningAppProcessInfo> runningAppProcesses = new ArrayList<>();
+        for (int client = 0; client < NUM_CLIENTS; client++) {
+            ActivityManager.RunningAppProcessInfo info =
+                    new ActivityManager.RunningAppProcessInfo();
+            info.uid = FIRST_CLIENT_UID + client;
+            // Half of the clients are in foreground.
+            info.importance = client % 2 == 0 ? IMPORTANCE_FOREGROUND : IMPORTANCE_CACHED;
+            runningAppProcesses.add(info);
+        }
+        when(mContext.getSystemService(ActivityManager.class)).thenReturn(mActivityManager);
+        when(mActivityManager.getRunningAppProcesses()).thenReturn(runningAppProcesses);
+    }
+
+    @After
+    public void tearDown() {
+        HealthConnectThreadScheduler.shutdownThreadPools();
+        HealthConnectThreadScheduler.resetThreadPools();
+    }
+
+    @Test
+    public void testConcurrentClients_allTasksRun_reportsLatency() throws Exception {
+        List<Long> foregroundLatencies = Collections.synchronizedList(new ArrayList<>());
+        List<Long> backgroundLatencies = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch tasksDone = new CountDownLatch(NUM_CLIENTS * NUM_TASKS_PER_CLIENT);
+        ExecutorService clients = Executors.newFixedThreadPool(NUM_CLIENTS);
+
+        for (int client = 0; client < NUM_CLIENTS; client++) {
+            int uid = FIRST_CLIENT_UID + client;
+            List<Long> latencies = client % 2 == 0 ? foregroundLatencies : backgroundLatencies;
+            clients.execute(
+                    () -> {
+                        for (int task = 0; task < NUM_TASKS_PER_CLIENT; task++) {
+                            long scheduledTime = SystemClock.elapsedRealtime();
+                            HealthConnectThreadScheduler.schedule(
+                                    mContext,
+                                    () -> {
+                                        SystemClock.sleep(TASK_DURATION_MILLIS);
+                                        latencies.add(
+                                                SystemClock.elapsedRealtime() - scheduledTime);
+                                        tasksDone.countDown();
+                                    },
+                                    uid,
+                                    /* isController= */ false,
+                                    /* isWrite= */ task % WRITE_TASK_INTERVAL == 0);
+                        }
+                    });
+        }
+
+        assertThat(tasksDone.await(60, TimeUnit.SECONDS)).isTrue();
+        clients.shutdown();
+
+        Log.i(TAG, "Foreground " + getLatencyReport(foregroundLatencies));
+        Log.i(TAG, "Background " + getLatencyReport(backgroundLatencies));
+        assertThat(foregroundLatencies).hasSize(NUM_CLIENTS / 2 * NUM_TASKS_PER_CLIENT);
+        assertThat(backgroundLatencies).hasSize(NUM_CLIENTS / 2 * NUM_TASKS_PER_CLIENT);
+        for (int client = 0; client < NUM_CLIENTS; client++) {
+            assertThat(HealthConnectThreadScheduler.getQueueDepth(FIRST_CLIENT_UID + client))
+                    .isEqualTo(0);
+        }
+    }
+
+    private static String getLatencyReport(List<Long> latencies) {
+        List<Long> sortedLatencies = new ArrayList<>(latencies);
+        Collections.sort(sortedLatencies);
+        return "latency of "
+                + sortedLatencies.size()
+                + " tasks, p50: "
+                + getPercentile(sortedLatencies, 50)
+                + "ms, p99: "
+                + getPercentile(sortedLatencies, 99)
+                + "ms";
+    }
+
+    private static long getPercentile(List<Long> sortedLatencies, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sortedLatencies.size()) - 1;
+        return sortedLatencies.get(Math.max(0, index));
+    }
+}
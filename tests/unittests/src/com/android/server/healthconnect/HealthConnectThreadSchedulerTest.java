@@ -16,6 +16,7 @@
 
 package com.android.server.healthconnect;
 
+import static org.junit.Assert.assertThrows;
 import static org.mockito.Mockito.when;
 
 import android.app.ActivityManager;
@@ -36,7 +37,11 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RunWith(AndroidJUnit4.class)
 public class HealthConnectThreadSchedulerTest {
@@ -44,10 +49,12 @@ public class HealthConnectThreadSchedulerTest {
     private ThreadPoolExecutor mControllerTaskScheduler;
     private ThreadPoolExecutor mForegroundTaskScheduler;
     private ThreadPoolExecutor mBackgroundTaskScheduler;
+    private ThreadPoolExecutor mWriteTaskScheduler;
     private long mInternalTaskSchedulerCompletedJobs;
     private long mControllerTaskSchedulerCompletedJobs;
     private long mForegroundTaskSchedulerCompletedJobs;
     private long mBackgroundTaskSchedulerCompletedJobs;
+    private long mWriteTaskSchedulerCompletedJobs;
     private Context mContext;
 
     @Mock private Context mMockContext;
@@ -65,6 +72,8 @@ public class HealthConnectThreadSchedulerTest {
         mForegroundTaskSchedulerCompletedJobs = mForegroundTaskScheduler.getCompletedTaskCount();
         mBackgroundTaskScheduler = HealthConnectThreadScheduler.sBackgroundThreadExecutor;
         mBackgroundTaskSchedulerCompletedJobs = mBackgroundTaskScheduler.getCompletedTaskCount();
+        mWriteTaskScheduler = HealthConnectThreadScheduler.sWriteExecutor;
+        mWriteTaskSchedulerCompletedJobs = mWriteTaskScheduler.getCompletedTaskCount();
         mContext = InstrumentationRegistry.getInstrumentation().getContext();
     }
 
@@ -86,7 +95,8 @@ public class HealthConnectThreadSchedulerTest {
                         throw new RuntimeException();
                     }
                 });
-        HealthConnectThreadScheduler.schedule(mContext, () -> {}, Process.myUid(), false);
+        HealthConnectThreadScheduler.schedule(
+                mContext, () -> {}, Process.myUid(), false, /* isWrite= */ false);
         TestUtils.waitForTaskToFinishSuccessfully(
                 () -> {
                     if (mBackgroundTaskScheduler.getCompletedTaskCount()
@@ -103,7 +113,8 @@ public class HealthConnectThreadSchedulerTest {
                 ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
         when(mActivityManager.getRunningAppProcesses()).thenReturn(List.of(runningAppProcessInfo));
 
-        HealthConnectThreadScheduler.schedule(mMockContext, () -> {}, Process.myUid(), false);
+        HealthConnectThreadScheduler.schedule(
+                mMockContext, () -> {}, Process.myUid(), false, /* isWrite= */ false);
         TestUtils.waitForTaskToFinishSuccessfully(
                 () -> {
                     if (mForegroundTaskScheduler.getCompletedTaskCount()
@@ -113,6 +124,37 @@ public class HealthConnectThreadSchedulerTest {
                 });
     }
 
+    @Test
+    public void testHealthConnectScheduler_write_runsOnWriteExecutor() throws Exception {
+        when(mMockContext.getSystemService(ActivityManager.class)).thenReturn(mActivityManager);
+        when(mActivityManager.getRunningAppProcesses()).thenReturn(null);
+
+        HealthConnectThreadScheduler.schedule(
+                mMockContext, () -> {}, Process.myUid(), false, /* isWrite= */ true);
+        TestUtils.waitForTaskToFinishSuccessfully(
+                () -> {
+                    if (mWriteTaskScheduler.getCompletedTaskCount()
+                            != mWriteTaskSchedulerCompletedJobs + 1) {
+                        throw new RuntimeException();
+                    }
+                });
+        Truth.assertThat(mBackgroundTaskScheduler.getCompletedTaskCount())
+                .isEqualTo(mBackgroundTaskSchedulerCompletedJobs);
+        Truth.assertThat(HealthConnectThreadScheduler.getQueueDepth(Process.myUid()))
+                .isEqualTo(0);
+    }
+
+    @Test
+    public void testHealthConnectScheduler_readerPoolsSizedToCores() {
+        Truth.assertThat(mForegroundTaskScheduler.getMaximumPoolSize())
+                .isEqualTo(HealthConnectThreadScheduler.NUM_EXECUTOR_THREADS_FOREGROUND);
+        Truth.assertThat(mBackgroundTaskScheduler.getMaximumPoolSize())
+                .isEqualTo(HealthConnectThreadScheduler.NUM_EXECUTOR_THREADS_BACKGROUND);
+        Truth.assertThat(mWriteTaskScheduler.getMaximumPoolSize()).isEqualTo(1);
+        Truth.assertThat(HealthConnectThreadScheduler.NUM_EXECUTOR_THREADS_FOREGROUND)
+                .isAtMost(Math.max(1, Runtime.getRuntime().availableProcessors()));
+    }
+
     @Test
     public void testHealthConnectScheduler_runningAppProcessNull() throws Exception {
         when(mMockContext.getSystemService(ActivityManager.class)).thenReturn(mActivityManager);
@@ -128,6 +170,54 @@ public class HealthConnectThreadSchedulerTest {
                 });
     }
 
+    @Test
+    public void testHealthConnectScheduler_runInternalTaskAndWait_waitsForTask() {
+        AtomicBoolean ran = new AtomicBoolean();
+
+        boolean finished =
+                HealthConnectThreadScheduler.runInternalTaskAndWait(
+                        () -> ran.set(true), /* timeoutMillis= */ 5000);
+
+        Truth.assertThat(finished).isTrue();
+        Truth.assertThat(ran.get()).isTrue();
+    }
+
+    @Test
+    public void testHealthConnectScheduler_runInternalTaskAndWait_timesOut() {
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            boolean finished =
+                    HealthConnectThreadScheduler.runInternalTaskAndWait(
+                            () -> {
+                                try {
+                                    release.await();
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            },
+                            /* timeoutMillis= */ 10);
+
+            Truth.assertThat(finished).isFalse();
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testHealthConnectScheduler_aggregationTaskException_returnedToCaller()
+            throws Exception {
+        Future<?> success = HealthConnectThreadScheduler.scheduleAggregationTask(() -> {});
+        Future<?> failure =
+                HealthConnectThreadScheduler.scheduleAggregationTask(
+                        () -> {
+                            throw new IllegalStateException();
+                        });
+
+        success.get();
+        ExecutionException exception = assertThrows(ExecutionException.class, failure::get);
+        Truth.assertThat(exception).hasCauseThat().isInstanceOf(IllegalStateException.class);
+    }
+
     @Test
     public void testHealthConnectSchedulerClear() {
         HealthConnectThreadScheduler.resetThreadPools();
@@ -136,5 +226,6 @@ public class HealthConnectThreadSchedulerTest {
         Truth.assertThat(mControllerTaskSchedulerCompletedJobs).isEqualTo(0);
         Truth.assertThat(mForegroundTaskSchedulerCompletedJobs).isEqualTo(0);
         Truth.assertThat(mBackgroundTaskSchedulerCompletedJobs).isEqualTo(0);
+        Truth.assertThat(mWriteTaskSchedulerCompletedJobs).isEqualTo(0);
     }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect;
+
+import static android.app.ActivityManager.RunningAppProcessInfo.IMPORTANCE_CACHED;
+import static android.app.ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
+import static android.app.ActivityManager.RunningAppProcessInfo.IMPORTANCE_GONE;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.app.ActivityManager;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class HealthConnectUidImportanceCacheTest {
+    private static final int UID = 10123;
+
+    @Mock private ActivityManager mActivityManager;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        ActivityManager.RunningAppProcessInfo runningAppProcessInfo =
+                new ActivityManager.RunningAppProcessInfo();
+        runningAppProcessInfo.uid = UID;
+        runningAppProcessInfo.importance = IMPORTANCE_FOREGROUND;
+        when(mActivityManager.getRunningAppProcesses()).thenReturn(List.of(runningAppProcessInfo));
+    }
+
+    @Test
+    public void testIsUidInForeground_queriesRunningProcessesOnce() {
+        HealthConnectUidImportanceCache cache =
+                new HealthConnectUidImportanceCache(mActivityManager);
+
+        assertThat(cache.isUidInForeground(UID)).isTrue();
+        assertThat(cache.isUidInForeground(UID)).isTrue();
+        verify(mActivityManager, times(1)).getRunningAppProcesses();
+        verify(mActivityManager).addOnUidImportanceListener(cache, IMPORTANCE_FOREGROUND);
+    }
+
+    @Test
+    public void testIsUidInForeground_updatedByListener() {
+        HealthConnectUidImportanceCache cache =
+                new HealthConnectUidImportanceCache(mActivityManager);
+        assertThat(cache.isUidInForeground(UID)).isTrue();
+
+        cache.onUidImportance(UID, IMPORTANCE_CACHED);
+        assertThat(cache.isUidInForeground(UID)).isFalse();
+
+        cache.onUidImportance(UID, IMPORTANCE_FOREGROUND);
+        assertThat(cache.isUidInForeground(UID)).isTrue();
+        verify(mActivityManager, times(1)).getRunningAppProcesses();
+    }
+
+    @Test
+    public void testIsUidInForeground_uidGone_queriesAgain() {
+        HealthConnectUidImportanceCache cache =
+                new HealthConnectUidImportanceCache(mActivityManager);
+        assertThat(cache.isUidInForeground(UID)).isTrue();
+
+        cache.onUidImportance(UID, IMPORTANCE_GONE);
+        assertThat(cache.isUidInForeground(UID)).isTrue();
+        verify(mActivityManager, times(2)).getRunningAppProcesses();
+    }
+
+    @Test
+    public void testIsUidInForeground_listenerNotAllowed_queriesEveryTime() {
+        doThrow(new SecurityException())
+                .when(mActivityManager)
+                .addOnUidImportanceListener(any(), anyInt());
+        HealthConnectUidImportanceCache cache =
+                new HealthConnectUidImportanceCache(mActivityManager);
+
+        assertThat(cache.isUidInForeground(UID)).isTrue();
+        assertThat(cache.isUidInForeground(UID)).isTrue();
+        verify(mActivityManager, times(2)).getRunningAppProcesses();
+    }
+}
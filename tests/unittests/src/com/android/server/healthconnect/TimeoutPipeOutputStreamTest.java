@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.os.ParcelFileDescriptor;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+@RunWith(AndroidJUnit4.class)
+public class TimeoutPipeOutputStreamTest {
+    private static final int TIMEOUT_MILLIS = 100;
+    // Larger than the buffer of a pipe.
+    private static final int PAYLOAD_SIZE = 1024 * 1024;
+
+    @Test
+    public void testWrite_clientReads_writesAllBytes() throws Exception {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        Arrays.fill(payload, (byte) 7);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (DataInputStream in =
+                new DataInputStream(new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]))) {
+            Future<?> write =
+                    executor.submit(
+                            () -> {
+                                try (TimeoutPipeOutputStream out =
+                                        new TimeoutPipeOutputStream(pipe[1], TIMEOUT_MILLIS)) {
+                                    out.write(payload);
+                                }
+                                return null;
+                            });
+            byte[] read = new byte[PAYLOAD_SIZE];
+            in.readFully(read);
+
+            write.get();
+            assertThat(read).isEqualTo(payload);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWrite_clientStopsReading_timesOut() throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        try (ParcelFileDescriptor readSide = pipe[0];
+                TimeoutPipeOutputStream out =
+                        new TimeoutPipeOutputStream(pipe[1], TIMEOUT_MILLIS)) {
+            assertThrows(InterruptedIOException.class, () -> out.write(new byte[PAYLOAD_SIZE]));
+            // Later writes fail without waiting for the timeout again.
+            assertThrows(InterruptedIOException.class, () -> out.write(1));
+        }
+    }
+
+    @Test
+    public void testWrite_clientClosedStream_throws() throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        pipe[0].close();
+        try (TimeoutPipeOutputStream out = new TimeoutPipeOutputStream(pipe[1], TIMEOUT_MILLIS)) {
+            assertThrows(IOException.class, () -> out.write(new byte[PAYLOAD_SIZE]));
+        }
+    }
+}
@@ -46,11 +46,14 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -93,6 +96,8 @@ import org.mockito.quality.Strictness;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
 import java.util.Map;
 
@@ -189,7 +194,7 @@ public class BackupRestoreTest {
         File grantTimeFileBacked =
                 createAndGetEmptyFile(mMockBackedDataDirectory, GRANT_TIME_FILE_NAME);
 
-        when(mTransactionManager.getDatabasePath()).thenReturn(dbFileToBackup);
+        mockDatabaseSnapshot(dbFileToBackup);
         when(mFirstGrantTimeManager.getFile(mUserHandle)).thenReturn(grantTimeFileToBackup);
 
         Map<String, ParcelFileDescriptor> pfdsByFileName = new ArrayMap<>();
@@ -203,10 +208,54 @@ public class BackupRestoreTest {
 
         mBackupRestore.getAllDataForBackup(new StageRemoteDataRequest(pfdsByFileName), mUserHandle);
 
+        verify(mTransactionManager).createDatabaseSnapshot(any());
         assertThat(dbFileBacked.length()).isEqualTo(dbFileToBackup.length());
         assertThat(grantTimeFileBacked.length()).isEqualTo(dbFileToBackup.length());
     }
 
+    @Test
+    public void testGetAllBackupData_deletesSnapshotOnceSent() throws Exception {
+        File dbFileToBackup = createAndGetNonEmptyFile(mMockDataDirectory, DATABASE_NAME);
+        File dbFileBacked = createAndGetEmptyFile(mMockBackedDataDirectory, DATABASE_NAME);
+        mockDatabaseSnapshot(dbFileToBackup);
+
+        backUpDatabase(dbFileBacked);
+
+        ArgumentCaptor<File> snapshotFileCaptor = ArgumentCaptor.forClass(File.class);
+        verify(mTransactionManager).createDatabaseSnapshot(snapshotFileCaptor.capture());
+        assertThat(snapshotFileCaptor.getValue().exists()).isFalse();
+        assertThat(dbFileBacked.length()).isEqualTo(dbFileToBackup.length());
+    }
+
+    @Test
+    public void testGetAllBackupData_backedUpTwice_takesNewSnapshot() throws Exception {
+        File dbFileToBackup = createAndGetNonEmptyFile(mMockDataDirectory, DATABASE_NAME);
+        File dbFileBacked = createAndGetEmptyFile(mMockBackedDataDirectory, DATABASE_NAME);
+        mockDatabaseSnapshot(dbFileToBackup);
+
+        backUpDatabase(dbFileBacked);
+        try (FileWriter fileWriter = new FileWriter(dbFileToBackup, /* append= */ true)) {
+            fileWriter.write("More contents");
+        }
+        backUpDatabase(dbFileBacked);
+
+        verify(mTransactionManager, times(2)).createDatabaseSnapshot(any());
+        assertThat(dbFileBacked.length()).isEqualTo(dbFileToBackup.length());
+    }
+
+    @Test
+    public void testGetAllBackupData_snapshotFails_copiesDatabaseFile() throws Exception {
+        File dbFileToBackup = createAndGetNonEmptyFile(mMockDataDirectory, DATABASE_NAME);
+        File dbFileBacked = createAndGetEmptyFile(mMockBackedDataDirectory, DATABASE_NAME);
+        when(mTransactionManager.getDatabasePath()).thenReturn(dbFileToBackup);
+        doThrow(new IOException()).when(mTransactionManager).createDatabaseSnapshot(any());
+
+        backUpDatabase(dbFileBacked);
+
+        verify(mTransactionManager).checkpointDatabase();
+        assertThat(dbFileBacked.length()).isEqualTo(dbFileToBackup.length());
+    }
+
     @Test
     public void testSetDataDownloadState_downloadStarted_schedulesDownloadTimeoutJob() {
         @HealthConnectManager.DataDownloadState int testDownloadStateSet = DATA_DOWNLOAD_STARTED;
@@ -737,6 +786,33 @@ public class BackupRestoreTest {
         assertThat(result).isFalse();
     }
 
+    /** Makes the database snapshots copies of {@code dbFile}. */
+    private void mockDatabaseSnapshot(File dbFile) throws IOException {
+        when(mTransactionManager.getDatabasePath()).thenReturn(dbFile);
+        doAnswer(
+                        invocation -> {
+                            File snapshotFile = invocation.getArgument(0);
+                            Files.copy(
+                                    dbFile.toPath(),
+                                    snapshotFile.toPath(),
+                                    StandardCopyOption.REPLACE_EXISTING);
+                            return null;
+                        })
+                .when(mTransactionManager)
+                .createDatabaseSnapshot(any());
+    }
+
+    private void backUpDatabase(File dbFileBacked) throws IOException {
+        Map<String, ParcelFileDescriptor> pfdsByFileName = new ArrayMap<>();
+        pfdsByFileName.put(
+                dbFileBacked.getName(),
+                ParcelFileDescriptor.open(
+                        dbFileBacked,
+                        ParcelFileDescriptor.MODE_WRITE_ONLY
+                                | ParcelFileDescriptor.MODE_TRUNCATE));
+        mBackupRestore.getAllDataForBackup(new StageRemoteDataRequest(pfdsByFileName), mUserHandle);
+    }
+
     private static File createAndGetNonEmptyFile(File dir, String fileName) throws IOException {
         File file = new File(dir, fileName);
         FileWriter fileWriter = new FileWriter(file);
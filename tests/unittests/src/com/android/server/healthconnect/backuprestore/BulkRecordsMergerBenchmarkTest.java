@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.backuprestore;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.HeartRateRecordHelper.TABLE_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper.STEPS_TABLE_NAME;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.health.connect.internal.datatypes.HeartRateRecordInternal;
+import android.health.connect.internal.datatypes.HeartRateRecordInternal.HeartRateSample;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.server.healthconnect.HealthConnectUserContext;
+import com.android.server.healthconnect.storage.HealthConnectDatabase;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.datatypehelpers.HeartRateRecordHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper;
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+import com.android.server.healthconnect.storage.utils.StorageUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Measures the records merged per second from a staged database of 1M records, by reading them into
+ * records and inserting those as restore used to, and by copying their rows. Results are logged.
+ * Also checks that copying rows keeps the child rows of the records and ignores conflicting ones.
+ *
+ * <p>Records are merged into a database of the test's own. The benchmark is a {@link LargeTest},
+ * which the unit test configuration doesn't run by default.
+ */
+public class BulkRecordsMergerBenchmarkTest {
+    private static final String TAG = "BulkRecordsMergerBenchmark";
+    private static final String STAGED_DATABASE_NAME = "bulk_records_merger_benchmark_staged";
+    private static final String DATABASE_NAME = "bulk_records_merger_benchmark";
+    private static final String PACKAGE_NAME = "android.healthconnect.benchmark";
+    private static final String SERIES_TABLE_NAME = "heart_rate_record_series_table";
+    private static final int NUM_RECORDS = 1_000_000;
+    private static final int PAGE_SIZE = 2000;
+    private static final int SAMPLES_PER_RECORD = 3;
+
+    @Mock Context mStagedDbContext;
+    @Mock Context mDbContext;
+    private Context mContext;
+    private HealthConnectDatabase mStagedDatabase;
+    private HealthConnectDatabase mDatabase;
+    private SQLiteDatabase mStagedDb;
+    private SQLiteDatabase mDb;
+    private long mStagedAppInfoId;
+    private long mStagedDeviceInfoId;
+    private long mAppInfoId;
+    private long mDeviceInfoId;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mContext = InstrumentationRegistry.getInstrumentation().getContext();
+        mContext.deleteDatabase(STAGED_DATABASE_NAME);
+        mContext.deleteDatabase(DATABASE_NAME);
+        when(mStagedDbContext.getDatabasePath(anyString()))
+                .thenReturn(mContext.getDatabasePath(STAGED_DATABASE_NAME));
+        when(mDbContext.getDatabasePath(anyString()))
+                .thenReturn(mContext.getDatabasePath(DATABASE_NAME));
+        mStagedDatabase = new HealthConnectDatabase(mStagedDbContext);
+        mStagedDb = mStagedDatabase.getWritableDatabase();
+        mDatabase = new HealthConnectDatabase(mDbContext);
+        mDb = mDatabase.getWritableDatabase();
+        // Reading records resolves their device infos through the caches of the service, which
+        // read the database of the system user. Records are only written to the test databases.
+        TransactionManager.getInstance(new HealthConnectUserContext(mContext, UserHandle.SYSTEM));
+
+        mStagedAppInfoId = insertAppInfo(mStagedDb);
+        mStagedDeviceInfoId = insertDeviceInfo(mStagedDb);
+        mAppInfoId = insertAppInfo(mDb);
+        mDeviceInfoId = insertDeviceInfo(mDb);
+    }
+
+    @After
+    public void tearDown() {
+        mStagedDatabase.close();
+        mDatabase.close();
+        mContext.deleteDatabase(STAGED_DATABASE_NAME);
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkMerge1mRecords() {
+        insertStagedStepsRecords();
+
+        long start = SystemClock.elapsedRealtime();
+        mergeRecordsOneAtATime(new StepsRecordHelper());
+        long oneAtATimeMillis = SystemClock.elapsedRealtime() - start;
+        long oneAtATimeCount = getCount(mDb, STEPS_TABLE_NAME);
+
+        mDb.execSQL("DELETE FROM " + STEPS_TABLE_NAME);
+        start = SystemClock.elapsedRealtime();
+        BulkRecordsMerger bulkRecordsMerger = attachBulkRecordsMerger();
+        bulkRecordsMerger.merge(new StepsRecordHelper());
+        bulkRecordsMerger.detach();
+        long bulkMillis = SystemClock.elapsedRealtime() - start;
+
+        assertThat(getCount(mDb, STEPS_TABLE_NAME)).isEqualTo(oneAtATimeCount);
+        assertThat(oneAtATimeCount).isEqualTo(NUM_RECORDS);
+        Log.i(
+                TAG,
+                NUM_RECORDS
+                        + " records: one at a time: "
+                        + NUM_RECORDS * 1000L / Math.max(oneAtATimeMillis, 1)
+                        + " records/s, as rows: "
+                        + NUM_RECORDS * 1000L / Math.max(bulkMillis, 1)
+                        + " records/s");
+    }
+
+    @Test
+    public void testMerge_copiesRecords_ignoresConflictingUuids() {
+        int numRecords = 100;
+        UUID existingUuid = null;
+        for (int i = 0; i < numRecords; i++) {
+            UUID uuid = UUID.randomUUID();
+            insertOrIgnore(
+                    mStagedDb,
+                    getHeartRateUpsertRequest(uuid, i, mStagedAppInfoId, mStagedDeviceInfoId));
+            if (i == 0) {
+                existingUuid = uuid;
+                insertOrIgnore(mDb, getHeartRateUpsertRequest(uuid, i, mAppInfoId, mDeviceInfoId));
+            }
+        }
+
+        BulkRecordsMerger bulkRecordsMerger = attachBulkRecordsMerger();
+        assertThat(bulkRecordsMerger.canMerge(new HeartRateRecordHelper())).isTrue();
+        long mergedRecords = bulkRecordsMerger.merge(new HeartRateRecordHelper());
+        bulkRecordsMerger.detach();
+
+        assertThat(mergedRecords).isEqualTo(numRecords - 1);
+        assertThat(getCount(mDb, TABLE_NAME)).isEqualTo(numRecords);
+        assertThat(getCount(mDb, TABLE_NAME + " WHERE sample_count = " + SAMPLES_PER_RECORD))
+                .isEqualTo(numRecords);
+        assertThat(getCount(mDb, TABLE_NAME + " WHERE app_info_id != " + mAppInfoId))
+                .isEqualTo(0);
+        assertThat(getCount(mDb, TABLE_NAME + " WHERE device_info_id != " + mDeviceInfoId))
+                .isEqualTo(0);
+        assertThat(
+                        getCount(
+                                mDb,
+                                TABLE_NAME
+                                        + " WHERE uuid = "
+                                        + StorageUtils.getHexString(existingUuid)
+                                        + " AND sample_count = "
+                                        + SAMPLES_PER_RECORD))
+                .isEqualTo(1);
+        assertThat(getCount(mStagedDb, TABLE_NAME)).isEqualTo(0);
+    }
+
+    @Test
+    public void testMerge_recordsWithManySeriesRows_copiesSeriesRowsToTheirRecords() {
+        int numRecords = 5;
+        // More series rows than fit in a chunk along with another record.
+        int rowsPerRecord = 1500;
+        for (int i = 0; i < numRecords; i++) {
+            long rowId =
+                    insertOrIgnore(
+                            mStagedDb,
+                            getHeartRateUpsertRequest(
+                                    UUID.randomUUID(), i, mStagedAppInfoId, mStagedDeviceInfoId));
+            insertSeriesRows(rowId, /* beatsPerMinute= */ 60 + i, rowsPerRecord);
+        }
+
+        BulkRecordsMerger bulkRecordsMerger = attachBulkRecordsMerger();
+        assertThat(bulkRecordsMerger.merge(new HeartRateRecordHelper())).isEqualTo(numRecords);
+        bulkRecordsMerger.detach();
+
+        assertThat(getCount(mDb, SERIES_TABLE_NAME)).isEqualTo(numRecords * rowsPerRecord);
+        // Each record keeps its own series rows, which were given its start time as a marker.
+        assertThat(
+                        getCount(
+                                mDb,
+                                SERIES_TABLE_NAME
+                                        + " c JOIN "
+                                        + TABLE_NAME
+                                        + " p ON p.row_id = c.parent_key"
+                                        + " WHERE c.beats_per_minute = 60 + p.start_time / 1000"))
+                .isEqualTo(numRecords * rowsPerRecord);
+        assertThat(getCount(mStagedDb, TABLE_NAME)).isEqualTo(0);
+        assertThat(getCount(mStagedDb, SERIES_TABLE_NAME)).isEqualTo(0);
+    }
+
+    private BulkRecordsMerger attachBulkRecordsMerger() {
+        BulkRecordsMerger bulkRecordsMerger = new BulkRecordsMerger(mStagedDb);
+        bulkRecordsMerger.attach(
+                mContext.getDatabasePath(DATABASE_NAME),
+                Map.of(mStagedAppInfoId, mAppInfoId),
+                Map.of(mStagedDeviceInfoId, mDeviceInfoId));
+        return bulkRecordsMerger;
+    }
+
+    /** Merges the staged records as restore used to, reading them into records page by page. */
+    private void mergeRecordsOneAtATime(StepsRecordHelper recordHelper) {
+        long lastRowId = 0;
+        while (true) {
+            List<RecordInternal<?>> records;
+            try (Cursor cursor =
+                    mStagedDb.rawQuery(
+                            "SELECT * FROM "
+                                    + STEPS_TABLE_NAME
+                                    + " WHERE row_id > ? ORDER BY row_id LIMIT "
+                                    + PAGE_SIZE,
+                            new String[] {String.valueOf(lastRowId)})) {
+                records =
+                        recordHelper.getInternalRecords(
+                                cursor, PAGE_SIZE, Map.of(mStagedAppInfoId, PACKAGE_NAME));
+            }
+            if (records.isEmpty()) {
+                return;
+            }
+            lastRowId = records.get(records.size() - 1).getRowId();
+            mDb.beginTransaction();
+            try {
+                for (RecordInternal<?> record : records) {
+                    record.setUuid(UUID.randomUUID())
+                            .setAppInfoId(mAppInfoId)
+                            .setDeviceInfoId(mDeviceInfoId);
+                    insertOrIgnore(mDb, recordHelper.getUpsertTableRequest(record));
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+    }
+
+    private void insertStagedStepsRecords() {
+        mStagedDb.beginTransaction();
+        try (SQLiteStatement insertSteps =
+                mStagedDb.compileStatement(
+                        "INSERT INTO "
+                                + STEPS_TABLE_NAME
+                                + " (uuid, app_info_id, device_info_id, last_modified_time,"
+                                + " start_time, start_zone_offset, end_time, end_zone_offset,"
+                                + " local_date, count)"
+                                + " VALUES (?, ?, ?, 0, ?, 0, ?, 0, ?, 10)")) {
+            for (int i = 0; i < NUM_RECORDS; i++) {
+                insertSteps.bindBlob(1, StorageUtils.convertUUIDToBytes(UUID.randomUUID()));
+                insertSteps.bindLong(2, mStagedAppInfoId);
+                insertSteps.bindLong(3, mStagedDeviceInfoId);
+                insertSteps.bindLong(4, i * 1000L);
+                insertSteps.bindLong(5, i * 1000L + 500);
+                insertSteps.bindLong(6, i / 86_400);
+                insertSteps.executeInsert();
+            }
+            mStagedDb.setTransactionSuccessful();
+        } finally {
+            mStagedDb.endTransaction();
+        }
+    }
+
+    private static UpsertTableRequest getHeartRateUpsertRequest(
+            UUID uuid, int index, long appInfoId, long deviceInfoId) {
+        long startTime = index * 1000L;
+        HeartRateRecordInternal record = new HeartRateRecordInternal();
+        record.setSamples(
+                Set.of(
+                        new HeartRateSample(60, startTime),
+                        new HeartRateSample(61, startTime + 100),
+                        new HeartRateSample(62, startTime + 200)));
+        record.setStartTime(startTime).setStartZoneOffset(0).setEndTime(startTime + 500);
+        record.setEndZoneOffset(0);
+        record.setUuid(uuid).setAppInfoId(appInfoId).setDeviceInfoId(deviceInfoId);
+        record.setPackageName(PACKAGE_NAME);
+        return new HeartRateRecordHelper().getUpsertTableRequest(record);
+    }
+
+    private void insertSeriesRows(long parentRowId, int beatsPerMinute, int numRows) {
+        mStagedDb.beginTransaction();
+        try (SQLiteStatement insertSeriesRow =
+                mStagedDb.compileStatement(
+                        "INSERT INTO "
+                                + SERIES_TABLE_NAME
+                                + " (parent_key, beats_per_minute, epoch_millis)"
+                                + " VALUES (?, ?, ?)")) {
+            for (int i = 0; i < numRows; i++) {
+                insertSeriesRow.bindLong(1, parentRowId);
+                insertSeriesRow.bindLong(2, beatsPerMinute);
+                insertSeriesRow.bindLong(3, i);
+                insertSeriesRow.executeInsert();
+            }
+            mStagedDb.setTransactionSuccessful();
+        } finally {
+            mStagedDb.endTransaction();
+        }
+    }
+
+    /**
+     * Inserts the row of {@code request} and its child rows, returns the row id of the row or -1
+     * if it was ignored.
+     */
+    private static long insertOrIgnore(SQLiteDatabase db, UpsertTableRequest request) {
+        long rowId =
+                db.insertWithOnConflict(
+                        request.getTable(),
+                        null,
+                        request.getContentValues(),
+                        SQLiteDatabase.CONFLICT_IGNORE);
+        if (rowId != -1) {
+            for (UpsertTableRequest childRequest : request.getChildTableRequests()) {
+                insertOrIgnore(db, childRequest.withParentKey(rowId));
+            }
+        }
+        return rowId;
+    }
+
+    private static long insertAppInfo(SQLiteDatabase db) {
+        db.execSQL(
+                "INSERT INTO application_info_table (package_name) VALUES ('"
+                        + PACKAGE_NAME
+                        + "')");
+        return queryLong(db, "SELECT MAX(row_id) FROM application_info_table");
+    }
+
+    private static long insertDeviceInfo(SQLiteDatabase db) {
+        db.execSQL(
+                "INSERT INTO device_info_table (manufacturer, model, device_type)"
+                        + " VALUES ('google', 'pixel', 1)");
+        return queryLong(db, "SELECT MAX(row_id) FROM device_info_table");
+    }
+
+    /** Returns the number of rows of {@code tableAndFilter}. */
+    private static long getCount(SQLiteDatabase db, String tableAndFilter) {
+        return queryLong(db, "SELECT COUNT(*) FROM " + tableAndFilter);
+    }
+
+    private static long queryLong(SQLiteDatabase db, String sql) {
+        try (Cursor cursor = db.rawQuery(sql, null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+}
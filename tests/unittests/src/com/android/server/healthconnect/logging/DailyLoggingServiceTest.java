@@ -18,6 +18,13 @@ package healthconnect.logging;
 
 import static android.health.HealthFitnessStatsLog.HEALTH_CONNECT_STORAGE_STATS;
 import static android.health.HealthFitnessStatsLog.HEALTH_CONNECT_USAGE_STATS;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_BLOOD_PRESSURE;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_HEART_RATE;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_HEIGHT;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_SPEED;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_TOTAL_CALORIES_BURNED;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_VO2_MAX;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doReturn;
@@ -29,6 +36,7 @@ import static org.mockito.Mockito.when;
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.health.HealthFitnessStatsLog;
 import android.health.connect.HealthConnectManager;
 import android.os.Process;
@@ -37,14 +45,7 @@ import android.os.UserHandle;
 import com.android.dx.mockito.inline.extended.ExtendedMockito;
 import com.android.server.healthconnect.logging.DailyLoggingService;
 import com.android.server.healthconnect.storage.TransactionManager;
-import com.android.server.healthconnect.storage.datatypehelpers.BloodPressureRecordHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper;
-import com.android.server.healthconnect.storage.datatypehelpers.HeartRateRecordHelper;
-import com.android.server.healthconnect.storage.datatypehelpers.HeightRecordHelper;
-import com.android.server.healthconnect.storage.datatypehelpers.SpeedRecordHelper;
-import com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper;
-import com.android.server.healthconnect.storage.datatypehelpers.TotalCaloriesBurnedRecordHelper;
-import com.android.server.healthconnect.storage.datatypehelpers.Vo2MaxRecordHelper;
 
 import org.junit.After;
 import org.junit.Before;
@@ -118,20 +119,31 @@ public class DailyLoggingServiceTest {
         when(transactionManager.getDatabaseSize(mContext)).thenReturn(1L);
 
         when(transactionManager.getNumberOfEntriesInTheTable(any())).thenReturn(0L);
-
-        for (String tableName :
-                new String[] {
-                    ChangeLogsHelper.TABLE_NAME,
-                    BloodPressureRecordHelper.BLOOD_PRESSURE_RECORD_TABLE_NAME,
-                    HeightRecordHelper.HEIGHT_RECORD_TABLE_NAME,
-                    Vo2MaxRecordHelper.VO2_MAX_RECORD_TABLE_NAME,
-                    StepsRecordHelper.STEPS_TABLE_NAME,
-                    TotalCaloriesBurnedRecordHelper.TOTAL_CALORIES_BURNED_RECORD_TABLE_NAME,
-                    SpeedRecordHelper.TABLE_NAME,
-                    HeartRateRecordHelper.TABLE_NAME
-                }) {
-            doReturn(2L).when(transactionManager).getNumberOfEntriesInTheTable(tableName);
-        }
+        doReturn(2L)
+                .when(transactionManager)
+                .getNumberOfEntriesInTheTable(ChangeLogsHelper.TABLE_NAME);
+
+        // Record counts are read from the record stats table.
+        when(transactionManager.read(any()))
+                .thenAnswer(
+                        invocation -> {
+                            MatrixCursor cursor =
+                                    new MatrixCursor(
+                                            new String[] {"record_type_id", "record_count"});
+                            for (int recordTypeId :
+                                    new int[] {
+                                        RECORD_TYPE_BLOOD_PRESSURE,
+                                        RECORD_TYPE_HEIGHT,
+                                        RECORD_TYPE_VO2_MAX,
+                                        RECORD_TYPE_STEPS,
+                                        RECORD_TYPE_TOTAL_CALORIES_BURNED,
+                                        RECORD_TYPE_SPEED,
+                                        RECORD_TYPE_HEART_RATE
+                                    }) {
+                                cursor.addRow(new Object[] {recordTypeId, 2L});
+                            }
+                            return cursor;
+                        });
 
         DailyLoggingService.logDailyMetrics(mContext, mCurrentUser);
 
@@ -36,12 +36,16 @@ import static android.health.connect.ratelimiter.RateLimiter.QuotaBucket.QUOTA_B
 import static android.health.connect.ratelimiter.RateLimiter.QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_BACKGROUND;
 import static android.health.connect.ratelimiter.RateLimiter.QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_FOREGROUND;
 
+import static com.google.common.truth.Truth.assertThat;
+
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.times;
 
 import android.health.HealthFitnessStatsLog;
+import android.util.Slog;
 
 import com.android.dx.mockito.inline.extended.ExtendedMockito;
 import com.android.server.healthconnect.logging.HealthConnectServiceLogger;
@@ -52,6 +56,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.MockitoSession;
 
+import java.util.Map;
+
 public class HealthConnectServiceLoggerTest {
 
     private MockitoSession mStaticMockSession;
@@ -61,6 +67,7 @@ public class HealthConnectServiceLoggerTest {
         mStaticMockSession =
                 ExtendedMockito.mockitoSession()
                         .mockStatic(HealthFitnessStatsLog.class)
+                        .spyStatic(Slog.class)
                         .startMocking();
     }
 
@@ -102,6 +109,39 @@ public class HealthConnectServiceLoggerTest {
                 times(1));
     }
 
+    @Test
+    public void testAggregationDurations_setByBuilder() {
+        Map<Integer, Long> aggregationDurationsMillis = Map.of(1, 12L, 2, 3L);
+
+        HealthConnectServiceLogger logger =
+                new HealthConnectServiceLogger.Builder(false, ApiMethods.READ_AGGREGATED_DATA)
+                        .setAggregationDurationsMillis(aggregationDurationsMillis)
+                        .build();
+
+        assertThat(logger.getAggregationDurationsMillis())
+                .containsExactlyEntriesIn(aggregationDurationsMillis);
+    }
+
+    @Test
+    public void testAggregationDurations_slow_loggedAsWarning() {
+        new HealthConnectServiceLogger.Builder(false, ApiMethods.READ_AGGREGATED_DATA)
+                .setAggregationDurationsMillis(Map.of(1, 5000L))
+                .build()
+                .log();
+
+        ExtendedMockito.verify(() -> Slog.w(anyString(), anyString()));
+    }
+
+    @Test
+    public void testAggregationDurations_fast_notLoggedAsWarning() {
+        new HealthConnectServiceLogger.Builder(false, ApiMethods.READ_AGGREGATED_DATA)
+                .setAggregationDurationsMillis(Map.of(1, 5L))
+                .build()
+                .log();
+
+        ExtendedMockito.verify(() -> Slog.w(anyString(), anyString()), times(0));
+    }
+
     @Test
     public void testRateLimiter_foreground15MinRead() {
 
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.permission;
+
+import static android.content.pm.PackageManager.PERMISSION_DENIED;
+import static android.content.pm.PackageManager.PERMISSION_GRANTED;
+import static android.health.connect.HealthPermissions.READ_STEPS;
+import static android.health.connect.HealthPermissions.WRITE_EXERCISE_ROUTE;
+import static android.health.connect.HealthPermissions.WRITE_STEPS;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.AttributionSource;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.health.connect.internal.datatypes.ExerciseSessionRecordInternal;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.permission.PermissionManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class DataPermissionEnforcerTest {
+    private static final int UID = 10123;
+    private static final AttributionSource ATTRIBUTION_SOURCE =
+            new AttributionSource.Builder(UID).setPackageName("android.healthconnect.test").build();
+
+    @Mock private PermissionManager mPermissionManager;
+    @Mock private Context mContext;
+    @Mock private PackageManager mPackageManager;
+    private PermissionGrantStateCache mGrantStateCache;
+    private DataPermissionEnforcer mDataPermissionEnforcer;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mGrantStateCache = new PermissionGrantStateCache(mPackageManager);
+        mDataPermissionEnforcer =
+                new DataPermissionEnforcer(mPermissionManager, mContext, mGrantStateCache);
+        setPermissionGranted(READ_STEPS, false);
+        setPermissionGranted(WRITE_STEPS, true);
+        setPermissionGranted(WRITE_EXERCISE_ROUTE, true);
+    }
+
+    @Test
+    public void testCollectExtraWritePermissions_checksEachPermissionOnce() {
+        List<RecordInternal<?>> sessions = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            sessions.add(new ExerciseSessionRecordInternal());
+        }
+
+        Map<String, Boolean> mapping =
+                mDataPermissionEnforcer.collectExtraWritePermissionStateMapping(
+                        sessions, ATTRIBUTION_SOURCE);
+
+        assertThat(mapping).containsExactly(WRITE_EXERCISE_ROUTE, true);
+        verifyChecks(WRITE_EXERCISE_ROUTE, 1);
+    }
+
+    @Test
+    public void testExtraPermissions_grantedCheckedPerCall() {
+        List<RecordInternal<?>> sessions = List.of(new ExerciseSessionRecordInternal());
+
+        mDataPermissionEnforcer.collectExtraWritePermissionStateMapping(
+                sessions, ATTRIBUTION_SOURCE);
+        mDataPermissionEnforcer.collectExtraWritePermissionStateMapping(
+                sessions, ATTRIBUTION_SOURCE);
+
+        // Granted permissions start the data delivery of every call.
+        verifyChecks(WRITE_EXERCISE_ROUTE, 2);
+    }
+
+    @Test
+    public void testExtraPermissions_deniedServedFromCache() {
+        setPermissionGranted(WRITE_EXERCISE_ROUTE, false);
+        List<RecordInternal<?>> sessions = List.of(new ExerciseSessionRecordInternal());
+
+        mDataPermissionEnforcer.collectExtraWritePermissionStateMapping(
+                sessions, ATTRIBUTION_SOURCE);
+        Map<String, Boolean> mapping =
+                mDataPermissionEnforcer.collectExtraWritePermissionStateMapping(
+                        sessions, ATTRIBUTION_SOURCE);
+
+        assertThat(mapping).containsExactly(WRITE_EXERCISE_ROUTE, false);
+        verifyChecks(WRITE_EXERCISE_ROUTE, 1);
+    }
+
+    @Test
+    public void testEnforceSelfRead_deniedReadServedFromCache_grantedWriteCheckedPerCall() {
+        assertThat(
+                        mDataPermissionEnforcer.enforceReadAccessAndGetEnforceSelfRead(
+                                RECORD_TYPE_STEPS, ATTRIBUTION_SOURCE))
+                .isTrue();
+        assertThat(
+                        mDataPermissionEnforcer.enforceReadAccessAndGetEnforceSelfRead(
+                                RECORD_TYPE_STEPS, ATTRIBUTION_SOURCE))
+                .isTrue();
+
+        verifyChecks(READ_STEPS, 1);
+        // Granted permissions start the data delivery of every call.
+        verifyChecks(WRITE_STEPS, 2);
+    }
+
+    @Test
+    public void testPermissionsChanged_invalidatesCache() {
+        mDataPermissionEnforcer.enforceReadAccessAndGetEnforceSelfRead(
+                RECORD_TYPE_STEPS, ATTRIBUTION_SOURCE);
+        setPermissionGranted(READ_STEPS, true);
+        mGrantStateCache.onPermissionsChanged(UID);
+
+        assertThat(
+                        mDataPermissionEnforcer.enforceReadAccessAndGetEnforceSelfRead(
+                                RECORD_TYPE_STEPS, ATTRIBUTION_SOURCE))
+                .isFalse();
+        verifyChecks(READ_STEPS, 2);
+    }
+
+    @Test
+    public void testAttributionChain_notCached() {
+        AttributionSource chain =
+                new AttributionSource.Builder(UID)
+                        .setPackageName("android.healthconnect.test")
+                        .setNext(new AttributionSource.Builder(UID + 1).build())
+                        .build();
+
+        mDataPermissionEnforcer.enforceReadAccessAndGetEnforceSelfRead(RECORD_TYPE_STEPS, chain);
+        mDataPermissionEnforcer.enforceReadAccessAndGetEnforceSelfRead(RECORD_TYPE_STEPS, chain);
+
+        verify(mPermissionManager, times(2))
+                .checkPermissionForStartDataDelivery(eq(READ_STEPS), eq(chain), isNull());
+    }
+
+    private void setPermissionGranted(String permission, boolean granted) {
+        when(mPermissionManager.checkPermissionForStartDataDelivery(
+                        eq(permission), any(AttributionSource.class), isNull()))
+                .thenReturn(granted ? PERMISSION_GRANTED : PERMISSION_DENIED);
+    }
+
+    private void verifyChecks(String permission, int times) {
+        verify(mPermissionManager, times(times))
+                .checkPermissionForStartDataDelivery(
+                        eq(permission), eq(ATTRIBUTION_SOURCE), isNull());
+    }
+}
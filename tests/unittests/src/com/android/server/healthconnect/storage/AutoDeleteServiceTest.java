@@ -18,6 +18,7 @@ package healthconnect.storage;
 
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import android.health.connect.datatypes.RecordTypeIdentifier;
@@ -62,6 +63,8 @@ import com.android.server.healthconnect.storage.datatypehelpers.OxygenSaturation
 import com.android.server.healthconnect.storage.datatypehelpers.PowerRecordHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.PreferenceHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.RecordStatsHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.RecordStatsHelper.RecordStats;
 import com.android.server.healthconnect.storage.datatypehelpers.RespiratoryRateRecordHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.RestingHeartRateRecordHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.SexualActivityRecordHelper;
@@ -80,13 +83,15 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.MockitoSession;
 
-import java.util.ArrayList;
+import java.time.Instant;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -96,12 +101,14 @@ import java.util.Set;
 public class AutoDeleteServiceTest {
     private static final String AUTO_DELETE_DURATION_RECORDS_KEY =
             "auto_delete_duration_records_key";
+    private static final String AUTO_DELETE_PROGRESS_KEY = "auto_delete_progress_key";
     @Mock private PreferenceHelper mPreferenceHelper;
     @Mock private TransactionManager mTransactionManager;
     @Mock private RecordHelperProvider mRecordHelperProvider;
 
     @Mock private AppInfoHelper mAppInfoHelper;
     @Mock private ActivityDateHelper mActivityDateHelper;
+    @Mock private RecordStatsHelper mRecordStatsHelper;
     private MockitoSession mStaticMockSession;
 
     @Before
@@ -113,6 +120,7 @@ public class AutoDeleteServiceTest {
                         .mockStatic(RecordHelperProvider.class)
                         .mockStatic(AppInfoHelper.class)
                         .mockStatic(ActivityDateHelper.class)
+                        .mockStatic(RecordStatsHelper.class)
                         .startMocking();
 
         MockitoAnnotations.initMocks(this);
@@ -152,7 +160,7 @@ public class AutoDeleteServiceTest {
                                         checkTableNames_getPreferenceReturnNull(
                                                 deleteTableRequestsList)));
         verify(mAppInfoHelper).syncAppInfoRecordTypesUsed();
-        verify(mActivityDateHelper).reSyncForAllRecords();
+        verifyZeroInteractions(mActivityDateHelper);
     }
 
     @Test
@@ -166,36 +174,147 @@ public class AutoDeleteServiceTest {
         when(mPreferenceHelper.getPreference(AUTO_DELETE_DURATION_RECORDS_KEY))
                 .thenReturn(String.valueOf(30));
         when(mRecordHelperProvider.getRecordHelpers()).thenReturn(getRecordHelpers());
+        mockRecordStats(getRecordStats(getRecordHelpers().keySet(), /* oldestStartTime= */ 0));
 
         AutoDeleteService.startAutoDelete();
 
-        verify(mTransactionManager, Mockito.times(3))
+        verify(mTransactionManager, Mockito.times(2))
                 .deleteWithoutChangeLogs(
                         Mockito.argThat(
                                 (List<DeleteTableRequest> deleteTableRequestsList) ->
-                                        checkTableNames_getPreferenceReturnNonNull(
+                                        checkTableNames_getPreferenceReturnNull(
                                                 deleteTableRequestsList)));
+        verify(mTransactionManager, Mockito.times(getRecordHelpers().size()))
+                .deleteWithoutChangeLogs(
+                        Mockito.argThat(
+                                (DeleteTableRequest request) ->
+                                        getTableNamesForDeletingStaleRecordEntries()
+                                                .contains(request.getTableName())));
+        verify(mPreferenceHelper).removeKey(AUTO_DELETE_PROGRESS_KEY);
         verify(mAppInfoHelper).syncAppInfoRecordTypesUsed();
-        verify(mActivityDateHelper).reSyncForAllRecords();
+        verifyZeroInteractions(mActivityDateHelper);
     }
 
-    private boolean checkTableNames_getPreferenceReturnNull(List<DeleteTableRequest> list) {
-        Set<String> tableNames = new HashSet<>();
-        for (DeleteTableRequest request : list) {
-            tableNames.add(request.getTableName());
+    @Test
+    public void testStartAutoDelete_deletesRecordsInChunks_savesProgress() {
+        mockAutoDeleteForRecords(getRecordHelpers());
+        mockRecordStats(
+                getRecordStats(
+                        Set.of(RecordTypeIdentifier.RECORD_TYPE_STEPS), /* oldestStartTime= */ 0));
+        when(mTransactionManager.deleteWithoutChangeLogs(
+                        Mockito.argThat(isForRecordType(RecordTypeIdentifier.RECORD_TYPE_STEPS))))
+                .thenReturn(2000, 1, 0);
+
+        AutoDeleteService.startAutoDelete();
+
+        verify(mTransactionManager, Mockito.times(3))
+                .deleteWithoutChangeLogs(
+                        Mockito.argThat(
+                                (DeleteTableRequest request) ->
+                                        isForRecordType(RecordTypeIdentifier.RECORD_TYPE_STEPS)
+                                                        .matches(request)
+                                                && request.getDeleteCommand()
+                                                        .contains("ORDER BY start_time")
+                                                && request.getDeleteCommand()
+                                                        .contains("LIMIT 2000")));
+        verify(mPreferenceHelper, Mockito.times(3))
+                .insertOrReplacePreference(
+                        AUTO_DELETE_PROGRESS_KEY,
+                        String.valueOf(RecordTypeIdentifier.RECORD_TYPE_STEPS));
+        verify(mPreferenceHelper).removeKey(AUTO_DELETE_PROGRESS_KEY);
+    }
+
+    @Test
+    public void testStartAutoDelete_withSavedProgress_resumes() {
+        mockAutoDeleteForRecords(getRecordHelpers());
+        mockRecordStats(
+                getRecordStats(
+                        Set.of(
+                                RecordTypeIdentifier.RECORD_TYPE_STEPS,
+                                RecordTypeIdentifier.RECORD_TYPE_DISTANCE,
+                                RecordTypeIdentifier.RECORD_TYPE_HEART_RATE),
+                        /* oldestStartTime= */ 0));
+        when(mPreferenceHelper.getPreference(AUTO_DELETE_PROGRESS_KEY))
+                .thenReturn(String.valueOf(RecordTypeIdentifier.RECORD_TYPE_DISTANCE));
+
+        AutoDeleteService.startAutoDelete();
+
+        verify(mTransactionManager, never())
+                .deleteWithoutChangeLogs(
+                        Mockito.argThat(isForRecordType(RecordTypeIdentifier.RECORD_TYPE_STEPS)));
+        verify(mTransactionManager)
+                .deleteWithoutChangeLogs(
+                        Mockito.argThat(
+                                isForRecordType(RecordTypeIdentifier.RECORD_TYPE_DISTANCE)));
+        verify(mTransactionManager)
+                .deleteWithoutChangeLogs(
+                        Mockito.argThat(
+                                isForRecordType(RecordTypeIdentifier.RECORD_TYPE_HEART_RATE)));
+    }
+
+    @Test
+    public void testStartAutoDelete_noStaleRecords_skipsTables() {
+        mockAutoDeleteForRecords(getRecordHelpers());
+        Map<Integer, RecordStats> recordStats =
+                getRecordStats(
+                        Set.of(RecordTypeIdentifier.RECORD_TYPE_STEPS),
+                        Instant.now().toEpochMilli());
+        recordStats.put(
+                RecordTypeIdentifier.RECORD_TYPE_DISTANCE,
+                new RecordStats(/* recordCount= */ 0, null, null));
+        mockRecordStats(recordStats);
+
+        AutoDeleteService.startAutoDelete();
+
+        verify(mTransactionManager, never())
+                .deleteWithoutChangeLogs(Mockito.any(DeleteTableRequest.class));
+        verify(mPreferenceHelper).removeKey(AUTO_DELETE_PROGRESS_KEY);
+    }
+
+    private void mockAutoDeleteForRecords(Map<Integer, RecordHelper<?>> recordHelpers) {
+        when(PreferenceHelper.getInstance()).thenReturn(mPreferenceHelper);
+        when(TransactionManager.getInitialisedInstance()).thenReturn(mTransactionManager);
+        when(RecordHelperProvider.getInstance()).thenReturn(mRecordHelperProvider);
+        when(AppInfoHelper.getInstance()).thenReturn(mAppInfoHelper);
+        when(mPreferenceHelper.getPreference(AUTO_DELETE_DURATION_RECORDS_KEY))
+                .thenReturn(String.valueOf(30));
+        when(mRecordHelperProvider.getRecordHelpers()).thenReturn(recordHelpers);
+    }
+
+    private void mockRecordStats(Map<Integer, RecordStats> recordStats) {
+        when(RecordStatsHelper.getInstance()).thenReturn(mRecordStatsHelper);
+        when(mRecordStatsHelper.getRecordStats()).thenReturn(recordStats);
+    }
+
+    private static Map<Integer, RecordStats> getRecordStats(
+            Set<Integer> recordTypeIds, long oldestStartTime) {
+        Map<Integer, RecordStats> recordStats = new HashMap<>();
+        for (int recordTypeId : recordTypeIds) {
+            recordStats.put(
+                    recordTypeId,
+                    new RecordStats(/* recordCount= */ 1, oldestStartTime, oldestStartTime));
         }
-        return (tableNames.equals(getTableNamesForDeletingStaleChangeLogEntries())
-                || tableNames.equals(getTableNamesForDeletingStaleAccessLogsEntries()));
+        return recordStats;
+    }
+
+    private ArgumentMatcher<DeleteTableRequest> isForRecordType(int recordTypeId) {
+        String tableName = getAutoDeleteTableName(getRecordHelpers().get(recordTypeId));
+        return request -> request.getTableName().equals(tableName);
+    }
+
+    private static String getAutoDeleteTableName(RecordHelper<?> recordHelper) {
+        return recordHelper
+                .getDeleteRequestForAutoDelete(/* endTime= */ 0, /* limit= */ 1)
+                .getTableName();
     }
 
-    private boolean checkTableNames_getPreferenceReturnNonNull(List<DeleteTableRequest> list) {
+    private boolean checkTableNames_getPreferenceReturnNull(List<DeleteTableRequest> list) {
         Set<String> tableNames = new HashSet<>();
         for (DeleteTableRequest request : list) {
             tableNames.add(request.getTableName());
         }
         return (tableNames.equals(getTableNamesForDeletingStaleChangeLogEntries())
-                || tableNames.equals(getTableNamesForDeletingStaleAccessLogsEntries())
-                || tableNames.equals(getTableNamesForDeletingStaleRecordEntries()));
+                || tableNames.equals(getTableNamesForDeletingStaleAccessLogsEntries()));
     }
 
     private Map<Integer, RecordHelper<?>> getRecordHelpers() {
@@ -292,28 +411,11 @@ public class AutoDeleteServiceTest {
         return recordIDToHelperMap;
     }
 
-    List<DeleteTableRequest> getDeleteTableRequests(int recordAutoDeletePeriod) {
-        List<DeleteTableRequest> deleteTableRequests = new ArrayList<>();
-
-        Map<Integer, RecordHelper<?>> recordIdToHelperMap = getRecordHelpers();
-        recordIdToHelperMap
-                .values()
-                .forEach(
-                        (recordHelper) -> {
-                            DeleteTableRequest request =
-                                    recordHelper.getDeleteRequestForAutoDelete(
-                                            recordAutoDeletePeriod);
-                            deleteTableRequests.add(request);
-                        });
-
-        return deleteTableRequests;
-    }
-
     Set<String> getTableNamesForDeletingStaleRecordEntries() {
         Set<String> tableNames = new HashSet<>();
 
-        for (DeleteTableRequest deleteTableRequest : getDeleteTableRequests(30)) {
-            tableNames.add(deleteTableRequest.getTableName());
+        for (RecordHelper<?> recordHelper : getRecordHelpers().values()) {
+            tableNames.add(getAutoDeleteTableName(recordHelper));
         }
 
         return tableNames;
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class CompiledStatementCacheTest {
+    private static final String INSERT_COMMAND = "INSERT INTO test_table (value) VALUES (?)";
+    private static final String UPDATE_COMMAND = "UPDATE test_table SET value = ?";
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE test_table (value INTEGER)");
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    @Test
+    public void testGet_sameSql_returnsCompiledStatement() {
+        CompiledStatementCache statements = new CompiledStatementCache(mDb, /* maxSize= */ 2);
+
+        SQLiteStatement statement = statements.get(INSERT_COMMAND);
+
+        assertThat(statements.get(INSERT_COMMAND)).isSameInstanceAs(statement);
+        assertThat(dump(statements)).contains("lookups: 2, hits: 1");
+    }
+
+    @Test
+    public void testGet_overMaxSize_closesEvictedStatement() {
+        CompiledStatementCache statements = new CompiledStatementCache(mDb, /* maxSize= */ 1);
+        SQLiteStatement insertStatement = statements.get(INSERT_COMMAND);
+
+        statements.get(UPDATE_COMMAND);
+
+        assertThrows(IllegalStateException.class, insertStatement::executeInsert);
+        assertThat(statements.get(INSERT_COMMAND)).isNotSameInstanceAs(insertStatement);
+    }
+
+    @Test
+    public void testClose_closesStatements() {
+        CompiledStatementCache statements = new CompiledStatementCache(mDb, /* maxSize= */ 2);
+        SQLiteStatement insertStatement = statements.get(INSERT_COMMAND);
+
+        statements.close();
+
+        assertThrows(IllegalStateException.class, insertStatement::executeInsert);
+        assertThat(dump(statements)).contains("size: 0/2");
+    }
+
+    private static String dump(CompiledStatementCache statements) {
+        StringWriter writer = new StringWriter();
+        statements.dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+}
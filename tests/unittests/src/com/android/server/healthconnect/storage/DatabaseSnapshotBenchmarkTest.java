@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper.STEPS_TABLE_NAME;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.server.healthconnect.storage.utils.StorageUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that database snapshots are consistent while records are being inserted, and measures the
+ * time taken to snapshot databases of 100MB and 1GB along with the longest insert transaction
+ * meanwhile. Results are logged.
+ *
+ * <p>The benchmarks are {@link LargeTest}s, which the unit test configuration doesn't run by
+ * default.
+ */
+public class DatabaseSnapshotBenchmarkTest {
+    private static final String TAG = "DatabaseSnapshotBenchmark";
+    private static final String DATABASE_NAME = "snapshot_benchmark";
+    private static final String PACKAGE_NAME = "android.healthconnect.benchmark";
+    private static final int RECORDS_PER_TRANSACTION = 100;
+    private static final int RECORDS_PER_FILL_TRANSACTION = 10_000;
+    private static final long SIZE_100_MB = 100L * 1024 * 1024;
+    private static final long SIZE_1_GB = 1024L * 1024 * 1024;
+
+    @Mock Context mContext;
+    private Context mTestContext;
+    private HealthConnectDatabase mHealthConnectDatabase;
+    private SQLiteDatabase mDb;
+    private File mDatabaseFile;
+    private File mSnapshotFile;
+    private long mAppInfoId;
+    private long mNextStartTime;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mTestContext = InstrumentationRegistry.getInstrumentation().getContext();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+        mDatabaseFile = mTestContext.getDatabasePath(DATABASE_NAME);
+        when(mContext.getDatabasePath(anyString())).thenReturn(mDatabaseFile);
+        mHealthConnectDatabase = new HealthConnectDatabase(mContext);
+        mDb = mHealthConnectDatabase.getWritableDatabase();
+        mSnapshotFile = new File(mTestContext.getFilesDir(), DATABASE_NAME + "_snapshot.db");
+        mDb.execSQL(
+                "INSERT INTO application_info_table (package_name) VALUES ('"
+                        + PACKAGE_NAME
+                        + "')");
+        mAppInfoId =
+                Long.parseLong(
+                        queryString(mDb, "SELECT MAX(row_id) FROM application_info_table", null));
+    }
+
+    @After
+    public void tearDown() {
+        mHealthConnectDatabase.close();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+        SQLiteDatabase.deleteDatabase(mSnapshotFile);
+    }
+
+    @Test
+    public void testSnapshot_concurrentInserts_snapshotIsConsistent() throws Exception {
+        insertRecords(RECORDS_PER_FILL_TRANSACTION, RECORDS_PER_FILL_TRANSACTION);
+
+        for (int i = 0; i < 3; i++) {
+            snapshotWhileInserting();
+
+            try (SQLiteDatabase snapshot =
+                    SQLiteDatabase.openDatabase(
+                            mSnapshotFile.getPath(), null, SQLiteDatabase.OPEN_READONLY)) {
+                assertThat(queryString(snapshot, "PRAGMA integrity_check", null)).isEqualTo("ok");
+                long stepsCount = getCount(snapshot);
+                // Records are inserted in transactions of RECORDS_PER_TRANSACTION records.
+                assertThat(stepsCount % RECORDS_PER_TRANSACTION).isEqualTo(0);
+                // The stats are updated by triggers in the transaction inserting the records.
+                assertThat(
+                                queryString(
+                                        snapshot,
+                                        "SELECT record_count FROM record_stats_table"
+                                                + " WHERE record_type_id = ?",
+                                        String.valueOf(RECORD_TYPE_STEPS)))
+                        .isEqualTo(String.valueOf(stepsCount));
+            }
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkSnapshot100MbDatabase() throws Exception {
+        benchmarkSnapshot(SIZE_100_MB);
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkSnapshot1GbDatabase() throws Exception {
+        benchmarkSnapshot(SIZE_1_GB);
+    }
+
+    private void benchmarkSnapshot(long databaseSize) throws Exception {
+        while (getDatabaseSize() < databaseSize) {
+            insertRecords(RECORDS_PER_FILL_TRANSACTION * 10, RECORDS_PER_FILL_TRANSACTION);
+        }
+
+        long[] result = snapshotWhileInserting();
+
+        Log.i(
+                TAG,
+                getDatabaseSize() / (1024 * 1024)
+                        + "MB database: snapshot: "
+                        + result[0]
+                        + "ms, longest concurrent insert transaction: "
+                        + result[1]
+                        + "ms");
+    }
+
+    /**
+     * Snapshots the database while inserting records from another thread, returns the time taken
+     * by the snapshot and the longest insert transaction, in milliseconds.
+     */
+    private long[] snapshotWhileInserting() throws Exception {
+        AtomicBoolean snapshotDone = new AtomicBoolean();
+        AtomicLong longestInsertMillis = new AtomicLong();
+        Thread writer =
+                new Thread(
+                        () -> {
+                            while (!snapshotDone.get()) {
+                                long start = SystemClock.elapsedRealtime();
+                                insertRecords(RECORDS_PER_TRANSACTION, RECORDS_PER_TRANSACTION);
+                                longestInsertMillis.accumulateAndGet(
+                                        SystemClock.elapsedRealtime() - start, Math::max);
+                            }
+                        });
+        writer.start();
+
+        long start = SystemClock.elapsedRealtime();
+        try {
+            TransactionManager.createDatabaseSnapshot(mDatabaseFile, mSnapshotFile);
+        } finally {
+            snapshotDone.set(true);
+            writer.join();
+        }
+        return new long[] {SystemClock.elapsedRealtime() - start, longestInsertMillis.get()};
+    }
+
+    private void insertRecords(int numRecords, int recordsPerTransaction) {
+        for (int inserted = 0; inserted < numRecords; inserted += recordsPerTransaction) {
+            mDb.beginTransaction();
+            try (SQLiteStatement insertSteps =
+                    mDb.compileStatement(
+                            "INSERT INTO "
+                                    + STEPS_TABLE_NAME
+                                    + " (uuid, app_info_id, start_time, start_zone_offset,"
+                                    + " end_time, end_zone_offset, local_date, count)"
+                                    + " VALUES (?, ?, ?, 0, ?, 0, ?, 10)")) {
+                for (int i = 0; i < recordsPerTransaction; i++) {
+                    long startTime = getNextStartTime();
+                    insertSteps.bindBlob(1, StorageUtils.convertUUIDToBytes(UUID.randomUUID()));
+                    insertSteps.bindLong(2, mAppInfoId);
+                    insertSteps.bindLong(3, startTime);
+                    insertSteps.bindLong(4, startTime + 500);
+                    insertSteps.bindLong(5, startTime / 86_400_000);
+                    insertSteps.executeInsert();
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+    }
+
+    private synchronized long getNextStartTime() {
+        mNextStartTime += 1000;
+        return mNextStartTime;
+    }
+
+    private long getDatabaseSize() {
+        queryString(mDb, "PRAGMA wal_checkpoint(TRUNCATE)", null);
+        return mDatabaseFile.length();
+    }
+
+    private static long getCount(SQLiteDatabase db) {
+        return Long.parseLong(queryString(db, "SELECT COUNT(*) FROM " + STEPS_TABLE_NAME, null));
+    }
+
+    private static String queryString(SQLiteDatabase db, String sql, String arg) {
+        try (Cursor cursor = db.rawQuery(sql, arg == null ? null : new String[] {arg})) {
+            cursor.moveToFirst();
+            return cursor.getString(0);
+        }
+    }
+}
@@ -16,6 +16,10 @@
 
 package com.android.server.healthconnect.storage;
 
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper.STEPS_TABLE_NAME;
+
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.when;
 
@@ -25,6 +29,10 @@ import android.database.sqlite.SQLiteDatabase;
 
 import androidx.test.platform.app.InstrumentationRegistry;
 
+import com.android.server.healthconnect.storage.datatypehelpers.ActivityDateHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.RecordStatsHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.WeightRecordHelper;
+
 import com.google.common.truth.Truth;
 
 import org.junit.Before;
@@ -32,10 +40,13 @@ import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.Random;
+
 public class HealthConnectDatabaseTest {
     // This number can only increase, as we are not allowed to make changes that remove tables or
     // columns
-    private static final int NUM_OF_TABLES = 57;
+    private static final int NUM_OF_TABLES = 63;
+    private static final long HOUR = 60 * 60 * 1000L;
 
     @Mock Context mContext;
     private HealthConnectDatabase mHealthConnectDatabase;
@@ -66,4 +77,363 @@ public class HealthConnectDatabaseTest {
         cursor.moveToNext();
         Truth.assertThat(cursor.getInt(0)).isEqualTo(NUM_OF_TABLES);
     }
+
+    @Test
+    public void testQueryPlan_read_usesTimeIndex() {
+        Truth.assertThat(
+                        getQueryPlan(
+                                "SELECT * FROM "
+                                        + STEPS_TABLE_NAME
+                                        + " WHERE app_info_id IN (1, 2) AND start_time BETWEEN 0"
+                                        + " AND 1000 ORDER BY start_time LIMIT 1001"))
+                .contains("USING INDEX idx_" + STEPS_TABLE_NAME + "_app_info_id_start_time");
+    }
+
+    @Test
+    public void testQueryPlan_aggregate_usesTimeIndex() {
+        Truth.assertThat(
+                        getQueryPlan(
+                                "SELECT SUM(count) FROM "
+                                        + STEPS_TABLE_NAME
+                                        + " WHERE start_time >= 0 AND start_time < 1000"))
+                .contains("USING INDEX idx_" + STEPS_TABLE_NAME + "_start_time_end_time");
+    }
+
+    @Test
+    public void testQueryPlan_localTimeAggregate_usesLocalTimeIndex() {
+        Truth.assertThat(
+                        getQueryPlan(
+                                "SELECT SUM(count) FROM "
+                                        + STEPS_TABLE_NAME
+                                        + " WHERE local_date_time_start_time >= 0 AND"
+                                        + " local_date_time_start_time < 1000"))
+                .contains("USING INDEX idx_" + STEPS_TABLE_NAME + "_local_date_time_start_time");
+    }
+
+    @Test
+    public void testQueryPlan_autoDelete_usesTimeIndex() {
+        Truth.assertThat(
+                        getQueryPlan(
+                                "DELETE FROM "
+                                        + STEPS_TABLE_NAME
+                                        + " WHERE start_time BETWEEN 0 AND 1000"))
+                .contains("USING COVERING INDEX idx_" + STEPS_TABLE_NAME + "_start_time_end_time");
+    }
+
+    @Test
+    public void testQueryPlan_instantRecordsAutoDelete_usesTimeIndex() {
+        Truth.assertThat(
+                        getQueryPlan(
+                                new WeightRecordHelper()
+                                        .getDeleteRequestForAutoDelete(
+                                                /* endTime= */ 1000, /* limit= */ 2000)
+                                        .getDeleteCommand()))
+                .contains("INDEX idx_weight_record_table_time");
+    }
+
+    @Test
+    public void testRollups_insert_splitsRecordOverHourBuckets() {
+        long appInfoId = setUpRollupTest();
+        insertSteps(appInfoId, HOUR / 2, HOUR + HOUR / 2, 100);
+
+        Truth.assertThat(getHourlyRollupTotal(0)).isWithin(1e-6).of(50);
+        Truth.assertThat(getHourlyRollupTotal(HOUR)).isWithin(1e-6).of(50);
+        Truth.assertThat(getHourlyRollupRequiresRaw(0)).isEqualTo(0);
+    }
+
+    @Test
+    public void testRollups_delete_subtractsRecordShares() {
+        long appInfoId = setUpRollupTest();
+        insertSteps(appInfoId, 0, HOUR / 2, 10);
+        insertSteps(appInfoId, HOUR / 2, HOUR, 20);
+
+        mSQLiteDatabase.execSQL(
+                "DELETE FROM " + STEPS_TABLE_NAME + " WHERE start_time = " + HOUR / 2);
+
+        Truth.assertThat(getHourlyRollupTotal(0)).isWithin(1e-6).of(10);
+    }
+
+    @Test
+    public void testRollups_repeatedInsertAndDelete_keepExactTotals() {
+        long appInfoId = setUpRollupTest();
+        insertSteps(appInfoId, 0, HOUR / 2, 10);
+
+        for (int i = 0; i < 100; i++) {
+            insertSteps(appInfoId, HOUR / 3, HOUR + HOUR / 3, 7);
+            mSQLiteDatabase.execSQL(
+                    "DELETE FROM " + STEPS_TABLE_NAME + " WHERE start_time = " + HOUR / 3);
+        }
+
+        Truth.assertThat(getHourlyRollupTotal(0)).isEqualTo(10);
+    }
+
+    @Test
+    public void testRollups_overlappingRecords_requireRaw() {
+        long appInfoId = setUpRollupTest();
+        insertSteps(appInfoId, 0, HOUR / 2, 10);
+        insertSteps(appInfoId, HOUR / 4, HOUR / 2, 20);
+
+        Truth.assertThat(getHourlyRollupRequiresRaw(0)).isEqualTo(1);
+    }
+
+    @Test
+    public void testActivityDates_insertAndDelete_countRecordsPerDate() {
+        long appInfoId = setUpRollupTest();
+        insertStepsOnDate(appInfoId, 10, 0);
+        insertStepsOnDate(appInfoId, 10, HOUR);
+        insertStepsOnDate(appInfoId, 11, 0);
+
+        Truth.assertThat(getActivityDateRecordCount(10)).isEqualTo(2);
+        Truth.assertThat(getActivityDateRecordCount(11)).isEqualTo(1);
+
+        mSQLiteDatabase.execSQL("DELETE FROM " + STEPS_TABLE_NAME + " WHERE local_date = 11");
+        mSQLiteDatabase.execSQL(
+                "DELETE FROM " + STEPS_TABLE_NAME + " WHERE local_date = 10 AND start_time = 0");
+
+        Truth.assertThat(getActivityDateRecordCount(10)).isEqualTo(1);
+        Truth.assertThat(getActivityDateRecordCount(11)).isEqualTo(0);
+    }
+
+    @Test
+    public void testActivityDates_update_movesRecordToNewDate() {
+        long appInfoId = setUpRollupTest();
+        insertStepsOnDate(appInfoId, 10, 0);
+
+        mSQLiteDatabase.execSQL("UPDATE " + STEPS_TABLE_NAME + " SET local_date = 12");
+
+        Truth.assertThat(getActivityDateRecordCount(10)).isEqualTo(0);
+        Truth.assertThat(getActivityDateRecordCount(12)).isEqualTo(1);
+    }
+
+    @Test
+    public void testActivityDates_verify_fixesMismatchingCounts() {
+        long appInfoId = setUpRollupTest();
+        insertStepsOnDate(appInfoId, 10, 0);
+        insertStepsOnDate(appInfoId, 11, 0);
+        mSQLiteDatabase.execSQL(
+                "UPDATE activity_date_table SET record_count = 5 WHERE epoch_days = 10");
+        mSQLiteDatabase.execSQL("DELETE FROM activity_date_table WHERE epoch_days = 11");
+        mSQLiteDatabase.execSQL(
+                "INSERT INTO activity_date_table (epoch_days, record_type_id, record_count)"
+                        + " VALUES (13, "
+                        + RECORD_TYPE_STEPS
+                        + ", 1)");
+
+        ActivityDateHelper.getInstance().verifyRecordCounts(mSQLiteDatabase);
+
+        Truth.assertThat(getActivityDateRecordCount(10)).isEqualTo(1);
+        Truth.assertThat(getActivityDateRecordCount(11)).isEqualTo(1);
+        Truth.assertThat(getActivityDateRecordCount(13)).isEqualTo(0);
+    }
+
+    @Test
+    public void testRecordStats_randomWorkload_matchFullCount() {
+        long appInfoId = setUpRollupTest();
+        Random random = new Random(/* seed= */ 42);
+        for (int i = 0; i < 2000; i++) {
+            int operation = random.nextInt(10);
+            if (operation < 6) {
+                long startTime = random.nextInt(1000) * HOUR;
+                insertSteps(appInfoId, startTime, startTime + 1, 10);
+            } else if (operation < 8) {
+                mSQLiteDatabase.execSQL(
+                        "DELETE FROM "
+                                + STEPS_TABLE_NAME
+                                + " WHERE row_id IN (SELECT row_id FROM "
+                                + STEPS_TABLE_NAME
+                                + " ORDER BY start_time LIMIT "
+                                + random.nextInt(5)
+                                + ")");
+            } else if (operation < 9) {
+                mSQLiteDatabase.execSQL(
+                        "DELETE FROM "
+                                + STEPS_TABLE_NAME
+                                + " WHERE row_id IN (SELECT row_id FROM "
+                                + STEPS_TABLE_NAME
+                                + " ORDER BY start_time DESC LIMIT 1)");
+            } else {
+                long startTime = random.nextInt(1000) * HOUR;
+                mSQLiteDatabase.execSQL(
+                        "UPDATE "
+                                + STEPS_TABLE_NAME
+                                + " SET start_time = "
+                                + startTime
+                                + ", end_time = "
+                                + (startTime + 1)
+                                + " WHERE row_id IN (SELECT row_id FROM "
+                                + STEPS_TABLE_NAME
+                                + " ORDER BY random() LIMIT 1)");
+            }
+
+            if (i % 100 == 0) {
+                assertRecordStatsMatchStepsTable();
+            }
+        }
+        assertRecordStatsMatchStepsTable();
+    }
+
+    @Test
+    public void testRecordStats_deleteAll_resetsStats() {
+        long appInfoId = setUpRollupTest();
+        insertSteps(appInfoId, 0, 1, 10);
+        insertSteps(appInfoId, HOUR, HOUR + 1, 10);
+
+        mSQLiteDatabase.execSQL("DELETE FROM " + STEPS_TABLE_NAME);
+
+        try (Cursor cursor = readStepsRecordStats()) {
+            Truth.assertThat(cursor.moveToFirst()).isTrue();
+            Truth.assertThat(cursor.getLong(0)).isEqualTo(0);
+            Truth.assertThat(cursor.isNull(1)).isTrue();
+            Truth.assertThat(cursor.isNull(2)).isTrue();
+            Truth.assertThat(cursor.getInt(3)).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testRecordStats_verify_fixesMismatchingStats() {
+        long appInfoId = setUpRollupTest();
+        insertSteps(appInfoId, 0, 1, 10);
+        insertSteps(appInfoId, HOUR, HOUR + 1, 10);
+        mSQLiteDatabase.execSQL(
+                "UPDATE record_stats_table SET record_count = 5, oldest_start_time = 7,"
+                        + " bounds_stale = 1 WHERE record_type_id = "
+                        + RECORD_TYPE_STEPS);
+
+        RecordStatsHelper.getInstance().verifyRecordStats(mSQLiteDatabase);
+
+        try (Cursor cursor = readStepsRecordStats()) {
+            Truth.assertThat(cursor.moveToFirst()).isTrue();
+            Truth.assertThat(cursor.getLong(0)).isEqualTo(2);
+            Truth.assertThat(cursor.getLong(1)).isEqualTo(0);
+            Truth.assertThat(cursor.getLong(2)).isEqualTo(HOUR);
+            Truth.assertThat(cursor.getInt(3)).isEqualTo(0);
+        }
+    }
+
+    private long setUpRollupTest() {
+        mSQLiteDatabase.execSQL("DELETE FROM " + STEPS_TABLE_NAME);
+        mSQLiteDatabase.execSQL(
+                "INSERT OR IGNORE INTO application_info_table (package_name) VALUES"
+                        + " ('rollup.test')");
+        try (Cursor cursor =
+                mSQLiteDatabase.rawQuery(
+                        "SELECT row_id FROM application_info_table WHERE package_name ="
+                                + " 'rollup.test'",
+                        null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+
+    private void insertSteps(long appInfoId, long startTime, long endTime, long count) {
+        mSQLiteDatabase.execSQL(
+                "INSERT INTO "
+                        + STEPS_TABLE_NAME
+                        + " (uuid, app_info_id, start_time, start_zone_offset, end_time,"
+                        + " end_zone_offset, count) VALUES (randomblob(16), "
+                        + appInfoId
+                        + ", "
+                        + startTime
+                        + ", 0, "
+                        + endTime
+                        + ", 0, "
+                        + count
+                        + ")");
+    }
+
+    private void insertStepsOnDate(long appInfoId, long localDate, long startTime) {
+        mSQLiteDatabase.execSQL(
+                "INSERT INTO "
+                        + STEPS_TABLE_NAME
+                        + " (uuid, app_info_id, start_time, start_zone_offset, end_time,"
+                        + " end_zone_offset, local_date, count) VALUES (randomblob(16), "
+                        + appInfoId
+                        + ", "
+                        + startTime
+                        + ", 0, "
+                        + (startTime + 1)
+                        + ", 0, "
+                        + localDate
+                        + ", 10)");
+    }
+
+    /**
+     * Asserts that the steps record stats have the count of the steps table, and start time bounds
+     * which are exact, or enclose the start times of the records if they are stale.
+     */
+    private void assertRecordStatsMatchStepsTable() {
+        try (Cursor expected =
+                        mSQLiteDatabase.rawQuery(
+                                "SELECT COUNT(*), MIN(start_time), MAX(start_time) FROM "
+                                        + STEPS_TABLE_NAME,
+                                null);
+                Cursor actual = readStepsRecordStats()) {
+            expected.moveToFirst();
+            Truth.assertThat(actual.moveToFirst()).isTrue();
+            Truth.assertThat(actual.getLong(0)).isEqualTo(expected.getLong(0));
+            if (expected.getLong(0) == 0) {
+                Truth.assertThat(actual.isNull(1)).isTrue();
+            } else if (actual.getInt(3) == 0) {
+                Truth.assertThat(actual.getLong(1)).isEqualTo(expected.getLong(1));
+                Truth.assertThat(actual.getLong(2)).isEqualTo(expected.getLong(2));
+            } else {
+                Truth.assertThat(actual.getLong(1)).isAtMost(expected.getLong(1));
+                Truth.assertThat(actual.getLong(2)).isAtLeast(expected.getLong(2));
+            }
+        }
+    }
+
+    private Cursor readStepsRecordStats() {
+        return mSQLiteDatabase.rawQuery(
+                "SELECT record_count, oldest_start_time, newest_start_time, bounds_stale FROM"
+                        + " record_stats_table WHERE record_type_id = "
+                        + RECORD_TYPE_STEPS,
+                null);
+    }
+
+    /** Returns the record count of the steps activity date, or 0 if there is none. */
+    private long getActivityDateRecordCount(long epochDay) {
+        try (Cursor cursor =
+                mSQLiteDatabase.rawQuery(
+                        "SELECT record_count FROM activity_date_table WHERE record_type_id = "
+                                + RECORD_TYPE_STEPS
+                                + " AND epoch_days = "
+                                + epochDay,
+                        null)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+    }
+
+    private double getHourlyRollupTotal(long bucketStart) {
+        return getHourlyRollupValue("total", bucketStart).doubleValue();
+    }
+
+    private int getHourlyRollupRequiresRaw(long bucketStart) {
+        return getHourlyRollupValue("requires_raw", bucketStart).intValue();
+    }
+
+    private Number getHourlyRollupValue(String columnName, long bucketStart) {
+        try (Cursor cursor =
+                mSQLiteDatabase.rawQuery(
+                        "SELECT "
+                                + columnName
+                                + " FROM aggregation_rollup_table WHERE bucket_size = "
+                                + HOUR
+                                + " AND use_local_time = 0 AND bucket_start = "
+                                + bucketStart,
+                        null)) {
+            Truth.assertThat(cursor.moveToFirst()).isTrue();
+            return cursor.getDouble(0);
+        }
+    }
+
+    private String getQueryPlan(String query) {
+        StringBuilder plan = new StringBuilder();
+        try (Cursor cursor = mSQLiteDatabase.rawQuery("EXPLAIN QUERY PLAN " + query, null)) {
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(cursor.getColumnIndex("detail"))).append('\n');
+            }
+        }
+        return plan.toString();
+    }
 }
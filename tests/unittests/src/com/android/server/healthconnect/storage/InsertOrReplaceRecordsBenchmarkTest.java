@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper.STEPS_TABLE_NAME;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.health.connect.internal.datatypes.StepsRecordInternal;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.server.healthconnect.HealthConnectUserContext;
+import com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper;
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Measures the time taken to upsert records of which half are duplicates, one record at a time
+ * resolving conflicts from failed inserts and in batches resolving conflicts with a lookup. Results
+ * are logged. That both leave the same rows is checked by {@link TransactionManagerTest}.
+ *
+ * <p>The benchmark is a {@link LargeTest}, which the unit test configuration doesn't run by
+ * default.
+ */
+public class InsertOrReplaceRecordsBenchmarkTest {
+    private static final String TAG = "InsertOrReplaceRecordsBenchmark";
+    private static final String PACKAGE_NAME = "android.healthconnect.benchmark";
+    private static final int NUM_RECORDS = 10000;
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+
+    @Mock Context mContext;
+    private HealthConnectDatabase mHealthConnectDatabase;
+    private SQLiteDatabase mDb;
+    private TransactionManager mTransactionManager;
+    private long mAppInfoId;
+    private List<UUID> mUuids;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        when(mContext.getDatabasePath(anyString()))
+                .thenReturn(context.getDatabasePath("insert_or_replace_benchmark"));
+        mHealthConnectDatabase = new HealthConnectDatabase(mContext);
+        mDb = mHealthConnectDatabase.getWritableDatabase();
+        mTransactionManager =
+                TransactionManager.getInstance(
+                        new HealthConnectUserContext(context, UserHandle.SYSTEM));
+
+        mDb.execSQL(
+                "INSERT OR IGNORE INTO application_info_table (package_name) VALUES ('"
+                        + PACKAGE_NAME
+                        + "')");
+        try (Cursor cursor =
+                mDb.rawQuery(
+                        "SELECT row_id FROM application_info_table WHERE package_name = '"
+                                + PACKAGE_NAME
+                                + "'",
+                        null)) {
+            cursor.moveToFirst();
+            mAppInfoId = cursor.getLong(0);
+        }
+        mUuids = new ArrayList<>(NUM_RECORDS);
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            mUuids.add(UUID.randomUUID());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mHealthConnectDatabase.close();
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkUpsert10kRecords_halfDuplicates() {
+        long oneByOneMillis = Long.MAX_VALUE;
+        long batchedMillis = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; i++) {
+            insertExistingRecords();
+            List<UpsertTableRequest> requests = getUpsertRequests();
+            long start = SystemClock.elapsedRealtimeNanos();
+            runInTransaction(() -> requests.forEach(this::upsertRecord));
+            long oneByOneNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            insertExistingRecords();
+            List<UpsertTableRequest> batchedRequests = getUpsertRequests();
+            start = SystemClock.elapsedRealtimeNanos();
+            runInTransaction(
+                    () -> mTransactionManager.insertOrReplaceRecords(mDb, batchedRequests));
+            long batchedNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            if (i >= WARMUP_ITERATIONS) {
+                oneByOneMillis = Math.min(oneByOneMillis, oneByOneNanos / 1_000_000);
+                batchedMillis = Math.min(batchedMillis, batchedNanos / 1_000_000);
+            }
+        }
+
+        Log.i(
+                TAG,
+                NUM_RECORDS
+                        + " records: one by one: "
+                        + oneByOneMillis
+                        + "ms, batched: "
+                        + batchedMillis
+                        + "ms");
+    }
+
+    /** Inserts the records that half of the upserted records duplicate. */
+    private void insertExistingRecords() {
+        mDb.execSQL("DELETE FROM " + STEPS_TABLE_NAME);
+        List<UpsertTableRequest> requests = new ArrayList<>();
+        for (int i = 0; i < NUM_RECORDS; i += 2) {
+            requests.add(getUpsertRequest(mUuids.get(i), i, /* count= */ 10));
+        }
+        runInTransaction(() -> mTransactionManager.insertOrReplaceRecords(mDb, requests));
+    }
+
+    /**
+     * Returns requests for new records, records with the uuid of an existing record and records
+     * with the times of an existing record but a new uuid, which are deduplicated.
+     */
+    private List<UpsertTableRequest> getUpsertRequests() {
+        List<UpsertTableRequest> requests = new ArrayList<>();
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            if (i % 4 == 0) {
+                requests.add(getUpsertRequest(mUuids.get(i), i, /* count= */ 20));
+            } else if (i % 4 == 2) {
+                requests.add(getUpsertRequest(UUID.randomUUID(), i, /* count= */ 30));
+            } else {
+                requests.add(getUpsertRequest(mUuids.get(i), i, /* count= */ 10));
+            }
+        }
+        return requests;
+    }
+
+    private UpsertTableRequest getUpsertRequest(UUID uuid, int index, int count) {
+        StepsRecordInternal record =
+                (StepsRecordInternal)
+                        new StepsRecordInternal()
+                                .setCount(count)
+                                .setStartTime(index * 1000L)
+                                .setStartZoneOffset(0)
+                                .setEndTime(index * 1000L + 500)
+                                .setEndZoneOffset(0)
+                                .setUuid(uuid)
+                                .setAppInfoId(mAppInfoId)
+                                .setPackageName(PACKAGE_NAME);
+        UpsertTableRequest request = new StepsRecordHelper().getUpsertTableRequest(record);
+        request.setRecordInternal(record);
+        return request;
+    }
+
+    /** Upserts {@code request} as records used to be, resolving conflicts from failed inserts. */
+    private void upsertRecord(UpsertTableRequest request) {
+        try {
+            mDb.insertWithOnConflict(
+                    request.getTable(),
+                    null,
+                    request.getContentValues(),
+                    SQLiteDatabase.CONFLICT_FAIL);
+        } catch (SQLiteConstraintException e) {
+            try (Cursor cursor =
+                    mDb.rawQuery(request.getReadRequest().getReadCommand(), null)) {
+                cursor.moveToFirst();
+                if (request.requiresUpdate(cursor, request)) {
+                    mDb.update(
+                            request.getTable(),
+                            request.getContentValues(),
+                            request.getUpdateWhereClauses().get(/* withWhereKeyword */ false),
+                            null);
+                }
+            }
+        }
+    }
+
+    private void runInTransaction(Runnable runnable) {
+        mDb.beginTransaction();
+        try {
+            runnable.run();
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+}
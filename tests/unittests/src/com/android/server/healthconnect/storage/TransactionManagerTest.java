@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper.STEPS_TABLE_NAME;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.health.connect.internal.datatypes.StepsRecordInternal;
+import android.os.UserHandle;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.server.healthconnect.HealthConnectUserContext;
+import com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper;
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class TransactionManagerTest {
+    private static final String DATABASE_NAME = "transaction_manager_test";
+    private static final String PACKAGE_NAME = "app";
+
+    @Mock Context mContext;
+    private Context mTestContext;
+    private HealthConnectDatabase mHealthConnectDatabase;
+    private SQLiteDatabase mDb;
+    private TransactionManager mTransactionManager;
+    private ExecutorService mWriter;
+    private long mAppInfoId;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mTestContext = InstrumentationRegistry.getInstrumentation().getContext();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+        when(mContext.getDatabasePath(anyString()))
+                .thenReturn(mTestContext.getDatabasePath(DATABASE_NAME));
+        mHealthConnectDatabase = new HealthConnectDatabase(mContext);
+        mDb = mHealthConnectDatabase.getWritableDatabase();
+        mTransactionManager =
+                TransactionManager.getInstance(
+                        new HealthConnectUserContext(mTestContext, UserHandle.SYSTEM));
+        mDb.execSQL(
+                "INSERT INTO application_info_table (package_name) VALUES ('"
+                        + PACKAGE_NAME
+                        + "')");
+        try (Cursor cursor = mDb.rawQuery("SELECT MAX(row_id) FROM application_info_table", null)) {
+            cursor.moveToFirst();
+            mAppInfoId = cursor.getLong(0);
+        }
+        mWriter = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mWriter.shutdownNow();
+        mHealthConnectDatabase.close();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void testBeginReadTransaction_writeCommitsWhileReading() throws Exception {
+        insertSteps(/* startTime= */ 0);
+
+        boolean inSnapshot = TransactionManager.beginReadTransaction(mDb);
+        try {
+            assertThat(countSteps()).isEqualTo(1);
+
+            // Would time out if the read held the write lock.
+            mWriter.submit(() -> insertSteps(/* startTime= */ 1000)).get(5, TimeUnit.SECONDS);
+
+            // A snapshot keeps reading the writes committed before it began.
+            assertThat(countSteps()).isEqualTo(inSnapshot ? 1 : 2);
+            if (inSnapshot) {
+                mDb.setTransactionSuccessful();
+            }
+        } finally {
+            if (inSnapshot) {
+                mDb.endTransaction();
+            }
+        }
+        assertThat(countSteps()).isEqualTo(2);
+    }
+
+    @Test
+    public void testInsertOrReplaceRecords_sameRowsAsOneByOne() {
+        assertSameRowsAsOneByOne(getUpsertRequests(/* numRecords= */ 16));
+    }
+
+    @Test
+    public void testInsertOrReplaceRecords_moreThanOneBatch_sameRowsAsOneByOne() {
+        assertSameRowsAsOneByOne(getUpsertRequests(/* numRecords= */ 1000));
+    }
+
+    @Test
+    public void testInsertOrReplaceRecords_uuidTwiceInBatch_sameRowsAsOneByOne() {
+        UUID uuid = UUID.randomUUID();
+        assertSameRowsAsOneByOne(
+                List.of(
+                        getUpsertRequest(uuid, /* index= */ 0, /* count= */ 10),
+                        getUpsertRequest(UUID.randomUUID(), /* index= */ 1, /* count= */ 20),
+                        getUpsertRequest(uuid, /* index= */ 0, /* count= */ 30)));
+    }
+
+    @Test
+    public void testInsertOrReplaceRecords_emptyBatch_writesNothing() {
+        runInTransaction(() -> mTransactionManager.insertOrReplaceRecords(mDb, List.of()));
+
+        assertThat(countSteps()).isEqualTo(0);
+    }
+
+    /**
+     * Upserts {@code requests} one by one, as records used to be, and in batches over the same
+     * existing records, and checks that both leave the same rows.
+     */
+    private void assertSameRowsAsOneByOne(List<UpsertTableRequest> requests) {
+        insertExistingRecords(requests.size());
+        runInTransaction(() -> requests.forEach(this::upsertRecord));
+        List<String> oneByOneRows = readRows();
+
+        insertExistingRecords(requests.size());
+        runInTransaction(() -> mTransactionManager.insertOrReplaceRecords(mDb, requests));
+
+        assertThat(readRows()).containsExactlyElementsIn(oneByOneRows).inOrder();
+    }
+
+    /** Inserts the records that half of the records of {@link #getUpsertRequests} duplicate. */
+    private void insertExistingRecords(int numRecords) {
+        mDb.execSQL("DELETE FROM " + STEPS_TABLE_NAME);
+        List<UpsertTableRequest> requests = new ArrayList<>();
+        for (int i = 0; i < numRecords; i += 2) {
+            requests.add(getUpsertRequest(getExistingUuid(i), i, /* count= */ 10));
+        }
+        runInTransaction(() -> mTransactionManager.insertOrReplaceRecords(mDb, requests));
+    }
+
+    /**
+     * Returns requests for new records, records with the uuid of an existing record and records
+     * with the times of an existing record but a new uuid, which are deduplicated.
+     */
+    private List<UpsertTableRequest> getUpsertRequests(int numRecords) {
+        List<UpsertTableRequest> requests = new ArrayList<>();
+        for (int i = 0; i < numRecords; i++) {
+            if (i % 4 == 0) {
+                requests.add(getUpsertRequest(getExistingUuid(i), i, /* count= */ 20));
+            } else if (i % 4 == 2) {
+                requests.add(getUpsertRequest(UUID.randomUUID(), i, /* count= */ 30));
+            } else {
+                requests.add(getUpsertRequest(getExistingUuid(i), i, /* count= */ 10));
+            }
+        }
+        return requests;
+    }
+
+    private static UUID getExistingUuid(int index) {
+        return new UUID(/* mostSigBits= */ 1, index);
+    }
+
+    private UpsertTableRequest getUpsertRequest(UUID uuid, int index, int count) {
+        StepsRecordInternal record =
+                (StepsRecordInternal)
+                        new StepsRecordInternal()
+                                .setCount(count)
+                                .setStartTime(index * 1000L)
+                                .setStartZoneOffset(0)
+                                .setEndTime(index * 1000L + 500)
+                                .setEndZoneOffset(0)
+                                .setUuid(uuid)
+                                .setAppInfoId(mAppInfoId)
+                                .setPackageName(PACKAGE_NAME);
+        UpsertTableRequest request = new StepsRecordHelper().getUpsertTableRequest(record);
+        request.setRecordInternal(record);
+        return request;
+    }
+
+    /** Upserts {@code request} as records used to be, resolving conflicts from failed inserts. */
+    private void upsertRecord(UpsertTableRequest request) {
+        try {
+            mDb.insertWithOnConflict(
+                    request.getTable(),
+                    null,
+                    request.getContentValues(),
+                    SQLiteDatabase.CONFLICT_FAIL);
+        } catch (SQLiteConstraintException e) {
+            try (Cursor cursor =
+                    mDb.rawQuery(request.getReadRequest().getReadCommand(), null)) {
+                cursor.moveToFirst();
+                if (request.requiresUpdate(cursor, request)) {
+                    mDb.update(
+                            request.getTable(),
+                            request.getContentValues(),
+                            request.getUpdateWhereClauses().get(/* withWhereKeyword */ false),
+                            null);
+                }
+            }
+        }
+    }
+
+    private List<String> readRows() {
+        List<String> rows = new ArrayList<>();
+        try (Cursor cursor =
+                mDb.rawQuery(
+                        "SELECT hex(uuid), start_time, count FROM "
+                                + STEPS_TABLE_NAME
+                                + " ORDER BY start_time",
+                        null)) {
+            while (cursor.moveToNext()) {
+                rows.add(cursor.getString(0) + ":" + cursor.getLong(1) + ":" + cursor.getLong(2));
+            }
+        }
+        return rows;
+    }
+
+    private void runInTransaction(Runnable runnable) {
+        mDb.beginTransaction();
+        try {
+            runnable.run();
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private void insertSteps(long startTime) {
+        mDb.execSQL(
+                "INSERT INTO "
+                        + STEPS_TABLE_NAME
+                        + " (uuid, app_info_id, start_time, start_zone_offset, end_time,"
+                        + " end_zone_offset, count) SELECT randomblob(16), MAX(row_id), "
+                        + startTime
+                        + ", 0, "
+                        + (startTime + 500)
+                        + ", 0, 10 FROM application_info_table");
+    }
+
+    private long countSteps() {
+        try (Cursor cursor = mDb.rawQuery("SELECT COUNT(*) FROM " + STEPS_TABLE_NAME, null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+}
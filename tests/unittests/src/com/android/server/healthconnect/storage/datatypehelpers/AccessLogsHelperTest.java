@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.accesslog.AccessLog.OperationType.OPERATION_TYPE_READ;
+import static android.health.connect.accesslog.AccessLog.OperationType.OPERATION_TYPE_UPSERT;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_HEART_RATE;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.database.Cursor;
+import android.os.UserHandle;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.dx.mockito.inline.extended.ExtendedMockito;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.MockitoSession;
+import org.mockito.quality.Strictness;
+
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class AccessLogsHelperTest {
+    private static final String APP_PACKAGE_NAME = "android.healthconnect.mocked.app";
+    private static final long APP_PACKAGE_ID = 1;
+
+    @Mock private Cursor mCursor;
+    @Mock private TransactionManager mTransactionManager;
+    @Mock private AppInfoHelper mAppInfoHelper;
+    @Captor private ArgumentCaptor<List<UpsertTableRequest>> mRequestsCaptor;
+    private AccessLogsHelper mAccessLogsHelper;
+    private MockitoSession mStaticMockSession;
+
+    @Before
+    public void setUp() {
+        mStaticMockSession =
+                ExtendedMockito.mockitoSession()
+                        .mockStatic(TransactionManager.class)
+                        .mockStatic(AppInfoHelper.class)
+                        .strictness(Strictness.LENIENT)
+                        .startMocking();
+        MockitoAnnotations.initMocks(this);
+
+        when(TransactionManager.getInitialisedInstance()).thenReturn(mTransactionManager);
+        when(mTransactionManager.read(any())).thenReturn(mCursor);
+        when(AppInfoHelper.getInstance()).thenReturn(mAppInfoHelper);
+        when(mAppInfoHelper.getAppInfoId(eq(APP_PACKAGE_NAME))).thenReturn(APP_PACKAGE_ID);
+        when(mCursor.moveToNext()).thenReturn(false);
+
+        mAccessLogsHelper = AccessLogsHelper.getInstance();
+    }
+
+    @After
+    public void tearDown() {
+        // Drops what a test left behind, while the database is still mocked.
+        mAccessLogsHelper.flushAccessLogs();
+        mStaticMockSession.finishMocking();
+    }
+
+    @Test
+    public void testFlushAccessLogs_sameAccessLogs_mergedIntoOne() {
+        mAccessLogsHelper.addAccessLog(
+                APP_PACKAGE_NAME, List.of(RECORD_TYPE_STEPS), OPERATION_TYPE_READ);
+        mAccessLogsHelper.addAccessLog(
+                APP_PACKAGE_NAME, List.of(RECORD_TYPE_STEPS), OPERATION_TYPE_READ);
+
+        mAccessLogsHelper.flushAccessLogs();
+
+        verify(mTransactionManager).insertAll(mRequestsCaptor.capture());
+        assertThat(mRequestsCaptor.getValue()).hasSize(1);
+        UpsertTableRequest request = mRequestsCaptor.getValue().get(0);
+        assertThat(request.getTable()).isEqualTo(AccessLogsHelper.TABLE_NAME);
+        assertThat(request.getContentValues().getAsLong("app_id")).isEqualTo(APP_PACKAGE_ID);
+        assertThat(request.getContentValues().getAsString("record_type"))
+                .isEqualTo(String.valueOf(RECORD_TYPE_STEPS));
+    }
+
+    @Test
+    public void testFlushAccessLogs_differentAccessLogs_writtenInOneBatch() {
+        mAccessLogsHelper.addAccessLog(
+                APP_PACKAGE_NAME, List.of(RECORD_TYPE_STEPS), OPERATION_TYPE_READ);
+        mAccessLogsHelper.addAccessLog(
+                APP_PACKAGE_NAME, List.of(RECORD_TYPE_STEPS), OPERATION_TYPE_UPSERT);
+        mAccessLogsHelper.addAccessLog(
+                APP_PACKAGE_NAME,
+                List.of(RECORD_TYPE_STEPS, RECORD_TYPE_HEART_RATE),
+                OPERATION_TYPE_READ);
+
+        mAccessLogsHelper.flushAccessLogs();
+
+        verify(mTransactionManager).insertAll(mRequestsCaptor.capture());
+        assertThat(mRequestsCaptor.getValue()).hasSize(3);
+    }
+
+    @Test
+    public void testFlushAccessLogs_nothingPending_doesNotWrite() {
+        mAccessLogsHelper.flushAccessLogs();
+
+        verify(mTransactionManager, never()).insertAll(anyList());
+    }
+
+    @Test
+    public void testFlushAccessLogs_addedForPreviousUser_dropped() {
+        when(mTransactionManager.getCurrentUserHandle()).thenReturn(UserHandle.of(0));
+        mAccessLogsHelper.addAccessLog(
+                APP_PACKAGE_NAME, List.of(RECORD_TYPE_STEPS), OPERATION_TYPE_READ);
+        when(mTransactionManager.getCurrentUserHandle()).thenReturn(UserHandle.of(10));
+        mAccessLogsHelper.addAccessLog(
+                APP_PACKAGE_NAME, List.of(RECORD_TYPE_HEART_RATE), OPERATION_TYPE_READ);
+
+        mAccessLogsHelper.flushAccessLogs();
+
+        verify(mTransactionManager).insertAll(mRequestsCaptor.capture());
+        assertThat(mRequestsCaptor.getValue()).hasSize(1);
+        assertThat(mRequestsCaptor.getValue().get(0).getContentValues().getAsString("record_type"))
+                .isEqualTo(String.valueOf(RECORD_TYPE_HEART_RATE));
+    }
+
+    @Test
+    public void testQueryAccessLogs_writesPendingAccessLogsFirst() {
+        mAccessLogsHelper.addAccessLog(
+                APP_PACKAGE_NAME, List.of(RECORD_TYPE_STEPS), OPERATION_TYPE_READ);
+
+        mAccessLogsHelper.queryAccessLogs();
+
+        InOrder inOrder = inOrder(mTransactionManager);
+        inOrder.verify(mTransactionManager).insertAll(anyList());
+        inOrder.verify(mTransactionManager).read(any());
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper.STEPS_TABLE_NAME;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.server.healthconnect.storage.HealthConnectDatabase;
+import com.android.server.healthconnect.storage.utils.StorageUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Measures the latency of writing, updating and deleting steps records one at a time, with and
+ * without the rollup triggers, and the time taken to recompute the buckets dirtied by the deletes.
+ * Results are logged.
+ *
+ * <p>The benchmark is a {@link LargeTest}, which the unit test configuration doesn't run by
+ * default.
+ */
+public class AggregationRollupBenchmarkTest {
+    private static final String TAG = "AggregationRollupBenchmark";
+    private static final String DATABASE_NAME = "aggregation_rollup_benchmark";
+    private static final int NUM_RECORDS = 10_000;
+    private static final int NUM_MEASURED_WRITES = 1_000;
+    // Overlapping records, so that the buckets hold several records each.
+    private static final long RECORD_INTERVAL_MILLIS = 60_000;
+    private static final long RECORD_DURATION_MILLIS = 5 * 60_000;
+
+    @Mock Context mContext;
+    private Context mTestContext;
+    private HealthConnectDatabase mHealthConnectDatabase;
+    private SQLiteDatabase mDb;
+    private long mAppInfoId;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mTestContext = InstrumentationRegistry.getInstrumentation().getContext();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+        when(mContext.getDatabasePath(anyString()))
+                .thenReturn(mTestContext.getDatabasePath(DATABASE_NAME));
+        mHealthConnectDatabase = new HealthConnectDatabase(mContext);
+        mDb = mHealthConnectDatabase.getWritableDatabase();
+        mDb.execSQL("INSERT INTO application_info_table (package_name) VALUES ('app')");
+        mAppInfoId = queryLong("SELECT MAX(row_id) FROM application_info_table");
+    }
+
+    @After
+    public void tearDown() {
+        mHealthConnectDatabase.close();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkWriteAndDelete10kRecords_withAndWithoutRollups() {
+        long[] withRollups = measureWriteUpdateDeleteMicros();
+        for (String trigger : getRollupTriggers()) {
+            mDb.execSQL("DROP TRIGGER " + trigger);
+        }
+        long[] withoutRollups = measureWriteUpdateDeleteMicros();
+
+        Log.i(
+                TAG,
+                NUM_RECORDS
+                        + " records, mean latency of "
+                        + NUM_MEASURED_WRITES
+                        + " single record writes: insert: "
+                        + withRollups[0]
+                        + "us with rollups, "
+                        + withoutRollups[0]
+                        + "us without, update: "
+                        + withRollups[1]
+                        + "us with rollups, "
+                        + withoutRollups[1]
+                        + "us without, delete: "
+                        + withRollups[2]
+                        + "us with rollups, "
+                        + withoutRollups[2]
+                        + "us without; recomputing the dirty buckets: "
+                        + withRollups[3]
+                        + "ms");
+    }
+
+    @Test
+    public void testRecomputeDirtyBuckets_matchesRebuild() {
+        insertRecords(/* fromIndex= */ 0, /* toIndex= */ 200);
+        mDb.execSQL("DELETE FROM " + STEPS_TABLE_NAME + " WHERE row_id % 3 = 0");
+        mDb.execSQL("UPDATE " + STEPS_TABLE_NAME + " SET count = count + 1 WHERE row_id % 5 = 0");
+
+        AggregationRollupHelper.getInstance().recomputeDirtyBuckets(mDb);
+        List<String> recomputed = readRollups();
+        AggregationRollupHelper.getInstance().rebuild(mDb);
+
+        assertThat(recomputed).containsExactlyElementsIn(readRollups()).inOrder();
+    }
+
+    /**
+     * Returns the mean latencies of inserting, updating and deleting a record in microseconds,
+     * with {@link #NUM_RECORDS} records in the table, and the time taken to recompute the dirty
+     * buckets afterwards in milliseconds.
+     */
+    private long[] measureWriteUpdateDeleteMicros() {
+        mDb.execSQL("DELETE FROM " + STEPS_TABLE_NAME);
+        AggregationRollupHelper.getInstance().recomputeDirtyBuckets(mDb);
+        insertRecords(/* fromIndex= */ 0, NUM_RECORDS - NUM_MEASURED_WRITES);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = NUM_RECORDS - NUM_MEASURED_WRITES; i < NUM_RECORDS; i++) {
+            insertRecords(i, i + 1);
+        }
+        long insertMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+
+        List<Long> rowIds = new ArrayList<>();
+        try (Cursor cursor =
+                mDb.rawQuery(
+                        "SELECT row_id FROM "
+                                + STEPS_TABLE_NAME
+                                + " ORDER BY random() LIMIT "
+                                + NUM_MEASURED_WRITES,
+                        null)) {
+            while (cursor.moveToNext()) {
+                rowIds.add(cursor.getLong(0));
+            }
+        }
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (long rowId : rowIds) {
+            mDb.execSQL("UPDATE " + STEPS_TABLE_NAME + " SET count = 20 WHERE row_id = " + rowId);
+        }
+        long updateMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (long rowId : rowIds) {
+            mDb.execSQL("DELETE FROM " + STEPS_TABLE_NAME + " WHERE row_id = " + rowId);
+        }
+        long deleteMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+
+        start = SystemClock.elapsedRealtime();
+        AggregationRollupHelper.getInstance().recomputeDirtyBuckets(mDb);
+        long recomputeMillis = SystemClock.elapsedRealtime() - start;
+
+        return new long[] {
+            insertMicros / NUM_MEASURED_WRITES,
+            updateMicros / rowIds.size(),
+            deleteMicros / rowIds.size(),
+            recomputeMillis
+        };
+    }
+
+    private void insertRecords(int fromIndex, int toIndex) {
+        mDb.beginTransaction();
+        try (SQLiteStatement insertSteps =
+                mDb.compileStatement(
+                        "INSERT INTO "
+                                + STEPS_TABLE_NAME
+                                + " (uuid, app_info_id, start_time, start_zone_offset, end_time,"
+                                + " end_zone_offset, local_date, count)"
+                                + " VALUES (?, ?, ?, 0, ?, 0, ?, 10)")) {
+            for (int i = fromIndex; i < toIndex; i++) {
+                long startTime = i * RECORD_INTERVAL_MILLIS;
+                insertSteps.bindBlob(1, StorageUtils.convertUUIDToBytes(UUID.randomUUID()));
+                insertSteps.bindLong(2, mAppInfoId);
+                insertSteps.bindLong(3, startTime);
+                insertSteps.bindLong(4, startTime + RECORD_DURATION_MILLIS);
+                insertSteps.bindLong(5, startTime / 86_400_000);
+                insertSteps.executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private List<String> readRollups() {
+        List<String> rollups = new ArrayList<>();
+        try (Cursor cursor =
+                mDb.rawQuery(
+                        "SELECT record_type, bucket_size, use_local_time, bucket_start,"
+                                + " ROUND(total, 6), first_start_time, first_zone_offset, dirty"
+                                + " FROM "
+                                + AggregationRollupHelper.TABLE_NAME
+                                + " ORDER BY record_type, bucket_size, use_local_time,"
+                                + " bucket_start",
+                        null)) {
+            while (cursor.moveToNext()) {
+                List<String> values = new ArrayList<>();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    values.add(cursor.getString(i));
+                }
+                rollups.add(String.join(",", values));
+            }
+        }
+        return rollups;
+    }
+
+    private List<String> getRollupTriggers() {
+        List<String> triggers = new ArrayList<>();
+        try (Cursor cursor =
+                mDb.rawQuery(
+                        "SELECT name FROM sqlite_master WHERE type = 'trigger' AND tbl_name = ?"
+                                + " AND name LIKE '%_rollup_%'",
+                        new String[] {STEPS_TABLE_NAME})) {
+            while (cursor.moveToNext()) {
+                triggers.add(cursor.getString(0));
+            }
+        }
+        return triggers;
+    }
+
+    private long queryLong(String sql) {
+        try (Cursor cursor = mDb.rawQuery(sql, null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.STEPS_RECORD_COUNT_TOTAL;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.APP_INFO_ID_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper.STEPS_TABLE_NAME;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.health.connect.AggregateResult;
+import android.health.connect.TimeInstantRangeFilter;
+import android.health.connect.datatypes.StepsRecord;
+import android.os.Parcel;
+import android.util.Pair;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.server.healthconnect.storage.HealthConnectDatabase;
+import com.android.server.healthconnect.storage.datatypehelpers.aggregation.PriorityRecordsAggregator;
+import com.android.server.healthconnect.storage.request.AggregateTableRequest;
+import com.android.server.healthconnect.storage.request.ReadTableRequest;
+import com.android.server.healthconnect.storage.utils.StorageUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class AggregationRollupHelperTest {
+    private static final String DATABASE_NAME = "aggregation_rollup_helper_test";
+    private static final long HOUR = AggregationRollupHelper.BUCKET_SIZE_HOUR;
+    private static final long DAY = AggregationRollupHelper.BUCKET_SIZE_DAY;
+    private static final long START = 100 * DAY;
+
+    @Mock Context mContext;
+    private Context mTestContext;
+    private HealthConnectDatabase mHealthConnectDatabase;
+    private SQLiteDatabase mDb;
+    private StepsRecordHelper mHelper;
+    private long mFirstAppInfoId;
+    private long mSecondAppInfoId;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mTestContext = InstrumentationRegistry.getInstrumentation().getContext();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+        when(mContext.getDatabasePath(anyString()))
+                .thenReturn(mTestContext.getDatabasePath(DATABASE_NAME));
+        mHealthConnectDatabase = new HealthConnectDatabase(mContext);
+        mDb = mHealthConnectDatabase.getWritableDatabase();
+        mHelper = new StepsRecordHelper();
+        mFirstAppInfoId = insertAppInfo("rollup.first");
+        mSecondAppInfoId = insertAppInfo("rollup.second");
+    }
+
+    @After
+    public void tearDown() {
+        mHealthConnectDatabase.close();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void testOnRollupsFetched_alignedGroups_answeredFromRollups() {
+        insertSteps(mFirstAppInfoId, START + HOUR / 2, START + HOUR + HOUR / 2, 100, 0);
+        AggregateTableRequest request = createRequest(START, START + 3 * HOUR);
+
+        fetchRollups(request);
+
+        assertThat(request.getGroupRangesRequiringRecords()).isEmpty();
+        List<AggregateResult<?>> results = request.getAggregateResults();
+        assertThat(getLongResult(results.get(0))).isEqualTo(50);
+        assertThat(getLongResult(results.get(1))).isEqualTo(50);
+        assertThat(results.get(2)).isNull();
+    }
+
+    @Test
+    public void testGetGroupRangesRequiringRecords_overlapsAndUnalignedBorders() {
+        insertSteps(mFirstAppInfoId, START + HOUR, START + HOUR + HOUR / 2, 10, 0);
+        insertSteps(mSecondAppInfoId, START + HOUR + HOUR / 4, START + 2 * HOUR, 20, 0);
+        insertSteps(mFirstAppInfoId, START + 2 * HOUR, START + 3 * HOUR, 30, 0);
+        AggregateTableRequest request = createRequest(START, START + 3 * HOUR + HOUR / 2);
+
+        fetchRollups(request);
+
+        List<Pair<Integer, Integer>> ranges = request.getGroupRangesRequiringRecords();
+        assertThat(ranges).hasSize(2);
+        assertThat(ranges.get(0).first).isEqualTo(1);
+        assertThat(ranges.get(0).second).isEqualTo(2);
+        assertThat(ranges.get(1).first).isEqualTo(3);
+        assertThat(ranges.get(1).second).isEqualTo(4);
+        assertThat(getLongResult(request.getAggregateResults().get(2))).isEqualTo(30);
+    }
+
+    @Test
+    public void testOnRollupsFetched_setsZoneOffsetOfFirstRecord() {
+        insertSteps(mFirstAppInfoId, START + HOUR / 2, START + HOUR / 2 + 1000, 10, 7200);
+        insertSteps(mSecondAppInfoId, START, START + 1000, 10, 3600);
+        AggregateTableRequest request = createRequest(START, START + HOUR);
+
+        fetchRollups(request);
+
+        AggregateResult<?> result = request.getAggregateResults().get(0);
+        assertThat(getLongResult(result)).isEqualTo(20);
+        assertThat(result.getZoneOffset()).isEqualTo(ZoneOffset.ofHours(1));
+    }
+
+    @Test
+    public void testOnRollupsFetched_packageFilter_skipsOtherApps() {
+        insertSteps(mFirstAppInfoId, START, START + HOUR, 10, 0);
+        insertSteps(mSecondAppInfoId, START + HOUR, START + 2 * HOUR, 20, 3600);
+        AggregateTableRequest request =
+                createRequest(START, START + 2 * HOUR)
+                        .setPackageFilter(List.of(mSecondAppInfoId), APP_INFO_ID_COLUMN_NAME);
+
+        fetchRollups(request);
+
+        assertThat(request.getGroupRangesRequiringRecords()).isEmpty();
+        List<AggregateResult<?>> results = request.getAggregateResults();
+        assertThat(results.get(0)).isNull();
+        assertThat(getLongResult(results.get(1))).isEqualTo(20);
+        assertThat(results.get(1).getZoneOffset()).isEqualTo(ZoneOffset.ofHours(1));
+    }
+
+    @Test
+    public void testOnRollupsFetched_packageFilter_overlapsWithOtherAppsRequireRecords() {
+        insertSteps(mFirstAppInfoId, START, START + HOUR / 2, 10, 0);
+        insertSteps(mSecondAppInfoId, START + HOUR / 4, START + HOUR, 20, 0);
+        AggregateTableRequest request =
+                createRequest(START, START + HOUR)
+                        .setPackageFilter(List.of(mFirstAppInfoId), APP_INFO_ID_COLUMN_NAME);
+
+        fetchRollups(request);
+
+        List<Pair<Integer, Integer>> ranges = request.getGroupRangesRequiringRecords();
+        assertThat(ranges).hasSize(1);
+        assertThat(ranges.get(0).first).isEqualTo(0);
+        assertThat(ranges.get(0).second).isEqualTo(1);
+    }
+
+    @Test
+    public void testIsEnabled_longRecordDeleted_enabledAgain() {
+        insertSteps(mFirstAppInfoId, START, START + 400 * DAY, 10, 0);
+        insertSteps(mSecondAppInfoId, START, START + HOUR, 10, 0);
+        assertThat(AggregationRollupHelper.getInstance().isEnabled(mDb, RECORD_TYPE_STEPS))
+                .isFalse();
+
+        mDb.execSQL("DELETE FROM " + STEPS_TABLE_NAME + " WHERE end_time > " + (START + HOUR));
+
+        assertThat(AggregationRollupHelper.getInstance().isEnabled(mDb, RECORD_TYPE_STEPS))
+                .isTrue();
+    }
+
+    @Test
+    public void testDelete_bucketsRequireRecordsUntilRecomputed() {
+        insertSteps(mFirstAppInfoId, START, START + HOUR / 2, 10, 0);
+        insertSteps(mFirstAppInfoId, START + HOUR / 2, START + HOUR, 20, 3600);
+
+        mDb.execSQL("DELETE FROM " + STEPS_TABLE_NAME + " WHERE count = 10");
+        AggregateTableRequest request = createRequest(START, START + HOUR);
+        fetchRollups(request);
+
+        assertThat(request.getGroupRangesRequiringRecords()).hasSize(1);
+
+        AggregationRollupHelper.getInstance().recomputeDirtyBuckets(mDb);
+        request = createRequest(START, START + HOUR);
+        fetchRollups(request);
+
+        assertThat(request.getGroupRangesRequiringRecords()).isEmpty();
+        AggregateResult<?> result = request.getAggregateResults().get(0);
+        assertThat(getLongResult(result)).isEqualTo(20);
+        assertThat(result.getZoneOffset()).isEqualTo(ZoneOffset.ofHours(1));
+    }
+
+    @Test
+    public void testUpdate_recomputedBucketsHaveNewValue() {
+        insertSteps(mFirstAppInfoId, START, START + HOUR, 10, 0);
+
+        mDb.execSQL("UPDATE " + STEPS_TABLE_NAME + " SET count = 30");
+        AggregationRollupHelper.getInstance().recomputeDirtyBuckets(mDb);
+        AggregateTableRequest request = createRequest(START, START + HOUR);
+        fetchRollups(request);
+
+        assertThat(request.getGroupRangesRequiringRecords()).isEmpty();
+        assertThat(getLongResult(request.getAggregateResults().get(0))).isEqualTo(30);
+    }
+
+    @Test
+    public void testRecomputeDirtyBuckets_deletesEmptyBuckets() {
+        insertSteps(mFirstAppInfoId, START, START + 2 * HOUR, 10, 0);
+        insertSteps(mSecondAppInfoId, START, START + HOUR, 10, 0);
+
+        mDb.execSQL("DELETE FROM " + STEPS_TABLE_NAME + " WHERE end_time > " + (START + HOUR));
+        AggregationRollupHelper.getInstance().recomputeDirtyBuckets(mDb);
+
+        try (Cursor cursor =
+                mDb.rawQuery(
+                        "SELECT COUNT(*) FROM "
+                                + AggregationRollupHelper.TABLE_NAME
+                                + " WHERE "
+                                + APP_INFO_ID_COLUMN_NAME
+                                + " = "
+                                + mFirstAppInfoId
+                                + " OR "
+                                + AggregationRollupHelper.DIRTY_COLUMN_NAME
+                                + " = 1",
+                        null)) {
+            cursor.moveToFirst();
+            assertThat(cursor.getLong(0)).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testRollupAggregation_matchesPriorityRecordsAggregator() {
+        Random random = new Random(1);
+        long time = START;
+        for (int i = 0; i < 500; i++) {
+            time += random.nextInt((int) HOUR);
+            long endTime = time + 1 + random.nextInt((int) (3 * HOUR));
+            insertSteps(
+                    random.nextBoolean() ? mFirstAppInfoId : mSecondAppInfoId,
+                    time,
+                    endTime,
+                    random.nextInt(1000),
+                    3600 * random.nextInt(3));
+            time = endTime;
+        }
+        long endTime = (time / HOUR + 1) * HOUR;
+        AggregateTableRequest request = createRequest(START, endTime);
+
+        fetchRollups(request);
+
+        assertThat(request.getGroupRangesRequiringRecords()).isEmpty();
+        List<Long> splits = new ArrayList<>();
+        for (Pair<Long, Long> interval : request.getGroupSplitIntervals()) {
+            splits.add(interval.first);
+        }
+        splits.add(endTime);
+        PriorityRecordsAggregator aggregator =
+                new PriorityRecordsAggregator(
+                        splits,
+                        List.of(),
+                        STEPS_RECORD_COUNT_TOTAL,
+                        mHelper.getAggregateParams(StepsRecord.STEPS_COUNT_TOTAL)
+                                .getPriorityAggregationExtraParams(),
+                        /* useLocalTime= */ false);
+        try (Cursor cursor = mDb.rawQuery(request.getAggregationCommand(), null)) {
+            aggregator.calculateAggregation(cursor);
+        }
+        List<AggregateResult<?>> results = request.getAggregateResults();
+        for (int group = 0; group < results.size(); group++) {
+            Double expected = aggregator.getResultForGroup(group);
+            if (expected == null) {
+                assertThat(results.get(group)).isNull();
+                continue;
+            }
+            // Results are truncated to longs from sums added up in different orders.
+            assertThat((double) getLongResult(results.get(group))).isWithin(1).of(expected);
+            assertThat(results.get(group).getZoneOffset())
+                    .isEqualTo(aggregator.getZoneOffsetForGroup(group));
+        }
+    }
+
+    private AggregateTableRequest createRequest(long startTime, long endTime) {
+        AggregateTableRequest request =
+                mHelper.getAggregateTableRequest(
+                        StepsRecord.STEPS_COUNT_TOTAL,
+                        List.of(),
+                        startTime,
+                        endTime,
+                        /* useLocalTime= */ false);
+        request.setGroupBy(
+                mHelper.getDurationGroupByColumnName(),
+                /* period= */ null,
+                Duration.ofMillis(HOUR),
+                new TimeInstantRangeFilter.Builder()
+                        .setStartTime(Instant.ofEpochMilli(startTime))
+                        .setEndTime(Instant.ofEpochMilli(endTime))
+                        .build());
+        assertThat(request.canUseRollups()).isTrue();
+        return request;
+    }
+
+    private void fetchRollups(AggregateTableRequest request) {
+        ReadTableRequest readRollupsRequest = request.getReadRollupsRequest();
+        try (Cursor cursor =
+                StorageUtils.rawQuery(
+                        mDb,
+                        readRollupsRequest.getReadCommand(),
+                        readRollupsRequest.getBindArgs())) {
+            request.onRollupsFetched(cursor);
+        }
+    }
+
+    private long insertAppInfo(String packageName) {
+        mDb.execSQL(
+                "INSERT INTO application_info_table (package_name) VALUES ('"
+                        + packageName
+                        + "')");
+        try (Cursor cursor =
+                mDb.rawQuery("SELECT MAX(row_id) FROM application_info_table", null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+
+    private void insertSteps(
+            long appInfoId, long startTime, long endTime, long count, int zoneOffsetSeconds) {
+        mDb.execSQL(
+                "INSERT INTO "
+                        + STEPS_TABLE_NAME
+                        + " (uuid, app_info_id, start_time, start_zone_offset, end_time,"
+                        + " end_zone_offset, count) VALUES (randomblob(16), "
+                        + appInfoId
+                        + ", "
+                        + startTime
+                        + ", "
+                        + zoneOffsetSeconds
+                        + ", "
+                        + endTime
+                        + ", "
+                        + zoneOffsetSeconds
+                        + ", "
+                        + count
+                        + ")");
+    }
+
+    private static long getLongResult(AggregateResult<?> result) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            result.putToParcel(parcel);
+            parcel.setDataPosition(0);
+            return parcel.readLong();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
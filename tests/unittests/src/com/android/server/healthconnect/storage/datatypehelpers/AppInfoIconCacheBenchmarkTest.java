@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_HEART_RATE;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.health.connect.datatypes.AppInfo;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.dx.mockito.inline.extended.ExtendedMockito;
+import com.android.server.healthconnect.storage.HealthConnectDatabase;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.request.ReadTableRequest;
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+import com.android.server.healthconnect.storage.utils.StorageUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.MockitoSession;
+import org.mockito.quality.Strictness;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Measures the heap used and the latency of the first calls to {@link AppInfoHelper} when app infos
+ * are loaded with their icons decoded, as they used to be, and without icons, which are decoded
+ * when returned. Results are logged.
+ *
+ * <p>The benchmark is a {@link LargeTest}, which the unit test configuration doesn't run by
+ * default. The other tests check the icons with a few apps.
+ */
+public class AppInfoIconCacheBenchmarkTest {
+    private static final String TAG = "AppInfoIconCacheBenchmark";
+    private static final String PACKAGE_NAME_PREFIX = "android.healthconnect.benchmark";
+    private static final int NUM_PACKAGES = 200;
+    private static final int NUM_TEST_PACKAGES = 5;
+    private static final int ICON_SIZE = 192;
+
+    @Mock Context mContext;
+    @Mock TransactionManager mTransactionManager;
+    private HealthConnectDatabase mHealthConnectDatabase;
+    private SQLiteDatabase mDb;
+    private MockitoSession mStaticMockSession;
+    private AppInfoHelper mAppInfoHelper;
+    // Keeps the loaded app infos reachable while the heap is measured.
+    private Object mRetained;
+
+    @Before
+    public void setUp() {
+        mStaticMockSession =
+                ExtendedMockito.mockitoSession()
+                        .mockStatic(TransactionManager.class)
+                        .strictness(Strictness.LENIENT)
+                        .startMocking();
+        MockitoAnnotations.initMocks(this);
+        when(mContext.getDatabasePath(anyString()))
+                .thenReturn(
+                        InstrumentationRegistry.getInstrumentation()
+                                .getContext()
+                                .getDatabasePath("app_info_icon_cache_benchmark"));
+        mHealthConnectDatabase = new HealthConnectDatabase(mContext);
+        mDb = mHealthConnectDatabase.getWritableDatabase();
+
+        when(TransactionManager.getInitialisedInstance()).thenReturn(mTransactionManager);
+        when(mTransactionManager.read(any()))
+                .thenAnswer(
+                        invocation -> {
+                            ReadTableRequest request = invocation.getArgument(0);
+                            return StorageUtils.rawQuery(
+                                    mDb, request.getReadCommand(), request.getBindArgs());
+                        });
+        doAnswer(
+                        invocation -> {
+                            UpsertTableRequest request = invocation.getArgument(0);
+                            mDb.update(
+                                    request.getTable(),
+                                    request.getContentValues(),
+                                    request.getUpdateWhereClauses().get(false),
+                                    null);
+                            return null;
+                        })
+                .when(mTransactionManager)
+                .update(any());
+
+        mAppInfoHelper = AppInfoHelper.getInstance();
+        mAppInfoHelper.clearCache();
+    }
+
+    @After
+    public void tearDown() {
+        mAppInfoHelper.clearCache();
+        mRetained = null;
+        mHealthConnectDatabase.close();
+        mStaticMockSession.finishMocking();
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkFirstCalls_200AppsWithIcons() {
+        insertAppInfos(NUM_PACKAGES);
+        long heapBefore = getUsedHeap();
+        long start = SystemClock.elapsedRealtimeNanos();
+        mRetained = loadAppInfosWithDecodedIcons();
+        long eagerLoadMillis = (SystemClock.elapsedRealtimeNanos() - start) / 1_000_000;
+        long eagerHeap = getUsedHeap() - heapBefore;
+        mRetained = null;
+
+        heapBefore = getUsedHeap();
+        start = SystemClock.elapsedRealtimeNanos();
+        mAppInfoHelper.getAppInfoId(PACKAGE_NAME_PREFIX + 0);
+        long indexLoadMillis = (SystemClock.elapsedRealtimeNanos() - start) / 1_000_000;
+        long indexHeap = getUsedHeap() - heapBefore;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        List<AppInfo> appInfos = mAppInfoHelper.getApplicationInfosWithRecordTypes();
+        long firstIconsMillis = (SystemClock.elapsedRealtimeNanos() - start) / 1_000_000;
+        mRetained = appInfos;
+        long iconsHeap = getUsedHeap() - heapBefore;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        mAppInfoHelper.getApplicationInfosWithRecordTypes();
+        long cachedIconsMillis = (SystemClock.elapsedRealtimeNanos() - start) / 1_000_000;
+
+        assertThat(appInfos).hasSize(NUM_PACKAGES);
+        Log.i(
+                TAG,
+                NUM_PACKAGES
+                        + " apps: eager load: "
+                        + eagerLoadMillis
+                        + "ms, "
+                        + eagerHeap / 1024
+                        + "KiB; index load: "
+                        + indexLoadMillis
+                        + "ms, "
+                        + indexHeap / 1024
+                        + "KiB; first app infos with icons: "
+                        + firstIconsMillis
+                        + "ms, "
+                        + iconsHeap / 1024
+                        + "KiB; cached app infos with icons: "
+                        + cachedIconsMillis
+                        + "ms");
+    }
+
+    @Test
+    public void testApplicationInfos_iconsDecodedOnDemand() {
+        insertAppInfos(NUM_TEST_PACKAGES);
+
+        List<AppInfo> appInfos = mAppInfoHelper.getApplicationInfosWithRecordTypes();
+
+        assertThat(appInfos).hasSize(NUM_TEST_PACKAGES);
+        for (AppInfo appInfo : appInfos) {
+            assertThat(appInfo.getIcon()).isNotNull();
+            assertThat(appInfo.getIcon().getWidth()).isEqualTo(ICON_SIZE);
+        }
+    }
+
+    @Test
+    public void testRecordTypesUsedUpdate_keepsIcon() {
+        insertAppInfos(NUM_TEST_PACKAGES);
+        String packageName = PACKAGE_NAME_PREFIX + 0;
+
+        mAppInfoHelper.updateAppInfoRecordTypesUsedOnInsert(
+                Set.of(RECORD_TYPE_HEART_RATE), packageName);
+        mAppInfoHelper.clearCache();
+
+        AppInfo appInfo =
+                mAppInfoHelper.getApplicationInfosWithRecordTypes().stream()
+                        .filter(info -> info.getPackageName().equals(packageName))
+                        .findFirst()
+                        .get();
+        assertThat(appInfo.getIcon()).isNotNull();
+    }
+
+    /** Reads the app infos and decodes all their icons, as app infos used to be loaded. */
+    private List<Bitmap> loadAppInfosWithDecodedIcons() {
+        List<Bitmap> icons = new ArrayList<>();
+        try (Cursor cursor = mDb.rawQuery("SELECT * FROM " + AppInfoHelper.TABLE_NAME, null)) {
+            while (cursor.moveToNext()) {
+                byte[] icon =
+                        StorageUtils.getCursorBlob(cursor, AppInfoHelper.APP_ICON_COLUMN_NAME);
+                icons.add(BitmapFactory.decodeByteArray(icon, 0, icon.length));
+            }
+        }
+        return icons;
+    }
+
+    /** Returns the Java and native heap in use, which holds the pixels of bitmaps. */
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        runtime.runFinalization();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+    }
+
+    private void insertAppInfos(int numPackages) {
+        mDb.execSQL("DELETE FROM " + AppInfoHelper.TABLE_NAME);
+        mDb.beginTransaction();
+        try (SQLiteStatement insertAppInfo =
+                mDb.compileStatement(
+                        "INSERT INTO "
+                                + AppInfoHelper.TABLE_NAME
+                                + " (package_name, app_name, app_icon, record_types_used)"
+                                + " VALUES (?, ?, ?, ?)")) {
+            for (int i = 0; i < numPackages; i++) {
+                insertAppInfo.bindString(1, PACKAGE_NAME_PREFIX + i);
+                insertAppInfo.bindString(2, "App " + i);
+                insertAppInfo.bindBlob(3, getEncodedIcon(i));
+                insertAppInfo.bindString(4, String.valueOf(RECORD_TYPE_STEPS));
+                insertAppInfo.executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private static byte[] getEncodedIcon(int index) {
+        Bitmap bitmap = Bitmap.createBitmap(ICON_SIZE, ICON_SIZE, Bitmap.Config.ARGB_8888);
+        // Varies the pixels so that the icons don't compress to almost nothing.
+        for (int x = 0; x < ICON_SIZE; x++) {
+            for (int y = 0; y < ICON_SIZE; y++) {
+                bitmap.setPixel(x, y, Color.rgb(x + index, y * index, x * y));
+            }
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        return stream.toByteArray();
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.Constants.DEFAULT_LONG;
+import static android.health.connect.Constants.UPSERT;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.UUID_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper.STEPS_TABLE_NAME;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Pair;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.server.healthconnect.storage.HealthConnectDatabase;
+import com.android.server.healthconnect.storage.request.ReadTableRequest;
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+import com.android.server.healthconnect.storage.utils.StorageUtils;
+import com.android.server.healthconnect.storage.utils.WhereClauses;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Measures the time taken to read the records upserted in a page of change logs, by listing their
+ * uuids in the query and by looking them up in the change log uuids table. Results are logged.
+ *
+ * <p>The benchmarks are {@link LargeTest}s, which the unit test configuration doesn't run by
+ * default.
+ */
+public class ChangeLogsReadBenchmarkTest {
+    private static final String TAG = "ChangeLogsReadBenchmark";
+    private static final String DATABASE_NAME = "change_logs_benchmark";
+    private static final String PACKAGE_NAME = "android.healthconnect.benchmark";
+    // Number of records upserted per insert call, each of which writes a change log.
+    private static final int UUIDS_PER_CHANGE_LOG = 1000;
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+
+    @Mock Context mContext;
+    private Context mTestContext;
+    private HealthConnectDatabase mHealthConnectDatabase;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mTestContext = InstrumentationRegistry.getInstrumentation().getContext();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+        when(mContext.getDatabasePath(anyString()))
+                .thenReturn(mTestContext.getDatabasePath(DATABASE_NAME));
+        mHealthConnectDatabase = new HealthConnectDatabase(mContext);
+        mDb = mHealthConnectDatabase.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mHealthConnectDatabase.close();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    @LargeTest
+    public void benchmark1kChanges() {
+        runBenchmark(1000);
+    }
+
+    @Test
+    @LargeTest
+    public void benchmark10kChanges() {
+        runBenchmark(10000);
+    }
+
+    @Test
+    @LargeTest
+    public void benchmark50kChanges() {
+        runBenchmark(50000);
+    }
+
+    @Test
+    public void testUuidsReadRequest_usesUuidIndex() {
+        List<Long> changeLogRowIds = insertChanges(UUIDS_PER_CHANGE_LOG).second;
+        ReadTableRequest request = getJoinReadRequest(changeLogRowIds);
+
+        StringBuilder plan = new StringBuilder();
+        try (Cursor cursor =
+                StorageUtils.rawQuery(
+                        mDb,
+                        "EXPLAIN QUERY PLAN " + request.getReadCommand(),
+                        request.getBindArgs())) {
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(cursor.getColumnIndex("detail"))).append('\n');
+            }
+        }
+
+        assertThat(plan.toString()).contains("SEARCH " + STEPS_TABLE_NAME + " USING INDEX");
+    }
+
+    private void runBenchmark(int numChanges) {
+        Pair<List<UUID>, List<Long>> changes = insertChanges(numChanges);
+        List<UUID> uuids = changes.first;
+        List<Long> changeLogRowIds = changes.second;
+
+        long uuidListMillis = Long.MAX_VALUE;
+        long joinMillis = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            ReadTableRequest uuidListRequest =
+                    new ReadTableRequest(STEPS_TABLE_NAME)
+                            .setWhereClause(
+                                    new WhereClauses()
+                                            .addWhereInUuidsClause(UUID_COLUMN_NAME, uuids));
+            assertThat(countRows(uuidListRequest)).isEqualTo(numChanges);
+            long uuidListNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            assertThat(countRows(getJoinReadRequest(changeLogRowIds))).isEqualTo(numChanges);
+            long joinNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            if (i >= WARMUP_ITERATIONS) {
+                uuidListMillis = Math.min(uuidListMillis, uuidListNanos / 1_000_000);
+                joinMillis = Math.min(joinMillis, joinNanos / 1_000_000);
+            }
+        }
+
+        Log.i(
+                TAG,
+                numChanges
+                        + " changes: uuid list: "
+                        + uuidListMillis
+                        + "ms, uuids table: "
+                        + joinMillis
+                        + "ms");
+    }
+
+    private ReadTableRequest getJoinReadRequest(List<Long> changeLogRowIds) {
+        ChangeLogsHelper.ChangeLogs changeLogs = new ChangeLogsHelper.ChangeLogs(UPSERT, 0);
+        for (long rowId : changeLogRowIds) {
+            changeLogs.addChangeLogRowId(RECORD_TYPE_STEPS, rowId);
+        }
+        ReadTableRequest uuidsReadRequest =
+                ChangeLogsHelper.getRecordTypeToUpsertedUuidsReadRequests(
+                                Map.of(UPSERT, changeLogs))
+                        .get(RECORD_TYPE_STEPS);
+
+        return new StepsRecordHelper()
+                .getReadTableRequest(
+                        PACKAGE_NAME, uuidsReadRequest, DEFAULT_LONG, Collections.emptyMap());
+    }
+
+    private int countRows(ReadTableRequest request) {
+        int count = 0;
+        try (Cursor cursor =
+                StorageUtils.rawQuery(mDb, request.getReadCommand(), request.getBindArgs())) {
+            while (cursor.moveToNext()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Inserts {@code numChanges} steps records along with their change logs. */
+    private Pair<List<UUID>, List<Long>> insertChanges(int numChanges) {
+        mDb.execSQL("DELETE FROM " + STEPS_TABLE_NAME);
+        mDb.execSQL("DELETE FROM " + ChangeLogsHelper.TABLE_NAME);
+        mDb.execSQL(
+                "INSERT OR IGNORE INTO application_info_table (package_name) VALUES ('"
+                        + PACKAGE_NAME
+                        + "')");
+        long appInfoId;
+        try (Cursor cursor =
+                mDb.rawQuery(
+                        "SELECT row_id FROM application_info_table WHERE package_name = '"
+                                + PACKAGE_NAME
+                                + "'",
+                        null)) {
+            cursor.moveToFirst();
+            appInfoId = cursor.getLong(0);
+        }
+
+        List<UUID> uuids = new ArrayList<>(numChanges);
+        List<Long> changeLogRowIds = new ArrayList<>();
+        mDb.beginTransaction();
+        try (SQLiteStatement insertSteps =
+                mDb.compileStatement(
+                        "INSERT INTO "
+                                + STEPS_TABLE_NAME
+                                + " (uuid, app_info_id, start_time, start_zone_offset, end_time,"
+                                + " end_zone_offset, count) VALUES (?, ?, ?, 0, ?, 0, 10)")) {
+            for (int i = 0; i < numChanges; i++) {
+                UUID uuid = UUID.randomUUID();
+                uuids.add(uuid);
+                insertSteps.bindBlob(1, StorageUtils.convertUUIDToBytes(uuid));
+                insertSteps.bindLong(2, appInfoId);
+                insertSteps.bindLong(3, i * 1000L);
+                insertSteps.bindLong(4, i * 1000L + 500);
+                insertSteps.executeInsert();
+            }
+
+            for (int i = 0; i < numChanges; i += UUIDS_PER_CHANGE_LOG) {
+                List<UpsertTableRequest> requests =
+                        new ChangeLogsHelper.ChangeLogs(UPSERT, PACKAGE_NAME, i)
+                                .addUUIDs(
+                                        RECORD_TYPE_STEPS,
+                                        appInfoId,
+                                        uuids.subList(
+                                                i, Math.min(i + UUIDS_PER_CHANGE_LOG, numChanges)))
+                                .getUpsertTableRequests();
+                for (UpsertTableRequest request : requests) {
+                    long rowId =
+                            mDb.insertOrThrow(request.getTable(), null, request.getContentValues());
+                    for (UpsertTableRequest childRequest : request.getChildTableRequests()) {
+                        mDb.insertOrThrow(
+                                childRequest.getTable(),
+                                null,
+                                childRequest.withParentKey(rowId).getContentValues());
+                    }
+                    changeLogRowIds.add(rowId);
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        return new Pair<>(uuids, changeLogRowIds);
+    }
+}
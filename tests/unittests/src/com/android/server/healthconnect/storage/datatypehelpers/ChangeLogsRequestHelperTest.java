@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.database.Cursor;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.dx.mockito.inline.extended.ExtendedMockito;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.MockitoSession;
+import org.mockito.quality.Strictness;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class ChangeLogsRequestHelperTest {
+    private static final String APP_PACKAGE_NAME = "android.healthconnect.mocked.app";
+    private static final long TOKEN_ROW_ID = 7;
+    private static final long TOKEN_ROW_ID_CHANGE_LOGS = 100;
+    private static final int NUM_PAGES = 25;
+
+    @Mock private Cursor mCursor;
+    @Mock private TransactionManager mTransactionManager;
+    private MockitoSession mStaticMockSession;
+
+    @Before
+    public void setUp() {
+        mStaticMockSession =
+                ExtendedMockito.mockitoSession()
+                        .mockStatic(TransactionManager.class)
+                        .strictness(Strictness.LENIENT)
+                        .startMocking();
+        MockitoAnnotations.initMocks(this);
+
+        when(TransactionManager.getInitialisedInstance()).thenReturn(mTransactionManager);
+        when(mTransactionManager.read(any())).thenReturn(mCursor);
+        when(mCursor.moveToFirst()).thenReturn(true);
+        when(mCursor.getColumnIndex(eq("row_id"))).thenReturn(0);
+        when(mCursor.getColumnIndex(eq("packages_to_filter"))).thenReturn(1);
+        when(mCursor.getColumnIndex(eq("record_types"))).thenReturn(2);
+        when(mCursor.getColumnIndex(eq("package_name"))).thenReturn(3);
+        when(mCursor.getColumnIndex(eq("row_id_change_logs_table"))).thenReturn(4);
+        when(mCursor.getColumnIndex(eq("time"))).thenReturn(5);
+        when(mCursor.getLong(eq(0))).thenReturn(TOKEN_ROW_ID);
+        when(mCursor.getString(eq(1))).thenReturn("");
+        when(mCursor.getString(eq(2))).thenReturn("1,2");
+        when(mCursor.getString(eq(3))).thenReturn(APP_PACKAGE_NAME);
+        when(mCursor.getLong(eq(4))).thenReturn(TOKEN_ROW_ID_CHANGE_LOGS);
+        when(mCursor.getLong(eq(5))).thenReturn(Instant.now().toEpochMilli());
+    }
+
+    @After
+    public void tearDown() {
+        mStaticMockSession.finishMocking();
+    }
+
+    @Test
+    public void testGetRequest_token_startsAfterTokenRowId() {
+        ChangeLogsRequestHelper.TokenRequest request =
+                ChangeLogsRequestHelper.getRequest(APP_PACKAGE_NAME, String.valueOf(TOKEN_ROW_ID));
+
+        assertThat(request.getTokenRowId()).isEqualTo(TOKEN_ROW_ID);
+        assertThat(request.getRowIdChangeLogs()).isEqualTo(TOKEN_ROW_ID_CHANGE_LOGS);
+        assertThat(request.getRecordTypes()).containsExactly(1, 2);
+    }
+
+    @Test
+    public void testGetRequest_pageToken_startsAfterPageRowId() {
+        ChangeLogsRequestHelper.TokenRequest request =
+                ChangeLogsRequestHelper.getRequest(APP_PACKAGE_NAME, String.valueOf(TOKEN_ROW_ID));
+        String pageToken = ChangeLogsRequestHelper.getNextPageToken(request, 250);
+
+        ChangeLogsRequestHelper.TokenRequest pageRequest =
+                ChangeLogsRequestHelper.getRequest(APP_PACKAGE_NAME, pageToken);
+
+        assertThat(pageRequest.getTokenRowId()).isEqualTo(TOKEN_ROW_ID);
+        assertThat(pageRequest.getRowIdChangeLogs()).isEqualTo(250);
+        assertThat(pageRequest.getRecordTypes()).containsExactly(1, 2);
+    }
+
+    @Test
+    public void testGetRequest_pageTokenBeforeToken_throws() {
+        assertThrows(
+                IllegalArgumentException.class,
+                () ->
+                        ChangeLogsRequestHelper.getRequest(
+                                APP_PACKAGE_NAME,
+                                TOKEN_ROW_ID + ":" + (TOKEN_ROW_ID_CHANGE_LOGS - 1)));
+    }
+
+    @Test
+    public void testGetRequest_malformedPageToken_throws() {
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> ChangeLogsRequestHelper.getRequest(APP_PACKAGE_NAME, TOKEN_ROW_ID + ":x"));
+    }
+
+    @Test
+    public void testPaging_doesNotWrite() {
+        String token = String.valueOf(TOKEN_ROW_ID);
+        for (int i = 1; i <= NUM_PAGES; i++) {
+            ChangeLogsRequestHelper.TokenRequest request =
+                    ChangeLogsRequestHelper.getRequest(APP_PACKAGE_NAME, token);
+            token =
+                    ChangeLogsRequestHelper.getNextPageToken(
+                            request, TOKEN_ROW_ID_CHANGE_LOGS + i * 2000L);
+        }
+
+        verify(mTransactionManager, never()).insert(any(UpsertTableRequest.class));
+        verify(mTransactionManager, never()).insertAll(any(List.class));
+        verify(mTransactionManager, never()).updateTable(any(UpsertTableRequest.class));
+    }
+
+    @Test
+    public void testPaging_pastAutoDeleteCutoff_refreshesTokenTime() {
+        long tokenTime =
+                Instant.now()
+                        .minus(
+                                ChangeLogsRequestHelper.DEFAULT_CHANGE_LOG_TIME_PERIOD_IN_DAYS + 8,
+                                ChronoUnit.DAYS)
+                        .toEpochMilli();
+        when(mCursor.getLong(eq(5))).thenReturn(tokenTime);
+        String pageToken = TOKEN_ROW_ID + ":" + (TOKEN_ROW_ID_CHANGE_LOGS + 2000);
+
+        long before = Instant.now().toEpochMilli();
+        ChangeLogsRequestHelper.TokenRequest request =
+                ChangeLogsRequestHelper.getRequest(APP_PACKAGE_NAME, pageToken);
+
+        assertThat(request.getRowIdChangeLogs()).isEqualTo(TOKEN_ROW_ID_CHANGE_LOGS + 2000);
+        ArgumentCaptor<UpsertTableRequest> captor =
+                ArgumentCaptor.forClass(UpsertTableRequest.class);
+        verify(mTransactionManager).updateTable(captor.capture());
+        UpsertTableRequest update = captor.getValue();
+        assertThat(update.getTable()).isEqualTo("change_log_request_table");
+        assertThat(update.getUpdateWhereClauses().get(false))
+                .contains("row_id = '" + TOKEN_ROW_ID + "'");
+        // The refreshed token is newer than the cutoff of auto delete, so it is kept.
+        assertThat(update.getContentValues().getAsLong("time")).isAtLeast(before);
+    }
+}
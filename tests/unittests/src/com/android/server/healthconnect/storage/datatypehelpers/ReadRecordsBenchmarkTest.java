@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.datatypes.ExerciseSegmentType.EXERCISE_SEGMENT_TYPE_ARM_CURL;
+import static android.health.connect.datatypes.ExerciseSessionType.EXERCISE_SESSION_TYPE_OTHER_WORKOUT;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.CLIENT_RECORD_ID_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.LAST_MODIFIED_TIME_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.PRIMARY_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.UUID_COLUMN_NAME;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import android.Manifest;
+import android.app.UiAutomation;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.health.connect.internal.datatypes.ExerciseLapInternal;
+import android.health.connect.internal.datatypes.ExerciseSegmentInternal;
+import android.health.connect.internal.datatypes.ExerciseSessionRecordInternal;
+import android.health.connect.internal.datatypes.HeartRateRecordInternal;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.StepsRecordInternal;
+import android.health.connect.internal.datatypes.utils.RecordMapper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.server.healthconnect.HealthConnectDeviceConfigManager;
+import com.android.server.healthconnect.storage.HealthConnectDatabase;
+import com.android.server.healthconnect.storage.request.ReadTableRequest;
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+import com.android.server.healthconnect.storage.utils.ColumnIndexCachingCursor;
+import com.android.server.healthconnect.storage.utils.StorageUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.IntFunction;
+
+/**
+ * Measures how many rows per second are turned into records for steps, heart rate and exercise
+ * sessions, with constructor references and column indices resolved once per cursor, and with
+ * reflection and column lookups by name on every row, as records used to be read. Results are
+ * logged.
+ *
+ * <p>Both paths only read the columns which {@link RecordHelper#getInternalRecords} reads, without
+ * the device and app info lookups, which are the same for both.
+ *
+ * <p>The benchmarks are {@link LargeTest}s, which the unit test configuration doesn't run by
+ * default.
+ */
+public class ReadRecordsBenchmarkTest {
+    private static final String TAG = "ReadRecordsBenchmark";
+    private static final String DATABASE_NAME = "read_records_benchmark";
+    private static final String PACKAGE_NAME = "android.healthconnect.benchmark";
+    private static final int NUM_RECORDS = 10_000;
+    private static final int NUM_TEST_RECORDS = 10;
+    private static final int NUM_HEART_RATE_SAMPLES = 10;
+    private static final int WARMUP_ITERATIONS = 1;
+    private static final int MEASUREMENT_ITERATIONS = 3;
+    private static final UiAutomation UI_AUTOMATION =
+            InstrumentationRegistry.getInstrumentation().getUiAutomation();
+
+    @Mock Context mContext;
+    private Context mTestContext;
+    private HealthConnectDatabase mHealthConnectDatabase;
+    private SQLiteDatabase mDb;
+    private long mAppInfoId;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        // Exercise sessions read whether routes are enabled from the device config.
+        UI_AUTOMATION.adoptShellPermissionIdentity(Manifest.permission.READ_DEVICE_CONFIG);
+        mTestContext = InstrumentationRegistry.getInstrumentation().getContext();
+        HealthConnectDeviceConfigManager.initializeInstance(mTestContext);
+        mTestContext.deleteDatabase(DATABASE_NAME);
+        when(mContext.getDatabasePath(anyString()))
+                .thenReturn(mTestContext.getDatabasePath(DATABASE_NAME));
+        mHealthConnectDatabase = new HealthConnectDatabase(mContext);
+        mDb = mHealthConnectDatabase.getWritableDatabase();
+        mDb.execSQL(
+                "INSERT INTO application_info_table (package_name) VALUES ('"
+                        + PACKAGE_NAME
+                        + "')");
+        try (Cursor cursor = mDb.rawQuery("SELECT MAX(row_id) FROM application_info_table", null)) {
+            cursor.moveToFirst();
+            mAppInfoId = cursor.getLong(0);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mHealthConnectDatabase.close();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+        UI_AUTOMATION.dropShellPermissionIdentity();
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkRead10kRecords_steps() throws Exception {
+        benchmarkRead("steps", new StepsRecordHelper(), this::buildStepsRecord);
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkRead10kRecords_heartRate() throws Exception {
+        benchmarkRead("heart rate", new HeartRateRecordHelper(), this::buildHeartRateRecord);
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkRead10kRecords_exerciseSession() throws Exception {
+        benchmarkRead(
+                "exercise session",
+                new ExerciseSessionRecordHelper(),
+                this::buildExerciseSessionRecord);
+    }
+
+    @Test
+    public void testReadRecords_steps_sameRecordsAsReflection() throws Exception {
+        assertSameRecordsAsReflection(new StepsRecordHelper(), this::buildStepsRecord);
+    }
+
+    @Test
+    public void testReadRecords_heartRate_sameRecordsAsReflection() throws Exception {
+        assertSameRecordsAsReflection(new HeartRateRecordHelper(), this::buildHeartRateRecord);
+    }
+
+    @Test
+    public void testReadRecords_exerciseSession_sameRecordsAsReflection() throws Exception {
+        assertSameRecordsAsReflection(
+                new ExerciseSessionRecordHelper(), this::buildExerciseSessionRecord);
+    }
+
+    private <T extends RecordInternal<?>> void benchmarkRead(
+            String recordName, RecordHelper<T> helper, IntFunction<RecordInternal<?>> records)
+            throws ReflectiveOperationException {
+        insertRecords(helper, records, NUM_RECORDS);
+
+        long bestNanos = Long.MAX_VALUE;
+        long bestReflectionNanos = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            readRecords(helper);
+            long readNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            readRecordsWithReflection(helper);
+            long reflectionReadNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            if (i >= WARMUP_ITERATIONS) {
+                bestNanos = Math.min(bestNanos, readNanos);
+                bestReflectionNanos = Math.min(bestReflectionNanos, reflectionReadNanos);
+            }
+        }
+
+        Log.i(
+                TAG,
+                NUM_RECORDS
+                        + " "
+                        + recordName
+                        + " records: "
+                        + getRowsPerSecond(bestNanos)
+                        + " rows/s, "
+                        + getRowsPerSecond(bestReflectionNanos)
+                        + " rows/s with reflection");
+    }
+
+    private <T extends RecordInternal<?>> void assertSameRecordsAsReflection(
+            RecordHelper<T> helper, IntFunction<RecordInternal<?>> records)
+            throws ReflectiveOperationException {
+        List<Object> expected = new ArrayList<>();
+        for (RecordInternal<?> record : insertRecords(helper, records, NUM_TEST_RECORDS)) {
+            expected.add(describe(record));
+        }
+
+        List<Object> read = new ArrayList<>();
+        for (RecordInternal<?> record : readRecords(helper)) {
+            read.add(describe(record));
+        }
+        List<Object> readWithReflection = new ArrayList<>();
+        for (RecordInternal<?> record : readRecordsWithReflection(helper)) {
+            readWithReflection.add(describe(record));
+        }
+
+        assertThat(read).containsExactlyElementsIn(expected);
+        assertThat(readWithReflection).containsExactlyElementsIn(read).inOrder();
+    }
+
+    /** Reads the records as {@link RecordHelper#getInternalRecords} does. */
+    @SuppressWarnings("unchecked")
+    private <T extends RecordInternal<?>> List<T> readRecords(RecordHelper<T> helper) {
+        List<T> records = new ArrayList<>();
+        RecordMapper recordMapper = RecordMapper.getInstance();
+        try (Cursor cursor = mDb.rawQuery(getReadCommand(helper), null)) {
+            int uuidIndex = cursor.getColumnIndex(UUID_COLUMN_NAME);
+            int lastModifiedTimeIndex = cursor.getColumnIndex(LAST_MODIFIED_TIME_COLUMN_NAME);
+            int clientRecordIdIndex = cursor.getColumnIndex(CLIENT_RECORD_ID_COLUMN_NAME);
+            int rowIdIndex = cursor.getColumnIndex(PRIMARY_COLUMN_NAME);
+            Cursor recordCursor = new ColumnIndexCachingCursor(cursor);
+            while (cursor.moveToNext()) {
+                T record = (T) recordMapper.newInternalRecord(helper.getRecordIdentifier());
+                record.setUuid(StorageUtils.convertBytesToUUID(cursor.getBlob(uuidIndex)));
+                record.setLastModifiedTime(cursor.getLong(lastModifiedTimeIndex));
+                record.setClientRecordId(cursor.getString(clientRecordIdIndex));
+                record.setRowId(cursor.getInt(rowIdIndex));
+                helper.populateRecordValue(recordCursor, record);
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /** Reads the records as {@link RecordHelper#getInternalRecords} used to. */
+    @SuppressWarnings("unchecked")
+    private <T extends RecordInternal<?>> List<T> readRecordsWithReflection(RecordHelper<T> helper)
+            throws ReflectiveOperationException {
+        List<T> records = new ArrayList<>();
+        Class<? extends RecordInternal<?>> recordClass =
+                RecordMapper.getInstance()
+                        .getRecordIdToInternalRecordClassMap()
+                        .get(helper.getRecordIdentifier());
+        try (Cursor cursor = mDb.rawQuery(getReadCommand(helper), null)) {
+            while (cursor.moveToNext()) {
+                T record = (T) recordClass.getConstructor().newInstance();
+                record.setUuid(StorageUtils.getCursorUUID(cursor, UUID_COLUMN_NAME));
+                record.setLastModifiedTime(
+                        StorageUtils.getCursorLong(cursor, LAST_MODIFIED_TIME_COLUMN_NAME));
+                record.setClientRecordId(
+                        StorageUtils.getCursorString(cursor, CLIENT_RECORD_ID_COLUMN_NAME));
+                record.setRowId(StorageUtils.getCursorInt(cursor, PRIMARY_COLUMN_NAME));
+                helper.populateRecordValue(cursor, record);
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private static String getReadCommand(RecordHelper<?> helper) {
+        return new ReadTableRequest(helper.getMainTableName())
+                .setJoinClause(helper.getJoinForReadRequest())
+                .getReadCommand();
+    }
+
+    private List<RecordInternal<?>> insertRecords(
+            RecordHelper<?> helper, IntFunction<RecordInternal<?>> records, int numRecords) {
+        List<RecordInternal<?>> inserted = new ArrayList<>();
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < numRecords; i++) {
+                RecordInternal<?> record = records.apply(i);
+                insert(helper.getUpsertTableRequest(record));
+                inserted.add(record);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return inserted;
+    }
+
+    private void insert(UpsertTableRequest request) {
+        long rowId = mDb.insertOrThrow(request.getTable(), null, request.getContentValues());
+        for (UpsertTableRequest childRequest : request.getChildTableRequests()) {
+            insert(childRequest.withParentKey(rowId));
+        }
+    }
+
+    /** Returns the values of {@code record} which are written to and read from its tables. */
+    private static Object describe(RecordInternal<?> record) {
+        if (record instanceof StepsRecordInternal) {
+            return List.of(record.getUuid(), ((StepsRecordInternal) record).getCount());
+        }
+        if (record instanceof HeartRateRecordInternal) {
+            return List.of(record.getUuid(), ((HeartRateRecordInternal) record).getSamples());
+        }
+        ExerciseSessionRecordInternal session = (ExerciseSessionRecordInternal) record;
+        return List.of(
+                session.getUuid(),
+                session.getTitle(),
+                session.getNotes(),
+                session.getLaps(),
+                session.getSegments());
+    }
+
+    private RecordInternal<?> buildStepsRecord(int index) {
+        return new StepsRecordInternal()
+                .setCount(index + 1)
+                .setStartTime(getStartTime(index))
+                .setStartZoneOffset(0)
+                .setEndTime(getStartTime(index) + 30_000)
+                .setEndZoneOffset(0)
+                .setUuid(UUID.randomUUID())
+                .setAppInfoId(mAppInfoId)
+                .setPackageName(PACKAGE_NAME);
+    }
+
+    private RecordInternal<?> buildHeartRateRecord(int index) {
+        long startTime = getStartTime(index);
+        Set<HeartRateRecordInternal.HeartRateSample> samples = new HashSet<>();
+        for (int i = 0; i < NUM_HEART_RATE_SAMPLES; i++) {
+            samples.add(
+                    new HeartRateRecordInternal.HeartRateSample(
+                            /* beatsPerMinute= */ 60 + i, startTime + i * 1000L));
+        }
+        return new HeartRateRecordInternal()
+                .setSamples(samples)
+                .setStartTime(startTime)
+                .setStartZoneOffset(0)
+                .setEndTime(startTime + NUM_HEART_RATE_SAMPLES * 1000L)
+                .setEndZoneOffset(0)
+                .setUuid(UUID.randomUUID())
+                .setAppInfoId(mAppInfoId)
+                .setPackageName(PACKAGE_NAME);
+    }
+
+    private RecordInternal<?> buildExerciseSessionRecord(int index) {
+        long startTime = getStartTime(index);
+        return new ExerciseSessionRecordInternal()
+                .setExerciseType(EXERCISE_SESSION_TYPE_OTHER_WORKOUT)
+                .setTitle("Session " + index)
+                .setNotes("Notes " + index)
+                .setExerciseLaps(
+                        List.of(
+                                new ExerciseLapInternal()
+                                        .setStarTime(startTime)
+                                        .setEndTime(startTime + 10_000)
+                                        .setLength(100)))
+                .setExerciseSegments(
+                        List.of(
+                                new ExerciseSegmentInternal()
+                                        .setStarTime(startTime)
+                                        .setEndTime(startTime + 20_000)
+                                        .setSegmentType(EXERCISE_SEGMENT_TYPE_ARM_CURL)
+                                        .setRepetitionsCount(10)))
+                .setStartTime(startTime)
+                .setStartZoneOffset(0)
+                .setEndTime(startTime + 30_000)
+                .setEndZoneOffset(0)
+                .setUuid(UUID.randomUUID())
+                .setAppInfoId(mAppInfoId)
+                .setPackageName(PACKAGE_NAME);
+    }
+
+    /** One record per minute. */
+    private static long getStartTime(int index) {
+        return index * 60_000L;
+    }
+
+    private static long getRowsPerSecond(long nanos) {
+        return NUM_RECORDS * 1_000_000_000L / nanos;
+    }
+}
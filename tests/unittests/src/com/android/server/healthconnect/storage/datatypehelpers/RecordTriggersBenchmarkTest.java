@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper.STEPS_TABLE_NAME;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.server.healthconnect.storage.HealthConnectDatabase;
+import com.android.server.healthconnect.storage.utils.StorageUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Measures the time taken to insert and delete records with all the triggers of the record tables,
+ * which maintain the rollups, the activity dates, the record types used and the record stats, and
+ * without any trigger. Results are logged.
+ *
+ * <p>The benchmark is a {@link LargeTest}, which the unit test configuration doesn't run by
+ * default.
+ */
+public class RecordTriggersBenchmarkTest {
+    private static final String TAG = "RecordTriggersBenchmark";
+    private static final String DATABASE_NAME = "record_triggers_benchmark";
+    private static final String PACKAGE_NAME = "android.healthconnect.benchmark";
+    private static final int NUM_RECORDS = 100_000;
+    private static final int WARMUP_ITERATIONS = 1;
+    private static final int MEASUREMENT_ITERATIONS = 3;
+
+    @Mock Context mContext;
+    private Context mTestContext;
+    private HealthConnectDatabase mHealthConnectDatabase;
+    private SQLiteDatabase mDb;
+    private long mAppInfoId;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mTestContext = InstrumentationRegistry.getInstrumentation().getContext();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+        when(mContext.getDatabasePath(anyString()))
+                .thenReturn(mTestContext.getDatabasePath(DATABASE_NAME));
+        mHealthConnectDatabase = new HealthConnectDatabase(mContext);
+        mDb = mHealthConnectDatabase.getWritableDatabase();
+        mDb.execSQL(
+                "INSERT INTO application_info_table (package_name) VALUES ('"
+                        + PACKAGE_NAME
+                        + "')");
+        mAppInfoId = queryLong("SELECT MAX(row_id) FROM application_info_table");
+    }
+
+    @After
+    public void tearDown() {
+        mHealthConnectDatabase.close();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkWrite100kRecords_allTriggers() {
+        long[] withTriggers = measureInsertAndDeleteMillis();
+        for (String trigger : getStepsTriggers()) {
+            mDb.execSQL("DROP TRIGGER " + trigger);
+        }
+        long[] withoutTriggers = measureInsertAndDeleteMillis();
+
+        Log.i(
+                TAG,
+                NUM_RECORDS
+                        + " records: insert: "
+                        + withTriggers[0]
+                        + "ms with triggers, "
+                        + withoutTriggers[0]
+                        + "ms without, delete: "
+                        + withTriggers[1]
+                        + "ms with triggers, "
+                        + withoutTriggers[1]
+                        + "ms without");
+    }
+
+    @Test
+    public void testInsert_updatesAllDerivedTables() {
+        assertThat(getStepsTriggers()).isNotEmpty();
+
+        insertRecords(10);
+
+        assertThat(
+                        queryLong(
+                                "SELECT record_count FROM record_stats_table"
+                                        + " WHERE record_type_id = "
+                                        + RECORD_TYPE_STEPS))
+                .isEqualTo(10);
+        assertThat(
+                        queryLong(
+                                "SELECT record_count FROM app_info_record_types_table"
+                                        + " WHERE app_info_id = "
+                                        + mAppInfoId
+                                        + " AND record_type_id = "
+                                        + RECORD_TYPE_STEPS))
+                .isEqualTo(10);
+        assertThat(
+                        queryLong(
+                                "SELECT SUM(record_count) FROM activity_date_table"
+                                        + " WHERE record_type_id = "
+                                        + RECORD_TYPE_STEPS))
+                .isEqualTo(10);
+        assertThat(
+                        queryLong(
+                                "SELECT COUNT(*) FROM aggregation_rollup_table"
+                                        + " WHERE record_type = "
+                                        + RECORD_TYPE_STEPS))
+                .isGreaterThan(0);
+    }
+
+    /** Returns the best times taken to insert and to then delete the records, in milliseconds. */
+    private long[] measureInsertAndDeleteMillis() {
+        long insertMillis = Long.MAX_VALUE;
+        long deleteMillis = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            insertRecords(NUM_RECORDS);
+            long insertedMillis = SystemClock.elapsedRealtime() - start;
+
+            start = SystemClock.elapsedRealtime();
+            mDb.execSQL("DELETE FROM " + STEPS_TABLE_NAME);
+            long deletedMillis = SystemClock.elapsedRealtime() - start;
+
+            if (i >= WARMUP_ITERATIONS) {
+                insertMillis = Math.min(insertMillis, insertedMillis);
+                deleteMillis = Math.min(deleteMillis, deletedMillis);
+            }
+        }
+        return new long[] {insertMillis, deleteMillis};
+    }
+
+    private void insertRecords(int numRecords) {
+        mDb.beginTransaction();
+        try (SQLiteStatement insertSteps =
+                mDb.compileStatement(
+                        "INSERT INTO "
+                                + STEPS_TABLE_NAME
+                                + " (uuid, app_info_id, start_time, start_zone_offset, end_time,"
+                                + " end_zone_offset, local_date, count)"
+                                + " VALUES (?, ?, ?, 0, ?, 0, ?, 10)")) {
+            for (int i = 0; i < numRecords; i++) {
+                // One record per minute, so that they are spread over many buckets and dates.
+                long startTime = i * 60_000L;
+                insertSteps.bindBlob(1, StorageUtils.convertUUIDToBytes(UUID.randomUUID()));
+                insertSteps.bindLong(2, mAppInfoId);
+                insertSteps.bindLong(3, startTime);
+                insertSteps.bindLong(4, startTime + 30_000);
+                insertSteps.bindLong(5, startTime / 86_400_000);
+                insertSteps.executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private List<String> getStepsTriggers() {
+        List<String> triggers = new ArrayList<>();
+        try (Cursor cursor =
+                mDb.rawQuery(
+                        "SELECT name FROM sqlite_master WHERE type = 'trigger' AND tbl_name = ?",
+                        new String[] {STEPS_TABLE_NAME})) {
+            while (cursor.moveToNext()) {
+                triggers.add(cursor.getString(0));
+            }
+        }
+        return triggers;
+    }
+
+    private long queryLong(String sql) {
+        try (Cursor cursor = mDb.rawQuery(sql, null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+}
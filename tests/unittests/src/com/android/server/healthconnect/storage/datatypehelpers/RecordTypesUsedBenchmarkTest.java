@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper.STEPS_TABLE_NAME;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.server.healthconnect.storage.HealthConnectDatabase;
+import com.android.server.healthconnect.storage.request.ReadTableRequest;
+import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
+import com.android.server.healthconnect.storage.utils.StorageUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Measures the time taken to delete records by a filter and to then find the record types used by
+ * each package, by scanning the record tables and by reading the record counts kept by the record
+ * tables. Results are logged.
+ *
+ * <p>The benchmark is a {@link LargeTest}, which the unit test configuration doesn't run by
+ * default.
+ */
+public class RecordTypesUsedBenchmarkTest {
+    private static final String TAG = "RecordTypesUsedBenchmark";
+    private static final String DATABASE_NAME = "record_types_used_benchmark";
+    private static final String PACKAGE_NAME_PREFIX = "android.healthconnect.benchmark";
+    private static final int NUM_PACKAGES = 10;
+    private static final int NUM_RECORDS = 1_000_000;
+    // Each iteration deletes the records of one package within a different slice of records.
+    private static final int RECORDS_PER_DELETE = 1000;
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+
+    @Mock Context mContext;
+    private Context mTestContext;
+    private HealthConnectDatabase mHealthConnectDatabase;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mTestContext = InstrumentationRegistry.getInstrumentation().getContext();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+        when(mContext.getDatabasePath(anyString()))
+                .thenReturn(mTestContext.getDatabasePath(DATABASE_NAME));
+        mHealthConnectDatabase = new HealthConnectDatabase(mContext);
+        mDb = mHealthConnectDatabase.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mHealthConnectDatabase.close();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkDeleteByFilter1mRecords() {
+        List<Long> appInfoIds = insertRecords(NUM_RECORDS);
+
+        long deleteMillis = Long.MAX_VALUE;
+        long tableScanMillis = Long.MAX_VALUE;
+        long recordCountsMillis = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            mDb.execSQL(
+                    "DELETE FROM "
+                            + STEPS_TABLE_NAME
+                            + " WHERE app_info_id = "
+                            + appInfoIds.get(i % NUM_PACKAGES)
+                            + " AND start_time >= "
+                            + i * RECORDS_PER_DELETE * 1000L
+                            + " AND start_time < "
+                            + (i + 1) * RECORDS_PER_DELETE * 1000L);
+            long deleteNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            Set<String> scanned = readRecordTypesUsedByScanningTables();
+            long tableScanNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            Set<String> counted = readRecordTypesUsedFromCounts();
+            long recordCountsNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            assertThat(counted).isEqualTo(scanned);
+            if (i >= WARMUP_ITERATIONS) {
+                deleteMillis = Math.min(deleteMillis, deleteNanos / 1_000_000);
+                tableScanMillis = Math.min(tableScanMillis, tableScanNanos / 1_000_000);
+                recordCountsMillis = Math.min(recordCountsMillis, recordCountsNanos / 1_000_000);
+            }
+        }
+
+        Log.i(
+                TAG,
+                NUM_RECORDS
+                        + " records: delete: "
+                        + deleteMillis
+                        + "ms, table scan: "
+                        + tableScanMillis
+                        + "ms, record counts: "
+                        + recordCountsMillis
+                        + "ms");
+    }
+
+    @Test
+    public void testRecordCounts_packageWithoutRecords_notListed() {
+        List<Long> appInfoIds = insertRecords(NUM_PACKAGES * 10);
+
+        mDb.execSQL(
+                "DELETE FROM " + STEPS_TABLE_NAME + " WHERE app_info_id = " + appInfoIds.get(0));
+
+        Set<String> counted = readRecordTypesUsedFromCounts();
+        assertThat(counted).isEqualTo(readRecordTypesUsedByScanningTables());
+        assertThat(counted).doesNotContain(appInfoIds.get(0) + ":" + RECORD_TYPE_STEPS);
+        assertThat(counted).contains(appInfoIds.get(1) + ":" + RECORD_TYPE_STEPS);
+    }
+
+    /** Returns the used record types as "appInfoId:recordTypeId" entries. */
+    private Set<String> readRecordTypesUsedByScanningTables() {
+        Set<String> recordTypesUsed = new HashSet<>();
+        RecordHelperProvider.getInstance()
+                .getRecordHelpers()
+                .forEach(
+                        (recordTypeId, recordHelper) -> {
+                            ReadTableRequest request =
+                                    recordHelper.getReadTableRequestWithDistinctAppInfoIds();
+                            try (Cursor cursor =
+                                    StorageUtils.rawQuery(
+                                            mDb,
+                                            request.getReadCommand(),
+                                            request.getBindArgs())) {
+                                while (cursor.moveToNext()) {
+                                    recordTypesUsed.add(cursor.getLong(0) + ":" + recordTypeId);
+                                }
+                            }
+                        });
+        return recordTypesUsed;
+    }
+
+    private Set<String> readRecordTypesUsedFromCounts() {
+        Set<String> recordTypesUsed = new HashSet<>();
+        ReadTableRequest request = AppInfoHelper.getRecordTypesUsedReadRequest();
+        try (Cursor cursor =
+                StorageUtils.rawQuery(mDb, request.getReadCommand(), request.getBindArgs())) {
+            while (cursor.moveToNext()) {
+                recordTypesUsed.add(cursor.getLong(0) + ":" + cursor.getInt(1));
+            }
+        }
+        return recordTypesUsed;
+    }
+
+    /** Inserts {@code numRecords} steps records spread over the packages, returns their ids. */
+    private List<Long> insertRecords(int numRecords) {
+        List<Long> appInfoIds = new ArrayList<>(NUM_PACKAGES);
+        for (int i = 0; i < NUM_PACKAGES; i++) {
+            String packageName = PACKAGE_NAME_PREFIX + i;
+            mDb.execSQL(
+                    "INSERT OR IGNORE INTO application_info_table (package_name) VALUES ('"
+                            + packageName
+                            + "')");
+            try (Cursor cursor =
+                    mDb.rawQuery(
+                            "SELECT row_id FROM application_info_table WHERE package_name = '"
+                                    + packageName
+                                    + "'",
+                            null)) {
+                cursor.moveToFirst();
+                appInfoIds.add(cursor.getLong(0));
+            }
+        }
+
+        mDb.beginTransaction();
+        try (SQLiteStatement insertSteps =
+                mDb.compileStatement(
+                        "INSERT INTO "
+                                + STEPS_TABLE_NAME
+                                + " (uuid, app_info_id, start_time, start_zone_offset, end_time,"
+                                + " end_zone_offset, local_date, count)"
+                                + " VALUES (?, ?, ?, 0, ?, 0, ?, 10)")) {
+            for (int i = 0; i < numRecords; i++) {
+                insertSteps.bindBlob(1, StorageUtils.convertUUIDToBytes(UUID.randomUUID()));
+                insertSteps.bindLong(2, appInfoIds.get(i % NUM_PACKAGES));
+                insertSteps.bindLong(3, i * 1000L);
+                insertSteps.bindLong(4, i * 1000L + 500);
+                insertSteps.bindLong(5, i / 86_400);
+                insertSteps.executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        return appInfoIds;
+    }
+}
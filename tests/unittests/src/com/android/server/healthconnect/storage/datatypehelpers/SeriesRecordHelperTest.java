@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_PACKED_SERIES_SAMPLES;
+import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_RECORD_STATS;
+import static com.android.server.healthconnect.storage.datatypehelpers.HeartRateRecordHelper.TABLE_NAME;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.health.connect.datatypes.AggregationType;
+import android.health.connect.datatypes.HeartRateRecord;
+import android.health.connect.internal.datatypes.HeartRateRecordInternal;
+import android.health.connect.internal.datatypes.HeartRateRecordInternal.HeartRateSample;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.server.healthconnect.storage.HealthConnectDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+public class SeriesRecordHelperTest {
+    private static final String DATABASE_NAME = "series_record_helper_test";
+    private static final String SERIES_TABLE_NAME = "heart_rate_record_series_table";
+    private static final long MINUTE = 60 * 1000L;
+
+    @Mock Context mContext;
+    private Context mTestContext;
+    private HealthConnectDatabase mHealthConnectDatabase;
+    private SQLiteDatabase mDb;
+    private HeartRateRecordHelper mHelper;
+    private long mAppInfoId;
+    private long mDeviceInfoId;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mTestContext = InstrumentationRegistry.getInstrumentation().getContext();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+        when(mContext.getDatabasePath(anyString()))
+                .thenReturn(mTestContext.getDatabasePath(DATABASE_NAME));
+        mHealthConnectDatabase = new HealthConnectDatabase(mContext);
+        mDb = mHealthConnectDatabase.getWritableDatabase();
+        mHelper = new HeartRateRecordHelper();
+
+        mDb.execSQL("INSERT INTO application_info_table (package_name) VALUES ('series.test')");
+        mAppInfoId = queryLong("SELECT MAX(row_id) FROM application_info_table");
+        mDb.execSQL(
+                "INSERT INTO device_info_table (manufacturer, model, device_type)"
+                        + " VALUES ('google', 'pixel', 1)");
+        mDeviceInfoId = queryLong("SELECT MAX(row_id) FROM device_info_table");
+    }
+
+    @After
+    public void tearDown() {
+        mHealthConnectDatabase.close();
+        mTestContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void testInsertAndRead_packsSamplesInRecordRow() {
+        Set<HeartRateSample> samples =
+                Set.of(
+                        new HeartRateSample(72, MINUTE + 2000),
+                        new HeartRateSample(70, MINUTE),
+                        new HeartRateSample(75, MINUTE + 1000));
+        long rowId = insertRecord(MINUTE, MINUTE + 3000, samples);
+
+        assertThat(queryLong("SELECT COUNT(*) FROM " + SERIES_TABLE_NAME)).isEqualTo(0);
+        assertThat(querySummary(rowId)).isEqualTo(List.of(3d, 70d, 75d, 217d));
+        assertThat(readSamples(rowId)).isEqualTo(toPairs(samples));
+    }
+
+    @Test
+    public void testOnUpgrade_packsSeriesTableSamples() {
+        long rowId = insertRecord(MINUTE, 2 * MINUTE, Set.of());
+        Set<HeartRateSample> packedSamples = Set.of(new HeartRateSample(80, 3 * MINUTE));
+        long packedRowId = insertRecord(3 * MINUTE, 4 * MINUTE, packedSamples);
+        insertSeriesTableSample(rowId, 65, MINUTE + 1000);
+        insertSeriesTableSample(rowId, 61, MINUTE);
+        insertSeriesTableSample(rowId, 63, MINUTE + 2000);
+
+        mHelper.onUpgrade(mDb, DB_VERSION_RECORD_STATS, DB_VERSION_PACKED_SERIES_SAMPLES);
+
+        assertThat(queryLong("SELECT COUNT(*) FROM " + SERIES_TABLE_NAME)).isEqualTo(0);
+        assertThat(querySummary(rowId)).isEqualTo(List.of(3d, 61d, 65d, 189d));
+        assertThat(readSamples(rowId))
+                .isEqualTo(
+                        toPairs(
+                                Set.of(
+                                        new HeartRateSample(61, MINUTE),
+                                        new HeartRateSample(65, MINUTE + 1000),
+                                        new HeartRateSample(63, MINUTE + 2000))));
+        // Records which are already packed are left as they are.
+        assertThat(readSamples(packedRowId)).isEqualTo(toPairs(packedSamples));
+    }
+
+    @Test
+    public void testAggregate_matchesAggregateOfAllSamples() {
+        Random random = new Random(/* seed= */ 42);
+        List<HeartRateRecordInternal> records = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            long startTime = random.nextInt(100) * MINUTE;
+            long endTime = startTime + (1 + random.nextInt(10)) * MINUTE;
+            Set<HeartRateSample> samples = new HashSet<>();
+            for (int j = 0; j < 1 + random.nextInt(20); j++) {
+                samples.add(
+                        new HeartRateSample(
+                                40 + random.nextInt(150), startTime + j * (MINUTE / 20)));
+            }
+            insertRecord(startTime, endTime, samples);
+            records.add(getRecord(startTime, endTime, samples));
+        }
+        long startTime = 20 * MINUTE;
+        long endTime = 60 * MINUTE;
+
+        long max = Long.MIN_VALUE;
+        long min = Long.MAX_VALUE;
+        long sum = 0;
+        long count = 0;
+        for (HeartRateRecordInternal record : records) {
+            if (record.getEndTimeInMillis() < startTime
+                    || record.getStartTimeInMillis() >= endTime) {
+                continue;
+            }
+            for (HeartRateSample sample : record.getSamples()) {
+                max = Math.max(max, sample.getBeatsPerMinute());
+                min = Math.min(min, sample.getBeatsPerMinute());
+                sum += sample.getBeatsPerMinute();
+                count++;
+            }
+        }
+
+        assertThat(queryAggregate(HeartRateRecord.BPM_MAX, startTime, endTime))
+                .isEqualTo((double) max);
+        assertThat(queryAggregate(HeartRateRecord.BPM_MIN, startTime, endTime))
+                .isEqualTo((double) min);
+        assertThat(queryAggregate(HeartRateRecord.BPM_AVG, startTime, endTime))
+                .isWithin(1e-9)
+                .of((double) sum / count);
+        assertThat(queryAggregate(HeartRateRecord.HEART_MEASUREMENTS_COUNT, startTime, endTime))
+                .isEqualTo((double) count);
+    }
+
+    private long insertRecord(long startTime, long endTime, Set<HeartRateSample> samples) {
+        return mDb.insertOrThrow(
+                TABLE_NAME,
+                null,
+                mHelper.getUpsertTableRequest(getRecord(startTime, endTime, samples))
+                        .getContentValues());
+    }
+
+    private HeartRateRecordInternal getRecord(
+            long startTime, long endTime, Set<HeartRateSample> samples) {
+        HeartRateRecordInternal record = new HeartRateRecordInternal();
+        record.setSamples(samples);
+        record.setStartTime(startTime).setStartZoneOffset(0).setEndTime(endTime);
+        record.setEndZoneOffset(0);
+        record.setUuid(UUID.randomUUID()).setAppInfoId(mAppInfoId).setDeviceInfoId(mDeviceInfoId);
+        return record;
+    }
+
+    private void insertSeriesTableSample(long parentKey, int beatsPerMinute, long epochMillis) {
+        mDb.execSQL(
+                "INSERT INTO "
+                        + SERIES_TABLE_NAME
+                        + " (parent_key, beats_per_minute, epoch_millis) VALUES (?, ?, ?)",
+                new Object[] {parentKey, beatsPerMinute, epochMillis});
+    }
+
+    /** Returns the sample count, minimum, maximum and sum of the record. */
+    private List<Double> querySummary(long rowId) {
+        try (Cursor cursor =
+                mDb.rawQuery(
+                        "SELECT sample_count, sample_min, sample_max, sample_sum FROM "
+                                + TABLE_NAME
+                                + " WHERE row_id = "
+                                + rowId,
+                        null)) {
+            assertThat(cursor.moveToFirst()).isTrue();
+            return List.of(
+                    cursor.getDouble(0),
+                    cursor.getDouble(1),
+                    cursor.getDouble(2),
+                    cursor.getDouble(3));
+        }
+    }
+
+    private Set<List<Long>> readSamples(long rowId) {
+        try (Cursor cursor =
+                mDb.rawQuery("SELECT * FROM " + TABLE_NAME + " WHERE row_id = " + rowId, null)) {
+            assertThat(cursor.moveToFirst()).isTrue();
+            HeartRateRecordInternal record = new HeartRateRecordInternal();
+            mHelper.populateSpecificRecordValue(cursor, record);
+            return toPairs(record.getSamples());
+        }
+    }
+
+    private double queryAggregate(
+            AggregationType<?> aggregationType, long startTime, long endTime) {
+        String command =
+                mHelper.getAggregateTableRequest(
+                                aggregationType,
+                                /* packageFilter= */ List.of(),
+                                startTime,
+                                endTime,
+                                /* useLocalTime= */ false)
+                        .getAggregationCommand();
+        try (Cursor cursor = mDb.rawQuery(command, null)) {
+            assertThat(cursor.moveToFirst()).isTrue();
+            return cursor.getDouble(cursor.getColumnIndex("beats_per_minute"));
+        }
+    }
+
+    private long queryLong(String sql) {
+        try (Cursor cursor = mDb.rawQuery(sql, null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+
+    /** Samples compare by identity, so they are compared as [bpm, time] pairs instead. */
+    private static Set<List<Long>> toPairs(Set<HeartRateSample> samples) {
+        Set<List<Long>> pairs = new HashSet<>();
+        for (HeartRateSample sample : samples) {
+            pairs.add(List.of((long) sample.getBeatsPerMinute(), sample.getEpochMillis()));
+        }
+        return pairs;
+    }
+}
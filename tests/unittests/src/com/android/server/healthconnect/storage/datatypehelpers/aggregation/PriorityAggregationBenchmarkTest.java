@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers.aggregation;
+
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.STEPS_RECORD_COUNT_TOTAL;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.aggregation.PriorityAggregationTestDataFactory.createStepsData;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.server.healthconnect.storage.request.AggregateParams;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures the time taken by {@link PriorityRecordsAggregator} to aggregate steps records written
+ * by two apps with overlapping records, into minute buckets over a day and hour buckets over a
+ * year. Results are logged.
+ *
+ * <p>The benchmarks are {@link LargeTest}s, which the unit test configuration doesn't run by
+ * default.
+ */
+public class PriorityAggregationBenchmarkTest {
+    private static final String TAG = "PriorityAggregationBenchmark";
+    private static final int MINUTES_IN_DAY = 1440;
+    private static final int HOURS_IN_YEAR = 8760;
+    private static final int WARMUP_ITERATIONS = 1;
+    private static final int MEASUREMENT_ITERATIONS = 3;
+
+    private final AggregateParams.PriorityAggregationExtraParams mParams =
+            new AggregateParams.PriorityAggregationExtraParams("steps", Long.class);
+
+    @Test
+    @LargeTest
+    public void benchmark10kRecords() {
+        runBenchmark(10_000);
+    }
+
+    @Test
+    @LargeTest
+    public void benchmark100kRecords() {
+        runBenchmark(100_000);
+    }
+
+    @Test
+    @LargeTest
+    public void benchmark1mRecords() {
+        runBenchmark(1_000_000);
+    }
+
+    @Test
+    public void testBenchmarkRecords_sumToValueRateOverSpan() {
+        List<Long> groupSplits = getGroupSplits(/* numGroups= */ 2, Duration.ofHours(1));
+        PriorityRecordsAggregator aggregator = createAggregator(100, groupSplits);
+
+        aggregator.calculateAggregation(getCursor(100));
+
+        // Each app covers the span with 50 records of 10 steps, and one of them is picked at any
+        // point in time.
+        assertThat(aggregator.getResultForGroup(0)).isWithin(1e-6).of(250);
+        assertThat(aggregator.getResultForGroup(1)).isWithin(1e-6).of(250);
+    }
+
+    private void runBenchmark(int numRecords) {
+        long dayMillis =
+                measureMillis(numRecords, getGroupSplits(MINUTES_IN_DAY, Duration.ofMinutes(1)));
+        long yearMillis =
+                measureMillis(numRecords, getGroupSplits(HOURS_IN_YEAR, Duration.ofHours(1)));
+
+        Log.i(
+                TAG,
+                numRecords
+                        + " records: "
+                        + MINUTES_IN_DAY
+                        + " groups: "
+                        + dayMillis
+                        + "ms, "
+                        + HOURS_IN_YEAR
+                        + " groups: "
+                        + yearMillis
+                        + "ms");
+    }
+
+    private long measureMillis(int numRecords, List<Long> groupSplits) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; i++) {
+            Cursor cursor = getCursor(numRecords);
+            PriorityRecordsAggregator aggregator = createAggregator(numRecords, groupSplits);
+
+            long start = SystemClock.elapsedRealtimeNanos();
+            aggregator.calculateAggregation(cursor);
+            long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+
+            assertThat(aggregator.getResultForGroup(0)).isNotNull();
+            if (i >= WARMUP_ITERATIONS) {
+                best = Math.min(best, elapsed / 1_000_000);
+            }
+        }
+        return best;
+    }
+
+    private PriorityRecordsAggregator createAggregator(int numRecords, List<Long> groupSplits) {
+        long span = groupSplits.get(groupSplits.size() - 1);
+        return new PriorityRecordsAggregator(
+                groupSplits,
+                Collections.emptyList(),
+                STEPS_RECORD_COUNT_TOTAL,
+                mParams,
+                /* useLocalTime= */ false) {
+            @Override
+            AggregationRecordData readNewData(Cursor cursor) {
+                return createRecord(cursor.getPosition(), numRecords, span);
+            }
+        };
+    }
+
+    /**
+     * Returns a record of one of two apps, each writing records covering the whole span with a
+     * half record overlap between the two apps.
+     */
+    private static AggregationRecordData createRecord(int index, int numRecords, long span) {
+        long recordsPerApp = (numRecords + 1) / 2;
+        long duration = Math.max(span / recordsPerApp, 2);
+        long startTime = (index / 2) * duration + (index % 2) * (duration / 2);
+        return createStepsData(
+                startTime, startTime + duration, 10, /* priority= */ index % 2, index);
+    }
+
+    private static Cursor getCursor(int numRecords) {
+        MatrixCursor cursor = new MatrixCursor(new String[] {"steps"}, numRecords);
+        for (int i = 0; i < numRecords; i++) {
+            cursor.addRow(new Object[] {null});
+        }
+        return cursor;
+    }
+
+    private static List<Long> getGroupSplits(int numGroups, Duration groupDuration) {
+        List<Long> groupSplits = new ArrayList<>(numGroups + 1);
+        for (int i = 0; i <= numGroups; i++) {
+            groupSplits.add(i * groupDuration.toMillis());
+        }
+        return groupSplits;
+    }
+}
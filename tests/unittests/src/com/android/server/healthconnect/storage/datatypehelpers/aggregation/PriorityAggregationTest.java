@@ -21,7 +21,11 @@ import static com.android.server.healthconnect.storage.datatypehelpers.aggregati
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.database.Cursor;
@@ -269,4 +273,62 @@ public class PriorityAggregationTest {
         assertThat(mMultiGroupAggregator.getResultForGroup(1)).isEqualTo(2.0 + 3.0 + 1.0);
         assertThat(mMultiGroupAggregator.getResultForGroup(2)).isEqualTo(5.0);
     }
+
+    @Test
+    public void testStepsRecordEndingAtGroupBorder_nextGroupResultIsZero() {
+        doReturn(createStepsData(15, 20, 10, 1, 1))
+                .when(mMultiGroupAggregator)
+                .readNewData(mCursor);
+        when(mCursor.moveToNext()).thenReturn(true, false);
+        mMultiGroupAggregator.calculateAggregation(mCursor);
+        assertThat(mMultiGroupAggregator.getResultForGroup(0)).isEqualTo(10.0);
+        assertThat(mMultiGroupAggregator.getResultForGroup(1)).isEqualTo(0.0);
+        assertThat(mMultiGroupAggregator.getResultForGroup(2)).isNull();
+    }
+
+    @Test
+    public void testThreeStepsRecords_priorityChangesWithinGroups_higherPriorityAccounted() {
+        doReturn(
+                        createStepsData(10, 40, 30, 1, 1),
+                        createStepsData(15, 25, 100, 2, 1),
+                        createStepsData(22, 35, 130, 3, 1))
+                .when(mMultiGroupAggregator)
+                .readNewData(mCursor);
+        when(mCursor.moveToNext()).thenReturn(true, true, true, false);
+        mMultiGroupAggregator.calculateAggregation(mCursor);
+        assertThat(mMultiGroupAggregator.getResultForGroup(0)).isEqualTo(5.0 + 50.0);
+        assertThat(mMultiGroupAggregator.getResultForGroup(1)).isEqualTo(20.0 + 80.0);
+        assertThat(mMultiGroupAggregator.getResultForGroup(2)).isEqualTo(50.0 + 5.0);
+    }
+
+    @Test
+    public void testInstantStepsRecord_accountedOnceUnlessOverlappedByHigherPriority() {
+        doReturn(
+                        createStepsData(12, 12, 7, 1, 1),
+                        createStepsData(12, 12, 9, 1, 2),
+                        createStepsData(14, 18, 40, 2, 1),
+                        createStepsData(16, 16, 100, 1, 1))
+                .when(mOneGroupAggregator)
+                .readNewData(mCursor);
+        when(mCursor.moveToNext()).thenReturn(true, true, true, true, false);
+        mOneGroupAggregator.calculateAggregation(mCursor);
+        assertThat(mOneGroupAggregator.getResultForGroup(0)).isEqualTo(7.0 + 9.0 + 40.0);
+    }
+
+    @Test
+    public void testManyStepsRecords_readOnlyAsFarAsGroups() {
+        int[] recordsRead = {0};
+        doAnswer(
+                        invocation -> {
+                            long start = 12 + 10L * recordsRead[0]++;
+                            return createStepsData(start, start + 5, 5, 1, 1);
+                        })
+                .when(mOneGroupAggregator)
+                .readNewData(any());
+        when(mCursor.moveToNext()).thenReturn(true);
+        mOneGroupAggregator.calculateAggregation(mCursor);
+        assertThat(mOneGroupAggregator.getResultForGroup(0)).isEqualTo(5.0);
+        // Records are streamed, only the ones up to the first starting after the group are read.
+        verify(mOneGroupAggregator, atMost(3)).readNewData(any());
+    }
 }
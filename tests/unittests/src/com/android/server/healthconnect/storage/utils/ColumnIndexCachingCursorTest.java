@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.database.MatrixCursor;
+
+import org.junit.Test;
+
+public class ColumnIndexCachingCursorTest {
+    private static final String UUID_COLUMN = "uuid";
+    private static final String COUNT_COLUMN = "count";
+
+    @Test
+    public void testGetColumnIndex_returnsIndicesOfWrappedCursor() {
+        ColumnIndexCachingCursor cursor =
+                new ColumnIndexCachingCursor(
+                        new MatrixCursor(new String[] {UUID_COLUMN, COUNT_COLUMN}));
+
+        for (int i = 0; i < 2; i++) {
+            assertThat(cursor.getColumnIndex(UUID_COLUMN)).isEqualTo(0);
+            assertThat(cursor.getColumnIndex(COUNT_COLUMN)).isEqualTo(1);
+            assertThat(cursor.getColumnIndex("missing")).isEqualTo(-1);
+        }
+        // Names are matched by value, not by instance.
+        assertThat(cursor.getColumnIndex(new String(COUNT_COLUMN))).isEqualTo(1);
+    }
+
+    @Test
+    public void testGetColumnIndex_manyColumns_returnsIndicesOfWrappedCursor() {
+        String[] columnNames = new String[40];
+        for (int i = 0; i < columnNames.length; i++) {
+            columnNames[i] = "column_" + i;
+        }
+        ColumnIndexCachingCursor cursor =
+                new ColumnIndexCachingCursor(new MatrixCursor(columnNames));
+
+        for (int i = 0; i < columnNames.length; i++) {
+            assertThat(cursor.getColumnIndex(columnNames[i])).isEqualTo(i);
+        }
+        for (int i = 0; i < columnNames.length; i++) {
+            assertThat(cursor.getColumnIndex(columnNames[i])).isEqualTo(i);
+        }
+    }
+
+    @Test
+    public void testGetColumnIndexOrThrow_missingColumn_throws() {
+        ColumnIndexCachingCursor cursor =
+                new ColumnIndexCachingCursor(new MatrixCursor(new String[] {UUID_COLUMN}));
+
+        assertThat(cursor.getColumnIndexOrThrow(UUID_COLUMN)).isEqualTo(0);
+        assertThrows(IllegalArgumentException.class, () -> cursor.getColumnIndexOrThrow("missing"));
+    }
+
+    @Test
+    public void testMoves_shareWrappedCursorPosition() {
+        MatrixCursor matrixCursor = new MatrixCursor(new String[] {COUNT_COLUMN});
+        matrixCursor.addRow(new Object[] {1});
+        matrixCursor.addRow(new Object[] {2});
+        ColumnIndexCachingCursor cursor = new ColumnIndexCachingCursor(matrixCursor);
+
+        matrixCursor.moveToNext();
+        matrixCursor.moveToNext();
+
+        assertThat(cursor.getInt(cursor.getColumnIndex(COUNT_COLUMN))).isEqualTo(2);
+    }
+}
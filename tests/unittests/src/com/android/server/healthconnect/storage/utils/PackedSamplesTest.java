@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PackedSamplesTest {
+    private static final long START_TIME = 1_700_000_000_000L;
+
+    @Test
+    public void testPackUnpack_integerValues_roundTrips() {
+        long[] epochMillis = {START_TIME, START_TIME + 1000, START_TIME + 500, START_TIME - 3};
+        double[] values = {72, 75, -1, Integer.MAX_VALUE};
+
+        assertUnpacksTo(PackedSamples.pack(epochMillis, values, true), epochMillis, values);
+    }
+
+    @Test
+    public void testPackUnpack_doubleValues_roundTrips() {
+        long[] epochMillis = {START_TIME, START_TIME + 1000, START_TIME + 2000};
+        double[] values = {0.1, -12.345, Double.MAX_VALUE};
+
+        assertUnpacksTo(PackedSamples.pack(epochMillis, values, false), epochMillis, values);
+    }
+
+    @Test
+    public void testPackUnpack_noSamples_roundTrips() {
+        assertUnpacksTo(
+                PackedSamples.pack(new long[0], new double[0], true), new long[0], new double[0]);
+    }
+
+    @Test
+    public void testPack_regularIntegerSeries_takesFewBytesPerSample() {
+        int count = 86_400;
+        long[] epochMillis = new long[count];
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            epochMillis[i] = START_TIME + i * 1000L;
+            values[i] = 60 + i % 40;
+        }
+
+        byte[] blob = PackedSamples.pack(epochMillis, values, true);
+
+        // One second deltas take two bytes, small value deltas take one.
+        assertThat(blob.length).isLessThan(count * 3 + 20);
+        assertUnpacksTo(blob, epochMillis, values);
+    }
+
+    @Test
+    public void testPack_mismatchingLengths_throws() {
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> PackedSamples.pack(new long[2], new double[1], false));
+    }
+
+    @Test
+    public void testUnpack_invalidBlob_throws() {
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> PackedSamples.unpack(new byte[] {42}, (epochMillis, value) -> {}));
+    }
+
+    private static void assertUnpacksTo(byte[] blob, long[] epochMillis, double[] values) {
+        List<Long> unpackedEpochMillis = new ArrayList<>();
+        List<Double> unpackedValues = new ArrayList<>();
+        PackedSamples.unpack(
+                blob,
+                (time, value) -> {
+                    unpackedEpochMillis.add(time);
+                    unpackedValues.add(value);
+                });
+
+        assertThat(unpackedEpochMillis).containsExactlyElementsIn(toList(epochMillis)).inOrder();
+        assertThat(unpackedValues).containsExactlyElementsIn(toList(values)).inOrder();
+    }
+
+    private static List<Long> toList(long[] array) {
+        List<Long> list = new ArrayList<>();
+        for (long element : array) {
+            list.add(element);
+        }
+        return list;
+    }
+
+    private static List<Double> toList(double[] array) {
+        List<Double> list = new ArrayList<>();
+        for (double element : array) {
+            list.add(element);
+        }
+        return list;
+    }
+}
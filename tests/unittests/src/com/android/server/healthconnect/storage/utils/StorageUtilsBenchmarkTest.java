@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * Measures the uuid helpers of {@link StorageUtils} used to build queries for 2k records, against
+ * the formatting and {@link ByteBuffer} based versions they replaced. Results are logged.
+ *
+ * <p>The benchmarks are {@link LargeTest}s, which the unit test configuration doesn't run by
+ * default, while the tests checking that both versions agree are run.
+ */
+public class StorageUtilsBenchmarkTest {
+    private static final String TAG = "StorageUtilsBenchmark";
+    private static final String COLUMN_NAME = "uuids";
+    private static final int NUM_UUIDS = 2000;
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 20;
+
+    private final List<UUID> mUuids = getUuids();
+
+    @Test
+    public void testGetListOfHexString_matchesFormat() {
+        assertThat(StorageUtils.getListOfHexString(mUuids))
+                .isEqualTo(getListOfHexStringUsingFormat(mUuids));
+    }
+
+    @Test
+    public void testWhereInUuidsClause_matchesHexStringsClause() {
+        assertThat(new WhereClauses().addWhereInUuidsClause(COLUMN_NAME, mUuids).get(false))
+                .isEqualTo(
+                        new WhereClauses()
+                                .addWhereInClauseWithoutQuotes(
+                                        COLUMN_NAME, getListOfHexStringUsingFormat(mUuids))
+                                .get(false));
+    }
+
+    @Test
+    public void testGetSingleByteArray_matchesByteBuffer() {
+        assertThat(StorageUtils.getSingleByteArray(mUuids))
+                .isEqualTo(getSingleByteArrayUsingByteBuffer(mUuids));
+    }
+
+    @Test
+    public void testGetCursorUUIDList_matchesByteBuffer() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {COLUMN_NAME});
+        cursor.addRow(new Object[] {StorageUtils.getSingleByteArray(mUuids)});
+        cursor.moveToFirst();
+
+        assertThat(StorageUtils.getCursorUUIDList(cursor, COLUMN_NAME)).isEqualTo(mUuids);
+        assertThat(getCursorUUIDListUsingByteBuffer(cursor.getBlob(0))).isEqualTo(mUuids);
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkGetListOfHexString() {
+        compare(
+                "getListOfHexString",
+                () -> getListOfHexStringUsingFormat(mUuids),
+                () -> StorageUtils.getListOfHexString(mUuids));
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkWhereInUuidsClause() {
+        compare(
+                "addWhereInUuidsClause",
+                () ->
+                        new WhereClauses()
+                                .addWhereInClauseWithoutQuotes(
+                                        COLUMN_NAME, getListOfHexStringUsingFormat(mUuids))
+                                .get(false),
+                () -> new WhereClauses().addWhereInUuidsClause(COLUMN_NAME, mUuids).get(false));
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkGetSingleByteArray() {
+        compare(
+                "getSingleByteArray",
+                () -> getSingleByteArrayUsingByteBuffer(mUuids),
+                () -> StorageUtils.getSingleByteArray(mUuids));
+    }
+
+    @Test
+    @LargeTest
+    public void benchmarkGetCursorUUIDList() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {COLUMN_NAME});
+        cursor.addRow(new Object[] {StorageUtils.getSingleByteArray(mUuids)});
+        cursor.moveToFirst();
+
+        compare(
+                "getCursorUUIDList",
+                () -> getCursorUUIDListUsingByteBuffer(cursor.getBlob(0)),
+                () -> StorageUtils.getCursorUUIDList(cursor, COLUMN_NAME));
+    }
+
+    private static void compare(String name, Supplier<?> baseline, Supplier<?> current) {
+        Log.i(
+                TAG,
+                name
+                        + " for "
+                        + NUM_UUIDS
+                        + " uuids: before: "
+                        + measureMicros(baseline)
+                        + "us, after: "
+                        + measureMicros(current)
+                        + "us");
+    }
+
+    private static long measureMicros(Supplier<?> task) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            assertThat(task.get()).isNotNull();
+            long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+            if (i >= WARMUP_ITERATIONS) {
+                best = Math.min(best, elapsed / 1000);
+            }
+        }
+        return best;
+    }
+
+    private static List<UUID> getUuids() {
+        List<UUID> uuids = new ArrayList<>(NUM_UUIDS);
+        for (int i = 0; i < NUM_UUIDS; i++) {
+            uuids.add(UUID.randomUUID());
+        }
+        return uuids;
+    }
+
+    private static List<String> getListOfHexStringUsingFormat(List<UUID> uuids) {
+        List<String> hexStrings = new ArrayList<>();
+        for (UUID uuid : uuids) {
+            byte[] bytes =
+                    ByteBuffer.wrap(new byte[16])
+                            .putLong(uuid.getMostSignificantBits())
+                            .putLong(uuid.getLeastSignificantBits())
+                            .array();
+            StringBuilder builder = new StringBuilder("x'");
+            for (byte b : bytes) {
+                builder.append(String.format("%02x", b));
+            }
+            hexStrings.add(builder.append("'").toString());
+        }
+        return hexStrings;
+    }
+
+    private static byte[] getSingleByteArrayUsingByteBuffer(List<UUID> uuids) {
+        ByteBuffer byteBuffer =
+                ByteBuffer.wrap(new byte[StorageUtils.UUID_BYTE_SIZE * uuids.size()]);
+        for (UUID uuid : uuids) {
+            byteBuffer.put(
+                    ByteBuffer.wrap(new byte[16])
+                            .putLong(uuid.getMostSignificantBits())
+                            .putLong(uuid.getLeastSignificantBits())
+                            .array());
+        }
+        return byteBuffer.array();
+    }
+
+    private static List<UUID> getCursorUUIDListUsingByteBuffer(byte[] bytes) {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        List<UUID> uuids = new ArrayList<>();
+        while (byteBuffer.hasRemaining()) {
+            uuids.add(new UUID(byteBuffer.getLong(), byteBuffer.getLong()));
+        }
+        return uuids;
+    }
+}
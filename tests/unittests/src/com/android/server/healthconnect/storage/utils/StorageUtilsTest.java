@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.database.MatrixCursor;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+
+public class StorageUtilsTest {
+    private static final String COLUMN_NAME = "uuids";
+    private static final UUID UUID_1 = UUID.fromString("00112233-4455-6677-8899-aabbccddeeff");
+    private static final UUID UUID_2 = new UUID(-1, Long.MIN_VALUE);
+
+    @Test
+    public void testGetHexString_bytes() {
+        assertThat(StorageUtils.getHexString(new byte[] {0, 15, 16, (byte) 0xab, -1}))
+                .isEqualTo("x'000f10abff'");
+        assertThat(StorageUtils.getHexString(new byte[0])).isEqualTo("x''");
+        assertThat(StorageUtils.getHexString((byte[]) null)).isEmpty();
+    }
+
+    @Test
+    public void testGetHexString_uuid() {
+        assertThat(StorageUtils.getHexString(UUID_1))
+                .isEqualTo("x'00112233445566778899aabbccddeeff'");
+        assertThat(StorageUtils.getHexString(UUID_2))
+                .isEqualTo("x'ffffffffffffffff8000000000000000'");
+    }
+
+    @Test
+    public void testGetListOfHexString() {
+        assertThat(StorageUtils.getListOfHexString(List.of(UUID_1, UUID_2)))
+                .containsExactly(
+                        StorageUtils.getHexString(UUID_1), StorageUtils.getHexString(UUID_2))
+                .inOrder();
+    }
+
+    @Test
+    public void testAppendHexStrings() {
+        StringBuilder builder = new StringBuilder("(");
+        StorageUtils.appendHexStrings(builder, List.of(UUID_1, UUID_2), ", ").append(")");
+
+        assertThat(builder.toString())
+                .isEqualTo(
+                        "("
+                                + StorageUtils.getHexString(UUID_1)
+                                + ", "
+                                + StorageUtils.getHexString(UUID_2)
+                                + ")");
+    }
+
+    @Test
+    public void testConvertUUIDToBytes_matchesByteBuffer() {
+        byte[] expected =
+                ByteBuffer.allocate(StorageUtils.UUID_BYTE_SIZE)
+                        .putLong(UUID_2.getMostSignificantBits())
+                        .putLong(UUID_2.getLeastSignificantBits())
+                        .array();
+
+        assertThat(StorageUtils.convertUUIDToBytes(UUID_2)).isEqualTo(expected);
+        assertThat(StorageUtils.convertBytesToUUID(expected)).isEqualTo(UUID_2);
+    }
+
+    @Test
+    public void testSingleByteArray_readBackFromCursor() {
+        List<UUID> uuids = List.of(UUID_1, UUID_2, UUID.randomUUID());
+        MatrixCursor cursor = new MatrixCursor(new String[] {COLUMN_NAME});
+        cursor.addRow(new Object[] {StorageUtils.getSingleByteArray(uuids)});
+        cursor.moveToFirst();
+
+        assertThat(StorageUtils.getCursorUUIDList(cursor, COLUMN_NAME))
+                .containsExactlyElementsIn(uuids)
+                .inOrder();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.server.healthconnect.storage.request.ReadTableRequest;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+public class WhereClausesTest {
+    private static final String COLUMN_NAME = "sample_column";
+    private static final String UUID_COLUMN_NAME = "uuid";
+
+    @Test
+    public void testWithoutBindArgs_inlinesValues() {
+        WhereClauses whereClauses =
+                new WhereClauses()
+                        .addWhereInLongsClause(COLUMN_NAME, List.of(1L, 2L))
+                        .addWhereBetweenTimeClause(COLUMN_NAME, 10, 20);
+
+        assertThat(whereClauses.get(false))
+                .isEqualTo(COLUMN_NAME + " IN (1, 2) AND " + COLUMN_NAME + " BETWEEN 10 AND 20");
+        assertThat(whereClauses.getBindArgs()).isEmpty();
+    }
+
+    @Test
+    public void testWithBindArgs_emitsPlaceholdersInOrder() {
+        WhereClauses whereClauses =
+                new WhereClauses()
+                        .setUseBindArgs(true)
+                        .addWhereInLongsClause(COLUMN_NAME, List.of(1L, 2L))
+                        .addWhereBetweenTimeClause(COLUMN_NAME, 10, 20)
+                        .addWhereLessThanOrEqualClause(COLUMN_NAME, 30);
+
+        assertThat(whereClauses.get(false))
+                .isEqualTo(
+                        COLUMN_NAME
+                                + " IN (?, ?) AND "
+                                + COLUMN_NAME
+                                + " BETWEEN ? AND ? AND "
+                                + COLUMN_NAME
+                                + " <= ?");
+        assertThat(whereClauses.getBindArgs()).asList().containsExactly(1L, 2L, 10L, 20L, 30L);
+    }
+
+    @Test
+    public void testWithBindArgs_sameShapeForDifferentValues() {
+        WhereClauses first =
+                new WhereClauses().setUseBindArgs(true).addWhereBetweenClause(COLUMN_NAME, 1, 2);
+        WhereClauses second =
+                new WhereClauses().setUseBindArgs(true).addWhereBetweenClause(COLUMN_NAME, 3, 4);
+
+        assertThat(first.get(true)).isEqualTo(second.get(true));
+    }
+
+    @Test
+    public void testUuidsClause_bindsBlobs() {
+        UUID uuid = UUID.randomUUID();
+        WhereClauses whereClauses =
+                new WhereClauses()
+                        .setUseBindArgs(true)
+                        .addWhereInUuidsClause(UUID_COLUMN_NAME, List.of(uuid));
+
+        assertThat(whereClauses.get(false)).isEqualTo(UUID_COLUMN_NAME + " IN (?)");
+        assertThat((byte[]) whereClauses.getBindArgs()[0])
+                .isEqualTo(StorageUtils.convertUUIDToBytes(uuid));
+    }
+
+    @Test
+    public void testUuidsClause_withoutBindArgs_inlinesHexLiterals() {
+        UUID uuid = UUID.randomUUID();
+        WhereClauses whereClauses =
+                new WhereClauses().addWhereInUuidsClause(UUID_COLUMN_NAME, List.of(uuid));
+
+        assertThat(whereClauses.get(false))
+                .isEqualTo(UUID_COLUMN_NAME + " IN (" + StorageUtils.getHexString(uuid) + ")");
+    }
+
+    @Test
+    public void testSqlRequestClause_carriesInnerBindArgs() {
+        ReadTableRequest innerRequest =
+                new ReadTableRequest("sample_table")
+                        .setWhereClause(
+                                new WhereClauses()
+                                        .setUseBindArgs(true)
+                                        .addWhereGreaterThanClause(COLUMN_NAME, 5L));
+        WhereClauses whereClauses =
+                new WhereClauses()
+                        .setUseBindArgs(true)
+                        .addWhereInSQLRequestClause(COLUMN_NAME, innerRequest)
+                        .addWhereLessThanClause(COLUMN_NAME, 7L);
+
+        assertThat(whereClauses.getBindArgs()).asList().containsExactly(5L, 7L).inOrder();
+    }
+}